@@ -0,0 +1,344 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Encodes and decodes a message of every special code with the BinaryMessageCodec, checking each field the code's
+ * layout carries survives the round trip. Also reads version 2 normal messages (still found in old mailboxes) and
+ * checks that bad payloads are rejected rather than decoded as nonsense
+ */
+class BinaryMessageCodecTest {
+    private static final BinaryMessageCodec CODEC = BinaryMessageCodec.INSTANCE;
+
+    private static final User ALICE = new User(7, "alice");
+    private static final User BOB = new User(300, "bob");
+
+    @Test
+    void normalMessageFromClientLeavesOutSender() throws IOException {
+        Message decoded = roundTrip(new Message(null, BOB, "hello", 42));
+        assertEquals(0, decoded.getSpecialCode());
+        assertNull(decoded.getFromUser());
+        assertEquals(BOB.getUniqueID(), decoded.getToUser().getUniqueID());
+        assertEquals("hello", decoded.getMessage());
+        assertEquals(42, decoded.getSequence());
+    }
+
+    @Test
+    void normalMessageFromServerHasSenderID() throws IOException {
+        Message decoded = roundTrip(new Message(ALICE, BOB, "héllo ☺", Long.MAX_VALUE));
+        assertEquals(ALICE.getUniqueID(), decoded.getFromUser().getUniqueID());
+        assertEquals(BOB.getUniqueID(), decoded.getToUser().getUniqueID());
+        assertEquals("héllo ☺", decoded.getMessage());
+        assertEquals(Long.MAX_VALUE, decoded.getSequence());
+    }
+
+    @Test
+    void messageAcknowledged() throws IOException {
+        Message routed = roundTrip(new Message(4, 9, null));
+        assertEquals(4, routed.getSpecialCode());
+        assertEquals(9, routed.getSequence());
+        assertNull(routed.getMessage());
+
+        Message failed = roundTrip(new Message(4, 10, "User is offline"));
+        assertEquals(10, failed.getSequence());
+        assertEquals("User is offline", failed.getMessage());
+    }
+
+    @Test
+    void messageReceived() throws IOException {
+        Message fromClient = roundTrip(new Message(null, ALICE, 5));
+        assertEquals(5, fromClient.getSpecialCode());
+        assertNull(fromClient.getFromUser());
+        assertEquals(ALICE.getUniqueID(), fromClient.getToUser().getUniqueID());
+        assertEquals(5, fromClient.getSequence());
+
+        Message fromServer = roundTrip(new Message(BOB, ALICE, 6));
+        assertEquals(BOB.getUniqueID(), fromServer.getFromUser().getUniqueID());
+    }
+
+    @Test
+    void throttled() throws IOException {
+        Message decoded = roundTrip(new Message(52, 1 << 20, 250L));
+        assertEquals(6, decoded.getSpecialCode());
+        assertEquals(52, decoded.getThrottledCode());
+        assertEquals(1 << 20, decoded.getSequence());
+        assertEquals(250, decoded.getRetryAfterMillis());
+    }
+
+    @Test
+    void storedMessageKeepsSenderName() throws IOException {
+        Message decoded = roundTrip(new Message(7, ALICE, "while you were out", 3));
+        assertEquals(7, decoded.getSpecialCode());
+        assertEquals(ALICE.getUniqueID(), decoded.getFromUser().getUniqueID());
+        assertEquals(ALICE.getName(), decoded.getFromUser().getName());
+        assertEquals("while you were out", decoded.getMessage());
+        assertEquals(3, decoded.getSequence());
+    }
+
+    @Test
+    void loginRequestAndReplies() throws IOException {
+        Message request = roundTrip(new Message(10, "alice", "deflate"));
+        assertEquals(10, request.getSpecialCode());
+        assertEquals("alice", request.getMessage());
+        assertEquals("deflate", request.getCompression());
+
+        Message withoutSession = roundTrip(new Message(11, "7", null));
+        assertEquals(11, withoutSession.getSpecialCode());
+        assertEquals("7", withoutSession.getMessage());
+        assertNull(withoutSession.getCompression());
+        assertNull(withoutSession.getSessionToken());
+
+        Message withSession = roundTrip(new Message("7", "deflate", "token"));
+        assertEquals(11, withSession.getSpecialCode());
+        assertEquals("7", withSession.getMessage());
+        assertEquals("deflate", withSession.getCompression());
+        assertEquals("token", withSession.getSessionToken());
+
+        Message resumeReply = roundTrip(new Message(13, "7", null));
+        assertEquals(13, resumeReply.getSpecialCode());
+        assertEquals("7", resumeReply.getMessage());
+    }
+
+    @Test
+    void loginRequestFromOlderClientWithoutCompression() throws IOException {
+        // Older clients only wrote the name
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryMessageCodec.VERSION);
+        BinaryMessageCodec.writeVarint(out, 10);
+        BinaryMessageCodec.writeString(out, "alice");
+        Message decoded = CODEC.decode(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals("alice", decoded.getMessage());
+        assertNull(decoded.getCompression());
+    }
+
+    @Test
+    void resumeSession() throws IOException {
+        Message decoded = roundTrip(new Message("token", 1234, "deflate"));
+        assertEquals(12, decoded.getSpecialCode());
+        assertEquals("token", decoded.getSessionToken());
+        assertEquals(1234, decoded.getSequence());
+        assertEquals("deflate", decoded.getCompression());
+    }
+
+    @Test
+    void refreshUsers() throws IOException {
+        Message decoded = roundTrip(new Message(users(ALICE, BOB), 99));
+        assertEquals(20, decoded.getSpecialCode());
+        assertEquals(99, decoded.getPresenceVersion());
+        assertUsers(users(ALICE, BOB), decoded.getUsers());
+    }
+
+    @Test
+    void usersJoinedAndLeft() throws IOException {
+        Message decoded = roundTrip(new Message(users(ALICE), users(BOB), 4, 5));
+        assertEquals(21, decoded.getSpecialCode());
+        assertEquals(4, decoded.getBasePresenceVersion());
+        assertEquals(5, decoded.getPresenceVersion());
+        assertUsers(users(ALICE), decoded.getUsers());
+        assertEquals(1, decoded.getLeftUsers().size());
+        assertEquals(BOB.getUniqueID(), decoded.getLeftUsers().get(0).getUniqueID());
+    }
+
+    @Test
+    void nodeUsersJoinedAndLeft() throws IOException {
+        Message decoded = roundTrip(new Message(users(BOB), users(ALICE)));
+        assertEquals(41, decoded.getSpecialCode());
+        assertUsers(users(BOB), decoded.getUsers());
+        assertEquals(ALICE.getUniqueID(), decoded.getLeftUsers().get(0).getUniqueID());
+    }
+
+    @Test
+    void roomRequests() throws IOException {
+        for (int code = 30; code <= 32; code++){
+            Message decoded = roundTrip(new Message(code, null, "cs-lab", null));
+            assertEquals(code, decoded.getSpecialCode());
+            assertEquals("cs-lab", decoded.getRoom());
+        }
+
+        Message post = roundTrip(new Message(33, ALICE, "cs-lab", "anyone here?"));
+        assertEquals(33, post.getSpecialCode());
+        assertEquals(ALICE.getName(), post.getFromUser().getName());
+        assertEquals("cs-lab", post.getRoom());
+        assertEquals("anyone here?", post.getMessage());
+
+        Message joined = roundTrip(new Message("cs-lab", users(ALICE, BOB)));
+        assertEquals(34, joined.getSpecialCode());
+        assertEquals("cs-lab", joined.getRoom());
+        assertUsers(users(ALICE, BOB), joined.getUsers());
+
+        Message failed = roundTrip(new Message(35, null, "cs-lab", "Room doesn't exist"));
+        assertEquals(35, failed.getSpecialCode());
+        assertEquals("cs-lab", failed.getRoom());
+        assertEquals("Room doesn't exist", failed.getMessage());
+    }
+
+    @Test
+    void fileTransfers() throws IOException {
+        byte[] data = new byte[300];
+        Arrays.fill(data, (byte) 0xAB);
+        for (int code = 50; code <= 53; code++){
+            byte[] chunk = code == 52 ? data : null;
+            Message decoded = roundTrip(new Message(code, ALICE, BOB, 77, 1L << 33, "notes.pdf", chunk));
+            assertEquals(code, decoded.getSpecialCode());
+            assertEquals(ALICE.getUniqueID(), decoded.getFromUser().getUniqueID());
+            assertEquals(BOB.getUniqueID(), decoded.getToUser().getUniqueID());
+            assertEquals(77, decoded.getTransferID());
+            assertEquals(1L << 33, decoded.getOffset());
+            assertEquals("notes.pdf", decoded.getMessage());
+            assertArrayEquals(chunk, decoded.getData());
+        }
+
+        Message fromClient = roundTrip(new Message(52, null, BOB, 1, 0, null, new byte[0]));
+        assertNull(fromClient.getFromUser());
+        assertArrayEquals(new byte[0], fromClient.getData());
+    }
+
+    @Test
+    void otherCodesCarryText() throws IOException {
+        for (int code: new int[] {1, 2, 3, 22, 40}){
+            Message decoded = roundTrip(new Message(code, "text"));
+            assertEquals(code, decoded.getSpecialCode());
+            assertEquals("text", decoded.getMessage());
+        }
+        assertNull(roundTrip(new Message(2, null)).getMessage());
+    }
+
+    @Test
+    void readsVersion2NormalMessage() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(2);
+        BinaryMessageCodec.writeVarint(out, 0);
+        writeUser(out, ALICE);
+        writeUser(out, BOB);
+        BinaryMessageCodec.writeString(out, "from an old mailbox");
+        BinaryMessageCodec.writeVarlong(out, 12);
+
+        Message decoded = CODEC.decode(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(0, decoded.getSpecialCode());
+        assertEquals(ALICE.getName(), decoded.getFromUser().getName());
+        assertEquals(BOB.getName(), decoded.getToUser().getName());
+        assertEquals("from an old mailbox", decoded.getMessage());
+        assertEquals(12, decoded.getSequence());
+    }
+
+    @Test
+    void readsVersion2NormalMessageWithoutSequence() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(2);
+        BinaryMessageCodec.writeVarint(out, 0);
+        writeUser(out, ALICE);
+        writeUser(out, BOB);
+        BinaryMessageCodec.writeString(out, "hi");
+
+        assertEquals(0, CODEC.decode(ByteBuffer.wrap(out.toByteArray())).getSequence());
+    }
+
+    @Test
+    void rejectsVersion2OtherCodes() {
+        byte[] payload = {2, 20, 0, 0};
+        assertThrows(IOException.class, () -> CODEC.decode(ByteBuffer.wrap(payload)));
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        byte[] payload = {(byte) (BinaryMessageCodec.VERSION + 1), 0};
+        assertThrows(IOException.class, () -> CODEC.decode(ByteBuffer.wrap(payload)));
+    }
+
+    @Test
+    void rejectsTruncatedPayloads() throws IOException {
+        byte[] full = encode(new Message(ALICE, BOB, "cut short", 1));
+        // Every cut that ends inside the text or before it fails, rather than reading past the end
+        for (int length = 1; length < full.length - 2; length++){
+            byte[] cut = Arrays.copyOf(full, length);
+            assertThrows(IOException.class, () -> CODEC.decode(ByteBuffer.wrap(cut)), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsListLongerThanPayload() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryMessageCodec.VERSION);
+        BinaryMessageCodec.writeVarint(out, 20);
+        BinaryMessageCodec.writeVarlong(out, 1);
+        BinaryMessageCodec.writeVarint(out, 1_000_000);
+        assertThrows(IOException.class, () -> CODEC.decode(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    void varintsRoundTripAtEveryLength() throws IOException {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value: values){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryMessageCodec.writeVarlong(out, value);
+            BinaryMessageCodec.writeVarint(out, (int) value);
+            ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(value, BinaryMessageCodec.readVarlong(in));
+            assertEquals((int) value, BinaryMessageCodec.readVarint(in));
+        }
+    }
+
+    /**
+     * Encode a message then decode it again
+     * @param message   message to encode
+     * @return  decoded copy
+     * @throws IOException  if the message can't be encoded or decoded
+     */
+    private static Message roundTrip(Message message) throws IOException {
+        return CODEC.decode(ByteBuffer.wrap(encode(message)));
+    }
+
+    /**
+     * Encode a message into a payload
+     * @param message   message to encode
+     * @return  payload bytes
+     * @throws IOException  if the message can't be encoded
+     */
+    private static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CODEC.encode(message, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a user the way the codec does, as their id followed by their name
+     * @param out   stream to write to
+     * @param user  user to write
+     */
+    private static void writeUser(ByteArrayOutputStream out, User user){
+        BinaryMessageCodec.writeVarint(out, user.getUniqueID());
+        BinaryMessageCodec.writeString(out, user.getName());
+    }
+
+    /**
+     * Create a list of users
+     * @param users users in the list
+     * @return  list holding the users
+     */
+    private static ArrayList<User> users(User... users){
+        return new ArrayList<>(List.of(users));
+    }
+
+    /**
+     * Check a decoded list of users has the same ids and names as the list that was encoded
+     * @param expected  users that were encoded
+     * @param actual    users that were decoded
+     */
+    private static void assertUsers(List<User> expected, List<User> actual){
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++){
+            assertEquals(expected.get(i).getUniqueID(), actual.get(i).getUniqueID());
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+        }
+    }
+}
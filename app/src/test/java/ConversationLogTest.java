@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the ConversationLog rebuilds each conversation's index when it's opened again, including across several
+ * segments, and recovers from a record only partly written when the client stopped by cutting it off the end of the log
+ */
+class ConversationLogTest {
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void tearDown(){
+        System.clearProperty("chat.client.logSegmentBytes");
+    }
+
+    @Test
+    void historyIsReadAfterReopening() throws IOException {
+        ConversationLog log = new ConversationLog(directory);
+        log.append(List.of(record(1, "alice", "hi bob", false), record(2, "carol", "lunch?", true),
+                record(1, "alice", "hi alice", true)));
+        log.close();
+
+        ConversationLog reopened = new ConversationLog(directory);
+        try {
+            assertEquals(2, reopened.count(1));
+            assertEquals(1, reopened.count(2));
+            assertEquals(0, reopened.count(3));
+            List<ConversationRecord> alice = reopened.readAll(1);
+            assertEquals("hi bob", alice.get(0).getText());
+            assertEquals("hi alice", alice.get(1).getText());
+            assertTrue(alice.get(1).isReceived());
+            assertEquals("alice", alice.get(1).getPeerName());
+            assertEquals("lunch?", reopened.readAll(2).get(0).getText());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void historyAcrossSegmentsIsReadAfterReopening() throws IOException {
+        // Small segments so the history is spread over many files
+        System.setProperty("chat.client.logSegmentBytes", "200");
+        ConversationLog log = new ConversationLog(directory);
+        ArrayList<ConversationRecord> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++){
+            records.add(record(i % 3, "user" + (i % 3), "message " + i, i % 2 == 0));
+        }
+        log.append(records);
+        log.close();
+        assertTrue(segments().size() > 5);
+
+        ConversationLog reopened = new ConversationLog(directory);
+        try {
+            for (int peer = 0; peer < 3; peer++){
+                List<ConversationRecord> conversation = reopened.readAll(peer);
+                int expected = peer;
+                for (ConversationRecord record: conversation){
+                    assertEquals("message " + expected, record.getText());
+                    expected += 3;
+                }
+                assertEquals(expected, peer + 3 * reopened.count(peer));
+            }
+            assertEquals(2, reopened.read(1, 3, 2).size());
+            assertEquals("message 10", reopened.read(1, 3, 2).get(0).getText());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void partlyWrittenRecordIsRemoved() throws IOException {
+        ConversationLog log = new ConversationLog(directory);
+        log.append(List.of(record(1, "alice", "first", true), record(1, "alice", "second", true)));
+        log.close();
+
+        // The client stopped halfway through writing a record: its length says there's more than was written
+        Path segment = segments().get(segments().size() - 1);
+        long validSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+            ByteBuffer torn = ByteBuffer.allocate(12);
+            torn.putInt(1000).putLong(System.currentTimeMillis());
+            channel.write(torn.flip());
+        }
+
+        ConversationLog reopened = new ConversationLog(directory);
+        try {
+            assertEquals(validSize, Files.size(segment));
+            assertEquals(2, reopened.count(1));
+
+            // Records added after the recovery follow straight on from the old ones
+            reopened.append(record(1, "alice", "third", false));
+        } finally {
+            reopened.close();
+        }
+
+        ConversationLog reopenedAgain = new ConversationLog(directory);
+        try {
+            List<ConversationRecord> alice = reopenedAgain.readAll(1);
+            assertEquals(3, alice.size());
+            assertEquals("third", alice.get(2).getText());
+        } finally {
+            reopenedAgain.close();
+        }
+    }
+
+    @Test
+    void logCanOnlyBeOpenedOnce() throws IOException {
+        ConversationLog log = new ConversationLog(directory);
+        try {
+            assertThrows(IOException.class, () -> new ConversationLog(directory));
+        } finally {
+            log.close();
+        }
+        new ConversationLog(directory).close();
+    }
+
+    /**
+     * Create a message for the log, timestamped now so it isn't removed by the retention period
+     * @param peerID    id of the user the conversation is with
+     * @param peerName  name of the user the conversation is with
+     * @param text  text of the message
+     * @param received  true if it was received from the peer
+     * @return  new record
+     */
+    private static ConversationRecord record(int peerID, String peerName, String text, boolean received){
+        return new ConversationRecord(System.currentTimeMillis(), received, peerID, peerName, text);
+    }
+
+    /**
+     * Returns the log's segment files in log order
+     * @return  paths of the segments
+     * @throws IOException  if the directory can't be listed
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)){
+            return files.filter(file -> file.toString().endsWith(LogSegment.EXTENSION)).sorted().toList();
+        }
+    }
+}
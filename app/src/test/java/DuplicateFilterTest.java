@@ -0,0 +1,85 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the DuplicateFilter's sliding window: each sequence number is new exactly once, out of order arrivals within
+ * the window are still new, and anything older than the window is treated as a copy
+ */
+class DuplicateFilterTest {
+    @Test
+    void copiesAreSpotted(){
+        DuplicateFilter filter = new DuplicateFilter();
+        assertTrue(filter.isNew(1, 1));
+        assertTrue(filter.isNew(1, 2));
+        assertFalse(filter.isNew(1, 1));
+        assertFalse(filter.isNew(1, 2));
+    }
+
+    @Test
+    void sendersAreSeparate(){
+        DuplicateFilter filter = new DuplicateFilter();
+        assertTrue(filter.isNew(1, 5));
+        assertTrue(filter.isNew(2, 5));
+        assertFalse(filter.isNew(2, 5));
+    }
+
+    @Test
+    void outOfOrderWithinWindowIsNew(){
+        DuplicateFilter filter = new DuplicateFilter();
+        assertTrue(filter.isNew(1, 10));
+        // Skipped numbers arrive late, each once
+        for (long sequence = 1; sequence < 10; sequence++){
+            assertTrue(filter.isNew(1, sequence), "sequence " + sequence);
+            assertFalse(filter.isNew(1, sequence), "copy of " + sequence);
+        }
+    }
+
+    @Test
+    void olderThanWindowIsACopy(){
+        DuplicateFilter filter = new DuplicateFilter();
+        long highest = DuplicateFilter.WINDOW + 100;
+        assertTrue(filter.isNew(1, highest));
+        assertTrue(filter.isNew(1, highest - DuplicateFilter.WINDOW + 1));
+        assertFalse(filter.isNew(1, highest - DuplicateFilter.WINDOW));
+    }
+
+    @Test
+    void movingTheWindowForgetsOldBits(){
+        DuplicateFilter filter = new DuplicateFilter();
+        assertTrue(filter.isNew(1, 1));
+        // Sequence 1 + WINDOW uses the same bit as sequence 1, it must have been cleared as the window moved
+        assertTrue(filter.isNew(1, DuplicateFilter.WINDOW));
+        assertTrue(filter.isNew(1, DuplicateFilter.WINDOW + 1));
+        assertFalse(filter.isNew(1, DuplicateFilter.WINDOW + 1));
+
+        // A jump of more than a whole window clears everything
+        long far = 10L * DuplicateFilter.WINDOW;
+        assertTrue(filter.isNew(1, far));
+        assertTrue(filter.isNew(1, far - 1));
+    }
+
+    @Test
+    void everyNumberIsNewOnceWhenSentTwiceInOrder(){
+        DuplicateFilter filter = new DuplicateFilter();
+        for (long sequence = 1; sequence <= 5 * DuplicateFilter.WINDOW; sequence++){
+            assertTrue(filter.isNew(3, sequence));
+            assertFalse(filter.isNew(3, sequence));
+            if (sequence > 1){
+                assertFalse(filter.isNew(3, sequence - 1));
+            }
+        }
+    }
+
+    @Test
+    void forgottenSenderStartsAfresh(){
+        DuplicateFilter filter = new DuplicateFilter();
+        assertTrue(filter.isNew(1, 7));
+        filter.forget(1);
+        assertTrue(filter.isNew(1, 7));
+
+        filter.clear();
+        assertTrue(filter.isNew(1, 7));
+    }
+}
@@ -0,0 +1,110 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the FrameCompressor only compresses frames at least the threshold that it makes smaller, that every frame
+ * compressed since the last resetOutput() can still be read back, and that a FrameReader gives back the original
+ * message once compression has been agreed (and refuses compressed frames before then)
+ */
+class FrameCompressorTest {
+    private final MessageCodec codec = new ServerConfig().getCodec();
+
+    @Test
+    void largeFrameIsCompressedAndRestored() throws IOException {
+        FrameCompressor compressor = new FrameCompressor(1, 512);
+        byte[] frame = frame("at Server.routeDirectMessage(Server.java:268)\n".repeat(100));
+        ByteBuffer compressed = compressor.compress(frame);
+        assertNotNull(compressed);
+        assertTrue(compressed.remaining() < frame.length / 4, "compressed to " + compressed.remaining());
+
+        int header = compressed.getInt(compressed.position());
+        assertTrue(MessageFraming.isCompressed(header));
+        int length = MessageFraming.payloadLength(header, true);
+        ByteBuffer restored = compressor.decompress(compressed.array(),
+                compressed.arrayOffset() + compressed.position() + MessageFraming.HEADER_SIZE, length);
+        assertEquals(ByteBuffer.wrap(frame, MessageFraming.HEADER_SIZE, frame.length - MessageFraming.HEADER_SIZE),
+                restored);
+        compressor.close();
+    }
+
+    @Test
+    void smallFrameIsSentAsItIs(){
+        FrameCompressor compressor = new FrameCompressor(1, 512);
+        assertNull(compressor.compress(frame("hi bob")));
+        compressor.close();
+    }
+
+    @Test
+    void frameThatDoesntShrinkIsSentAsItIs(){
+        // Random bytes don't compress, so compressing them would only add the extra header
+        byte[] random = new byte[2000];
+        new Random(1).nextBytes(random);
+        byte[] frame = ByteBuffer.allocate(MessageFraming.HEADER_SIZE + random.length).putInt(random.length)
+                .put(random).array();
+        FrameCompressor compressor = new FrameCompressor(9, 0);
+        assertNull(compressor.compress(frame));
+        compressor.close();
+    }
+
+    @Test
+    void framesCompressedInOneBatchStayValid() throws IOException {
+        // A writer compresses a whole batch before writing any of it, so earlier frames mustn't be overwritten
+        FrameCompressor compressor = new FrameCompressor(1, 0);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        ByteBuffer first = compressor.compress(frame("first ".repeat(200)));
+        ByteBuffer second = compressor.compress(frame("second ".repeat(200)));
+        written.write(first.array(), first.arrayOffset() + first.position(), first.remaining());
+        written.write(second.array(), second.arrayOffset() + second.position(), second.remaining());
+        compressor.resetOutput();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(written.toByteArray()), codec);
+        reader.allowCompressed();
+        assertEquals("first ".repeat(200), reader.read().getMessage());
+        assertEquals("second ".repeat(200), reader.read().getMessage());
+        compressor.close();
+    }
+
+    @Test
+    void readerRefusesCompressedFrameUntilAgreed(){
+        FrameCompressor compressor = new FrameCompressor(1, 0);
+        ByteBuffer compressed = compressor.compress(frame("hello ".repeat(100)));
+        byte[] bytes = new byte[compressed.remaining()];
+        compressed.get(bytes);
+        compressor.close();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes), codec);
+        assertThrows(IOException.class, reader::read);
+    }
+
+    @Test
+    void negotiatesDeflateOnlyIfOfferedAndEnabled(){
+        assertEquals(FrameCompressor.DEFLATE, FrameCompressor.negotiate("gzip, Deflate", true));
+        assertNull(FrameCompressor.negotiate("deflate", false));
+        assertNull(FrameCompressor.negotiate(null, true));
+        assertNull(FrameCompressor.negotiate("gzip", true));
+    }
+
+    /**
+     * Encode a direct message as a complete frame
+     * @param text  text of the message
+     * @return  frame with its length header
+     */
+    private byte[] frame(String text){
+        try {
+            return MessageFraming.encode(codec, new Message(new User(1, "alice"), new User(2, "bob"), text, 1));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the LatencyHistogram's buckets: small values are exact, every other value is reported within one bucket
+ * (about 12%) above its true value and never below it, and counts recorded from many threads are all kept
+ */
+class LatencyHistogramTest {
+    @Test
+    void smallValuesAreExact(){
+        for (long value = 0; value < 8; value++){
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            assertEquals(value, histogram.getPercentile(100));
+        }
+    }
+
+    @Test
+    void valuesAreWithinOneBucket(){
+        long[] values = {8, 9, 15, 16, 17, 100, 1000, 1023, 1024, 123_456, 1_000_000_000L, Long.MAX_VALUE / 2};
+        for (long value: values){
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            long reported = histogram.getPercentile(50);
+            assertTrue(reported >= value, value + " reported as " + reported);
+            assertTrue(reported - value <= value / 8, value + " reported as " + reported);
+        }
+    }
+
+    @Test
+    void bucketBoundariesAreContiguous(){
+        // Each value is reported as the top of its bucket, so reporting that top again must give the same bucket, and
+        // the next value up must start a new one
+        long value = 8;
+        while (value < (1L << 40)){
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            long top = histogram.getPercentile(100);
+
+            LatencyHistogram again = new LatencyHistogram();
+            again.record(top);
+            assertEquals(top, again.getPercentile(100), "top of the bucket holding " + value);
+
+            LatencyHistogram next = new LatencyHistogram();
+            next.record(top + 1);
+            assertTrue(next.getPercentile(100) > top, "value after " + top);
+            value = top + 1;
+        }
+    }
+
+    @Test
+    void negativeValuesCountAsZero(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(100));
+        assertEquals(0, histogram.getSum());
+        assertEquals(1, histogram.getCount());
+    }
+
+    @Test
+    void percentilesAndCumulativeCounts(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (long value = 1; value <= 100; value++){
+            histogram.record(value * 1000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5_050_000, histogram.getSum());
+
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 50_000 && median <= 50_000 * 9 / 8, "median was " + median);
+        long highest = histogram.getPercentile(100);
+        assertTrue(highest >= 100_000 && highest <= 100_000 * 9 / 8, "highest was " + highest);
+
+        long[] cumulative = histogram.getCumulativeCounts(new long[] {0, 1_000_000});
+        assertArrayEquals(new long[] {0, 100, 100}, cumulative);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+    }
+
+    @Test
+    void recordsFromManyThreadsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++){
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++){
+                    histogram.record(i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread: threads){
+            thread.join();
+        }
+        assertEquals(80_000, histogram.getCount());
+        assertEquals(8L * (10_000L * 9_999 / 2), histogram.getSum());
+    }
+}
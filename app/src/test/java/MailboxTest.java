@@ -0,0 +1,192 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Checks the Mailbox rebuilds its index from the log after the server stops: waiting messages are still delivered in
+ * order with their sender's name, delivered messages aren't delivered again, and a record only partly written when the
+ * server stopped is cut off the end of the log. Each "restart" opens a new Mailbox on the same directory without
+ * stopping the old one, as a server that was killed wouldn't have either
+ */
+class MailboxTest {
+    private static final User ALICE = new User(1, "alice");
+    private static final User BOB = new User(2, "bob");
+
+    @TempDir
+    Path directory;
+
+    private UserRegistry registry;
+    private ServerStats stats;
+    private ServerConfig config;
+
+    @BeforeEach
+    void setUp(){
+        System.setProperty("chat.server.mailboxDir", directory.toString());
+        registry = new UserRegistry();
+        stats = new ServerStats(registry);
+        config = new ServerConfig();
+    }
+
+    @AfterEach
+    void tearDown(){
+        System.clearProperty("chat.server.mailboxDir");
+    }
+
+    @Test
+    void waitingMessagesSurviveRestart() throws Exception {
+        Mailbox mailbox = open();
+        storeAll(mailbox, "first", "second", "third");
+
+        Mailbox restarted = open();
+        assertTrue(restarted.hasMail(BOB.getName()));
+        assertFalse(restarted.hasMail(ALICE.getName()));
+        assertDelivered(restarted, "first", "second", "third");
+    }
+
+    @Test
+    void deliveredMessagesAreNotDeliveredAgain() throws Exception {
+        Mailbox mailbox = open();
+        storeAll(mailbox, "first", "second");
+        assertDelivered(mailbox, "first", "second");
+        // The delivered record is written after the messages are queued, wait for it to reach the log
+        waitFor(() -> !mailbox.hasMail(BOB.getName()));
+        mailbox.store(message("third"), true);
+        waitFor(() -> stats.getMailboxStored() == 3);
+
+        Mailbox restarted = open();
+        assertDelivered(restarted, "third");
+    }
+
+    @Test
+    void partlyWrittenRecordIsRemoved() throws Exception {
+        Mailbox mailbox = open();
+        storeAll(mailbox, "first", "second");
+
+        // The server stopped halfway through writing a record: its length says there's more than was written
+        Path segment = lastSegment();
+        long validSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+            ByteBuffer torn = ByteBuffer.allocate(13);
+            torn.putInt(500).put((byte) 0).putLong(99);
+            channel.write(torn.flip());
+        }
+
+        Mailbox restarted = open();
+        assertEquals(validSize, Files.size(segment));
+        assertDelivered(restarted, "first", "second");
+    }
+
+    @Test
+    void messagesStoredAfterRecoveryFollowTheOldOnes() throws Exception {
+        Mailbox mailbox = open();
+        storeAll(mailbox, "first");
+
+        Mailbox restarted = open();
+        restarted.store(message("second"), true);
+        waitFor(() -> stats.getMailboxStored() == 2);
+
+        Mailbox restartedAgain = open();
+        assertDelivered(restartedAgain, "first", "second");
+    }
+
+    /**
+     * Open the mailbox in the test's directory and start its writer
+     * @return  started mailbox
+     * @throws IOException  if the mailbox can't be opened
+     */
+    private Mailbox open() throws IOException {
+        Mailbox mailbox = new Mailbox(config, registry, stats);
+        mailbox.start();
+        return mailbox;
+    }
+
+    /**
+     * Store messages from alice to bob, and wait until they have been written to the log
+     * @param mailbox   mailbox to store them in
+     * @param texts texts of the messages
+     */
+    private void storeAll(Mailbox mailbox, String... texts){
+        long target = stats.getMailboxStored() + texts.length;
+        for (String text: texts){
+            assertTrue(mailbox.store(message(text), true));
+        }
+        waitFor(() -> stats.getMailboxStored() == target);
+    }
+
+    /**
+     * Log bob in and check he's given exactly the given messages from alice, in order
+     * @param mailbox   mailbox to deliver from
+     * @param texts texts of the messages expected
+     */
+    private void assertDelivered(Mailbox mailbox, String... texts){
+        RecordingConnection connection = new RecordingConnection(config, stats);
+        SocketInfo bob = new SocketInfo(new User(registry.allocateUserID(), BOB.getName()), connection);
+        registry.add(bob);
+        try {
+            mailbox.deliver(bob);
+            waitFor(() -> connection.getReceived().size() >= texts.length);
+            List<Message> received = connection.getReceived();
+            assertEquals(texts.length, received.size());
+            for (int i = 0; i < texts.length; i++){
+                Message stored = received.get(i);
+                assertEquals(7, stored.getSpecialCode());
+                assertEquals(ALICE.getName(), stored.getFromUser().getName());
+                assertEquals(texts[i], stored.getMessage());
+            }
+        } finally {
+            registry.remove(bob.getClientID(), null);
+        }
+    }
+
+    /**
+     * Create a direct message from alice to bob
+     * @param text  text of the message
+     * @return  message with the names of both users, as the server stores it
+     */
+    private static Message message(String text){
+        return new Message(ALICE, BOB, text, 0);
+    }
+
+    /**
+     * Returns the newest segment of the mailbox log
+     * @return  path of the segment file
+     * @throws IOException  if the directory can't be listed
+     */
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)){
+            return files.filter(file -> file.toString().endsWith(LogSegment.EXTENSION)).sorted()
+                    .reduce((first, second) -> second).orElseThrow();
+        }
+    }
+
+    /**
+     * Wait until a condition holds, failing the test if it doesn't within a few seconds
+     * @param condition condition to wait for
+     */
+    private static void waitFor(BooleanSupplier condition){
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()){
+            if (System.nanoTime() > deadline){
+                fail("Timed out waiting for the mailbox");
+            }
+            Thread.yield();
+        }
+    }
+}
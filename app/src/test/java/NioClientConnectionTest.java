@@ -0,0 +1,210 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks a NioClientConnection puts frames back together however the client's bytes are split up on the way: a frame
+ * arriving a byte at a time, several frames and part of the next in a single read, and a frame much larger than the
+ * inbound buffer. Each test runs a real event loop on a loopback connection, with a read buffer smaller than a frame
+ * so even one write takes several reads. Also checks compressed frames are only accepted once compression has been
+ * agreed when logging in
+ */
+class NioClientConnectionTest {
+    private ServerSocketChannel listener;
+    private Socket client;
+    private OutputStream out;
+    private FrameReader in;
+    private MessageCodec codec;
+    private int userID;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        System.setProperty("chat.server.mailbox", "false");
+        System.setProperty("chat.server.readBufferSize", "16");
+        ServerConfig config = new ServerConfig();
+        codec = config.getCodec();
+        Server server = new Server(config);
+        EventLoop eventLoop = new EventLoop(server, new BufferPool(config.getReadBufferSize()), null);
+        eventLoop.start("test-event-loop");
+
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+        client.setTcpNoDelay(true);
+        client.setSoTimeout(5000);
+        eventLoop.register(listener.accept());
+        out = client.getOutputStream();
+        in = new FrameReader(new BufferedInputStream(client.getInputStream()), codec);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        System.clearProperty("chat.server.mailbox");
+        System.clearProperty("chat.server.readBufferSize");
+        client.close();
+        listener.close();
+    }
+
+    @Test
+    void frameArrivingOneByteAtATimeIsAssembled() throws Exception {
+        byte[] login = MessageFraming.encode(codec, new Message(10, "alice", null));
+        for (byte b: login){
+            out.write(b);
+            out.flush();
+            Thread.sleep(2);
+        }
+        // The reply gives the id the login was accepted with
+        assertTrue(Integer.parseInt(next(11).getMessage()) >= 0);
+    }
+
+    @Test
+    void framesSplitAcrossReadsAreHandledInOrder() throws Exception {
+        login();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 1; i <= 3; i++){
+            frames.write(directMessage("message " + i, i));
+        }
+        byte[] bytes = frames.toByteArray();
+
+        // The first write ends inside the second frame's header, the second inside the last frame's payload
+        int[] splits = {directMessage("message 1", 1).length + 2, bytes.length - 3};
+        out.write(bytes, 0, splits[0]);
+        out.flush();
+        Thread.sleep(20);
+        out.write(bytes, splits[0], splits[1] - splits[0]);
+        out.flush();
+        Thread.sleep(20);
+        out.write(bytes, splits[1], bytes.length - splits[1]);
+        out.flush();
+
+        assertEquals(List.of("message 1", "message 2", "message 3"), received(3));
+    }
+
+    @Test
+    void frameLargerThanInboundBufferIsAssembled() throws Exception {
+        login();
+        String large = "x".repeat(20_000);
+        byte[] frame = directMessage(large, 1);
+        for (int offset = 0; offset < frame.length; offset += 1000){
+            out.write(frame, offset, Math.min(1000, frame.length - offset));
+            out.flush();
+            Thread.sleep(1);
+        }
+        // A small frame after the large one is still read once the buffer has shrunk back
+        out.write(directMessage("small", 2));
+        out.flush();
+
+        assertEquals(List.of(large, "small"), received(2));
+    }
+
+    @Test
+    void compressedFrameIsAcceptedOnceAgreed() throws Exception {
+        login(FrameCompressor.DEFLATE);
+        String text = "hello ".repeat(50);
+        out.write(compressed(directMessage(text, 1)));
+        out.flush();
+        assertEquals(List.of(text), received(1));
+    }
+
+    @Test
+    void compressedFrameClosesConnectionIfNotAgreed() throws Exception {
+        login();
+        out.write(compressed(directMessage("hello ".repeat(50), 1)));
+        out.flush();
+        // The server closes the connection rather than inflating the frame, any reply already sent is skipped
+        assertThrows(IOException.class, () -> next(0));
+    }
+
+    /**
+     * Log in as alice in a single write, without offering compression, and remember the id given
+     * @throws IOException  if the connection fails
+     */
+    private void login() throws IOException {
+        login(null);
+    }
+
+    /**
+     * Log in as alice in a single write and remember the id given
+     * @param compression   compression offered, or null for none
+     * @throws IOException  if the connection fails
+     */
+    private void login(String compression) throws IOException {
+        out.write(MessageFraming.encode(codec, new Message(10, "alice", compression)));
+        out.flush();
+        Message reply = next(11);
+        userID = Integer.parseInt(reply.getMessage());
+        if (FrameCompressor.DEFLATE.equals(reply.getCompression())){
+            in.allowCompressed();
+        }
+    }
+
+    /**
+     * Compress a frame as a client does once compression has been agreed
+     * @param frame complete frame, large and repetitive enough to be made smaller
+     * @return  compressed frame
+     */
+    private static byte[] compressed(byte[] frame){
+        FrameCompressor compressor = new FrameCompressor(1, 0);
+        ByteBuffer compressed = compressor.compress(frame);
+        byte[] bytes = new byte[compressed.remaining()];
+        compressed.get(bytes);
+        compressor.close();
+        return bytes;
+    }
+
+    /**
+     * Encode a direct message from the client to itself, which the server sends back along with an acknowledgement
+     * @param text  text of the message
+     * @param sequence  sequence number of the message
+     * @return  complete frame
+     * @throws IOException  if the message can't be encoded
+     */
+    private byte[] directMessage(String text, long sequence) throws IOException {
+        return MessageFraming.encode(codec, new Message(null, new User(userID, "alice"), text, sequence));
+    }
+
+    /**
+     * Read the texts of the direct messages sent back to the client, skipping any other frames
+     * @param count number of messages to read
+     * @return  texts in the order they arrived
+     * @throws IOException  if they don't arrive in time
+     */
+    private List<String> received(int count) throws IOException {
+        ArrayList<String> texts = new ArrayList<>();
+        while (texts.size() < count){
+            texts.add(next(0).getMessage());
+        }
+        return texts;
+    }
+
+    /**
+     * Read frames from the server until one with the given code arrives
+     * @param specialCode   code of the frame wanted
+     * @return  the frame
+     * @throws IOException  if it doesn't arrive in time
+     */
+    private Message next(int specialCode) throws IOException {
+        while (true){
+            Message message = in.read();
+            if (message.getSpecialCode() == specialCode){
+                return message;
+            }
+        }
+    }
+}
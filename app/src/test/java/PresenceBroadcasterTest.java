@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the PresenceBroadcaster sends new users the full list and everyone else only the change, with versions that
+ * follow on from each other, that changes within a window are sent as one (leaving out users that joined and left
+ * within it), and that the encoded full list is reused until the users change
+ */
+class PresenceBroadcasterTest {
+    private UserRegistry registry;
+    private ServerConfig config;
+    private ServerStats stats;
+    private PresenceBroadcaster presence;
+
+    @AfterEach
+    void tearDown(){
+        System.clearProperty("chat.server.presenceWindowMillis");
+    }
+
+    @Test
+    void othersAreSentOnlyTheChange(){
+        open(0);
+        RecordingConnection alice = join(1, "alice");
+        assertSnapshot(last(alice), 1, "alice");
+
+        RecordingConnection bob = join(2, "bob");
+        assertChange(last(alice), 1, 2, List.of("bob"), List.of());
+        assertSnapshot(last(bob), 2, "alice", "bob");
+
+        presence.leave(1, null);
+        assertChange(last(bob), 2, 3, List.of(), List.of(1));
+        assertEquals(2, alice.getReceived().size());
+    }
+
+    @Test
+    void changesInWindowAreSentAsOne(){
+        // A window long enough never to end during the test, asking for the full list sends what's waiting at once
+        open(60_000);
+        RecordingConnection watcher = join(1, "watcher");
+        presence.sendSnapshot(registry.getSocket(1));
+        int before = watcher.getReceived().size();
+
+        RecordingConnection bob = join(2, "bob");
+        join(3, "carol");
+        presence.leave(3, null);
+        assertEquals(before, watcher.getReceived().size());
+
+        presence.sendSnapshot(registry.getSocket(1));
+        List<Message> received = watcher.getReceived();
+        assertEquals(before + 2, received.size());
+        // Carol joined and left within the window, so she isn't mentioned at all
+        assertChange(received.get(before), 1, 2, List.of("bob"), List.of());
+        assertSnapshot(received.get(before + 1), 2, "watcher", "bob");
+        assertSnapshot(last(bob), 2, "watcher", "bob");
+
+        // Two broadcasts carried four changes
+        assertEquals(2, stats.getPresenceChangesCoalesced());
+        assertTrue(stats.getPresenceBytesSaved() > 0);
+    }
+
+    @Test
+    void snapshotIsReusedUntilUsersChange(){
+        open(0);
+        RecordingConnection alice = join(1, "alice");
+        presence.sendSnapshot(registry.getSocket(1));
+        presence.sendSnapshot(registry.getSocket(1));
+        assertEquals(2, stats.getPresenceSnapshotsReused());
+        assertSnapshot(last(alice), 1, "alice");
+
+        // Bob joining changes the list, so it's encoded again for him and reused for alice
+        join(2, "bob");
+        presence.sendSnapshot(registry.getSocket(1));
+        assertEquals(3, stats.getPresenceSnapshotsReused());
+        assertSnapshot(last(alice), 2, "alice", "bob");
+    }
+
+    /**
+     * Create the broadcaster with the given window
+     * @param windowMillis  how long changes are collected before being sent
+     */
+    private void open(long windowMillis){
+        System.setProperty("chat.server.presenceWindowMillis", Long.toString(windowMillis));
+        config = new ServerConfig();
+        registry = new UserRegistry();
+        stats = new ServerStats(registry);
+        presence = new PresenceBroadcaster(registry, config, stats);
+    }
+
+    /**
+     * Log a user in on a connection that keeps everything sent to it
+     * @param uniqueID  id of the user
+     * @param name  name of the user
+     * @return  the user's connection
+     */
+    private RecordingConnection join(int uniqueID, String name){
+        RecordingConnection connection = new RecordingConnection(config, stats);
+        presence.join(new SocketInfo(new User(uniqueID, name), connection));
+        return connection;
+    }
+
+    /**
+     * Returns the last message sent to a connection
+     * @param connection    connection of the user
+     * @return  last message
+     */
+    private static Message last(RecordingConnection connection){
+        List<Message> received = connection.getReceived();
+        return received.get(received.size() - 1);
+    }
+
+    /**
+     * Check a message is the full list of online users
+     * @param message   message sent to the client
+     * @param version   presence version the list should be at
+     * @param names names of the users expected, in order
+     */
+    private static void assertSnapshot(Message message, long version, String... names){
+        assertEquals(20, message.getSpecialCode());
+        assertEquals(version, message.getPresenceVersion());
+        assertEquals(List.of(names), message.getUsers().stream().map(User::getName).toList());
+    }
+
+    /**
+     * Check a message is a change to the online users
+     * @param message   message sent to the client
+     * @param baseVersion   version the change applies to
+     * @param version   version after the change
+     * @param joined    names of the users that joined
+     * @param left  ids of the users that left, only their ids are sent
+     */
+    private static void assertChange(Message message, long baseVersion, long version, List<String> joined,
+                                     List<Integer> left){
+        assertEquals(21, message.getSpecialCode());
+        assertEquals(baseVersion, message.getBasePresenceVersion());
+        assertEquals(version, message.getPresenceVersion());
+        assertEquals(joined, message.getUsers().stream().map(User::getName).toList());
+        assertEquals(left, message.getLeftUsers().stream().map(User::getUniqueID).toList());
+    }
+}
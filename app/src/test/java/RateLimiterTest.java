@@ -0,0 +1,108 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the RateLimiter takes a token from both the user's bucket and the global bucket, that a frame refused by the
+ * global bucket doesn't use up the user's own limit, and that logins from one address share that address's buckets
+ * however many connections they're made on. The limits allow one token an hour, so none are added while a test runs
+ */
+class RateLimiterTest {
+    private ServerStats stats;
+
+    @AfterEach
+    void tearDown(){
+        System.clearProperty("chat.server.rateLimits");
+        System.clearProperty("chat.server.globalRateLimits");
+        System.clearProperty("chat.server.addressRateLimits");
+    }
+
+    @Test
+    void userLimitIsCheckedBeforeGlobalLimit(){
+        RateLimiter limiter = open("0=0.0003/1", "0=0.0003/2");
+        RateLimiter.Buckets alice = limiter.newUserBuckets();
+        assertEquals(0, limiter.acquire(0, alice));
+
+        // Alice is over her own limit, so her frame doesn't take the global bucket's last token from bob
+        assertTrue(limiter.acquire(0, alice) > 0);
+        assertEquals(1, stats.getFramesThrottled(0, false));
+        assertEquals(0, limiter.acquire(0, limiter.newUserBuckets()));
+    }
+
+    @Test
+    void frameRefusedByGlobalLimitKeepsUserToken(){
+        RateLimiter limiter = open("0=0.0003/1", "0=0.0003/1");
+        assertEquals(0, limiter.acquire(0, limiter.newUserBuckets()));
+
+        // Bob's frames are refused by the global bucket every time, never by his own bucket of one token
+        RateLimiter.Buckets bob = limiter.newUserBuckets();
+        assertTrue(limiter.acquire(0, bob) > 0);
+        assertTrue(limiter.acquire(0, bob) > 0);
+        assertEquals(2, stats.getFramesThrottled(0, true));
+        assertEquals(0, stats.getFramesThrottled(0, false));
+    }
+
+    @Test
+    void disconnectIsNeverLimited(){
+        RateLimiter limiter = open("default=0.0003/1", "default=0.0003/1");
+        RateLimiter.Buckets alice = limiter.newUserBuckets();
+        for (int i = 0; i < 10; i++){
+            assertEquals(0, limiter.acquire(2, alice));
+        }
+    }
+
+    @Test
+    void connectionsFromOneAddressShareBuckets() throws IOException {
+        System.setProperty("chat.server.addressRateLimits", "10=0.0003/2");
+        RateLimiter limiter = open("default=0.0003/1", "");
+        try (ServerSocket listener = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+             Socket first = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+             Socket second = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())){
+            RateLimiter.Buckets firstBuckets = limiter.addressBuckets(first);
+            assertSame(firstBuckets, limiter.addressBuckets(second));
+
+            // A client opening a new connection for each login attempt is still held to the address's limit
+            assertEquals(0, limiter.acquire(10, firstBuckets));
+            assertEquals(0, limiter.acquire(10, limiter.addressBuckets(second)));
+            assertTrue(limiter.acquire(10, limiter.addressBuckets(first)) > 0);
+
+            // Codes without an address limit aren't limited before login
+            assertEquals(0, limiter.acquire(12, firstBuckets));
+            assertEquals(0, limiter.acquire(12, firstBuckets));
+        }
+    }
+
+    @Test
+    void unknownAddressGetsBucketsOfItsOwn(){
+        System.setProperty("chat.server.addressRateLimits", "10=0.0003/1");
+        RateLimiter limiter = open("", "");
+        RateLimiter.Buckets first = limiter.addressBuckets(null);
+        RateLimiter.Buckets second = limiter.addressBuckets(new Socket());
+        assertNotSame(first, second);
+        assertEquals(0, limiter.acquire(10, first));
+        assertEquals(0, limiter.acquire(10, second));
+        assertTrue(limiter.acquire(10, first) > 0);
+    }
+
+    /**
+     * Create a rate limiter with the given limits
+     * @param userLimits    value of chat.server.rateLimits
+     * @param globalLimits  value of chat.server.globalRateLimits
+     * @return  new rate limiter
+     */
+    private RateLimiter open(String userLimits, String globalLimits){
+        System.setProperty("chat.server.rateLimits", userLimits);
+        System.setProperty("chat.server.globalRateLimits", globalLimits);
+        stats = new ServerStats(new UserRegistry());
+        return new RateLimiter(new ServerConfig(), stats);
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection to a pretend client that decodes and keeps every frame sent to it, so tests can check what the server
+ * would have sent. It never writes anything, so its outbound queue always has all of its space free
+ */
+public class RecordingConnection implements ClientConnection {
+    private final MessageCodec codec;
+    private final OutboundQueue outboundQueue;
+    private final ArrayList<Message> received = new ArrayList<>();
+
+    /**
+     * Constructor to create a RecordingConnection
+     * @param config    server settings, giving the codec and outbound queue size
+     * @param stats server stats the outbound queue records in
+     */
+    public RecordingConnection(ServerConfig config, ServerStats stats){
+        this.codec = config.getCodec();
+        this.outboundQueue = new OutboundQueue(config, stats);
+    }
+
+    /**
+     * Returns a copy of every message sent to the connection so far, in the order they were sent
+     * @return  messages received
+     */
+    public synchronized List<Message> getReceived(){
+        return new ArrayList<>(received);
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        sendFrame(MessageFraming.encode(codec, message));
+    }
+
+    @Override
+    public synchronized void sendFrame(byte[] frame) throws IOException {
+        received.add(codec.decode(ByteBuffer.wrap(frame, MessageFraming.HEADER_SIZE,
+                frame.length - MessageFraming.HEADER_SIZE)));
+    }
+
+    @Override
+    public boolean trySendFrame(byte[] frame){
+        try {
+            sendFrame(frame);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor){
+    }
+
+    @Override
+    public void recordSent(ReplayBuffer.Recorder recorder){
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue(){
+        return outboundQueue;
+    }
+
+    @Override
+    public ConnectionStats getStats(){
+        return null;
+    }
+
+    @Override
+    public Socket getSocket(){
+        return null;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return true;
+    }
+
+    @Override
+    public void close(){
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks ReplayBuffer.rewind() gives back exactly the frames a resuming client missed, numbered from just after its
+ * count, and refuses when some of them are no longer kept. Also checks frames from a connection the session has moved
+ * on from are ignored
+ */
+class ReplayBufferTest {
+    @Test
+    void rewindReturnsMissedFramesInOrder(){
+        ReplayBuffer buffer = new ReplayBuffer(10, 1 << 20);
+        byte[][] frames = frames(5);
+        for (byte[] frame: frames){
+            buffer.add(frame, null);
+        }
+
+        // The client received the first two frames
+        ArrayList<byte[]> missed = buffer.rewind(2);
+        assertEquals(3, missed.size());
+        for (int i = 0; i < 3; i++){
+            assertSame(frames[i + 2], missed.get(i));
+        }
+    }
+
+    @Test
+    void rewindWithEverythingReceivedIsEmpty(){
+        ReplayBuffer buffer = new ReplayBuffer(10, 1 << 20);
+        for (byte[] frame: frames(3)){
+            buffer.add(frame, null);
+        }
+        assertEquals(List.of(), buffer.rewind(3));
+    }
+
+    @Test
+    void rewindRenumbersFramesSentAgain(){
+        ReplayBuffer buffer = new ReplayBuffer(10, 1 << 20);
+        byte[][] frames = frames(4);
+        for (byte[] frame: frames){
+            buffer.add(frame, null);
+        }
+        assertEquals(2, buffer.rewind(2).size());
+
+        // The missed frames are added again as they're written on the new connection, with the same numbers
+        buffer.add(frames[2], null);
+        buffer.add(frames[3], null);
+        ArrayList<byte[]> missed = buffer.rewind(3);
+        assertEquals(1, missed.size());
+        assertSame(frames[3], missed.get(0));
+    }
+
+    @Test
+    void rewindFailsWhenMissedFramesWereDropped(){
+        ReplayBuffer buffer = new ReplayBuffer(3, 1 << 20);
+        for (byte[] frame: frames(5)){
+            buffer.add(frame, null);
+        }
+        // Frames 3 to 5 are kept, a client that received 1 missed frame 2
+        assertNull(buffer.rewind(1));
+        assertEquals(3, buffer.rewind(2).size());
+    }
+
+    @Test
+    void rewindFailsWhenCountIsAhead(){
+        ReplayBuffer buffer = new ReplayBuffer(10, 1 << 20);
+        for (byte[] frame: frames(2)){
+            buffer.add(frame, null);
+        }
+        assertNull(buffer.rewind(3));
+    }
+
+    @Test
+    void byteLimitDropsOldestButKeepsLatest(){
+        ReplayBuffer buffer = new ReplayBuffer(100, 10);
+        buffer.add(new byte[6], null);
+        buffer.add(new byte[6], null);
+        // Only the second frame fits, so a client that received nothing can't resume
+        assertNull(buffer.rewind(0));
+
+        byte[] huge = new byte[50];
+        buffer.add(huge, null);
+        ArrayList<byte[]> missed = buffer.rewind(2);
+        assertEquals(1, missed.size());
+        assertSame(huge, missed.get(0));
+    }
+
+    @Test
+    void recorderStartsAfterFirstFrameAndOldRecorderIsIgnored(){
+        ReplayBuffer buffer = new ReplayBuffer(10, 1 << 20);
+        byte[] loginReply = {0};
+        ReplayBuffer.Recorder first = buffer.attach(loginReply);
+        byte[][] frames = frames(3);
+
+        // Frames taken before the login reply aren't numbered
+        first.taken(frames[0]);
+        first.taken(loginReply);
+        first.taken(frames[1]);
+        assertEquals(1, buffer.rewind(0).size());
+
+        byte[] resumeReply = {1};
+        ReplayBuffer.Recorder second = buffer.attach(resumeReply);
+        assertFalse(buffer.add(frames[2], first));
+        second.taken(resumeReply);
+        second.taken(frames[2]);
+        assertTrue(buffer.add(frames[0], second));
+        assertEquals(2, buffer.rewind(0).size());
+    }
+
+    /**
+     * Create frames that can be told apart
+     * @param count number of frames
+     * @return  frames holding their own index
+     */
+    private static byte[][] frames(int count){
+        byte[][] frames = new byte[count][];
+        for (int i = 0; i < count; i++){
+            frames[i] = new byte[] {(byte) i, 0, 0, 0};
+        }
+        return frames;
+    }
+}
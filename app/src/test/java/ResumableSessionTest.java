@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks frames still waiting on a session's old connection when the client resumes on a new one are sent again on
+ * the new connection, in order, rather than lost. The old connection's writer never runs, like a writer stuck behind a
+ * client that has stopped reading, so every frame sent before the resume is still on its outbound queue
+ */
+class ResumableSessionTest {
+    private static final User ALICE = new User(1, "alice");
+    private static final User BOB = new User(2, "bob");
+
+    private ServerSocket listener;
+    private Socket clientEnd;
+    private Socket serverEnd;
+    private ServerConfig config;
+    private ServerStats stats;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        clientEnd = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        serverEnd = listener.accept();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        System.clearProperty("chat.server.outboundQueueSize");
+        clientEnd.close();
+        serverEnd.close();
+        listener.close();
+    }
+
+    @Test
+    void framesQueuedOnOldConnectionAreReplayed() throws IOException {
+        open();
+        assertReplayed(5);
+    }
+
+    @Test
+    void framesOnFullQueueAreReplayed() throws IOException {
+        // Closing a full queue mustn't throw away its oldest frames to make room for the writer's wake up frame
+        System.setProperty("chat.server.outboundQueueSize", "8");
+        open();
+        // The login reply takes one place in the queue
+        assertReplayed(7);
+    }
+
+    /**
+     * Read the settings after the test has set its system properties
+     */
+    private void open(){
+        config = new ServerConfig();
+        stats = new ServerStats(new UserRegistry());
+    }
+
+    /**
+     * Send frames to a session whose connection doesn't write them, resume it on a new connection having received
+     * nothing and check every frame is sent again on the new connection after the resume reply
+     * @param count number of frames to send before resuming
+     * @throws IOException  if the old connection can't be opened
+     */
+    private void assertReplayed(int count) throws IOException {
+        MessageCodec codec = config.getCodec();
+        BlockingClientConnection oldConnection = new BlockingClientConnection(serverEnd, codec,
+                new OutboundQueue(config, stats), new ConnectionStats(stats), 16, writer -> {});
+        ResumableSession session = new ResumableSession("token", BOB, oldConnection, codec, 100, 1 << 20, null);
+        session.start(MessageFraming.encode(codec, new Message("2", null, "token")));
+        for (int i = 0; i < count; i++){
+            session.sendFrame(MessageFraming.encode(codec, new Message(ALICE, BOB, "message " + i)));
+        }
+
+        RecordingConnection newConnection = new RecordingConnection(config, stats);
+        int replayed = session.resume(newConnection, 0, MessageFraming.encode(codec, new Message(13, "2", null)));
+        assertEquals(count, replayed);
+        assertFalse(oldConnection.isOpen());
+
+        List<Message> received = newConnection.getReceived();
+        assertEquals(count + 1, received.size());
+        assertEquals(13, received.get(0).getSpecialCode());
+        for (int i = 0; i < count; i++){
+            assertEquals("message " + i, received.get(i + 1).getMessage());
+        }
+
+        // Frames sent after the resume go to the new connection
+        session.sendFrame(MessageFraming.encode(codec, new Message(ALICE, BOB, "after")));
+        assertEquals("after", newConnection.getReceived().get(count + 1).getMessage());
+    }
+}
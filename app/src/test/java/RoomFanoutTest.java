@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Checks the RoomFanout sends each post to every member of the room except the poster, and that members of a room
+ * split across the fan-out workers still receive its posts in order, including after the room has shrunk back below
+ * the chunk size
+ */
+class RoomFanoutTest {
+    private ServerConfig config;
+    private ServerStats stats;
+    private RoomRegistry rooms;
+    private final List<RecordingConnection> connections = new ArrayList<>();
+
+    @AfterEach
+    void tearDown(){
+        System.clearProperty("chat.server.fanoutThreads");
+        System.clearProperty("chat.server.fanoutChunkSize");
+    }
+
+    @Test
+    void smallRoomPostGoesToEveryoneButThePoster(){
+        RoomFanout fanout = open(4, 512);
+        RoomRegistry.Room room = room(3);
+        fanout.post(room, post(0, "hello"));
+
+        assertFalse(room.isFannedOut());
+        assertTrue(connections.get(0).getReceived().isEmpty());
+        for (int i = 1; i < 3; i++){
+            List<Message> received = connections.get(i).getReceived();
+            assertEquals(1, received.size());
+            assertEquals(33, received.get(0).getSpecialCode());
+            assertEquals("lab", received.get(0).getRoom());
+            assertEquals("hello", received.get(0).getMessage());
+        }
+        assertEquals(1, stats.getRoomPosts());
+    }
+
+    @Test
+    void largeRoomPostsArriveInOrder(){
+        RoomFanout fanout = open(4, 2);
+        RoomRegistry.Room room = room(10);
+        for (int i = 0; i < 50; i++){
+            fanout.post(room, post(0, "post " + i));
+        }
+        assertTrue(room.isFannedOut());
+
+        // Once the room is back within the chunk size posts still go through the workers, so they can't overtake
+        // earlier ones
+        for (int i = 2; i < 10; i++){
+            rooms.leave("lab", i + 1);
+        }
+        fanout.post(room, post(0, "post 50"));
+
+        for (int i = 1; i < 10; i++){
+            RecordingConnection connection = connections.get(i);
+            int expected = i < 2 ? 51 : 50;
+            waitFor(() -> connection.getReceived().size() >= expected);
+            List<Message> received = connection.getReceived();
+            assertEquals(expected, received.size());
+            for (int post = 0; post < expected; post++){
+                assertEquals("post " + post, received.get(post).getMessage());
+            }
+        }
+        assertTrue(connections.get(0).getReceived().isEmpty());
+    }
+
+    /**
+     * Create the fan-out with the given settings
+     * @param threads   number of fan-out workers
+     * @param chunkSize largest room sent to on the posting thread
+     * @return  new fan-out
+     */
+    private RoomFanout open(int threads, int chunkSize){
+        System.setProperty("chat.server.fanoutThreads", Integer.toString(threads));
+        System.setProperty("chat.server.fanoutChunkSize", Integer.toString(chunkSize));
+        config = new ServerConfig();
+        stats = new ServerStats(new UserRegistry());
+        rooms = new RoomRegistry();
+        return new RoomFanout(config, stats);
+    }
+
+    /**
+     * Create the room "lab" with the given number of members, user ids 1 up, whose connections are kept in order
+     * @param members   number of members
+     * @return  the room
+     */
+    private RoomRegistry.Room room(int members){
+        RoomRegistry.Room room = null;
+        for (int i = 0; i < members; i++){
+            RecordingConnection connection = new RecordingConnection(config, stats);
+            connections.add(connection);
+            SocketInfo member = new SocketInfo(new User(i + 1, "user" + i), connection);
+            room = i == 0 ? rooms.create("lab", member) : rooms.join("lab", member);
+        }
+        return room;
+    }
+
+    /**
+     * Create a post to the room, as the server passes it on
+     * @param poster    index of the member posting
+     * @param text  text of the post
+     * @return  post with the poster as the from user
+     */
+    private static Message post(int poster, String text){
+        return new Message(33, new User(poster + 1, "user" + poster), "lab", text);
+    }
+
+    /**
+     * Wait until a condition holds, failing the test if it doesn't within a few seconds
+     * @param condition condition to wait for
+     */
+    private static void waitFor(BooleanSupplier condition){
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()){
+            if (System.nanoTime() > deadline){
+                fail("Timed out waiting for the fan-out workers");
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the RoomRegistry creates each room once, removes a room with its last member (after which it can't be
+ * joined), and removes a user that disconnects from every room they were in
+ */
+class RoomRegistryTest {
+    private final ServerConfig config = new ServerConfig();
+    private final ServerStats stats = new ServerStats(new UserRegistry());
+    private final RoomRegistry rooms = new RoomRegistry();
+
+    @Test
+    void roomIsCreatedOnce(){
+        SocketInfo alice = user(1, "alice");
+        RoomRegistry.Room room = rooms.create("lab", alice);
+        assertNotNull(room);
+        assertTrue(room.isMember(1));
+        assertNull(rooms.create("lab", user(2, "bob")));
+        assertNull(rooms.join("kitchen", alice));
+
+        assertSame(room, rooms.join("lab", user(2, "bob")));
+        assertEquals(2, room.getMembers().size());
+    }
+
+    @Test
+    void roomIsRemovedWithItsLastMember(){
+        rooms.create("lab", user(1, "alice"));
+        rooms.join("lab", user(2, "bob"));
+        assertTrue(rooms.leave("lab", 1));
+        assertFalse(rooms.leave("lab", 1));
+        assertNotNull(rooms.getRoom("lab"));
+
+        assertTrue(rooms.leave("lab", 2));
+        assertNull(rooms.getRoom("lab"));
+        assertEquals(0, rooms.size());
+        assertNull(rooms.join("lab", user(3, "carol")));
+    }
+
+    @Test
+    void disconnectingUserLeavesEveryRoom(){
+        SocketInfo alice = user(1, "alice");
+        rooms.create("lab", alice);
+        rooms.create("kitchen", alice);
+        rooms.join("lab", user(2, "bob"));
+
+        rooms.leaveAll(1);
+        // The kitchen only had alice in it so it's gone, the lab is left with bob
+        assertNull(rooms.getRoom("kitchen"));
+        RoomRegistry.Room lab = rooms.getRoom("lab");
+        assertFalse(lab.isMember(1));
+        assertEquals(1, lab.getMemberUsers().size());
+        assertEquals("bob", lab.getMemberUsers().get(0).getName());
+    }
+
+    /**
+     * Create an online user whose connection keeps everything sent to it
+     * @param uniqueID  id of the user
+     * @param name  name of the user
+     * @return  details of the user
+     */
+    private SocketInfo user(int uniqueID, String name){
+        return new SocketInfo(new User(uniqueID, name), new RecordingConnection(config, stats));
+    }
+}
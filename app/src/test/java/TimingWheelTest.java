@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the TimingWheel runs tasks once their delay has passed (and not before), including tasks due more than one
+ * turn of the wheel away, tasks scheduled by other tasks, and tasks after one that fails
+ */
+class TimingWheelTest {
+    // Longest a task may be late, generous as the build machine may be busy
+    private static final long SLACK_MILLIS = 500;
+
+    @Test
+    void runsTasksAfterTheirDelay() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(5, 16);
+        wheel.start("test-wheel");
+
+        long[] delays = {0, 5, 23, 60};
+        CountDownLatch done = new CountDownLatch(delays.length);
+        List<Long> early = Collections.synchronizedList(new ArrayList<>());
+        for (long delay: delays){
+            long scheduled = System.nanoTime();
+            wheel.schedule(() -> {
+                long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+                if (waited < delay){
+                    early.add(delay);
+                }
+                done.countDown();
+            }, delay);
+        }
+        assertTrue(done.await(60 + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(List.of(), early);
+    }
+
+    @Test
+    void runsTasksDueMoreThanOneTurnAway() throws InterruptedException {
+        // 4 buckets of 5ms, so a turn of the wheel is 20ms and the task shares a bucket with earlier ticks
+        TimingWheel wheel = new TimingWheel(5, 4);
+        wheel.start("test-wheel");
+
+        CountDownLatch done = new CountDownLatch(1);
+        long scheduled = System.nanoTime();
+        long[] waited = new long[1];
+        wheel.schedule(() -> {
+            waited[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+            done.countDown();
+        }, 70);
+        assertTrue(done.await(70 + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(waited[0] >= 70, "ran after " + waited[0] + "ms");
+    }
+
+    @Test
+    void tasksCanScheduleMoreTasks() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1, 8);
+        wheel.start("test-wheel");
+
+        CountDownLatch done = new CountDownLatch(5);
+        Runnable[] repeat = new Runnable[1];
+        repeat[0] = () -> {
+            done.countDown();
+            if (done.getCount() > 0){
+                wheel.schedule(repeat[0], 0);
+            }
+        };
+        wheel.schedule(repeat[0], 0);
+        assertTrue(done.await(SLACK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void failedTaskDoesntStopTheWheel() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1, 8);
+        wheel.start("test-wheel");
+
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("Expected by the test");
+        }, 1);
+        wheel.schedule(done::countDown, 10);
+        assertTrue(done.await(10 + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the TokenBucket (written as the generic cell rate algorithm) lets a full burst through, then one token per
+ * interval, and that threads sharing a bucket can't take more tokens between them than it holds
+ */
+class TokenBucketTest {
+    @Test
+    void letsFullBurstThroughThenThrottles(){
+        // One token an hour, so no token is added while the test runs
+        TokenBucket bucket = new TokenBucket(1.0 / 3600, 5);
+        for (int i = 0; i < 5; i++){
+            assertEquals(0, bucket.tryAcquire(), "token " + i);
+        }
+        long waitNanos = bucket.tryAcquire();
+        assertTrue(waitNanos > TimeUnit.MINUTES.toNanos(59), "wait was " + waitNanos);
+        assertTrue(waitNanos <= TimeUnit.HOURS.toNanos(1), "wait was " + waitNanos);
+    }
+
+    @Test
+    void refusedFramesDontUseTokens(){
+        TokenBucket bucket = new TokenBucket(1.0 / 3600, 1);
+        assertEquals(0, bucket.tryAcquire());
+        long firstWait = bucket.tryAcquire();
+        long secondWait = bucket.tryAcquire();
+        // Being refused doesn't push the next token any later
+        assertTrue(secondWait <= firstWait);
+    }
+
+    @Test
+    void releasedTokenCanBeTakenAgain(){
+        TokenBucket bucket = new TokenBucket(1.0 / 3600, 2);
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        bucket.release();
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    void refillsAtTheRate() throws InterruptedException {
+        // A token every 20ms
+        TokenBucket bucket = new TokenBucket(50, 1);
+        assertEquals(0, bucket.tryAcquire());
+        long waitNanos = bucket.tryAcquire();
+        assertTrue(waitNanos > 0 && waitNanos <= TimeUnit.MILLISECONDS.toNanos(20), "wait was " + waitNanos);
+
+        TimeUnit.NANOSECONDS.sleep(waitNanos + TimeUnit.MILLISECONDS.toNanos(2));
+        assertEquals(0, bucket.tryAcquire());
+    }
+
+    @Test
+    void isFullOnlyOnceUnused() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 2);
+        assertTrue(bucket.isFull());
+        assertEquals(0, bucket.tryAcquire());
+        assertFalse(bucket.isFull());
+
+        // Takes 10ms to add the token back
+        Thread.sleep(30);
+        assertTrue(bucket.isFull());
+    }
+
+    @Test
+    void sharedBucketNeverGivesOutMoreThanItHolds() throws InterruptedException {
+        int burst = 1000;
+        TokenBucket bucket = new TokenBucket(1.0 / 3600, burst);
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++){
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < burst; i++){
+                    if (bucket.tryAcquire() == 0){
+                        taken.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread: threads){
+            thread.join();
+        }
+        assertEquals(burst, taken.get());
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the UserRegistry lets only one user online use each name, as the mailbox gives a user's messages to whoever
+ * logs in with their name, and frees the name once the user has left. Also checks user ids start again from 0 once a
+ * node has handed out all of its ids, skipping those still in use
+ */
+class UserRegistryTest {
+    private final ServerConfig config = new ServerConfig();
+    private final ServerStats stats = new ServerStats(new UserRegistry());
+
+    @Test
+    void nameInUseCantBeClaimed(){
+        UserRegistry registry = new UserRegistry();
+        SocketInfo alice = login(registry, "alice");
+        assertFalse(registry.claimName("alice", registry.allocateUserID()));
+        assertTrue(registry.claimName("bob", registry.allocateUserID()));
+
+        // Removing the user with another socket (e.g. an older connection) doesn't free the name
+        registry.remove(alice.getClientID(), new Socket());
+        assertFalse(registry.claimName("alice", registry.allocateUserID()));
+    }
+
+    @Test
+    void nameIsFreedWhenUserLeaves(){
+        UserRegistry registry = new UserRegistry();
+        SocketInfo alice = login(registry, "alice");
+        registry.remove(alice.getClientID(), null);
+        assertTrue(registry.claimName("alice", registry.allocateUserID()));
+    }
+
+    @Test
+    void nameClaimedButNotYetAddedIsInUse(){
+        // The name is taken before the login reply is sent, so two logins at once can't both get it
+        UserRegistry registry = new UserRegistry();
+        assertTrue(registry.claimName("alice", registry.allocateUserID()));
+        assertFalse(registry.claimName("alice", registry.allocateUserID()));
+    }
+
+    @Test
+    void usersWithoutNamesAreAlwaysLetIn(){
+        UserRegistry registry = new UserRegistry();
+        assertTrue(registry.claimName(null, registry.allocateUserID()));
+        assertTrue(registry.claimName(null, registry.allocateUserID()));
+    }
+
+    @Test
+    void idsWrapAroundSkippingThoseInUse(){
+        UserRegistry registry = new UserRegistry(3);
+        int nodeBits = 3 << UserRegistry.NODE_SHIFT;
+
+        // The first user is still online and the second has left but their name is kept, the third id is never used
+        SocketInfo online = login(registry, "alice");
+        SocketInfo departed = login(registry, "bob");
+        registry.remove(departed.getClientID(), null);
+        assertEquals(nodeBits, online.getClientID());
+        assertEquals(nodeBits | 1, departed.getClientID());
+        assertEquals(nodeBits | 2, registry.allocateUserID());
+
+        // Hand out the rest of the node's ids, every one is new
+        int last = 0;
+        for (int i = 3; i < 1 << UserRegistry.NODE_SHIFT; i++){
+            last = registry.allocateUserID();
+        }
+        assertEquals(nodeBits | ((1 << UserRegistry.NODE_SHIFT) - 1), last);
+
+        // The counter starts again from 0, skipping the ids of the online user and the user whose name is kept, and
+        // never gives out an id of another node
+        int wrapped = registry.allocateUserID();
+        assertEquals(nodeBits | 2, wrapped);
+        assertEquals(3, UserRegistry.nodeOf(wrapped));
+        assertTrue(registry.isLocal(wrapped));
+    }
+
+    /**
+     * Log a user in the way the server does: claim their name then add them
+     * @param registry  registry to add the user to
+     * @param name  name of the user
+     * @return  details of the user, whose socket is null
+     */
+    private SocketInfo login(UserRegistry registry, String name){
+        int uniqueID = registry.allocateUserID();
+        assertTrue(registry.claimName(name, uniqueID));
+        SocketInfo socketInfo = new SocketInfo(new User(uniqueID, name), new RecordingConnection(config, stats));
+        registry.add(socketInfo);
+        return socketInfo;
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A ClientConnection with no socket behind it, used to run the server's routing and broadcasting in benchmarks.
+ * Messages are encoded just like a real connection does, but the frames are only counted rather than queued
+ */
+public class BenchmarkConnection implements ClientConnection {
+    private final MessageCodec codec;
+    private long framesSent = 0;
+    private long bytesSent = 0;
+
+    /**
+     * Constructor to create a BenchmarkConnection
+     * @param codec codec used to encode messages sent to the connection
+     */
+    public BenchmarkConnection(MessageCodec codec){
+        this.codec = codec;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        sendFrame(MessageFraming.encode(codec, message));
+    }
+
+    @Override
+    public void sendFrame(byte[] frame){
+        framesSent++;
+        bytesSent += frame.length;
+    }
+
+    @Override
+    public boolean trySendFrame(byte[] frame){
+        sendFrame(frame);
+        return true;
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor){
+    }
+
+    @Override
+    public void recordSent(ReplayBuffer.Recorder recorder){
+    }
+
+    /**
+     * Returns the number of frames sent to the connection
+     * @return  frames sent
+     */
+    public long getFramesSent(){
+        return framesSent;
+    }
+
+    /**
+     * Returns the number of bytes sent to the connection
+     * @return  bytes sent
+     */
+    public long getBytesSent(){
+        return bytesSent;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue(){
+        return null;
+    }
+
+    @Override
+    public ConnectionStats getStats(){
+        return null;
+    }
+
+    @Override
+    public Socket getSocket(){
+        return null;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return true;
+    }
+
+    @Override
+    public void close(){
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Encodes and decodes messages with a MessageCodec for CodecBenchmark
+ */
+public class CodecFixture implements benchmarks.CodecBenchmark.Fixture {
+    private MessageCodec codec;
+    private Message message;
+    private ByteBuffer payload;
+
+    @Override
+    public void setUp(String codecName, String messageType) throws Exception {
+        codec = MessageCodec.forName(codecName);
+        if (messageType.equals("users")){
+            ArrayList<User> users = new ArrayList<>();
+            for (int i = 0; i < 100; i++){
+                users.add(new User(i, "user" + i));
+            }
+            message = new Message(users, 1);
+        }
+        else {
+            message = new Message(new User(1, "alice"), new User(2, "bob"),
+                    "Are you coming to the lecture at 11? I've saved you a seat near the back");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(message, out);
+        payload = ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Override
+    public Object encode() throws Exception {
+        return MessageFraming.encode(codec, message);
+    }
+
+    @Override
+    public Object decode() throws Exception {
+        return codec.decode(payload.duplicate());
+    }
+}
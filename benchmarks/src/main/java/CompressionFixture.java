@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compresses and decompresses direct message frames with a FrameCompressor for CompressionBenchmark
+ */
+public class CompressionFixture implements benchmarks.CompressionBenchmark.Fixture {
+    private static final String[] WORDS = {
+            "the", "a", "lecture", "is", "at", "11", "I", "you", "we", "coming", "seat", "near", "back", "lab",
+            "deadline", "tomorrow", "friday", "did", "anyone", "finish", "coursework", "question", "three", "think",
+            "answer", "wrong", "library", "meet", "after", "lunch", "can", "send", "notes", "thanks", "sorry", "late",
+            "bus", "train", "exam", "revision", "group", "project", "report", "slides", "code", "compile", "works",
+            "now", "again", "really", "maybe", "later", "tonight", "pizza", "coffee", "ok", "yes", "no"
+    };
+
+    private static final String[] LOG_LINES = {
+            "INFO  [main] ServerConfig - Listening on port %d with %d acceptors",
+            "WARN  [handler-%d] OutboundQueue - Queue for user %d is %d frames deep",
+            "ERROR [handler-%d] ServerResponse - Failed to route message %d",
+            "java.io.IOException: Connection reset by peer",
+            "\tat java.base/sun.nio.ch.SocketDispatcher.read0(Native Method)",
+            "\tat java.base/sun.nio.ch.SocketChannelImpl.read(SocketChannelImpl.java:%d)",
+            "\tat NioClientConnection.handleRead(NioClientConnection.java:%d)",
+            "\tat EventLoop.run(EventLoop.java:%d)",
+            "\tat java.base/java.lang.Thread.run(Thread.java:%d)",
+            "DEBUG [event-loop-%d] EventLoop - Selected %d keys in %dus"
+    };
+
+    private FrameCompressor compressor;
+    private byte[] frame;
+    private byte[] compressedPayload;
+
+    @Override
+    public void setUp(String text, int size, int level) throws Exception {
+        // Compress every frame, however small, so the cost at each size is measured
+        compressor = new FrameCompressor(level, 0);
+        String body = text.equals("log") ? logText(size) : chatText(size);
+        frame = MessageFraming.encode(BinaryMessageCodec.INSTANCE,
+                new Message(new User(1, "alice"), new User(2, "bob"), body));
+
+        ByteBuffer compressed = compressor.compress(frame);
+        if (compressed == null){
+            compressedPayload = null;
+        } else {
+            compressedPayload = new byte[compressed.remaining() - MessageFraming.HEADER_SIZE];
+            System.arraycopy(compressed.array(), compressed.arrayOffset() + compressed.position()
+                    + MessageFraming.HEADER_SIZE, compressedPayload, 0, compressedPayload.length);
+        }
+        compressor.resetOutput();
+    }
+
+    @Override
+    public int compress(){
+        compressor.resetOutput();
+        ByteBuffer compressed = compressor.compress(frame);
+        return compressed == null ? frame.length : compressed.remaining();
+    }
+
+    @Override
+    public Object decompress() throws Exception {
+        if (compressedPayload == null){
+            // Compressing didn't make the frame smaller so it would have been sent as it is
+            return null;
+        }
+        return compressor.decompress(compressedPayload, 0, compressedPayload.length);
+    }
+
+    @Override
+    public int getFrameSize(){
+        return frame.length;
+    }
+
+    /**
+     * Create chat text made of random common words
+     * @param size  length of the text in characters
+     * @return  text
+     */
+    private static String chatText(int size){
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size){
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? ". " : " ");
+        }
+        return text.substring(0, size);
+    }
+
+    /**
+     * Create log text, a mix of log lines and stack trace lines with varying numbers
+     * @param size  length of the text in characters
+     * @return  text
+     */
+    private static String logText(int size){
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 128);
+        while (text.length() < size){
+            String line = LOG_LINES[random.nextInt(LOG_LINES.length)];
+            text.append(String.format(line, random.nextInt(1000), random.nextInt(1000), random.nextInt(1000)))
+                    .append('\n');
+        }
+        return text.substring(0, size);
+    }
+}
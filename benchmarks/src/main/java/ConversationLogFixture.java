@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Appends to and reads from a ConversationLog for ConversationLogBenchmark. Messages are spread over 10
+ * conversations, like a user talking to several people at once
+ */
+public class ConversationLogFixture implements benchmarks.ConversationLogBenchmark.Fixture {
+    private static final int PEERS = 10;
+    private static final int READ_COUNT = 100;
+    private static final int INITIAL_MESSAGES = 100000;
+
+    private final Random random = new Random(42);
+    private Path directory;
+    private ConversationLog conversationLog;
+    private List<ConversationRecord> batch;
+    private int next = 0;
+
+    @Override
+    public void setUp(Path directory, int batchSize) throws Exception {
+        this.directory = directory;
+        conversationLog = new ConversationLog(directory);
+
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++){
+            batch.add(record(i));
+        }
+
+        // Fill the log so reads come from a conversation with plenty of history
+        List<ConversationRecord> initial = new ArrayList<>(INITIAL_MESSAGES);
+        for (int i = 0; i < INITIAL_MESSAGES; i++){
+            initial.add(record(i));
+        }
+        conversationLog.append(initial);
+    }
+
+    @Override
+    public void append() throws Exception {
+        conversationLog.append(record(next++));
+    }
+
+    @Override
+    public void appendBatch() throws Exception {
+        conversationLog.append(batch);
+    }
+
+    @Override
+    public Object read() throws Exception {
+        int peerID = random.nextInt(PEERS);
+        int from = random.nextInt(Math.max(1, conversationLog.count(peerID) - READ_COUNT));
+        return conversationLog.read(peerID, from, READ_COUNT);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        conversationLog.close();
+        try (Stream<Path> files = Files.walk(directory)){
+            for (Path file: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Create a received message for one of the conversations
+     * @param index number of the message, used to pick its conversation
+     * @return  new message
+     */
+    private ConversationRecord record(int index){
+        int peerID = index % PEERS;
+        return new ConversationRecord(System.currentTimeMillis(), true, peerID, "user" + peerID,
+                "Are you coming to the lecture at 11? I've saved you a seat near the back");
+    }
+}
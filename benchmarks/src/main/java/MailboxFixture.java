@@ -0,0 +1,104 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Stores and delivers messages through a Mailbox for MailboxBenchmark. The user the mailbox is delivered to has a
+ * connection that only counts the frames sent to it, with an outbound queue large enough that the whole mailbox is
+ * delivered in one go
+ */
+public class MailboxFixture implements benchmarks.MailboxBenchmark.Fixture {
+    private Path directory;
+    private ServerStats stats;
+    private Mailbox mailbox;
+    private int batchSize;
+    private int mailboxSize;
+
+    // Messages to the user who stays offline, and to the user who logs in for each delivery
+    private Message offlineMessage;
+    private Message returningMessage;
+    private SocketInfo returningUser;
+
+    @Override
+    public void setUp(Path directory, int batchSize, int mailboxSize) throws Exception {
+        this.directory = directory;
+        this.batchSize = batchSize;
+        this.mailboxSize = mailboxSize;
+        System.setProperty("chat.server.mailboxDir", directory.toString());
+        System.setProperty("chat.server.outboundQueueSize", Integer.toString(mailboxSize * 2 + 2));
+        ServerConfig config = new ServerConfig();
+        UserRegistry registry = new UserRegistry();
+        stats = new ServerStats(registry);
+        mailbox = new Mailbox(config, registry, stats);
+        mailbox.start();
+
+        User sender = new User(registry.allocateUserID(), "sender");
+        String text = "Are you coming to the lecture at 11? I've saved you a seat near the back";
+        offlineMessage = new Message(sender, new User(registry.allocateUserID(), "offline"), text, 0);
+        User returning = new User(registry.allocateUserID(), "returning");
+        returningMessage = new Message(sender, returning, text, 0);
+
+        OutboundQueue outboundQueue = new OutboundQueue(config, stats);
+        returningUser = new SocketInfo(returning, new BenchmarkConnection(config.getCodec()) {
+            @Override
+            public OutboundQueue getOutboundQueue(){
+                return outboundQueue;
+            }
+        });
+        registry.add(returningUser);
+    }
+
+    @Override
+    public long store() throws Exception {
+        return storeAll(offlineMessage, batchSize);
+    }
+
+    @Override
+    public void fill() throws Exception {
+        storeAll(returningMessage, mailboxSize);
+    }
+
+    @Override
+    public long deliver() throws Exception {
+        mailbox.deliver(returningUser);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (mailbox.hasMail(returningUser.getUser().getName())){
+            if (System.nanoTime() > deadline){
+                throw new IllegalStateException("Mailbox wasn't delivered");
+            }
+            Thread.yield();
+        }
+        return stats.getMailboxDelivered();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)){
+            for (Path file: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Store copies of a message and wait until the writer has stored them all
+     * @param message   message to store
+     * @param count number of copies to store
+     * @return  total messages stored so far
+     * @throws Exception    if the mailbox is too busy to take a message
+     */
+    private long storeAll(Message message, int count) throws Exception {
+        long target = stats.getMailboxStored() + count;
+        for (int i = 0; i < count; i++){
+            if (!mailbox.store(message, true)){
+                throw new IllegalStateException("Mailbox is too busy to store a message");
+            }
+        }
+        while (stats.getMailboxStored() < target){
+            Thread.yield();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Logs users in and out through a PresenceBroadcaster for PresenceBenchmark
+ */
+public class PresenceFixture implements benchmarks.PresenceBenchmark.Fixture {
+    private PresenceBroadcaster presence;
+    private BenchmarkConnection connection;
+    private SocketInfo joiningUser;
+    private SocketInfo requestingUser;
+
+    @Override
+    public void setUp(int users){
+        // Broadcast every change straight away rather than at the end of a window
+        System.setProperty("chat.server.presenceWindowMillis", "0");
+        ServerConfig config = new ServerConfig();
+        UserRegistry registry = new UserRegistry();
+        presence = new PresenceBroadcaster(registry, config, new ServerStats(registry));
+
+        // Every user shares one connection, it only counts the frames sent to it
+        connection = new BenchmarkConnection(config.getCodec());
+        for (int i = 0; i < users; i++){
+            int userID = registry.allocateUserID();
+            registry.add(new SocketInfo(new User(userID, "user" + userID), connection));
+        }
+        requestingUser = registry.getSocket(0);
+        joiningUser = new SocketInfo(new User(registry.allocateUserID(), "joining"), connection);
+    }
+
+    @Override
+    public long joinAndLeave(){
+        presence.join(joiningUser);
+        presence.leave(joiningUser.getClientID(), joiningUser.getClientSocket());
+        return connection.getFramesSent();
+    }
+
+    @Override
+    public long snapshot(){
+        presence.sendSnapshot(requestingUser);
+        return connection.getFramesSent();
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Routes direct messages through ServerResponse for RoutingBenchmark. The server is created but never started, so
+ * there's no listener, mailbox or stats reporting, only the registry of online users
+ */
+public class RoutingFixture implements benchmarks.RoutingBenchmark.Fixture {
+    private UserRegistry registry;
+    private ServerResponse senderResponse;
+    private Message[] messages;
+    private int[] recipientIDs;
+    private int next = 0;
+
+    @Override
+    public void setUp(int users){
+        ServerConfig config = new ServerConfig();
+        Server server = new Server(config);
+        registry = server.getRegistry();
+
+        ArrayList<Integer> ids = new ArrayList<>(users);
+        for (int i = 0; i < users; i++){
+            int userID = registry.allocateUserID();
+            registry.add(new SocketInfo(new User(userID, "user" + userID), new BenchmarkConnection(config.getCodec())));
+            ids.add(userID);
+        }
+        Collections.shuffle(ids, new Random(42));
+
+        // Messages are created up front so the benchmark measures routing rather than building messages
+        User sender = registry.getSocket(ids.get(0)).getUser();
+        int count = Math.min(users, 4096);
+        messages = new Message[count];
+        recipientIDs = new int[count];
+        for (int i = 0; i < count; i++){
+            recipientIDs[i] = ids.get(i);
+            messages[i] = new Message(sender, registry.getSocket(recipientIDs[i]).getUser(), "Hello from the benchmark");
+        }
+        senderResponse = new ServerResponse(new BenchmarkConnection(config.getCodec()), server);
+    }
+
+    @Override
+    public Object lookup(){
+        int index = next;
+        next = (index + 1) % recipientIDs.length;
+        return registry.getSocket(recipientIDs[index]);
+    }
+
+    @Override
+    public boolean route(){
+        int index = next;
+        next = (index + 1) % messages.length;
+        return senderResponse.handleMessage(messages[index]);
+    }
+}
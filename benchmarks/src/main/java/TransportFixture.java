@@ -0,0 +1,238 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Connects clients to a server through each ClientTransport for TransportBenchmark. The server runs in its own process
+ * (so its threads don't compete with the benchmark's, and it can be stopped afterwards), with its TLS key store and
+ * mailbox in a temporary directory and no rate limits, so the transfer isn't throttled
+ */
+public class TransportFixture implements benchmarks.TransportBenchmark.Fixture {
+    // Length of the text of each direct message sent in a transfer
+    private static final int MESSAGE_CHARS = 16 * 1024;
+
+    private final MessageCodec codec = MessageCodec.fromSystemProperties();
+    private Path directory;
+    private Process server;
+    private ClientTransport.Type type;
+    private int port;
+    private int batch;
+    private int logins = 0;
+
+    // Client kept open for reconnect, so it keeps its SSH tunnel or TLS sessions
+    private ClientTransport reconnecting;
+
+    // Connection used by transfer, and the messages it sends to ourselves
+    private Connection transferring;
+    private Message[] messages;
+
+    @Override
+    public void setUp(String transport, String mode, int batch) throws Exception {
+        this.type = ClientTransport.Type.valueOf(transport.toUpperCase());
+        this.batch = batch;
+        if (type == ClientTransport.Type.SSH && System.getProperty("chat.ssh.host") == null){
+            throw new IllegalStateException("The ssh transport needs an SSH server, set chat.ssh.host, chat.ssh.user, "
+                    + "chat.ssh.identity and chat.ssh.knownHosts with -jvmArgsAppend");
+        }
+        directory = Files.createTempDirectory("chat-transport-benchmark");
+        Path keyStore = directory.resolve("server.p12");
+        Path trustStore = directory.resolve("trust.p12");
+        System.setProperty("chat.tls.trustStore", trustStore.toString());
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        // Clients reached through the SSH tunnel connect to the server over plain TCP
+        String serverTransport = type == ClientTransport.Type.TLS ? "tls" : "plain";
+        server = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-Dchat.server.port=" + port,
+                "-Dchat.server.mode=" + mode,
+                "-Dchat.server.transport=" + serverTransport,
+                "-Dchat.server.metricsPort=0",
+                "-Dchat.server.statsInterval=0",
+                "-Dchat.server.mailboxDir=" + directory.resolve("mailbox"),
+                "-Dchat.server.rateLimits=default=0",
+                "-Dchat.server.globalRateLimits=",
+                "-Dchat.tls.keyStore=" + keyStore,
+                "-Dchat.tls.trustStore=" + trustStore,
+                "Server")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        waitForServer();
+
+        reconnecting = new ClientTransport(type, "localhost", port);
+        transferring = new Connection(reconnecting.connect());
+        User self = transferring.login();
+        StringBuilder text = new StringBuilder(MESSAGE_CHARS);
+        for (int i = 0; i < MESSAGE_CHARS; i++){
+            text.append((char) ('a' + i * 7 % 26));
+        }
+        messages = new Message[batch];
+        for (int i = 0; i < batch; i++){
+            messages[i] = new Message(null, self, text.toString(), i);
+        }
+    }
+
+    @Override
+    public int connect() throws Exception {
+        ClientTransport transport = new ClientTransport(type, "localhost", port);
+        try {
+            return connectAndLogin(transport);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Override
+    public int reconnect() throws Exception {
+        return connectAndLogin(reconnecting);
+    }
+
+    @Override
+    public int transfer() throws Exception {
+        for (Message message: messages){
+            MessageFraming.writeFrame(transferring.out, codec, message);
+        }
+        transferring.out.flush();
+        int received = 0;
+        while (received < batch){
+            if (transferring.read() == 0){
+                received++;
+            }
+        }
+        return received;
+    }
+
+    @Override
+    public void tearDown(){
+        if (transferring != null){
+            transferring.close();
+        }
+        if (reconnecting != null){
+            reconnecting.close();
+        }
+        if (server != null){
+            server.destroy();
+            try {
+                server.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (directory != null){
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException e) {
+                // Left for the operating system to clear up
+            }
+        }
+    }
+
+    /**
+     * Connect through a transport, log in and disconnect again
+     * @param transport transport to connect through
+     * @return  user id the server gave us
+     * @throws Exception    if the server can't be reached
+     */
+    private int connectAndLogin(ClientTransport transport) throws Exception {
+        Connection connection = new Connection(transport.connect());
+        try {
+            return connection.login().getUniqueID();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Wait until the server is accepting connections
+     * @throws Exception    if the server exits or doesn't start in time
+     */
+    private void waitForServer() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true){
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.nanoTime() > deadline){
+                    throw new IllegalStateException("Benchmark server didn't start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * A client's connection to the server
+     */
+    private class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final FrameReader reader;
+
+        /**
+         * Constructor to create a Connection
+         * @param socket    socket connected to the server
+         * @throws IOException  if the socket's streams can't be opened
+         */
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), codec);
+        }
+
+        /**
+         * Log in and wait for the server to reply with our id
+         * @return  our details
+         * @throws IOException  if the connection fails
+         */
+        User login() throws IOException {
+            String name = "benchmark-" + logins++;
+            MessageFraming.writeFrame(out, codec, new Message(10, name, null));
+            out.flush();
+            while (true){
+                Message message = reader.read();
+                if (message.getSpecialCode() == 11){
+                    return new User(Integer.parseInt(message.getMessage()), name);
+                }
+            }
+        }
+
+        /**
+         * Read the next message, answering heartbeats
+         * @return  special code of the message
+         * @throws IOException  if the connection fails
+         */
+        int read() throws IOException {
+            Message message = reader.read();
+            if (message.getSpecialCode() == 3){
+                MessageFraming.writeFrame(out, codec, new Message(3, null));
+                out.flush();
+            }
+            return message.getSpecialCode();
+        }
+
+        /**
+         * Send a disconnect request and close the connection
+         */
+        void close(){
+            try {
+                MessageFraming.writeFrame(out, codec, new Message(2, null));
+                out.flush();
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
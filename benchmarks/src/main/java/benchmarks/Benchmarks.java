@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Entry point of benchmarks.jar. Takes the same arguments as JMH's own main (e.g. a regex of the benchmarks to run,
+ * -p users=1000 or -f 3), but always adds the GC profiler, so every result is reported with its allocation rate
+ * (gc.alloc.rate.norm is the bytes allocated per operation).
+ */
+public class Benchmarks {
+    /**
+     * Run the benchmarks
+     * @param args  JMH command line arguments
+     * @throws CommandLineOptionException   if the arguments aren't valid
+     * @throws RunnerException  if a benchmark fails
+     * @throws IOException  if JMH fails to print the help or list of benchmarks
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats()){
+            // Let JMH print what was asked for
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        boolean gcRequested = false;
+        for (ProfilerConfig profiler: commandLine.getProfilers()){
+            gcRequested |= profiler.getKlass().equals(GCProfiler.class.getName()) || profiler.getKlass().equals("gc");
+        }
+        if (!gcRequested){
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
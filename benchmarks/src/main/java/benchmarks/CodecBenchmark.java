@@ -0,0 +1,78 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a Message into a frame and decoding it again, for each codec. "direct" is a direct message
+ * between two users, "users" is the full list of 100 online users sent to a client when it logs in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    /**
+     * Operations measured, implemented by CodecFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Prepare the message to encode and its encoded frame to decode
+         * @param codec name of the codec
+         * @param message   type of message (direct or users)
+         * @throws Exception    if the message can't be encoded
+         */
+        void setUp(String codec, String message) throws Exception;
+
+        /**
+         * Encode the message into a complete frame
+         * @return  encoded frame
+         * @throws Exception    if the message can't be encoded
+         */
+        Object encode() throws Exception;
+
+        /**
+         * Decode the frame's payload back into a message
+         * @return  decoded message
+         * @throws Exception    if the payload can't be decoded
+         */
+        Object decode() throws Exception;
+    }
+
+    @Param({"binary", "serialized"})
+    public String codec;
+
+    @Param({"direct", "users"})
+    public String message;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load("CodecFixture", Fixture.class);
+        fixture.setUp(codec, message);
+    }
+
+    @Benchmark
+    public Object encode() throws Exception {
+        return fixture.encode();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return fixture.decode();
+    }
+}
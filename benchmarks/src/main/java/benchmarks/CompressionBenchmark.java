@@ -0,0 +1,110 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU time spent compressing a direct message frame with a connection's FrameCompressor, and
+ * decompressing it again, against the bytes it saves. "chat" is ordinary chat text and "log" is a pasted log with a
+ * stack trace, each at several sizes. The frameBytes and sentBytes counters are the bytes of the frames before and
+ * after compression, so sentBytes / frameBytes is the share of the bytes that are still sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    /**
+     * Operations measured, implemented by CompressionFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Prepare the frame to compress and its compressed payload to decompress
+         * @param text  type of text (chat or log)
+         * @param size  length of the text in characters
+         * @param level Deflater compression level
+         * @throws Exception    if the message can't be encoded
+         */
+        void setUp(String text, int size, int level) throws Exception;
+
+        /**
+         * Compress the frame, as a connection's writer does before sending it
+         * @return  size of the frame that would be sent
+         */
+        int compress();
+
+        /**
+         * Decompress the compressed payload, as a connection's reader does when it arrives
+         * @return  decompressed payload
+         * @throws Exception    if the payload can't be decompressed
+         */
+        Object decompress() throws Exception;
+
+        /**
+         * Returns the size of the frame before compression
+         * @return  frame size in bytes
+         */
+        int getFrameSize();
+    }
+
+    /**
+     * Bytes before and after compression, reported alongside the time taken
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long frameBytes;
+        public long sentBytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            frameBytes = 0;
+            sentBytes = 0;
+        }
+    }
+
+    @Param({"chat", "log"})
+    public String text;
+
+    @Param({"128", "512", "2048", "16384"})
+    public int size;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load("CompressionFixture", Fixture.class);
+        fixture.setUp(text, size, level);
+    }
+
+    @Benchmark
+    public int compress(Bytes bytes){
+        int sent = fixture.compress();
+        bytes.frameBytes += fixture.getFrameSize();
+        bytes.sentBytes += sent;
+        return sent;
+    }
+
+    @Benchmark
+    public Object decompress() throws Exception {
+        return fixture.decompress();
+    }
+}
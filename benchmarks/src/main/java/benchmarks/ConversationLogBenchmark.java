@@ -0,0 +1,105 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the client's message history (what Client.messageReceived and ChatSessionView.loadFile used to do with a
+ * text file per conversation, now done by ConversationLog):
+ * - "append" adds one received message to the log, as the writer does when only one message is waiting
+ * - "appendBatch" adds 256 messages with one write, as the writer does under load (reported per message)
+ * - "read" reads 100 messages of a conversation from a random point, as the GUI does when showing a conversation
+ * The log is written into a temporary directory that's deleted afterwards. Syncing to the disk isn't included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationLogBenchmark {
+    /**
+     * Number of messages added by each appendBatch operation
+     */
+    public static final int BATCH_SIZE = 256;
+
+    /**
+     * Operations measured, implemented by ConversationLogFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Open a log in the given directory and fill it with messages to read
+         * @param directory directory for the log's files
+         * @param batchSize number of messages added by appendBatch()
+         * @throws Exception    if the log can't be opened or written
+         */
+        void setUp(java.nio.file.Path directory, int batchSize) throws Exception;
+
+        /**
+         * Add a single message to the log
+         * @throws Exception    if the log can't be written
+         */
+        void append() throws Exception;
+
+        /**
+         * Add a batch of messages to the log with a single write
+         * @throws Exception    if the log can't be written
+         */
+        void appendBatch() throws Exception;
+
+        /**
+         * Read 100 messages of a conversation starting at a random message
+         * @return  messages read
+         * @throws Exception    if the log can't be read
+         */
+        Object read() throws Exception;
+
+        /**
+         * Close the log and delete its files
+         * @throws Exception    if the files can't be deleted
+         */
+        void tearDown() throws Exception;
+    }
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load("ConversationLogFixture", Fixture.class);
+        fixture.setUp(Files.createTempDirectory("conversation-log-benchmark"), BATCH_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public void append() throws Exception {
+        fixture.append();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void appendBatch() throws Exception {
+        fixture.appendBatch();
+    }
+
+    @Benchmark
+    public Object read() throws Exception {
+        return fixture.read();
+    }
+}
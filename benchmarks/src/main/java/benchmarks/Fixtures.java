@@ -0,0 +1,27 @@
+package benchmarks;
+
+/**
+ * Loads the fixtures the benchmarks run. JMH needs benchmarks to be in a package, but the client and server classes
+ * are in the default package, which can't be imported from a package. So each benchmark declares a Fixture interface
+ * with the operations it measures, and a class in the default package implements it using the client and server
+ * classes. The fixture is created by name once during setup, so each measured call is an ordinary interface call.
+ */
+final class Fixtures {
+    private Fixtures(){
+    }
+
+    /**
+     * Create a fixture
+     * @param className name of the fixture class (in the default package)
+     * @param type  interface the fixture implements
+     * @param <T>   type of the fixture
+     * @return  new fixture
+     */
+    static <T> T load(String className, Class<T> type){
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create benchmark fixture " + className, e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the server's mailbox for offline users (Mailbox), against the throughput targets in its class comment:
+ * - "store" stores 4096 direct messages for an offline user and waits until the writer has added them all to the log,
+ *   reported per message (the target is at least 100k messages per second, so under 10us). The writer writes the log
+ *   to the disk after each batch it takes, before taking the next, so that time is included
+ * - "deliver" logs in a user with 100k messages waiting and waits until every one has been read from the log and
+ *   queued to them (the target is under 1 second). The mailbox is filled again before each delivery, which isn't
+ *   measured
+ * The log is written into a temporary directory that's deleted afterwards, using the default settings.
+ */
+@Fork(1)
+public class MailboxBenchmark {
+    /**
+     * Number of messages stored by each store operation
+     */
+    public static final int BATCH_SIZE = 4096;
+
+    /**
+     * Number of messages waiting for the user each deliver operation logs in
+     */
+    public static final int MAILBOX_SIZE = 100000;
+
+    /**
+     * Operations measured, implemented by MailboxFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Open a mailbox in the given directory and start its writer
+         * @param directory directory for the mailbox's log
+         * @param batchSize number of messages stored by store()
+         * @param mailboxSize   number of messages stored by fill() and delivered by deliver()
+         * @throws Exception    if the mailbox can't be opened
+         */
+        void setUp(java.nio.file.Path directory, int batchSize, int mailboxSize) throws Exception;
+
+        /**
+         * Store a batch of messages for an offline user and wait until they have been added to the log
+         * @return  total messages stored so far
+         * @throws Exception    if the mailbox is too busy to take a message
+         */
+        long store() throws Exception;
+
+        /**
+         * Store a full mailbox of messages for the user deliver() logs in, and wait until they have been written
+         * @throws Exception    if the mailbox is too busy to take a message
+         */
+        void fill() throws Exception;
+
+        /**
+         * Log in the user with a full mailbox and wait until every message has been queued to them
+         * @return  total messages delivered so far
+         * @throws Exception    if the delivery doesn't finish
+         */
+        long deliver() throws Exception;
+
+        /**
+         * Delete the mailbox's files
+         * @throws Exception    if the files can't be deleted
+         */
+        void tearDown() throws Exception;
+    }
+
+    /**
+     * Mailbox used by store, messages are stored for a user who never logs in
+     */
+    @State(Scope.Thread)
+    public static class OfflineUser {
+        private Fixture fixture;
+
+        @Setup
+        public void setUp() throws Exception {
+            fixture = open();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            fixture.tearDown();
+        }
+    }
+
+    /**
+     * Mailbox used by deliver, filled again before each delivery so each one starts with a full mailbox
+     */
+    @State(Scope.Thread)
+    public static class ReturningUser {
+        private Fixture fixture;
+
+        @Setup
+        public void setUp() throws Exception {
+            fixture = open();
+        }
+
+        @Setup(Level.Invocation)
+        public void fill() throws Exception {
+            fixture.fill();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            fixture.tearDown();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long store(OfflineUser user) throws Exception {
+        return user.fixture.store();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public long deliver(ReturningUser user) throws Exception {
+        return user.fixture.deliver();
+    }
+
+    /**
+     * Open a new mailbox in a temporary directory
+     * @return  fixture using the mailbox
+     * @throws Exception    if the mailbox can't be opened
+     */
+    private static Fixture open() throws Exception {
+        Fixture fixture = Fixtures.load("MailboxFixture", Fixture.class);
+        fixture.setUp(Files.createTempDirectory("mailbox-benchmark"), BATCH_SIZE, MAILBOX_SIZE);
+        return fixture;
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of telling every online user about presence changes (what sendUsers used to do for each login).
+ * Each operation is one user logging in and out again with the given number of users already online, with the
+ * presence window turned off so both changes are broadcast straight away. "snapshot" measures sending the full list
+ * of online users to a single client that asks for it (the cached encoding is reused).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceBenchmark {
+    /**
+     * Operations measured, implemented by PresenceFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Create a presence broadcaster with the given number of users online
+         * @param users number of online users
+         */
+        void setUp(int users);
+
+        /**
+         * Log a user in and out, broadcasting both changes to every online user
+         * @return  total frames sent so far
+         */
+        long joinAndLeave();
+
+        /**
+         * Send the full list of online users to one user
+         * @return  total frames sent so far
+         */
+        long snapshot();
+    }
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp(){
+        fixture = Fixtures.load("PresenceFixture", Fixture.class);
+        fixture.setUp(users);
+    }
+
+    @Benchmark
+    public long joinAndLeave(){
+        return fixture.joinAndLeave();
+    }
+
+    @Benchmark
+    public long snapshot(){
+        return fixture.snapshot();
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures routing a direct message with the given number of users online. "lookup" only finds the recipient's
+ * socket in the user registry, "route" runs the whole of ServerResponse's direct message handling (lookup, encoding
+ * the frame and sending it to the recipient's connection). Each operation sends to the next of a shuffled list of
+ * recipients, so lookups don't keep hitting the same entry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+    /**
+     * Operations measured, implemented by RoutingFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Create a server with the given number of users online (without starting it)
+         * @param users number of online users
+         */
+        void setUp(int users);
+
+        /**
+         * Find the socket of the next recipient
+         * @return  recipient's socket details
+         */
+        Object lookup();
+
+        /**
+         * Route a direct message to the next recipient
+         * @return  true if the sender is still connected
+         */
+        boolean route();
+    }
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp(){
+        fixture = Fixtures.load("RoutingFixture", Fixture.class);
+        fixture.setUp(users);
+    }
+
+    @Benchmark
+    public Object lookup(){
+        return fixture.lookup();
+    }
+
+    @Benchmark
+    public boolean route(){
+        return fixture.route();
+    }
+}
@@ -0,0 +1,121 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways a client can reach the server (see ClientTransport): through an SSH tunnel, encrypted with TLS, or
+ * over plain TCP. A server using the matching transport is started in its own process on this machine for each run.
+ * - connect: a new client connecting and logging in, as when the app starts (opening a new SSH session and tunnel, or
+ *   a full TLS handshake)
+ * - reconnect: a client connecting and logging in again, as after its connection drops (through the SSH tunnel it
+ *   already has open, or resuming its TLS session)
+ * - transfer: sending a batch of 16KB direct messages to ourselves through the server and receiving them back, the
+ *   score is messages each way per second
+ *
+ * The ssh transport needs an SSH server that can reach this machine, given to the benchmark's JVM with the chat.ssh.*
+ * settings, e.g. -jvmArgsAppend "-Dchat.ssh.host=localhost -Dchat.ssh.user=me -Dchat.ssh.identity=/home/me/.ssh/id_rsa
+ * -Dchat.ssh.knownHosts=/home/me/.ssh/known_hosts". Without them its runs fail straight away and the others carry on.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    // Direct messages sent in each transfer
+    private static final int BATCH = 64;
+
+    /**
+     * Operations measured, implemented by TransportFixture in the default package
+     */
+    public interface Fixture {
+        /**
+         * Start a server and connect the clients used by reconnect and transfer
+         * @param transport ssh, tls or plain
+         * @param mode  server mode (blocking or nio)
+         * @param batch direct messages sent in each transfer
+         * @throws Exception    if the server can't be started or reached
+         */
+        void setUp(String transport, String mode, int batch) throws Exception;
+
+        /**
+         * Connect and log in with a new client, then disconnect
+         * @return  user id the server gave us
+         * @throws Exception    if the server can't be reached
+         */
+        int connect() throws Exception;
+
+        /**
+         * Connect and log in again with the same client, then disconnect
+         * @return  user id the server gave us
+         * @throws Exception    if the server can't be reached
+         */
+        int reconnect() throws Exception;
+
+        /**
+         * Send a batch of direct messages to ourselves and wait for all of them to come back
+         * @return  number of messages received
+         * @throws Exception    if the connection fails
+         */
+        int transfer() throws Exception;
+
+        /**
+         * Disconnect the clients and stop the server
+         */
+        void tearDown();
+    }
+
+    @Param({"plain", "tls", "ssh"})
+    public String transport;
+
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load("TransportFixture", Fixture.class);
+        fixture.setUp(transport, mode, BATCH);
+    }
+
+    @TearDown
+    public void tearDown(){
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int connect() throws Exception {
+        return fixture.connect();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int reconnect() throws Exception {
+        return fixture.reconnect();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public int transfer() throws Exception {
+        return fixture.transfer();
+    }
+}
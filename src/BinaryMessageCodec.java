@@ -0,0 +1,570 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Encodes messages in a compact binary format. Every payload starts with the format version and the special code,
+ * followed by a fixed layout for that type of message:
+ *
+ * [version: 1 byte][special code: varint][body]
+ * - Normal message (0): [to user id: varint][text][sequence: varlong][from user id: varint] (users are only sent by
+ *   id, clients find their names in their list of online users. Clients leave out the sender, the server fills it in
+ *   from the sender's session, so it's only read if the payload has more bytes)
+ * - Message acknowledged (4): [sequence: varlong][text]
+ * - Message received (5): [to user id: varint][sequence: varlong][from user id: varint] (the sender is left out by
+ *   clients in the same way)
+ * - Stored message (7): [from user][text][sequence: varlong] (a direct message delivered from the mailbox, which has
+ *   the sender's name as they may no longer be online)
+ * - Throttled (6): [throttled special code: varint][sequence: varlong][retry after millis: varlong]
+ * - Login request/reply, resume reply (10, 11, 13): [text][compression: string][session token: string] (the
+ *   compression is left out by older clients, and the token is only written in a login reply that starts a session,
+ *   so each is only read if the payload has more bytes)
+ * - Resume session (12): [session token: string][frames received: varlong][compression: string]
+ * - Refresh users (20): [presence version: varlong][number of users: varint][user]...
+ * - Users joined/left (21): [base presence version: varlong][presence version: varlong][number joined: varint]
+ *   [user]...[number left: varint][unique id: varint]...
+ * - Create/join/leave room (30, 31, 32): [room: string]
+ * - Room post (33): [from user][room: string][text]
+ * - Joined room (34): [room: string][number of members: varint][user]...
+ * - Room request failed (35): [room: string][text]
+ * - Node users joined/left (41): [number joined: varint][user]...[number left: varint][unique id: varint]...
+ * - File transfer (50, 51, 52, 53): [to user id: varint][transfer id: varlong][offset: varlong][text][data: bytes]
+ *   [from user id: varint] (the sender is left out by clients, like a normal message)
+ * - Any other code: [text]
+ *
+ * A user is written as [unique id: varint][name: string] and a string as [byte length + 1: varint][UTF-8 bytes], with
+ * a length of 0 meaning null. Bytes are written the same way as a string, without the UTF-8 encoding. Varints (and
+ * varlongs) use 7 bits per byte with the top bit set when more bytes follow, so small numbers only take a single byte.
+ *
+ * Version 2 payloads are still read for normal messages, as the mailbox may hold messages stored in that format. In
+ * version 2 a normal message was [from user][to user][text][sequence: varlong] (the sequence only if it wasn't 0).
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final BinaryMessageCodec INSTANCE = new BinaryMessageCodec();
+
+    // Version of the format written at the start of every payload, increase this when the layout changes
+    public static final int VERSION = 3;
+
+    @Override
+    public void encode(Message message, ByteArrayOutputStream out) throws IOException {
+        out.write(VERSION);
+        writeVarint(out, message.getSpecialCode());
+
+        switch (message.getSpecialCode()){
+            // Normal message
+            case 0:
+                writeVarint(out, message.getToUser().getUniqueID());
+                writeString(out, message.getMessage());
+                writeVarlong(out, message.getSequence());
+                writeSender(out, message.getFromUser());
+                break;
+
+            // Message acknowledged by the server
+            case 4:
+                writeVarlong(out, message.getSequence());
+                writeString(out, message.getMessage());
+                break;
+
+            // Message received by the recipient
+            case 5:
+                writeVarint(out, message.getToUser().getUniqueID());
+                writeVarlong(out, message.getSequence());
+                writeSender(out, message.getFromUser());
+                break;
+
+            // Frame throttled by a rate limit
+            case 6:
+                writeVarint(out, message.getThrottledCode());
+                writeVarlong(out, message.getSequence());
+                writeVarlong(out, message.getRetryAfterMillis());
+                break;
+
+            // Stored message delivered from the mailbox
+            case 7:
+                writeUser(out, message.getFromUser());
+                writeString(out, message.getMessage());
+                writeVarlong(out, message.getSequence());
+                break;
+
+            // Login request or reply, or resume reply
+            case 10:
+            case 11:
+            case 13:
+                writeString(out, message.getMessage());
+                writeString(out, message.getCompression());
+                if (message.getSessionToken() != null){
+                    writeString(out, message.getSessionToken());
+                }
+                break;
+
+            // Resume session
+            case 12:
+                writeString(out, message.getSessionToken());
+                writeVarlong(out, message.getSequence());
+                writeString(out, message.getCompression());
+                break;
+
+            // Refresh users
+            case 20:
+                writeVarlong(out, message.getPresenceVersion());
+                writeUsers(out, message.getUsers());
+                break;
+
+            // Users joined/left
+            case 21:
+                writeVarlong(out, message.getBasePresenceVersion());
+                writeVarlong(out, message.getPresenceVersion());
+                writeUsers(out, message.getUsers());
+                writeLeftUsers(out, message.getLeftUsers());
+                break;
+
+            // Node users joined/left
+            case 41:
+                writeUsers(out, message.getUsers());
+                writeLeftUsers(out, message.getLeftUsers());
+                break;
+
+            // Create, join or leave room
+            case 30:
+            case 31:
+            case 32:
+                writeString(out, message.getRoom());
+                break;
+
+            // Room post
+            case 33:
+                writeUser(out, message.getFromUser());
+                writeString(out, message.getRoom());
+                writeString(out, message.getMessage());
+                break;
+
+            // File offered, accepted, chunk or cancelled
+            case 50:
+            case 51:
+            case 52:
+            case 53:
+                writeVarint(out, message.getToUser().getUniqueID());
+                writeVarlong(out, message.getTransferID());
+                writeVarlong(out, message.getOffset());
+                writeString(out, message.getMessage());
+                writeBytes(out, message.getData());
+                writeSender(out, message.getFromUser());
+                break;
+
+            // Joined room
+            case 34:
+                writeString(out, message.getRoom());
+                writeUsers(out, message.getUsers());
+                break;
+
+            // Room request failed
+            case 35:
+                writeString(out, message.getRoom());
+                writeString(out, message.getMessage());
+                break;
+
+            default:
+                writeString(out, message.getMessage());
+                break;
+        }
+    }
+
+    @Override
+    public Message decode(ByteBuffer payload) throws IOException {
+        try {
+            int version = payload.get() & 0xFF;
+            if (version == 2){
+                return decodeVersion2(payload);
+            }
+            if (version != VERSION){
+                throw new IOException("Unsupported message format version " + version);
+            }
+
+            int specialCode = readVarint(payload);
+            switch (specialCode){
+                // Normal message
+                case 0:
+                    User toUser = new User(readVarint(payload), null);
+                    String text = readString(payload);
+                    long sequence = readVarlong(payload);
+                    return new Message(readSender(payload), toUser, text, sequence);
+
+                // Message acknowledged by the server
+                case 4:
+                    long ackedSequence = readVarlong(payload);
+                    return new Message(4, ackedSequence, readString(payload));
+
+                // Message received by the recipient
+                case 5:
+                    User sender = new User(readVarint(payload), null);
+                    long receivedSequence = readVarlong(payload);
+                    return new Message(readSender(payload), sender, receivedSequence);
+
+                // Frame throttled by a rate limit
+                case 6:
+                    int throttledCode = readVarint(payload);
+                    long throttledSequence = readVarlong(payload);
+                    return new Message(throttledCode, throttledSequence, readVarlong(payload));
+
+                // Stored message delivered from the mailbox
+                case 7:
+                    User storedFrom = readUser(payload);
+                    String storedText = readString(payload);
+                    return new Message(7, storedFrom, storedText, readVarlong(payload));
+
+                // Login request or reply, or resume reply
+                case 10:
+                case 11:
+                case 13:
+                    String loginText = readString(payload);
+                    String compression = payload.hasRemaining() ? readString(payload) : null;
+                    if (specialCode == 11 && payload.hasRemaining()){
+                        return new Message(loginText, compression, readString(payload));
+                    }
+                    return new Message(specialCode, loginText, compression);
+
+                // Resume session
+                case 12:
+                    String sessionToken = readString(payload);
+                    long received = readVarlong(payload);
+                    return new Message(sessionToken, received, readString(payload));
+
+                // Refresh users
+                case 20:
+                    long presenceVersion = readVarlong(payload);
+                    return new Message(readUsers(payload), presenceVersion);
+
+                // Users joined/left
+                case 21:
+                    long basePresenceVersion = readVarlong(payload);
+                    long newPresenceVersion = readVarlong(payload);
+                    ArrayList<User> joinedUsers = readUsers(payload);
+                    return new Message(joinedUsers, readLeftUsers(payload), basePresenceVersion, newPresenceVersion);
+
+                // Node users joined/left
+                case 41:
+                    ArrayList<User> nodeJoinedUsers = readUsers(payload);
+                    return new Message(nodeJoinedUsers, readLeftUsers(payload));
+
+                // Create, join or leave room
+                case 30:
+                case 31:
+                case 32:
+                    return new Message(specialCode, null, readString(payload), null);
+
+                // Room post
+                case 33:
+                    User poster = readUser(payload);
+                    String postRoom = readString(payload);
+                    return new Message(33, poster, postRoom, readString(payload));
+
+                // File offered, accepted, chunk or cancelled
+                case 50:
+                case 51:
+                case 52:
+                case 53:
+                    User transferTo = new User(readVarint(payload), null);
+                    long transferID = readVarlong(payload);
+                    long offset = readVarlong(payload);
+                    String transferText = readString(payload);
+                    byte[] data = readBytes(payload);
+                    return new Message(specialCode, readSender(payload), transferTo, transferID, offset, transferText,
+                            data);
+
+                // Joined room
+                case 34:
+                    String joinedRoom = readString(payload);
+                    return new Message(joinedRoom, readUsers(payload));
+
+                // Room request failed
+                case 35:
+                    String failedRoom = readString(payload);
+                    return new Message(35, null, failedRoom, readString(payload));
+
+                default:
+                    return new Message(specialCode, readString(payload));
+            }
+        } catch (RuntimeException e) {
+            // Buffer under-flow or a bad length means the payload was cut short or corrupted
+            throw new IOException("Invalid binary message", e);
+        }
+    }
+
+    /**
+     * Decode a payload written in version 2 of the format, only normal messages are still read
+     * @param payload   payload after the version byte
+     * @return  decoded message
+     * @throws IOException  if the payload isn't a normal message or is invalid
+     */
+    private static Message decodeVersion2(ByteBuffer payload) throws IOException {
+        int specialCode = readVarint(payload);
+        if (specialCode != 0){
+            throw new IOException("Unsupported message format version 2 for special code " + specialCode);
+        }
+        User fromUser = readUser(payload);
+        User toUser = readUser(payload);
+        String text = readString(payload);
+        return new Message(fromUser, toUser, text, payload.hasRemaining() ? readVarlong(payload) : 0);
+    }
+
+    /**
+     * Write an int as a varint (7 bits per byte, top bit set if more bytes follow)
+     * @param out   stream to write to
+     * @param value value to write, negative values always take 5 bytes
+     */
+    public static void writeVarint(ByteArrayOutputStream out, int value){
+        while ((value & ~0x7F) != 0){
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Read a varint written by writeVarint()
+     * @param in    buffer to read from
+     * @return  value read
+     * @throws IOException  if the varint is longer than 5 bytes
+     */
+    public static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7){
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    /**
+     * Write a long as a varlong (same encoding as writeVarint but up to 10 bytes)
+     * @param out   stream to write to
+     * @param value value to write
+     */
+    public static void writeVarlong(ByteArrayOutputStream out, long value){
+        while ((value & ~0x7FL) != 0){
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read a varlong written by writeVarlong()
+     * @param in    buffer to read from
+     * @return  value read
+     * @throws IOException  if the varlong is longer than 10 bytes
+     */
+    public static long readVarlong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7){
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Varlong is too long");
+    }
+
+    /**
+     * Write a string as its UTF-8 length (plus one, so 0 can mean null) followed by its UTF-8 bytes
+     * @param out   stream to write to
+     * @param value string to write, can be null
+     */
+    public static void writeString(ByteArrayOutputStream out, String value){
+        if (value == null){
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Read a string written by writeString(), decoding straight from the buffer's array where possible
+     * @param in    buffer to read from
+     * @return  string read, can be null
+     * @throws IOException  if the length is invalid
+     */
+    public static String readString(ByteBuffer in) throws IOException {
+        int length = readVarint(in) - 1;
+        if (length < 0){
+            return null;
+        }
+        if (length > in.remaining()){
+            throw new IOException("Invalid string length " + length);
+        }
+
+        String value;
+        if (in.hasArray()){
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Write bytes as their length (plus one, so 0 can mean null) followed by the bytes themselves
+     * @param out   stream to write to
+     * @param value bytes to write, can be null
+     */
+    public static void writeBytes(ByteArrayOutputStream out, byte[] value){
+        if (value == null){
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, value.length + 1);
+        out.write(value, 0, value.length);
+    }
+
+    /**
+     * Read bytes written by writeBytes(), copied out of the buffer as it's reused for the next frame
+     * @param in    buffer to read from
+     * @return  bytes read, can be null
+     * @throws IOException  if the length is invalid
+     */
+    public static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = readVarint(in) - 1;
+        if (length < 0){
+            return null;
+        }
+        if (length > in.remaining()){
+            throw new IOException("Invalid bytes length " + length);
+        }
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    /**
+     * Write a user as their id followed by their name
+     * @param out   stream to write to
+     * @param user  user to write, can be null
+     */
+    private static void writeUser(ByteArrayOutputStream out, User user){
+        if (user == null){
+            // A user is never given a negative id, so -1 marks a missing user
+            writeVarint(out, -1);
+            return;
+        }
+        writeVarint(out, user.getUniqueID());
+        writeString(out, user.getName());
+    }
+
+    /**
+     * Write the sender of a direct message or message received acknowledgement as just their id. Clients leave the
+     * sender out (the server fills it in), so nothing is written if there isn't one
+     * @param out   stream to write to
+     * @param sender    sender of the message, can be null
+     */
+    private static void writeSender(ByteArrayOutputStream out, User sender){
+        if (sender != null){
+            writeVarint(out, sender.getUniqueID());
+        }
+    }
+
+    /**
+     * Read the sender written by writeSender(), which only has their id
+     * @param in    buffer to read from
+     * @return  sender, or null if the payload doesn't have one (it was sent by a client)
+     * @throws IOException  if the id is invalid
+     */
+    private static User readSender(ByteBuffer in) throws IOException {
+        return in.hasRemaining() ? new User(readVarint(in), null) : null;
+    }
+
+    /**
+     * Write a list of users as the number of users followed by each user
+     * @param out   stream to write to
+     * @param users users to write, null is written as an empty list
+     */
+    private static void writeUsers(ByteArrayOutputStream out, ArrayList<User> users){
+        int count = users == null ? 0 : users.size();
+        writeVarint(out, count);
+        for (int i = 0; i < count; i++){
+            writeUser(out, users.get(i));
+        }
+    }
+
+    /**
+     * Read a list of users written by writeUsers()
+     * @param in    buffer to read from
+     * @return  users read
+     * @throws IOException  if the list is invalid
+     */
+    private static ArrayList<User> readUsers(ByteBuffer in) throws IOException {
+        int count = readCount(in);
+        ArrayList<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            users.add(readUser(in));
+        }
+        return users;
+    }
+
+    /**
+     * Write the users that have left as a list of ids, only the id is sent for users that have left
+     * @param out   stream to write to
+     * @param leftUsers users to write, can be null
+     */
+    private static void writeLeftUsers(ByteArrayOutputStream out, ArrayList<User> leftUsers){
+        int count = leftUsers == null ? 0 : leftUsers.size();
+        writeVarint(out, count);
+        for (int i = 0; i < count; i++){
+            writeVarint(out, leftUsers.get(i).getUniqueID());
+        }
+    }
+
+    /**
+     * Read the users that have left written by writeLeftUsers(), each user only has their id
+     * @param in    buffer to read from
+     * @return  users read
+     * @throws IOException  if the list is invalid
+     */
+    private static ArrayList<User> readLeftUsers(ByteBuffer in) throws IOException {
+        int count = readCount(in);
+        ArrayList<User> leftUsers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            leftUsers.add(new User(readVarint(in), null));
+        }
+        return leftUsers;
+    }
+
+    /**
+     * Read the number of items in a list, checking there are enough bytes left for that many items
+     * @param in    buffer to read from
+     * @return  number of items
+     * @throws IOException  if the count is invalid
+     */
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count = readVarint(in);
+        if (count < 0 || count > in.remaining()){
+            throw new IOException("Invalid number of items " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Read a user written by writeUser()
+     * @param in    buffer to read from
+     * @return  user read, can be null
+     * @throws IOException  if the user is invalid
+     */
+    private static User readUser(ByteBuffer in) throws IOException {
+        int uniqueID = readVarint(in);
+        if (uniqueID == -1){
+            return null;
+        }
+        return new User(uniqueID, readString(in));
+    }
+}
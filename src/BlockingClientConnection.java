@@ -0,0 +1,258 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Connection to a client served by its own ServerResponse thread using blocking socket streams.
+ * A second writer task drains the connection's OutboundQueue, writing every frame that is waiting as one batch and
+ * flushing once per batch. Once the client has agreed to compression, large frames are compressed by the writer as
+ * they're written, so frames shared between many clients are still only encoded once.
+ */
+public class BlockingClientConnection implements ClientConnection {
+    // Frame put on the queue to tell the writer to stop
+    private static final byte[] CLOSE_FRAME = new byte[0];
+
+    private final Socket clientSocket;
+    private final MessageCodec codec;
+    private final FrameReader frameReader;
+    private final OutputStream outputStream;
+    private final OutboundQueue outboundQueue;
+    private final ConnectionStats stats;
+    private final int writeBatchSize;
+    private volatile boolean open = true;
+
+    // Compresses large frames once the client has agreed to it, only used by the writer
+    private volatile FrameCompressor compressor;
+
+    // Adds the frames written to the session's replay buffer once the client has a session. Frames are only taken off
+    // the queue and recorded while holding recordLock, so they're recorded in the order they were queued even when
+    // close() takes the frames the writer left behind
+    private volatile ReplayBuffer.Recorder recorder;
+    private final Object recordLock = new Object();
+
+    // Held for the whole of close(), so a second caller waits until the unsent frames have been recorded
+    private final Object closeLock = new Object();
+
+    /**
+     * Constructor to create a BlockingClientConnection, opening the streams to and from the client and starting the
+     * writer
+     * @param clientSocket  socket connected to the client
+     * @param codec codec used to encode and decode messages
+     * @param outboundQueue queue of frames waiting to be written to the client
+     * @param stats counts of frames and bytes sent and received on this connection
+     * @param writeBatchSize    largest number of frames written before each flush
+     * @param writerExecutor    executor used to run the writer
+     * @throws IOException  if the streams can't be opened
+     */
+    public BlockingClientConnection(Socket clientSocket, MessageCodec codec, OutboundQueue outboundQueue,
+                                    ConnectionStats stats, int writeBatchSize, Executor writerExecutor)
+            throws IOException {
+        this.clientSocket = clientSocket;
+        this.codec = codec;
+        this.frameReader = new FrameReader(new BufferedInputStream(clientSocket.getInputStream()), codec);
+        this.outputStream = new BufferedOutputStream(clientSocket.getOutputStream());
+        this.outboundQueue = outboundQueue;
+        this.stats = stats;
+        this.writeBatchSize = writeBatchSize;
+        writerExecutor.execute(this::writeFrames);
+    }
+
+    /**
+     * Read the next message from the client, this is a blocking call
+     * @return  message received
+     * @throws IOException  if the socket is closed
+     */
+    public Message receive() throws IOException {
+        Message message = frameReader.read();
+        stats.received(1, frameReader.getLastFrameSize());
+        return message;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        sendFrame(MessageFraming.encode(codec, message));
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) throws IOException {
+        queueFrame(frame, true);
+    }
+
+    @Override
+    public boolean trySendFrame(byte[] frame) {
+        try {
+            queueFrame(frame, false);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Add a frame to the outbound queue, applying the slow consumer policy if it's full
+     * @param frame complete frame (length header and payload)
+     * @param mayBlock  false if the calling thread must never wait for space
+     * @throws IOException  if the connection is closed or the outbound queue is full
+     */
+    private void queueFrame(byte[] frame, boolean mayBlock) throws IOException {
+        if (!open){
+            throw new IOException("Connection is closed");
+        }
+        if (!outboundQueue.offer(frame, mayBlock)){
+            if (outboundQueue.getPolicy() == OutboundQueue.SlowConsumerPolicy.DISCONNECT){
+                close();
+                throw new IOException("Outbound queue is full, disconnecting slow client");
+            }
+            throw new IOException("Outbound queue is full, frame dropped");
+        }
+
+        // If the connection closed while the frame was being added, close() may have already taken the unsent frames,
+        // so nobody would write or record this one. Take it back so the sender knows it wasn't sent
+        if (!open && outboundQueue.remove(frame)){
+            throw new IOException("Connection is closed");
+        }
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor) {
+        this.compressor = compressor;
+        frameReader.allowCompressed();
+    }
+
+    @Override
+    public void recordSent(ReplayBuffer.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return clientSocket;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Close the connection and stop the writer. Frames that were never written are added to the session's replay
+     * buffer before this returns (if the client has a session), so they can be sent again if it resumes
+     */
+    @Override
+    public void close() {
+        synchronized (closeLock){
+            if (!open){
+                return;
+            }
+            open = false;
+
+            // Wake the writer so it stops
+            outboundQueue.offerClose(CLOSE_FRAME);
+
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to close client socket");
+            }
+
+            // Waits for the writer to finish recording the batch it's taking, if it's taking one
+            synchronized (recordLock){
+                ArrayList<byte[]> unsent = new ArrayList<>();
+                outboundQueue.drainTo(unsent, Integer.MAX_VALUE);
+                record(unsent);
+            }
+        }
+    }
+
+    /**
+     * Repeatedly waits for frames to be queued then writes every waiting frame, flushing once per batch.
+     * Runs on its own thread until the connection is closed
+     */
+    private void writeFrames(){
+        ArrayList<byte[]> batch = new ArrayList<>(writeBatchSize);
+        try {
+            while (true){
+                synchronized (recordLock){
+                    // Once closed, close() takes the frames that are left
+                    if (!open){
+                        return;
+                    }
+                    // Blocking call, waits until there's at least one frame then takes any others that are waiting.
+                    // close() adds a frame to wake it
+                    batch.add(outboundQueue.take());
+                    outboundQueue.drainTo(batch, writeBatchSize - 1);
+                    record(batch);
+                }
+
+                long bytes = 0;
+                int compressedFrames = 0;
+                long bytesSaved = 0;
+                FrameCompressor batchCompressor = compressor;
+                if (batchCompressor != null){
+                    batchCompressor.resetOutput();
+                }
+                for (byte[] frame: batch){
+                    if (frame == CLOSE_FRAME){
+                        return;
+                    }
+                    ByteBuffer compressed = batchCompressor == null ? null : batchCompressor.compress(frame);
+                    if (compressed != null){
+                        outputStream.write(compressed.array(), compressed.arrayOffset() + compressed.position(),
+                                compressed.remaining());
+                        bytes += compressed.remaining();
+                        compressedFrames++;
+                        bytesSaved += frame.length - compressed.remaining();
+                    } else {
+                        outputStream.write(frame);
+                        bytes += frame.length;
+                    }
+                }
+                outputStream.flush();
+                stats.sent(batch.size(), bytes);
+                if (compressedFrames > 0){
+                    stats.compressed(compressedFrames, bytesSaved);
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            // Socket closed, the reading thread will notice and remove the user
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        } finally {
+            if (compressor != null){
+                compressor.close();
+            }
+        }
+    }
+
+    /**
+     * Add frames taken off the outbound queue to the session's replay buffer, if the client has a session. Must only be
+     * called while holding recordLock
+     * @param frames    frames in the order they were taken
+     */
+    private void record(ArrayList<byte[]> frames){
+        ReplayBuffer.Recorder batchRecorder = recorder;
+        if (batchRecorder == null){
+            return;
+        }
+        for (byte[] frame: frames){
+            if (frame != CLOSE_FRAME){
+                batchRecorder.taken(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of direct byte buffers of the same size. Event loops borrow a buffer to read from a channel and hand it back
+ * straight after, so the number of buffers only grows with the number of reads happening at once rather than the
+ * number of connected clients.
+ */
+public class BufferPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final int bufferSize;
+
+    /**
+     * Constructor to create an empty BufferPool
+     * @param bufferSize    size in bytes of each buffer in the pool
+     */
+    public BufferPool(int bufferSize){
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, creating a new one if the pool is empty
+     * @return  buffer ready to be written to
+     */
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null){
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool so it can be reused
+     * @param buffer    buffer taken from acquire()
+     */
+    public void release(ByteBuffer buffer){
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+}
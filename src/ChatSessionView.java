@@ -19,7 +19,12 @@ public class ChatSessionView implements ActionListener {
     private JTextArea mainText;
     private JTextField userEntry;
     private JButton sendButton;
+    private JButton sendFileButton;
+    private JLabel statusLabel;
     private JComboBox<User> selectUser;
+    private JButton createRoomButton;
+    private JButton joinRoomButton;
+    private JButton leaveRoomButton;
 
     // Login Diag Attributes
     private JDialog diagFrame;
@@ -29,6 +34,10 @@ public class ChatSessionView implements ActionListener {
     // Client Object
     private final Client currentClient;
 
+    // Recently viewed conversations, and the id of the user whose conversation is on screen (-1 for none)
+    private final ConversationCache conversationCache = new ConversationCache();
+    private int displayedUserID = -1;
+
     /**
      * Constructs a ChatSessionView object used to manage the GUI
      * @param clientObject  object of client the GUI will represent
@@ -71,6 +80,17 @@ public class ChatSessionView implements ActionListener {
         selectUser.addActionListener(this);
         topPanel.add(selectUser);
 
+        // Add buttons for creating, joining and leaving rooms (rooms are shown in the combo box as #name)
+        createRoomButton = new JButton("Create Room");
+        createRoomButton.addActionListener(this);
+        topPanel.add(createRoomButton);
+        joinRoomButton = new JButton("Join Room");
+        joinRoomButton.addActionListener(this);
+        topPanel.add(joinRoomButton);
+        leaveRoomButton = new JButton("Leave Room");
+        leaveRoomButton.addActionListener(this);
+        topPanel.add(leaveRoomButton);
+
         // Add top panel to main frame
         mainFrame.add(topPanel, BorderLayout.PAGE_START);
 
@@ -98,6 +118,16 @@ public class ChatSessionView implements ActionListener {
         sendButton.addActionListener(this);
         bottomPanel.add(sendButton);
 
+        // Add a button to send a file to the selected user
+        sendFileButton = new JButton("Send File");
+        sendFileButton.addActionListener(this);
+        bottomPanel.add(sendFileButton);
+
+        // Add a label after the send button showing whether the last message was sent and delivered
+        statusLabel = new JLabel(" ");
+        statusLabel.setBorder(BorderFactory.createEmptyBorder(0, 8, 0, 8));
+        bottomPanel.add(statusLabel);
+
         // Add bottom panel to main frame
         mainFrame.add(bottomPanel, BorderLayout.PAGE_END);
 
@@ -137,20 +167,98 @@ public class ChatSessionView implements ActionListener {
     }
 
     /**
-     * Displays an error dialog containing the passed message
+     * Tell the user why the server rejected their login and open the login dialog again, without waiting for either to
+     * be closed. Can be called from any thread
+     * @param reason    why the login was rejected
+     */
+    public void retryLogin(String reason){
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(mainFrame, reason, "Login", JOptionPane.ERROR_MESSAGE);
+            runLoginDialog();
+        });
+    }
+
+    /**
+     * Displays an error dialog containing the passed message, without waiting for it to be closed. Can be called from
+     * any thread, so the listener thread keeps reading from the server while the dialog is open
      * @param errorMessage  error message to show the user
      */
     public void showErrorDialog(String errorMessage){
-        JOptionPane.showMessageDialog(mainFrame, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(mainFrame, errorMessage, "Error",
+                JOptionPane.ERROR_MESSAGE));
+    }
+
+    /**
+     * Displays an information dialog containing the passed message, without waiting for it to be closed. Can be called
+     * from any thread
+     * @param message   message to show the user
+     */
+    public void showInfoDialog(String message){
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(mainFrame, message, "Information",
+                JOptionPane.INFORMATION_MESSAGE));
+    }
+
+    /**
+     * Asks the user a yes or no question, without waiting for the answer. Can be called from any thread
+     * @param question  question to ask
+     * @param onYes run on the event dispatch thread if the user answers yes
+     * @param onNo  run on the event dispatch thread if the user answers no or closes the dialog
+     */
+    public void confirm(String question, Runnable onYes, Runnable onNo){
+        SwingUtilities.invokeLater(() -> {
+            int answer = JOptionPane.showConfirmDialog(mainFrame, question, "Confirm", JOptionPane.YES_NO_OPTION);
+            if (answer == JOptionPane.YES_OPTION){
+                onYes.run();
+            }
+            else {
+                onNo.run();
+            }
+        });
+    }
+
+    /**
+     * Shows whether the last message sent has been acknowledged by the server and received, next to the send button.
+     * Can be called from any thread
+     * @param status    status to show, e.g. "Delivered to Bob"
+     */
+    public void showStatus(String status){
+        SwingUtilities.invokeLater(() -> statusLabel.setText(status));
     }
 
     /**
-     * Updates the drop-down menu with all online users
+     * Updates the drop-down menu with the users that have joined and left, leaving everyone else in place (so the
+     * selected user stays selected)
+     * @param joinedUsers   users that have come online
+     * @param leftUsers users that have gone offline
+     */
+    public void updateOnlineUsers(ArrayList<User> joinedUsers, ArrayList<User> leftUsers){
+        // Remove each user that has left, matching on id as we're only sent the ids of users that have left
+        for (User leftUser: leftUsers){
+            for (int i = 0; i < selectUser.getItemCount(); i++){
+                if (selectUser.getItemAt(i).getUniqueID() == leftUser.getUniqueID()){
+                    selectUser.removeItemAt(i);
+                    break;
+                }
+            }
+        }
+
+        // Add each user that has joined to the end of the list
+        for (User joinedUser: joinedUsers){
+            selectUser.addItem(joinedUser);
+        }
+    }
+
+    /**
+     * Replaces the users in the drop-down menu with all online users, keeping any rooms
      * @param users list of currently online users
      */
-    public void updateOnlineUsers(ArrayList<User> users){
-        // Removes current list and adds each user in the new list one by one
-        selectUser.removeAllItems();
+    public void replaceOnlineUsers(ArrayList<User> users){
+        // Removes current users (rooms have negative ids) and adds each user in the new list one by one
+        for (int i = selectUser.getItemCount() - 1; i >= 0; i--){
+            if (selectUser.getItemAt(i).getUniqueID() >= 0){
+                selectUser.removeItemAt(i);
+            }
+        }
         if (users != null){
             for (User user: users){
                 selectUser.addItem(user);
@@ -159,23 +267,58 @@ public class ChatSessionView implements ActionListener {
     }
 
     /**
-     * Refreshes main text with new message if user that needs updating is selected
+     * Adds a room we've joined to the drop-down menu
+     * @param room  room, as a user with the room's conversation id and name
+     */
+    public void addRoom(User room){
+        SwingUtilities.invokeLater(() -> selectUser.addItem(room));
+    }
+
+    /**
+     * Removes a room we've left from the drop-down menu
+     * @param roomID    conversation id of the room
+     */
+    public void removeRoom(int roomID){
+        SwingUtilities.invokeLater(() -> {
+            for (int i = 0; i < selectUser.getItemCount(); i++){
+                if (selectUser.getItemAt(i).getUniqueID() == roomID){
+                    selectUser.removeItemAt(i);
+                    break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Refreshes main text with new messages if user that needs updating is selected. Only the new messages are read
+     * and added to the end of the text. Can be called from any thread
      * @param userID    The ID of the user that needs updating (used to check if the user is currently displayed)
      */
     public void refreshText(int userID){
-        // The currently selected user
-        User selectedUser = (User) this.selectUser.getSelectedItem();
-
-        // If we've updated the current user's file reload the text on screen by reading the file again
-        if (selectedUser !=null && userID == selectedUser.getUniqueID()){
-            loadFile(userID);
-        }
+        SwingUtilities.invokeLater(() -> {
+            // If we've updated the current user's conversation, add the new messages to the text on screen
+            if (userID == displayedUserID){
+                loadNewMessages(userID);
+            }
+        });
+    }
 
+    /**
+     * Show the conversation with a user. If the conversation is cached it's shown straight away, and only messages
+     * added since it was cached are read from the log
+     * @param userID    The ID of the user whose conversation to show
+     */
+    private void showConversation(int userID){
+        displayedUserID = userID;
+        ConversationCache.Conversation conversation = conversationCache.getOrCreate(userID);
+        mainText.setText(conversation.getText());
+        loadNewMessages(userID);
     }
 
     /**
      * Responds to any GUI events (pressed button, change combo-box menu, etc.)
      * If send button - send message to requested user
+     * If send file button - offer a file to requested user
      * If login button - send login request to server
      * If combo-box menu - load the messages for the new user
      * @param e Details of the event that triggered this method
@@ -188,12 +331,29 @@ public class ChatSessionView implements ActionListener {
             String userMessage = userEntry.getText();
             User selectedUser = (User) selectUser.getSelectedItem();
             if (userMessage != null && !userMessage.equals("") && selectedUser != null){
-                // Send typed message to selected user
-                currentClient.sendMessageToUser(userMessage, selectedUser);
+                // Send typed message to selected user, or post it to the selected room
+                if (selectedUser.getUniqueID() < 0){
+                    currentClient.sendMessageToRoom(userMessage, selectedUser.getUniqueID());
+                }
+                else {
+                    currentClient.sendMessageToUser(userMessage, selectedUser);
+                }
                 // Clear user entry, so new message can be typed
                 userEntry.setText("");
             }
         }
+        // Called when send file button is pressed, choose a file and offer it to the selected user
+        else if (e.getSource().equals(sendFileButton)){
+            User selectedUser = (User) selectUser.getSelectedItem();
+            if (selectedUser == null || selectedUser.getUniqueID() < 0){
+                showErrorDialog("Select a user to send the file to, files can't be sent to rooms");
+                return;
+            }
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(mainFrame) == JFileChooser.APPROVE_OPTION){
+                currentClient.sendFile(chooser.getSelectedFile(), selectedUser);
+            }
+        }
         // Called when login button is pressed, log in
         else if (e.getSource().equals(loginButton)){
             // Get username and send to log in method. Then close login dialog
@@ -201,78 +361,107 @@ public class ChatSessionView implements ActionListener {
             currentClient.login(name);
             diagFrame.setVisible(false);
         }
+        // Called when create or join room button is pressed, ask for the room's name and send the request
+        else if (e.getSource().equals(createRoomButton) || e.getSource().equals(joinRoomButton)){
+            String roomName = JOptionPane.showInputDialog(mainFrame, "Room name:");
+            if (roomName != null && !roomName.isBlank()){
+                if (e.getSource().equals(createRoomButton)){
+                    currentClient.createRoom(roomName.trim());
+                }
+                else {
+                    currentClient.joinRoom(roomName.trim());
+                }
+            }
+        }
+        // Called when leave room button is pressed, leave the selected room
+        else if (e.getSource().equals(leaveRoomButton)){
+            User selectedRoom = (User) selectUser.getSelectedItem();
+            if (selectedRoom != null && selectedRoom.getUniqueID() < 0){
+                currentClient.leaveRoom(selectedRoom.getUniqueID());
+            }
+        }
         // Called when users combo box is changed, change messages
         else if (e.getSource().equals(selectUser)){
             // Get the newly selected user and then load their messages to the GUI
             User user = (User) selectUser.getSelectedItem();
-            if (user != null){
-                refreshText(user.getUniqueID());
+            if (user != null && user.getUniqueID() != displayedUserID){
+                showConversation(user.getUniqueID());
             }
         }
     }
 
     /**
-     * Update the main text body with messages held in the given user's file
-     * @param userID the userID of the friend's file to load
+     * Read the messages added to a conversation since it was last read, add them to the cache and, if the
+     * conversation is on screen, to the end of the main text. Must be called on the event dispatch thread
+     * @param userID the userID of the friend's conversation to load
      */
-    private void loadFile(int userID){
-        // Load the file in a swing worker thread to avoid GUI hangups
+    private void loadNewMessages(int userID){
+        ConversationCache.Conversation conversation = conversationCache.getOrCreate(userID);
+
+        // Only one read per conversation at a time, if messages arrive during a read then read again afterwards
+        if (conversation.loading){
+            conversation.reloadNeeded = true;
+            return;
+        }
+        conversation.loading = true;
+        int from = conversation.getCount();
+
+        // Load the messages in a swing worker thread to avoid GUI hangups
         // First define the swing worker in an anonymous inner class
-        SwingWorker<String, String> loadFile = new SwingWorker<>() {
+        SwingWorker<String, String> loadMessages = new SwingWorker<>() {
+            private int count = 0;
+
             /**
-             * Read in the contents of the message cache of the selected user.
-             * If the file doesn't exist then a new file is created with no contents
+             * Read in the messages with the selected user that aren't cached yet from the conversation log
              *
-             * @return The file contents as a string
+             * @return The new messages as a string, one message per line
              */
             @Override
-            protected String doInBackground() {
-                // Create file if the file doesn't exist
-                User clientDetails = currentClient.getClientDetails();
-                int clientID = clientDetails.getUniqueID();
-                File messageFile = new File(System.getProperty("user.dir") + "/Data/" + clientID + "-" + userID + "messages.txt");
-                if (!messageFile.exists()) {
-                    try {
-                        messageFile.createNewFile();
-                    } catch (IOException e) {
-                        // Error creating file
-                        return "Error creating message file, please try again";
-                    }
+            protected String doInBackground() throws IOException {
+                ConversationLog conversationLog = currentClient.getConversationLog();
+                if (conversationLog == null) {
+                    return "";
                 }
 
-                // Read file contents line by line
+                // Read the conversation's new messages, oldest first
                 StringBuilder text = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(new FileReader(messageFile))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        text.append(line).append("\n");
-                    }
-                } catch (IOException e) {
-                    // Error reading the file
-                    return "Error reading message file, please try again";
+                for (ConversationRecord record : conversationLog.read(userID, from, Integer.MAX_VALUE)) {
+                    text.append(record.toDisplayLine()).append("\n");
+                    count++;
                 }
                 return text.toString();
             }
 
             /**
-             * Clears the main body of text on the UI and replaces its content with the text we read in the
-             * doInBackground() method
+             * Adds the text we read in the doInBackground() method to the cache and to the end of the main body of
+             * text on the UI
              */
             @Override
             protected void done() {
                 super.done();
-                // Clear main text and replace with text we've read in
-                String text = "";
+                conversation.loading = false;
                 try {
-                    text = get();
+                    String text = get();
+                    conversationCache.append(conversation, text, count, displayedUserID);
+                    if (userID == displayedUserID && !text.isEmpty()) {
+                        mainText.append(text);
+                    }
                 } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
+                    // Error reading the log
+                    if (userID == displayedUserID) {
+                        mainText.append("Error reading message file, please try again\n");
+                    }
+                }
+
+                // Messages arrived while we were reading, read those too
+                if (conversation.reloadNeeded) {
+                    conversation.reloadNeeded = false;
+                    loadNewMessages(userID);
                 }
-                mainText.setText(text);
             }
         };
 
-        // Execute swing worker to read in file
-        loadFile.execute();
+        // Execute swing worker to read in the new messages
+        loadMessages.execute();
     }
 }
@@ -1,27 +1,51 @@
-import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is the entry point of the Client's side of the program.
  * This class handles:
- * - Connecting to the server
+ * - Connecting to the server, through an SSH tunnel, with TLS or over plain TCP (see ClientTransport)
  * - Sending messages to the server
  * - Responding to the messages received from the server
  * - Setting up a ClientListener thread to monitor for messages from the server
  * - Setting up the ChatSessionView to manage the GUI
+ * - Making sure direct messages get through: each one is resent until the server acknowledges it (see
+ *   InFlightWindow), and copies of messages we've already received are dropped (see DuplicateFilter)
+ * - Reconnecting when the connection drops, resuming our session so we stay the same user and are sent whatever we
+ *   missed (or logging in again if the server can't resume it)
  */
 public class Client{
-    // Address and port of server we're connecting to
-    private final String address;
-    private int port;
+    // How we reach the server, and the socket connected to it
+    private final ClientTransport transport;
     private Socket serverSocket;
-    private ObjectOutputStream outStream;
+    private OutputStream outStream;
 
-    private Session session = null;
+    // Codec used to encode and decode messages, must match the server's codec
+    private final MessageCodec codec = MessageCodec.fromSystemProperties();
+
+    // Compresses large messages sent to the server, set once the server agrees to compression when we log in
+    private FrameCompressor compressor = null;
+
+    // Token of our session given when we logged in (null if the server doesn't let sessions be resumed), and the
+    // number of frames received since, which the server sends again from when we resume
+    private volatile String sessionToken = null;
+    private volatile long framesReceived = 0;
+
+    // Set while reconnecting after the connection dropped, messages aren't sent until the session has been resumed
+    private volatile boolean reconnecting = false;
+
+    // Time waited before each attempt to reconnect, doubling after each failed attempt up to the maximum
+    private static final long FIRST_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
 
     // Client Details and GUI details
     private User clientDetails;
@@ -29,14 +53,44 @@ public class Client{
     private int userID;
     private ChatSessionView GUI;
 
+    // Message history of every conversation, opened once we've logged in, and the thread writing messages to it
+    private ConversationLog conversationLog;
+    private ConversationWriter conversationWriter;
+
+    // Online users by id, and the presence version they're up to date with (-1 until the first full list arrives)
+    private final ConcurrentHashMap<Integer, User> onlineUsers = new ConcurrentHashMap<>();
+    private long presenceVersion = -1;
+    private boolean snapshotRequested = false;
+
+    // Direct messages waiting for the server to acknowledge them, and the timer sending them again if it doesn't
+    private final InFlightWindow sendWindow = new InFlightWindow(this::sendMessage);
+    private ScheduledExecutorService resendTimer;
+
+    // Recipients of messages the server has acknowledged, by sequence number, until the recipient acknowledges them too.
+    // Only the most recent are kept, so messages to users that never log in again don't build up
+    private static final int MAX_AWAITING_RECEIPT = 1024;
+    private final Map<Long, User> awaitingReceipt = new LinkedHashMap<>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, User> eldest) {
+            return size() > MAX_AWAITING_RECEIPT;
+        }
+    };
+
+    // Direct messages already received, so copies sent again by their sender are only shown once
+    private final DuplicateFilter receivedMessages = new DuplicateFilter();
+
+    // Files being sent to and received from other users
+    private FileTransfers fileTransfers;
+
+    // Rooms we're a member of by their conversation id (negative, so they never clash with user ids)
+    private final ConcurrentHashMap<Integer, String> joinedRooms = new ConcurrentHashMap<>();
+
     /**
      * Constructor to create Client Object
-     * @param add  the address of the server we're going to connect to
-     * @param port the port of the server we're going to connect to
+     * @param transport how to reach the server we're going to connect to
      */
-    public Client(String add, int port) {
-        this.address = add;
-        this.port = port;
+    public Client(ClientTransport transport) {
+        this.transport = transport;
     }
 
     /**
@@ -46,10 +100,12 @@ public class Client{
         // Draw GUI
         GUI = new ChatSessionView(this);
         GUI.draw();
+        fileTransfers = new FileTransfers(this::sendMessage, GUI);
 
-        // Port forward to linux bath server then connect to server and start listening for responses
-        this.portForward();
+        // Open the SSH tunnel (or read the TLS trust store) then connect to server and start listening for responses
+        this.openTransport();
         this.startListening();
+        this.startResendTimer();
 
         // Start login dialog
         GUI.runLoginDialog();
@@ -63,86 +119,300 @@ public class Client{
         // Update username on Client side
         this.username = username;
 
-        // Send message object containing login request (with username) to server
-        Message loginMessage = new Message(10, username);
+        // Send message object containing login request (with username) to server, offering to compress large messages
+        String compression = FrameCompressor.isEnabled() ? FrameCompressor.DEFLATE : null;
+        Message loginMessage = new Message(10, username, compression);
         sendMessage(loginMessage);
     }
 
+    /**
+     * Answer a heartbeat from the server, otherwise the server closes the connection once it has been quiet for its
+     * idle timeout
+     */
+    public void heartbeatReceived(){
+        sendMessage(new Message(3, null));
+    }
+
     /**
      * Respond to log in request return message from the server
      * @param message the message received from the server
+     * @param compression   compression the server agreed to, or null for none
+     * @param token token of the session the server started, or null if sessions can't be resumed
      */
-    public void loginReceived(String message){
+    public void loginReceived(String message, String compression, String token){
+        // The server rejects a name another user online is using, ask for a different one
+        if (message == null){
+            GUI.retryLogin("The name " + username + " is already in use, please choose another");
+            return;
+        }
+
+        // Frames are counted from the login reply, so the server knows which we missed if we resume the session
+        sessionToken = token;
+        framesReceived = 0;
+
         // If successful, the message will be the client's unique userID, retrieve it
-        if (message != null){
+        try {
+            userID = Integer.parseInt(message);
+        }
+        catch (NumberFormatException ex){
+            GUI.showErrorDialog("Invalid UserID given, please contact server owner");
+        }
+
+        // Compress large messages from now on if the server agreed to it
+        if (FrameCompressor.DEFLATE.equals(compression)){
+            setCompressor(FrameCompressor.fromSystemProperties());
+        }
+
+        // Create user from id and username
+        clientDetails = new User(userID, username);
+
+        // Open our message history (kept from previous runs), unless it's already open because we've logged in again
+        // after the server couldn't resume our session
+        if (conversationLog == null){
+            openConversationLog();
+        }
+    }
+
+    /**
+     * Count a frame received from the server since logging in (apart from the login and resume replies)
+     */
+    public void frameReceived(){
+        framesReceived++;
+    }
+
+    /**
+     * Respond to the connection to the server dropping, by reconnecting and resuming our session. Keeps trying, waiting
+     * longer after each failed attempt, until it manages to reconnect. Runs on the listener thread of the connection
+     * that dropped
+     */
+    public void connectionLost(){
+        if (sessionToken == null){
+            // Haven't logged in, or the server doesn't let sessions be resumed
+            GUI.showErrorDialog("Lost connection to the server. Please restart your app");
+            return;
+        }
+        reconnecting = true;
+        GUI.showStatus("Connection lost, reconnecting...");
+
+        long delay = FIRST_RECONNECT_DELAY_MILLIS;
+        while (true){
             try {
-                userID = Integer.parseInt(message);
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
             }
-            catch (NumberFormatException ex){
-                GUI.showErrorDialog("Invalid UserID given, please contact server owner");
+            try {
+                resumeSession();
+                return;
+            } catch (IOException | JSchException e) {
+                // Server (or SSH server) still unreachable, try again later
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
             }
         }
+    }
 
-        // Create user from id and username
-        clientDetails = new User(userID, username);
+    /**
+     * Respond to the server's reply to our resume request. If it resumed our session we carry on as before (the server
+     * sends everything we missed, and any messages it didn't acknowledge are sent again by the send window), otherwise
+     * we log in again with the same username
+     * @param message   our user id if the session was resumed, or null if it wasn't
+     * @param compression   compression the server agreed to, or null for none
+     */
+    public void resumeReceived(String message, String compression){
+        if (FrameCompressor.DEFLATE.equals(compression)){
+            setCompressor(FrameCompressor.fromSystemProperties());
+        }
+        reconnecting = false;
+        if (message != null){
+            GUI.showStatus("Reconnected");
+            return;
+        }
+
+        // The session has ended, log in again as a new user (the server sends a new list of online users). We're no
+        // longer a member of any room
+        sessionToken = null;
+        for (Integer roomID: joinedRooms.keySet()){
+            leftRoom(roomID);
+        }
+        GUI.showStatus("Reconnected, logging in again");
+        login(username);
+    }
+
+    /**
+     * Open the conversation log of the user we've logged in as. If another client on this computer is already using
+     * it (e.g. the same username is logged in twice), a separate log for this user id is used instead
+     */
+    private void openConversationLog(){
+        try {
+            conversationLog = new ConversationLog(ConversationLog.directoryFor(username));
+        } catch (IOException e) {
+            try {
+                conversationLog = new ConversationLog(ConversationLog.directoryFor(username + "-" + userID));
+            } catch (IOException ex) {
+                GUI.showErrorDialog("Failed to open message history. Please check file permissions");
+                return;
+            }
+        }
+        conversationWriter = new ConversationWriter(conversationLog, GUI);
+        conversationWriter.start();
     }
 
     /**
-     * Add message received to the corresponding text file and if the message is for the user whose messages are
-     * currently displayed, request the GUI to refresh the page
+     * Queue message received to be written to the conversation log. Once it's written, the writer asks the GUI to
+     * refresh the page if the message is for the user whose messages are currently displayed
      * @param message   message received from another user (contains text and user info)
+     * @param received  true if the message was received from the other user, false if we sent it
      */
     public void messageReceived(Message message, boolean received){
-        // Create a new anonymous inner thread to read the message and write to file (to avoid hang-ups)
-        Thread writeToFile = new Thread(){
-            public void run(){
-                // Get file for user we received the message from (or create one if it doesn't exist)
-                User fromUser = message.getFromUser();
-                int fromUserID = fromUser.getUniqueID();
-                int clientID = clientDetails.getUniqueID();
-                String path = System.getProperty("user.dir") + "/Data/" + clientID + "-" + fromUserID + "messages.txt";
-                File userFile = new File(path);
-
-                if (!userFile.exists()){
-                    try {
-                        userFile.createNewFile();
-                    } catch (IOException e) {
-                        GUI.showErrorDialog("Failed to create file. Please check file permissions");
-                    }
-                }
-
-                // Add new message to the file
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(userFile, true))){
-                    // Decide whether the message is from us or the sender
-                    if (received){
-                        bw.write(fromUser.getName() + ": ");
-                    }
-                    else{
-                        bw.write("You: ");
-                    }
-
-                    bw.write(message.getMessage());
-                    bw.newLine();
-                }
-                catch(IOException ex){
-                    GUI.showErrorDialog("Failed to write message to file. Please check file permissions");
-                }
-
-                // Ask chat session view to refresh
-                GUI.refreshText(fromUser.getUniqueID());
+        // The conversation is with the user we received the message from
+        User fromUser = message.getFromUser();
+        if (conversationWriter != null){
+            // Messages are written in the order they're queued, by a single writer thread
+            conversationWriter.submit(new ConversationRecord(System.currentTimeMillis(), received,
+                    fromUser.getUniqueID(), fromUser.getName(), message.getMessage()));
+        }
+    }
+
+    /**
+     * Respond to a direct message from another user. Messages with a sequence number are acknowledged to their sender,
+     * and only shown if they haven't been received before
+     * @param message   message received from another user
+     */
+    public void directMessageReceived(Message message){
+        // The server only sends the sender's id (unless the message was kept in the mailbox), find their name
+        User fromUser = named(message.getFromUser());
+        if (message.getSequence() != 0 && clientDetails != null){
+            // Every copy is acknowledged, in case the acknowledgement of an earlier copy was lost. The server fills in
+            // that it's from us
+            sendMessage(new Message(null, fromUser, message.getSequence()));
+            if (!receivedMessages.isNew(fromUser.getUniqueID(), message.getSequence())){
+                return;
+            }
+        }
+        messageReceived(new Message(fromUser, clientDetails, message.getMessage()), true);
+    }
+
+    /**
+     * Find the name of a user the server only sent the id of, from the list of online users
+     * @param user  user that may only have an id
+     * @return  the user with their name, or with a name made from their id if they aren't in the list
+     */
+    private User named(User user){
+        if (user.getName() != null){
+            return user;
+        }
+        User online = onlineUsers.get(user.getUniqueID());
+        return online != null ? online : new User(user.getUniqueID(), "User #" + user.getUniqueID());
+    }
+
+    /**
+     * Respond to the server acknowledging one of our direct messages. Once the server has it, the message is written
+     * to our message history, or if the server couldn't route it the user is told it wasn't delivered
+     * @param ack   acknowledgement from the server
+     */
+    public void messageAcknowledged(Message ack){
+        Message sent = sendWindow.acknowledged(ack.getSequence());
+        if (sent == null){
+            // Acknowledgement of a copy we sent again, the first one has already been dealt with
+            return;
+        }
+        User toUser = sent.getToUser();
+        if (ack.getMessage() != null){
+            GUI.showErrorDialog("Message to " + toUser.getName() + " wasn't delivered: " + ack.getMessage());
+            return;
+        }
+        synchronized (awaitingReceipt){
+            awaitingReceipt.put(ack.getSequence(), toUser);
+        }
+
+        // Write message to local file and refresh UI
+        // To do this we will manipulate the message slightly to pretend the message is from the user you're sending
+        // the message to, to ensure the message is written to the correct conversation. And set a flag to mark it as
+        // sent by us, so it's shown as "You:"
+        messageReceived(new Message(toUser, this.clientDetails, sent.getMessage()), false);
+        GUI.showStatus("Sent to " + toUser.getName());
+    }
+
+    /**
+     * Respond to the server throttling one of our frames because we're sending too fast. Direct messages are sent again
+     * once the server says we may, anything else has to be tried again by the user
+     * @param throttle  throttle reply from the server
+     */
+    public void throttled(Message throttle){
+        if (throttle.getThrottledCode() == 51 || throttle.getThrottledCode() == 52){
+            // File chunks are sent again from the throttled chunk, a lost acknowledgement is covered by the next one
+            if (throttle.getThrottledCode() == 52){
+                fileTransfers.throttled(throttle.getSequence(), throttle.getRetryAfterMillis());
             }
-        };
+            return;
+        }
+        if (throttle.getThrottledCode() == 0 && sendWindow.throttled(throttle.getSequence(),
+                throttle.getRetryAfterMillis())){
+            GUI.showStatus("Sending too fast, waiting to send again...");
+            return;
+        }
+        GUI.showStatus("You're sending too fast, please wait a moment and try again");
+    }
 
-        // Start thread to write message received to file
-        writeToFile.start();
+    /**
+     * Respond to the recipient of one of our direct messages acknowledging they've received it
+     * @param receipt   acknowledgement from the recipient
+     */
+    public void receiptReceived(Message receipt){
+        User recipient;
+        synchronized (awaitingReceipt){
+            recipient = awaitingReceipt.remove(receipt.getSequence());
+        }
+        if (recipient != null){
+            GUI.showStatus("Delivered to " + recipient.getName());
+        }
+    }
+
+    /**
+     * Update list of other users online in the GUI. A full list (code 20) replaces the current list, while a change
+     * (code 21) only adds and removes the users that joined and left. If a change doesn't follow on from the presence
+     * version we're up to date with, a change has been missed so a new full list is requested instead
+     * @param presenceMessage   message containing the full list of users or the change to the list
+     */
+    public void updateUsers(Message presenceMessage){
+        if (presenceMessage.getSpecialCode() == 20){
+            // Full list, replace everything we know
+            ArrayList<User> users = presenceMessage.getUsers();
+            onlineUsers.clear();
+            for (User user: users){
+                onlineUsers.put(user.getUniqueID(), user);
+            }
+            presenceVersion = presenceMessage.getPresenceVersion();
+            snapshotRequested = false;
+            GUI.replaceOnlineUsers(users);
+        }
+        else if (presenceMessage.getBasePresenceVersion() == presenceVersion){
+            // Change that follows on from our list, apply it
+            for (User user: presenceMessage.getLeftUsers()){
+                onlineUsers.remove(user.getUniqueID());
+                receivedMessages.forget(user.getUniqueID());
+                fileTransfers.userLeft(user.getUniqueID());
+            }
+            for (User user: presenceMessage.getUsers()){
+                onlineUsers.put(user.getUniqueID(), user);
+            }
+            presenceVersion = presenceMessage.getPresenceVersion();
+            GUI.updateOnlineUsers(presenceMessage.getUsers(), presenceMessage.getLeftUsers());
+        }
+        else if (presenceMessage.getPresenceVersion() > presenceVersion && !snapshotRequested){
+            // We've missed a change, ask for the full list again (changes are ignored until it arrives)
+            snapshotRequested = true;
+            sendMessage(new Message(22, null));
+        }
     }
 
     /**
-     * Update list of other users online in the GUI
-     * @param newUsers  List of users currently online
+     * Returns details of an online user
+     * @param uniqueID  id of the user
+     * @return  the user, or null if they aren't online
      */
-    public void updateUsers(ArrayList<User> newUsers){
-        GUI.updateOnlineUsers(newUsers);
+    public User getOnlineUser(int uniqueID){
+        return onlineUsers.get(uniqueID);
     }
 
     /**
@@ -151,23 +421,138 @@ public class Client{
      * @param toUser  user to send the message to
      */
     public void sendMessageToUser(String text, User toUser){
-        // Create new message to send to recipient via the server
-        Message message = new Message(this.clientDetails, toUser, text);
-        sendMessage(message);
+        // Create new message to send to recipient via the server, it's sent straight away unless the window of
+        // messages waiting to be acknowledged is full. It's added to our message history once the server acknowledges
+        // it (see messageAcknowledged())
+        // Only the recipient's id is sent, the server fills in that it's from us
+        sendWindow.send(sequence -> new Message(null, toUser, text, sequence));
+        GUI.showStatus("Sending to " + toUser.getName() + "...");
+    }
 
-        // Write message to local file and refresh UI
-        // To do this we will manipulate the message slightly to pretend the message is from the user you're sending
-        // the message to, to ensure the message is written to the correct file. And set a flag to change the name to
-        // "You:" in the text
-        Message editedMessage = new Message(toUser, this.clientDetails, text);
-        messageReceived(editedMessage, false);
+    /**
+     * Offer a file to another user, it's sent once they accept it
+     * @param file  file to send
+     * @param toUser    user to send the file to
+     */
+    public void sendFile(File file, User toUser){
+        try {
+            fileTransfers.send(file.toPath(), toUser);
+        } catch (IOException e) {
+            GUI.showErrorDialog("Couldn't read " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Respond to a file transfer frame from another user (an offer, acceptance, chunk or cancellation)
+     * @param message   file transfer frame
+     */
+    public void fileTransferReceived(Message message){
+        fileTransfers.received(message, named(message.getFromUser()));
+    }
+
+    /**
+     * Returns the conversation id used for a room. Rooms are shown and stored like users, using a negative id worked
+     * out from the room's name so it's the same every time the room is joined (-1 is never used)
+     * @param roomName  name of the room
+     * @return  conversation id of the room
+     */
+    public static int roomID(String roomName){
+        return -((roomName.hashCode() & 0x3fffffff) + 2);
+    }
+
+    /**
+     * Ask the server to create a room, which we then join
+     * @param roomName  name of the room
+     */
+    public void createRoom(String roomName){
+        sendMessage(new Message(30, null, roomName, null));
+    }
+
+    /**
+     * Ask the server to join an existing room
+     * @param roomName  name of the room
+     */
+    public void joinRoom(String roomName){
+        sendMessage(new Message(31, null, roomName, null));
+    }
+
+    /**
+     * Leave a room, it's removed from the GUI straight away
+     * @param roomID    conversation id of the room
+     */
+    public void leaveRoom(int roomID){
+        String roomName = joinedRooms.remove(roomID);
+        if (roomName != null){
+            sendMessage(new Message(32, null, roomName, null));
+            GUI.removeRoom(roomID);
+        }
     }
 
     /**
-     * Disconnects from the ssh session, deleting the local port forwarding. Also remove all messages saved on the
-     * computer
+     * Remove a room we're no longer a member of from the GUI
+     * @param roomID    conversation id of the room
+     */
+    private void leftRoom(int roomID){
+        if (joinedRooms.remove(roomID) != null){
+            GUI.removeRoom(roomID);
+        }
+    }
+
+    /**
+     * Respond to the server telling us we've joined (or created) a room by adding the room to the GUI
+     * @param message   joined room message containing the room's name and members
+     */
+    public void roomJoined(Message message){
+        int roomID = roomID(message.getRoom());
+        if (joinedRooms.put(roomID, message.getRoom()) == null){
+            GUI.addRoom(new User(roomID, "#" + message.getRoom()));
+        }
+    }
+
+    /**
+     * Add a post by another member of a room to the room's conversation
+     * @param message   room post containing the poster, room and text
+     */
+    public void roomMessageReceived(Message message){
+        int roomID = roomID(message.getRoom());
+        if (conversationWriter != null && joinedRooms.containsKey(roomID)){
+            conversationWriter.submit(new ConversationRecord(System.currentTimeMillis(), true, roomID,
+                    message.getFromUser().getName(), message.getMessage()));
+        }
+    }
+
+    /**
+     * Post a message to a room. The server sends it to every other member of the room, encoding it only once
+     * @param text  text to post
+     * @param roomID    conversation id of the room
+     */
+    public void sendMessageToRoom(String text, int roomID){
+        String roomName = joinedRooms.get(roomID);
+        if (roomName == null){
+            return;
+        }
+        sendMessage(new Message(33, this.clientDetails, roomName, text));
+
+        // Write message to local log and refresh UI
+        if (conversationWriter != null){
+            conversationWriter.submit(new ConversationRecord(System.currentTimeMillis(), false, roomID,
+                    "#" + roomName, text));
+        }
+    }
+
+    /**
+     * Disconnects from the server, closing the SSH tunnel if we're using one. The message history is closed but kept, so
+     * it's still there next time the user logs in
      */
     public void disconnect() {
+        // Stop sending messages again, the server won't acknowledge them once we've disconnected
+        if (resendTimer != null){
+            resendTimer.shutdownNow();
+        }
+        if (fileTransfers != null){
+            fileTransfers.close();
+        }
+
         // Disconnect port forwarding
         try {
             // If socket isn't already closed
@@ -178,27 +563,19 @@ public class Client{
 
                 // Disconnect socket
                 serverSocket.close();
-
-                // Disconnect session
-                session.disconnect();
-                session.delPortForwardingL(port);
             }
 
-        } catch (JSchException | IOException e) {
-            // Session already deleted, don't need to do anything
+        } catch (IOException e) {
+            // Socket already closed, don't need to do anything
         }
+        transport.close();
 
-        // Remove all message files (to avoid issues rerunning the program
-        File messageDirectory = new File(System.getProperty("user.dir") + "/Data/");
-        if (messageDirectory.isDirectory()){
-            File[] files = messageDirectory.listFiles();
-            if (files != null){
-                for (File f: files){
-                    if (f.getName().endsWith("messages.txt") && f.getName().startsWith(Integer.toString(userID))){
-                        f.delete();
-                    }
-                }
-            }
+        // Write any remaining messages to disk and close the message history
+        if (conversationWriter != null){
+            conversationWriter.close();
+        }
+        if (conversationLog != null){
+            conversationLog.close();
         }
 
         // Exit program
@@ -213,6 +590,22 @@ public class Client{
         return clientDetails;
     }
 
+    /**
+     * Returns the log holding the message history of every conversation
+     * @return  conversation log, or null if we haven't logged in or it couldn't be opened
+     */
+    public ConversationLog getConversationLog(){
+        return conversationLog;
+    }
+
+    /**
+     * Returns the codec used to encode and decode messages
+     * @return  message codec
+     */
+    public MessageCodec getCodec(){
+        return codec;
+    }
+
     /**
      * Returns the GUI object handling the GUI
      * @return  GUI object
@@ -222,35 +615,17 @@ public class Client{
     }
 
     /**
-     * This sets up ssh local port forwarding to redirect any traffic sent to localhost port 14002 to linux3.bath.ac.uk
-     * port 34752
+     * Get ready to connect to the server. With the ssh transport this sets up local port forwarding to redirect any
+     * traffic sent to a local port (14002 by default) to the chat server through the SSH server
      */
-    private void portForward() {
-        // Use JSch to connect to linux3.bath.ac.uk via ssh
-        JSch sshManager = new JSch();
+    private void openTransport() {
         try {
-            // Uses my login details to connect to my user profile on the SSH server
-            // This will have to be changed to whatever server you run the chat system on
-            sshManager.addIdentity(System.getProperty("user.dir") + "/Data/id_rsa");
-            sshManager.setKnownHosts(System.getProperty("user.dir") + "/Data/known_hosts");
-            session = sshManager.getSession("rhdd20", "linux3.bath.ac.uk", 22);
-            session.connect();
-
-            // Set up port forwarding so any data we send to localhost port is redirected to the linux server
-            boolean connected = false;
-            while (!connected) {
-                try {
-                    session.setPortForwardingL(this.port, this.address, 34752);
-                    connected = true;
-                } catch (JSchException e) {
-                    // If localhost port is in use try next port
-                    this.port++;
-                }
-            }
+            transport.open();
         } catch (JSchException e) {
             GUI.showErrorDialog("Failed to connect to Linux Server. Please use Bath Uni's VPN");
+        } catch (IOException e) {
+            GUI.showErrorDialog("Failed to set up TLS: " + e.getMessage());
         }
-
     }
 
     /**
@@ -258,48 +633,129 @@ public class Client{
      */
     private void startListening() {
         try {
-            // Create new socket to communicate with the server
-            this.serverSocket = new Socket(address, port);
-
-            // Create new ClientListener object to receive messages from the server
-            ClientListener listener = new ClientListener(serverSocket, this);
-            // Client Listener thread and UI object
-            Thread listeningThread = new Thread(listener);
-            listeningThread.start();
-
-            // Create an output object stream to write messages to the server
-            this.outStream = new ObjectOutputStream(serverSocket.getOutputStream());
-        } catch (IOException e) {
+            connect();
+        } catch (IOException | JSchException e) {
             GUI.showErrorDialog("Unable to communicate with server application. Is the server online?");
         }
     }
 
     /**
-     * Send a message to the server
+     * Open a new socket to the server, start a clientListener thread reading from it, and send messages on it from now
+     * on
+     * @throws IOException  if the server can't be reached
+     * @throws JSchException    if the SSH tunnel has dropped and the SSH server can't be reached
+     */
+    private synchronized void connect() throws IOException, JSchException {
+        // Create new socket to communicate with the server (the TLS handshake has finished once this returns)
+        Socket socket = transport.connect();
+        this.serverSocket = socket;
+
+        // Create an output stream to write message frames to the server
+        this.outStream = new BufferedOutputStream(socket.getOutputStream());
+
+        // Create new ClientListener object to receive messages from the server
+        ClientListener listener = new ClientListener(socket, this);
+        // Client Listener thread and UI object
+        Thread listeningThread = new Thread(listener);
+        listeningThread.start();
+    }
+
+    /**
+     * Reconnect to the server (setting up the port forwarding again if the SSH session has dropped too, or resuming our
+     * TLS session) and ask it to resume our session. Nothing else is sent until the server replies
+     * @throws IOException  if the server can't be reached
+     * @throws JSchException    if the SSH server can't be reached
+     */
+    private synchronized void resumeSession() throws IOException, JSchException {
+        connect();
+
+        // Large messages aren't compressed again until the server agrees to it in its reply
+        compressor = null;
+        String compression = FrameCompressor.isEnabled() ? FrameCompressor.DEFLATE : null;
+        transmit(new Message(sessionToken, framesReceived, compression));
+    }
+
+    /**
+     * Start the timer that sends direct messages again if the server hasn't acknowledged them in time, telling the user
+     * about any that are given up on
+     */
+    private void startResendTimer(){
+        resendTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-resend");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, sendWindow.getAckTimeoutMillis() / 4);
+        resendTimer.scheduleAtFixedRate(() -> {
+            for (Message givenUp: sendWindow.resendExpired()){
+                GUI.showErrorDialog("Message to " + givenUp.getToUser().getName()
+                        + " wasn't acknowledged by the server, it may not have been delivered");
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the compressor used for large messages sent to the server
+     * @param compressor    compressor to use
+     */
+    private synchronized void setCompressor(FrameCompressor compressor){
+        this.compressor = compressor;
+    }
+
+    /**
+     * Send a message to the server. Messages are sent from both the GUI and the listener thread, so only one is
+     * written at a time to keep their frames (and the compressor's buffers) from getting mixed up. Nothing is sent
+     * while reconnecting, direct messages are sent again by the send window once the session has been resumed
      * @param message message to send to the server
      */
-    private void sendMessage(Message message){
+    private synchronized void sendMessage(Message message){
+        if (reconnecting){
+            return;
+        }
         try{
             if (outStream !=null){
-                // Send message to the server using the output object stream
-                outStream.writeObject(message);
-                outStream.flush();
+                transmit(message);
             }
             else{
                 GUI.showErrorDialog("Output stream is null. Please restart app");
             }
         }
         catch (IOException e){
-            GUI.showErrorDialog("Message failed to send, please try again");
+            // If we have a session the listener notices the connection has dropped and resumes it
+            if (sessionToken == null){
+                GUI.showErrorDialog("Message failed to send, please try again");
+            }
+        }
+    }
+
+    /**
+     * Send a message to the server as a single frame using the output stream, compressed if it's large and the server
+     * agreed to it. Must be called holding this object's lock
+     * @param message message to send to the server
+     * @throws IOException  if the connection has dropped
+     */
+    private void transmit(Message message) throws IOException {
+        byte[] frame = MessageFraming.encode(codec, message);
+        ByteBuffer compressed = null;
+        if (compressor != null){
+            compressor.resetOutput();
+            compressed = compressor.compress(frame);
+        }
+        if (compressed != null){
+            outStream.write(compressed.array(), compressed.arrayOffset() + compressed.position(),
+                    compressed.remaining());
+        } else {
+            outStream.write(frame);
         }
+        outStream.flush();
     }
 
     /**
      * Create client and sets up connection to server
      */
     public static void main(String[] args) {
-        // Create a new client object to connect to localhost:14002
-        Client myClient = new Client("localhost", 14002);
+        // Create a new client object to connect to the server the settings say (through the SSH tunnel by default)
+        Client myClient = new Client(ClientTransport.fromSystemProperties());
         myClient.startClient();
     }
 
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A connection from the server to a single client. Hides whether the client is served by a blocking socket or a
+ * non-blocking channel, so ServerResponse can send messages in the same way for both server modes.
+ * Sending only adds the frame to the connection's OutboundQueue, the frame is written to the socket later by the
+ * connection's single writer, so a slow client never holds up the thread sending to it.
+ */
+public interface ClientConnection {
+    /**
+     * Encode a message and queue it to be sent to the client
+     * @param message   message to send
+     * @throws IOException  if the connection is closed or the outbound queue is full
+     */
+    void send(Message message) throws IOException;
+
+    /**
+     * Queue an already encoded frame to be sent to the client
+     * @param frame complete frame (length header and payload)
+     * @throws IOException  if the connection is closed or the outbound queue is full
+     */
+    void sendFrame(byte[] frame) throws IOException;
+
+    /**
+     * Queue an already encoded frame without ever waiting for space in a full queue (the block policy drops the frame
+     * instead), for threads that must never wait such as the ConnectionReaper's timer
+     * @param frame complete frame (length header and payload)
+     * @return  true if the frame was queued, false if the connection is closed or the frame was dropped
+     */
+    boolean trySendFrame(byte[] frame);
+
+    /**
+     * Start compressing large frames sent to the client, once it has agreed to compression when logging in. Frames
+     * are compressed by the connection's writer, so the frames passed to sendFrame() are never changed. Compressed
+     * frames from the client are accepted from now on too, until then they close the connection
+     * @param compressor    compressor used for every frame sent from now on
+     */
+    void enableCompression(FrameCompressor compressor);
+
+    /**
+     * Start adding every frame taken off the outbound queue after firstFrame to a session's ReplayBuffer, along with
+     * any frames still waiting when the connection closes, so they can be sent again if the client resumes the session
+     * on a new connection. Must be called before firstFrame is sent
+     * @param recorder  recorder given by the session's replay buffer
+     */
+    void recordSent(ReplayBuffer.Recorder recorder);
+
+    /**
+     * Returns the queue of frames waiting to be written to the client
+     * @return  outbound queue
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Returns the counts of frames and bytes sent to and received from the client
+     * @return  connection stats
+     */
+    ConnectionStats getStats();
+
+    /**
+     * Returns the socket used by the connection
+     * @return  socket connected to the client
+     */
+    Socket getSocket();
+
+    /**
+     * Returns whether the connection is still open
+     * @return  true until the connection is closed
+     */
+    boolean isOpen();
+
+    /**
+     * Close the connection to the client. If the client has a session, the frames that were never written are added to
+     * its replay buffer before this returns, even when another thread is already closing the connection
+     */
+    void close();
+}
@@ -1,16 +1,22 @@
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
 
 /**
  * Repeatedly checks for messages from the server and executes the relevant Client object method. This is run as a
  * thread so the blocking calls when waiting for a message doesn't freeze the program.
+ * Each connection to the server has its own listener. If the connection drops, the listener asks the client to
+ * reconnect, which starts a listener for the new connection.
  */
 public class ClientListener implements Runnable{
     private final Socket serverSocket;
     private final Client clientObject;
     private final ChatSessionView GUI;
 
+    // Frames are counted once the login or resume reply has been received on this connection, the server numbers the
+    // frames it sends from then on in the same way
+    private boolean counting = false;
+
     /**
      * Constructor to create ClientListener object
      * @param serverSocket  the socket that's connected to the server
@@ -29,13 +35,25 @@ public class ClientListener implements Runnable{
     public void run() {
         // Set up the ability to read the data from the server
         try {
-            ObjectInputStream in = new ObjectInputStream(serverSocket.getInputStream());
+            FrameReader in = new FrameReader(new BufferedInputStream(serverSocket.getInputStream()), clientObject.getCodec());
 
             // Loops, ensuring we can always receive messages from server
             while(!serverSocket.isClosed()) {
                 // Read the message from the server and processes it
                 try {
-                    Message serverMessage = (Message)in.readObject();
+                    Message serverMessage = in.read();
+                    int code = serverMessage == null ? -1 : serverMessage.getSpecialCode();
+                    if (code == 11 || code == 13){
+                        counting = true;
+                        // The server only compresses frames once the login (or resume) reply has agreed to it
+                        if (FrameCompressor.DEFLATE.equals(serverMessage.getCompression())){
+                            in.allowCompressed();
+                        }
+                    }
+                    else if (counting){
+                        clientObject.frameReceived();
+                    }
+
                     if (serverMessage == null){
                         GUI.showErrorDialog("Received invalid message from server. Please report to server owner");
                     }
@@ -43,25 +61,86 @@ public class ClientListener implements Runnable{
                         // Decides how to respond to message based off special code
                         int specialCode = serverMessage.getSpecialCode();
                         switch(specialCode){
-                            // Direct message received
+                            // Direct message received, or delivered from the mailbox
                             case 0:
-                                clientObject.messageReceived(serverMessage, true);
+                            case 7:
+                                clientObject.directMessageReceived(serverMessage);
+                                break;
+
+                            // Server acknowledged one of our direct messages
+                            case 4:
+                                clientObject.messageAcknowledged(serverMessage);
+                                break;
+
+                            // Recipient received one of our direct messages
+                            case 5:
+                                clientObject.receiptReceived(serverMessage);
+                                break;
+
+                            // Server didn't handle one of our frames as we're sending too fast
+                            case 6:
+                                clientObject.throttled(serverMessage);
+                                break;
+
+                            // Heartbeat from the server, answer it so the server knows we're still here
+                            case 3:
+                                clientObject.heartbeatReceived();
                                 break;
 
                             // Login Request Accepted/Rejected
                             case 11:
-                                clientObject.loginReceived(serverMessage.getMessage());
+                                clientObject.loginReceived(serverMessage.getMessage(), serverMessage.getCompression(),
+                                        serverMessage.getSessionToken());
                                 break;
-                            // Refresh Users
+
+                            // Session resumed/rejected after reconnecting
+                            case 13:
+                                clientObject.resumeReceived(serverMessage.getMessage(), serverMessage.getCompression());
+                                break;
+
+                            // Refresh Users (full list) or users joined/left
                             case 20:
-                                clientObject.updateUsers(serverMessage.getUsers());
+                            case 21:
+                                clientObject.updateUsers(serverMessage);
+                                break;
+
+                            // Post to a room we're a member of
+                            case 33:
+                                clientObject.roomMessageReceived(serverMessage);
+                                break;
+
+                            // File offered, accepted, chunk or cancelled by another user
+                            case 50:
+                            case 51:
+                            case 52:
+                            case 53:
+                                clientObject.fileTransferReceived(serverMessage);
+                                break;
+
+                            // Joined (or created) a room
+                            case 34:
+                                clientObject.roomJoined(serverMessage);
+                                break;
+
+                            // Room request failed
+                            case 35:
+                                GUI.showErrorDialog(serverMessage.getMessage());
                                 break;
                         }
                     }
                 } catch (IOException e) {
-                    GUI.showErrorDialog("Error reading message from server. Please restart your app");
-                } catch (ClassNotFoundException e) {
-                    GUI.showErrorDialog("Message class is missing, please check installation");
+                    if (serverSocket.isClosed()){
+                        // We closed the socket ourselves, we're disconnecting
+                        return;
+                    }
+                    // Connection dropped, reconnect (the client starts a new listener for the new connection)
+                    try {
+                        serverSocket.close();
+                    } catch (IOException ex) {
+                        // Already closed
+                    }
+                    clientObject.connectionLost();
+                    return;
                 }
             }
         } catch (IOException e) {
@@ -0,0 +1,162 @@
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * How the Client reaches the server, chosen with the chat.client.transport setting:
+ * - ssh: through an SSH tunnel. The client logs in to an SSH server and forwards a local port to the chat server, which
+ *   is reached from the SSH server's side (so it can be "localhost" there). Everything is encrypted by SSH (default)
+ * - tls: straight to the server, encrypted with TLS (the server must be started with chat.server.transport=tls). No
+ *   SSH account is needed, and reconnecting resumes the TLS session rather than doing a full handshake (see
+ *   TlsTransport)
+ * - plain: straight to the server over unencrypted TCP, only for servers on the same machine or a trusted network
+ *
+ * Settings (Java system properties):
+ * - chat.client.transport: ssh, tls or plain (default ssh)
+ * - chat.client.host: address of the chat server, as seen from the SSH server when using ssh (default localhost)
+ * - chat.client.port: port of the chat server (default 34752)
+ * - chat.ssh.host: SSH server the tunnel goes through (default linux3.bath.ac.uk)
+ * - chat.ssh.port: port of the SSH server (default 22)
+ * - chat.ssh.user: user to log in to the SSH server as (default rhdd20)
+ * - chat.ssh.identity: private key used to log in to the SSH server (default Data/id_rsa)
+ * - chat.ssh.knownHosts: known hosts file used to check the SSH server's key (default Data/known_hosts)
+ * - chat.ssh.localPort: local port forwarded to the chat server, the next free port is used if it's taken
+ *   (default 14002)
+ */
+public class ClientTransport {
+    /**
+     * The ways the client can reach the server
+     */
+    public enum Type {
+        SSH,
+        TLS,
+        PLAIN
+    }
+
+    private final Type type;
+    private final String host;
+    private final int port;
+
+    // SSH server the tunnel goes through, and the local end of the tunnel
+    private final String sshHost;
+    private final int sshPort;
+    private final String sshUser;
+    private final String sshIdentity;
+    private final String sshKnownHosts;
+    private int localPort;
+    private Session session = null;
+
+    // Kept for as long as the client runs, so reconnecting resumes the TLS session
+    private TlsTransport tls = null;
+
+    /**
+     * Constructor to create a ClientTransport
+     * @param type  how to reach the server
+     * @param host  address of the chat server (as seen from the SSH server when using ssh)
+     * @param port  port of the chat server
+     */
+    public ClientTransport(Type type, String host, int port){
+        this.type = type;
+        this.host = host;
+        this.port = port;
+        this.sshHost = System.getProperty("chat.ssh.host", "linux3.bath.ac.uk");
+        this.sshPort = Integer.getInteger("chat.ssh.port", 22);
+        this.sshUser = System.getProperty("chat.ssh.user", "rhdd20");
+        this.sshIdentity = System.getProperty("chat.ssh.identity", System.getProperty("user.dir") + "/Data/id_rsa");
+        this.sshKnownHosts = System.getProperty("chat.ssh.knownHosts",
+                System.getProperty("user.dir") + "/Data/known_hosts");
+        this.localPort = Integer.getInteger("chat.ssh.localPort", 14002);
+    }
+
+    /**
+     * Create a ClientTransport using the settings from the system properties
+     * @return  client transport
+     */
+    public static ClientTransport fromSystemProperties(){
+        return new ClientTransport(Type.valueOf(System.getProperty("chat.client.transport", "ssh").toUpperCase()),
+                System.getProperty("chat.client.host", "localhost"), Integer.getInteger("chat.client.port", 34752));
+    }
+
+    /**
+     * Get ready to connect: opens the SSH tunnel (again, if it has dropped) when using ssh, or reads the trust store
+     * when using tls. Does nothing if it's already open
+     * @throws JSchException    if the SSH server can't be reached or refuses us
+     * @throws IOException  if the TLS trust store can't be read
+     */
+    public synchronized void open() throws JSchException, IOException {
+        if (type == Type.SSH && (session == null || !session.isConnected())){
+            openTunnel();
+        }
+        else if (type == Type.TLS && tls == null){
+            tls = TlsTransport.forClient();
+        }
+    }
+
+    /**
+     * Open a new connection to the server, opening the transport first if needed
+     * @return  socket connected to the server (through the tunnel when using ssh)
+     * @throws IOException  if the server can't be reached
+     * @throws JSchException    if the SSH server can't be reached
+     */
+    public synchronized Socket connect() throws IOException, JSchException {
+        open();
+        switch (type){
+            case SSH:
+                return new Socket("localhost", localPort);
+            case TLS:
+                return tls.connect(host, port);
+            default:
+                return new Socket(host, port);
+        }
+    }
+
+    /**
+     * Close the SSH tunnel, if there is one. Connections already made should be closed first
+     */
+    public synchronized void close(){
+        if (session != null){
+            try {
+                session.delPortForwardingL(localPort);
+            } catch (JSchException e) {
+                // Forwarding already deleted, don't need to do anything
+            }
+            session.disconnect();
+            session = null;
+        }
+    }
+
+    /**
+     * Returns how the client reaches the server
+     * @return  transport type
+     */
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * Connect to the SSH server and forward a local port to the chat server
+     * @throws JSchException    if the SSH server can't be reached
+     */
+    private void openTunnel() throws JSchException {
+        // Use JSch to connect to the SSH server, logging in with our private key
+        JSch sshManager = new JSch();
+        sshManager.addIdentity(sshIdentity);
+        sshManager.setKnownHosts(sshKnownHosts);
+        session = sshManager.getSession(sshUser, sshHost, sshPort);
+        session.connect();
+
+        // Set up port forwarding so any data we send to localhost port is redirected to the chat server
+        boolean connected = false;
+        while (!connected) {
+            try {
+                session.setPortForwardingL(localPort, host, port);
+                connected = true;
+            } catch (JSchException e) {
+                // If localhost port is in use try next port
+                localPort++;
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects this server to the other nodes of a cluster, so users logged in to different nodes can see and message
+ * each other. Each node serves its own clients on its own port, and:
+ * - User directory: every user id includes the id of the node that handed it out (see UserRegistry), so the directory
+ *   is sharded by user id and the node a user is logged in to is worked out from their id without any lookup
+ * - Presence: each node tells every other node when its users log in or leave (code 41), and the other nodes add them
+ *   to the lists of online users sent to their own clients (see PresenceBroadcaster)
+ * - Routing: a direct message for a user on another node is forwarded over the link to that node, which sends it to
+ *   the user (or keeps it in its mailbox if they've gone offline). Acknowledgements from the recipient go back to the
+ *   sender's node the same way
+ *
+ * Each node opens one persistent link (NodeLink) to every other node for everything it sends, and accepts one from
+ * every other node for everything it receives. When a link is lost the other node's users are removed from the lists
+ * until it reconnects, and messages for them are kept in this node's mailbox.
+ *
+ * Rooms and the mailbox aren't shared between nodes, so a room only has members from the node it was created on, and
+ * a message kept for an offline user is delivered when they next log in to the node that kept it.
+ *
+ * To run a cluster on one machine, start each node with its own chat.server.port, chat.server.metricsPort,
+ * chat.server.mailboxDir, chat.cluster.nodeId and chat.cluster.port, and list the other nodes in chat.cluster.peers
+ * (see ServerConfig).
+ */
+public class Cluster {
+    private final Server server;
+    private final ServerConfig config;
+    private final MessageCodec codec;
+    private final int nodeID;
+
+    // Link used to send to each other node, by node id
+    private final HashMap<Integer, NodeLink> links = new HashMap<>();
+
+    // Connection each other node is currently sending to us on, by node id
+    private final ConcurrentHashMap<Integer, Socket> inboundLinks = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor to create a Cluster, nothing is opened until start() is called
+     * @param server    server this node is running
+     * @param config    server settings containing the node id and the other nodes
+     */
+    public Cluster(Server server, ServerConfig config){
+        this.server = server;
+        this.config = config;
+        this.codec = config.getCodec();
+        this.nodeID = config.getClusterNodeID();
+        for (Map.Entry<Integer, InetSocketAddress> peer: config.getClusterPeers().entrySet()){
+            if (peer.getKey() != nodeID){
+                links.put(peer.getKey(), new NodeLink(peer.getKey(), peer.getValue(), this,
+                        config.getClusterLinkQueueSize()));
+            }
+        }
+    }
+
+    /**
+     * Open the cluster port for the other nodes to connect to, and start connecting to them
+     * @throws IOException  if the cluster port can't be opened
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(config.getClusterAddress(), config.getClusterPort()));
+
+        Thread acceptor = new Thread(() -> acceptLinks(listener), "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (NodeLink link: links.values()){
+            link.start();
+        }
+        System.out.println("Cluster node " + nodeID + " listening for " + links.size() + " other nodes on "
+                + config.getClusterAddress() + ":" + config.getClusterPort());
+    }
+
+    /**
+     * Forward a direct message (or a message received acknowledgement or file transfer frame) to the node its recipient
+     * is logged in to. If the link is lost before a direct message is written it's kept in this node's mailbox
+     * instead, so a message the sender has been told was routed isn't lost
+     * @param message   message to forward, a direct message should have the names of its sender and recipient
+     * @return  true if the message was queued to the node, false if the node can't be reached
+     */
+    public boolean forward(Message message){
+        NodeLink link = links.get(UserRegistry.nodeOf(message.getToUser().getUniqueID()));
+        if (link == null || !link.isConnected()){
+            return false;
+        }
+        byte[] frame = encode(message);
+        if (frame != null && link.send(frame, message.getSpecialCode() == 0 ? message : null)){
+            server.getStats().clusterForwarded();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tell every other node a user has logged in to this node
+     * @param user  user that logged in
+     */
+    public void userJoined(User user){
+        ArrayList<User> joined = new ArrayList<>(1);
+        joined.add(user);
+        broadcast(new Message(joined, new ArrayList<>()));
+    }
+
+    /**
+     * Tell every other node a user has left this node
+     * @param user  user that left
+     */
+    public void userLeft(User user){
+        ArrayList<User> left = new ArrayList<>(1);
+        left.add(user);
+        broadcast(new Message(new ArrayList<>(), left));
+    }
+
+    /**
+     * Create the frames sent first whenever a link to another node opens: a hello with this node's id, then the full
+     * list of users logged in to this node
+     * @return  frames to send
+     */
+    public ArrayList<byte[]> createHelloFrames(){
+        ArrayList<User> localUsers = new ArrayList<>();
+        for (SocketInfo socketInfo: server.getRegistry().getSockets()){
+            localUsers.add(socketInfo.getUser());
+        }
+        ArrayList<byte[]> frames = new ArrayList<>(2);
+        frames.add(encode(new Message(40, Integer.toString(nodeID))));
+        frames.add(encode(new Message(localUsers, new ArrayList<>())));
+        frames.removeIf(frame -> frame == null);
+        return frames;
+    }
+
+    /**
+     * Keep direct messages that were queued to another node but not written before its link was lost in this node's
+     * mailbox, like messages sent while the link is down
+     * @param directMessages    messages in the order they were sent
+     * @return  number of messages that couldn't be kept and were dropped
+     */
+    public int keepInMailbox(ArrayList<Message> directMessages){
+        int dropped = 0;
+        for (Message message: directMessages){
+            if (!server.keepInMailbox(message)){
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the number of other nodes this node is currently connected to
+     * @return  connected links
+     */
+    public int getConnectedLinks(){
+        int connected = 0;
+        for (NodeLink link: links.values()){
+            if (link.isConnected()){
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Queue a message to every other node that can be reached
+     * @param message   message to send
+     */
+    private void broadcast(Message message){
+        byte[] frame = encode(message);
+        if (frame == null){
+            return;
+        }
+        for (NodeLink link: links.values()){
+            // Nothing is queued to a node that can't be reached, it's sent every user when it reconnects
+            link.send(frame);
+        }
+    }
+
+    /**
+     * Accept links from the other nodes, giving each one a thread of its own to read from.
+     * Runs on its own thread for as long as the server is running
+     * @param listener  socket listening on the cluster port
+     */
+    private void acceptLinks(ServerSocket listener){
+        while (true){
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readLink(socket), "cluster-link-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to accept link from cluster node");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read everything another node sends us over its link, until the link is closed
+     * @param socket    socket the other node connected on
+     */
+    private void readLink(Socket socket){
+        PresenceBroadcaster presence = server.getPresence();
+        int peerID = -1;
+        try (socket) {
+            FrameReader reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), codec);
+
+            // The link starts with a hello from one of the nodes we've been told about, then its list of users
+            Message hello = reader.read();
+            if (hello.getSpecialCode() != 40 || !links.containsKey(Integer.parseInt(hello.getMessage()))){
+                System.out.println("ERROR: Rejected link from unknown cluster node " + socket.getInetAddress());
+                return;
+            }
+            peerID = Integer.parseInt(hello.getMessage());
+            Thread.currentThread().setName("cluster-link-in-" + peerID);
+            Message users = reader.read();
+            if (users.getSpecialCode() != 41){
+                return;
+            }
+
+            // A reconnecting node replaces its old link, which may not have noticed it was closed yet
+            Socket previous = inboundLinks.put(peerID, socket);
+            if (previous != null){
+                previous.close();
+            }
+            presence.replaceRemoteUsers(peerID, usersOf(peerID, users.getUsers()));
+
+            while (true){
+                Message message = reader.read();
+                switch (message.getSpecialCode()){
+                    // Direct message for one of our users. The link carries messages for many users, so it never waits
+                    // for one whose queue is full: the message is kept in the mailbox for them instead
+                    case 0:
+                        server.getStats().clusterReceived();
+                        server.routeDirectMessage(message, false);
+                        break;
+
+                    // One of our users' direct messages was received on the other node
+                    case 5:
+                        server.routeReceipt(message, false);
+                        break;
+
+                    // File transfer frame for one of our users
+                    case 50:
+                    case 51:
+                    case 52:
+                    case 53:
+                        server.routeTransfer(message, false);
+                        break;
+
+                    // Users joined or left the other node
+                    case 41:
+                        presence.remoteChanged(usersOf(peerID, message.getUsers()),
+                                usersOf(peerID, message.getLeftUsers()));
+                        break;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Link closed, or the other node sent something we don't understand
+        } finally {
+            // Unless the node has already reconnected, its users can't be reached any more
+            if (peerID >= 0 && inboundLinks.remove(peerID, socket)){
+                System.out.println("ERROR: Lost link from cluster node " + peerID + ", removing its users");
+                presence.replaceRemoteUsers(peerID, new ArrayList<>());
+
+                // Our link to the node has probably failed too, close it now so messages go to the mailbox
+                links.get(peerID).disconnect();
+            }
+        }
+    }
+
+    /**
+     * Keep only the users that belong to a node, so a node can't add or remove another node's users
+     * @param peerID    id of the node
+     * @param users users sent by the node
+     * @return  the node's own users
+     */
+    private static ArrayList<User> usersOf(int peerID, ArrayList<User> users){
+        ArrayList<User> own = new ArrayList<>(users.size());
+        for (User user: users){
+            if (UserRegistry.nodeOf(user.getUniqueID()) == peerID){
+                own.add(user);
+            }
+        }
+        return own;
+    }
+
+    /**
+     * Encode a message into a frame
+     * @param message   message to encode
+     * @return  encoded frame, or null if it couldn't be encoded
+     */
+    private byte[] encode(Message message){
+        try {
+            return MessageFraming.encode(codec, message);
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to encode message for cluster node");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Listens for new clients and hands each accepted connection to the server's handlers.
+ * The listening socket is opened once and stays open for the life of the server, so clients are never refused between
+ * accepts. Several acceptor threads can be used to absorb a burst of logins quickly:
+ * - On Linux each acceptor binds its own listening socket to the port with SO_REUSEPORT, so the kernel spreads new
+ *   connections across them
+ * - Elsewhere (or if SO_REUSEPORT is turned off) the acceptors share a single listening socket
+ *
+ * The listen backlog (how many connections the kernel queues before they're accepted) is configurable.
+ */
+public class ConnectionListener {
+    // Time waited after a failed accept before trying again, doubled after each failure in a row up to the maximum.
+    // Accept usually fails because the process has run out of file descriptors, which retrying at once won't fix
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final ServerConfig config;
+    private final ServerStats stats;
+    private final Consumer<SocketChannel> handoff;
+
+    /**
+     * Constructor to create a ConnectionListener
+     * @param config    server settings containing the port, backlog, number of acceptors and SO_REUSEPORT setting
+     * @param stats server stats to record accepts in
+     * @param handoff   called with each accepted connection, must not block for long
+     */
+    public ConnectionListener(ServerConfig config, ServerStats stats, Consumer<SocketChannel> handoff){
+        this.config = config;
+        this.stats = stats;
+        this.handoff = handoff;
+    }
+
+    /**
+     * Open the listening sockets and start accepting clients. The calling thread becomes the first acceptor, so this
+     * method never returns unless the listening socket can't be opened
+     * @throws IOException  if the listening socket can't be opened
+     */
+    public void run() throws IOException {
+        int acceptors = config.getAcceptors();
+        boolean reusePort = acceptors > 1 && config.isReusePort() && supportsReusePort();
+
+        // Open the listening sockets, one per acceptor if SO_REUSEPORT is used, otherwise one shared by all acceptors
+        ServerSocketChannel[] serverChannels = new ServerSocketChannel[acceptors];
+        serverChannels[0] = open(reusePort);
+        for (int i = 1; i < acceptors; i++){
+            serverChannels[i] = reusePort ? open(true) : serverChannels[0];
+        }
+
+        System.out.println("Server is running on port, " + config.getPort() + " (backlog " + config.getBacklog()
+                + ", " + acceptors + " acceptors" + (reusePort ? " using SO_REUSEPORT" : "") + ")");
+
+        // Start the extra acceptors on their own threads, then accept on this thread
+        for (int i = 1; i < acceptors; i++){
+            ServerSocketChannel serverChannel = serverChannels[i];
+            new Thread(() -> accept(serverChannel), "acceptor-" + i).start();
+        }
+        accept(serverChannels[0]);
+    }
+
+    /**
+     * Open a listening socket bound to the server's port
+     * @param reusePort true to set SO_REUSEPORT so other sockets can bind to the same port
+     * @return  bound listening socket
+     * @throws IOException  if the socket can't be opened or bound
+     */
+    private ServerSocketChannel open(boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort){
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverChannel.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+        return serverChannel;
+    }
+
+    /**
+     * Repeatedly accept clients on a listening socket and hand them off, backing off for a while after a failed accept
+     * rather than spinning on it
+     * @param serverChannel listening socket to accept from
+     */
+    private void accept(ServerSocketChannel serverChannel){
+        long backoffMillis = MIN_ACCEPT_BACKOFF_MILLIS;
+        while (serverChannel.isOpen()){
+            try {
+                // Blocking call, waits until a client connects
+                SocketChannel clientChannel = serverChannel.accept();
+                long accepted = System.nanoTime();
+                System.out.println("Receiving new connection request");
+
+                handoff.accept(clientChannel);
+                stats.connectionAccepted(System.nanoTime() - accepted);
+                backoffMillis = MIN_ACCEPT_BACKOFF_MILLIS;
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to accept new client, retrying in " + backoffMillis + "ms");
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, backoffMillis * 2);
+            }
+        }
+    }
+
+    /**
+     * Returns whether this platform lets several sockets bind to the same port with SO_REUSEPORT
+     * @return  true if SO_REUSEPORT is supported
+     */
+    private static boolean supportsReusePort(){
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds and closes connections to clients that have gone away without disconnecting, such as a laptop that went to
+ * sleep behind the SSH tunnel. Nothing is ever read from those connections again, so without this their ServerResponse
+ * would wait forever and the user would stay in everyone's list of online users.
+ *
+ * Every connection has one timer on a shared TimingWheel, rather than a scheduled task of its own, so timers stay
+ * cheap with 100k connections. Receiving a frame doesn't touch the timer, it only records the time in the connection's
+ * ConnectionStats. When the timer fires it looks at how long the connection has been quiet and:
+ * - Sends a heartbeat (code 3) once it has been quiet for the heartbeat interval, which the client answers with a
+ *   heartbeat of its own, so a connection is only quiet if the client has stopped responding
+ * - Closes the connection once it has been quiet for the idle timeout ("idle"), or if the client hasn't logged in
+ *   within the login timeout ("login")
+ * - Otherwise sets the timer again for the next time one of these is due
+ *
+ * A closed connection leaves the same way as any other lost connection: the ServerResponse notices it's closed and
+ * removes the user, which tells every other client the user has left. ServerStats counts the connections closed for
+ * each reason.
+ */
+public class ConnectionReaper {
+    private final ServerStats stats;
+    private final long heartbeatNanos;
+    private final long idleTimeoutNanos;
+    private final long loginTimeoutNanos;
+    private final byte[] heartbeatFrame;
+    private final TimingWheel wheel;
+
+    /**
+     * A connection being watched, checked each time its timer fires
+     */
+    private final class Watch implements Runnable {
+        private final ClientConnection connection;
+        private final ServerResponse response;
+        private final long openedNanos = System.nanoTime();
+
+        // Time of the last frame received when the last heartbeat was sent, so only one is sent each quiet spell
+        private long heartbeatSentFor = -1;
+
+        private Watch(ClientConnection connection, ServerResponse response){
+            this.connection = connection;
+            this.response = response;
+        }
+
+        @Override
+        public void run() {
+            if (!connection.isOpen()){
+                // Connection has already gone, stop watching it
+                return;
+            }
+            long now = System.nanoTime();
+            long lastReceived = connection.getStats().getLastReceivedNanos();
+            boolean loggedIn = response.isLoggedIn();
+
+            if (!loggedIn && loginTimeoutNanos > 0 && now - openedNanos >= loginTimeoutNanos){
+                reap(connection, "login");
+                return;
+            }
+            if (idleTimeoutNanos > 0 && now - lastReceived >= idleTimeoutNanos){
+                reap(connection, "idle");
+                return;
+            }
+            if (heartbeatNanos > 0 && now - lastReceived >= heartbeatNanos && heartbeatSentFor != lastReceived){
+                // Never waits, if the client's queue is full it's already being sent something
+                connection.trySendFrame(heartbeatFrame);
+                heartbeatSentFor = lastReceived;
+            }
+
+            // Check again when the next timeout or heartbeat is due
+            long next = Long.MAX_VALUE;
+            if (idleTimeoutNanos > 0){
+                next = Math.min(next, lastReceived + idleTimeoutNanos);
+            }
+            if (heartbeatNanos > 0 && heartbeatSentFor != lastReceived){
+                next = Math.min(next, lastReceived + heartbeatNanos);
+            }
+            if (!loggedIn && loginTimeoutNanos > 0){
+                next = Math.min(next, openedNanos + loginTimeoutNanos);
+            }
+            if (next == Long.MAX_VALUE){
+                if (heartbeatNanos == 0){
+                    // Only the login timeout is on and the client has logged in, nothing left to check
+                    return;
+                }
+                // Only the heartbeat is on and it has been sent, check again after another interval
+                next = now + heartbeatNanos;
+            }
+            wheel.schedule(this, TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - now)) + 1);
+        }
+    }
+
+    /**
+     * Constructor to create a ConnectionReaper
+     * @param config    server settings containing the heartbeat interval and timeouts
+     * @param stats server stats to record reaped connections in
+     * @param wheel the server's timer wheel, which the connections are checked on
+     */
+    public ConnectionReaper(ServerConfig config, ServerStats stats, TimingWheel wheel){
+        this.stats = stats;
+        this.wheel = wheel;
+
+        // Every heartbeat is the same, so it's only encoded once
+        byte[] frame = null;
+        try {
+            frame = MessageFraming.encode(config.getCodec(), new Message(3, null));
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to encode heartbeat, heartbeats won't be sent");
+        }
+        this.heartbeatFrame = frame;
+        this.heartbeatNanos = frame == null ? 0 : TimeUnit.SECONDS.toNanos(config.getHeartbeatSeconds());
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+        this.loginTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getLoginTimeoutSeconds());
+    }
+
+    /**
+     * Returns whether any timeout or heartbeat is turned on
+     * @return  true if connections need watching
+     */
+    public boolean isEnabled(){
+        return heartbeatNanos > 0 || idleTimeoutNanos > 0 || loginTimeoutNanos > 0;
+    }
+
+    /**
+     * Start watching a newly opened connection, until it's closed
+     * @param connection    connection to the client
+     * @param response  object responding to the client, used to see whether they've logged in
+     */
+    public void watch(ClientConnection connection, ServerResponse response){
+        if (!isEnabled()){
+            return;
+        }
+        wheel.schedule(new Watch(connection, response), firstCheckMillis());
+    }
+
+    /**
+     * Returns the time until a new connection first needs checking
+     * @return  delay in milliseconds
+     */
+    private long firstCheckMillis(){
+        long first = Long.MAX_VALUE;
+        for (long nanos: new long[]{heartbeatNanos, idleTimeoutNanos, loginTimeoutNanos}){
+            if (nanos > 0){
+                first = Math.min(first, nanos);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(first);
+    }
+
+    /**
+     * Close a connection that has stopped responding or never logged in
+     * @param connection    connection to close
+     * @param reason    why it's being closed ("idle" or "login")
+     */
+    private void reap(ClientConnection connection, String reason){
+        stats.connectionReaped(reason);
+        System.out.println("Closing connection to " + connection.getSocket().getRemoteSocketAddress() + " ("
+                + reason + " timeout)");
+        connection.close();
+    }
+}
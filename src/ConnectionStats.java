@@ -0,0 +1,103 @@
+/**
+ * Counts the frames and bytes sent to and received from a single client connection, and adds them to the server's
+ * totals in ServerStats.
+ * Each direction is only ever counted by one thread (the connection's reader for received frames, its writer for sent
+ * frames), so the counts are plain volatile fields rather than atomics, and counting never waits for another thread.
+ */
+public class ConnectionStats {
+    private final ServerStats serverStats;
+
+    // Only written by the connection's reader thread
+    private volatile long framesReceived = 0;
+    private volatile long bytesReceived = 0;
+
+    // Time the last frame was read (from System.nanoTime()), used by the ConnectionReaper to find quiet connections
+    private volatile long lastReceivedNanos = System.nanoTime();
+
+    // Only written by the connection's writer thread
+    private volatile long framesSent = 0;
+    private volatile long bytesSent = 0;
+
+    /**
+     * Constructor to create a ConnectionStats object for a new connection
+     * @param serverStats   server stats the connection's counts are added to
+     */
+    public ConnectionStats(ServerStats serverStats){
+        this.serverStats = serverStats;
+    }
+
+    /**
+     * Record frames read from the client. Must only be called from the connection's reader thread
+     * @param frames    number of frames read
+     * @param bytes number of bytes read
+     */
+    public void received(int frames, long bytes){
+        framesReceived += frames;
+        bytesReceived += bytes;
+        if (frames > 0){
+            lastReceivedNanos = System.nanoTime();
+        }
+        serverStats.received(frames, bytes);
+    }
+
+    /**
+     * Record frames written to the client. Must only be called from the connection's writer thread
+     * @param frames    number of frames written
+     * @param bytes number of bytes written
+     */
+    public void sent(int frames, long bytes){
+        framesSent += frames;
+        bytesSent += bytes;
+        serverStats.sent(frames, bytes);
+    }
+
+    /**
+     * Record frames compressed before being written to the client. Must only be called from the connection's writer
+     * thread
+     * @param frames    number of frames compressed
+     * @param bytesSaved    bytes saved by compressing them
+     */
+    public void compressed(int frames, long bytesSaved){
+        serverStats.compressed(frames, bytesSaved);
+    }
+
+    /**
+     * Returns the number of frames read from the client
+     * @return  frames received
+     */
+    public long getFramesReceived(){
+        return framesReceived;
+    }
+
+    /**
+     * Returns the number of bytes read from the client
+     * @return  bytes received
+     */
+    public long getBytesReceived(){
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the time the last frame was read from the client, or the connection was opened if nothing has been read
+     * @return  time from System.nanoTime()
+     */
+    public long getLastReceivedNanos(){
+        return lastReceivedNanos;
+    }
+
+    /**
+     * Returns the number of frames written to the client
+     * @return  frames sent
+     */
+    public long getFramesSent(){
+        return framesSent;
+    }
+
+    /**
+     * Returns the number of bytes written to the client
+     * @return  bytes sent
+     */
+    public long getBytesSent(){
+        return bytesSent;
+    }
+}
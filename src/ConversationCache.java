@@ -0,0 +1,129 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the text of recently viewed conversations in memory, so switching between users in the chat window doesn't
+ * have to read the conversation log again. Only messages added to the log since a conversation was cached need
+ * reading when it's shown again.
+ *
+ * The least recently viewed conversations are evicted once there are too many, or their text takes up more than the
+ * memory budget. The conversation on screen is never evicted.
+ *
+ * Only used from the Swing event dispatch thread, so it isn't thread safe.
+ *
+ * Settings (Java system properties):
+ * - chat.client.cacheBytes maximum memory used by cached text (default 16MB)
+ * - chat.client.cacheConversations maximum number of conversations cached (default 32)
+ */
+public class ConversationCache {
+    private final long maxBytes;
+    private final int maxConversations;
+
+    // Cached conversations by peer id, least recently viewed first
+    private final LinkedHashMap<Integer, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    /**
+     * Constructor to create a ConversationCache using the budget set in the system properties
+     */
+    public ConversationCache(){
+        this(Long.getLong("chat.client.cacheBytes", 16L * 1024 * 1024),
+                Integer.getInteger("chat.client.cacheConversations", 32));
+    }
+
+    /**
+     * Constructor to create a ConversationCache
+     * @param maxBytes  maximum memory used by cached text
+     * @param maxConversations  maximum number of conversations cached
+     */
+    public ConversationCache(long maxBytes, int maxConversations){
+        this.maxBytes = maxBytes;
+        this.maxConversations = Math.max(1, maxConversations);
+    }
+
+    /**
+     * Returns a cached conversation, marking it as the most recently viewed
+     * @param peerID    id of the user the conversation is with
+     * @return  cached conversation, or null if it isn't cached
+     */
+    public Conversation get(int peerID){
+        return conversations.get(peerID);
+    }
+
+    /**
+     * Returns a cached conversation, adding an empty one (with no messages loaded yet) if it isn't cached
+     * @param peerID    id of the user the conversation is with
+     * @return  cached conversation
+     */
+    public Conversation getOrCreate(int peerID){
+        return conversations.computeIfAbsent(peerID, id -> new Conversation());
+    }
+
+    /**
+     * Add messages read from the log to the end of a cached conversation, then evict conversations if the cache is
+     * over budget
+     * @param conversation  conversation the messages belong to
+     * @param text  display text of the messages
+     * @param count number of messages
+     * @param displayedPeerID   id of the user whose conversation is on screen, which won't be evicted
+     */
+    public void append(Conversation conversation, CharSequence text, int count, int displayedPeerID){
+        conversation.text.append(text);
+        conversation.count += count;
+        totalBytes += 2L * text.length();
+        evict(displayedPeerID);
+    }
+
+    /**
+     * Evict the least recently viewed conversations until the cache is within its budget
+     * @param displayedPeerID   id of the user whose conversation is on screen, which won't be evicted
+     */
+    private void evict(int displayedPeerID){
+        Iterator<Map.Entry<Integer, Conversation>> eldest = conversations.entrySet().iterator();
+        while ((totalBytes > maxBytes || conversations.size() > maxConversations) && eldest.hasNext()){
+            Map.Entry<Integer, Conversation> entry = eldest.next();
+            // Conversations still being read are kept, so the read has somewhere to go
+            if (entry.getKey() != displayedPeerID && !entry.getValue().loading){
+                totalBytes -= 2L * entry.getValue().text.length();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the memory used by cached text
+     * @return  estimated size in bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * The text of one cached conversation and how many of its messages have been read from the log
+     */
+    public static class Conversation {
+        private final StringBuilder text = new StringBuilder();
+        private int count = 0;
+
+        // Set while messages are being read from the log, and if more arrive during the read
+        boolean loading = false;
+        boolean reloadNeeded = false;
+
+        /**
+         * Returns the display text of every message read so far
+         * @return  conversation text, one message per line
+         */
+        public String getText() {
+            return text.toString();
+        }
+
+        /**
+         * Returns how many messages have been read from the log
+         * @return  number of messages
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the client's message history in a log made of segment files that are only ever added to, replacing the
+ * old text file per conversation. Every message from every conversation is added to the end of the newest segment, so
+ * adding a message takes the same time however long the history is. Once a segment reaches its maximum size a new
+ * one is started.
+ *
+ * Each record is written as:
+ * [length of the rest: int][timestamp: long][received: 1 byte][peer id: varint][peer name: string][text: string]
+ * using the varints and strings of the BinaryMessageCodec.
+ *
+ * An index of where each conversation's records are in the log is kept in memory, so a range of one conversation can be
+ * read without looking at any other conversation. Records are read through memory-mapped segments. The index is
+ * rebuilt by scanning the segments when the log is opened.
+ *
+ * Several messages can be added with a single write (group commit), and written to the disk with sync(). Only a few
+ * segments are kept open at a time: the one being added to, and the most recently read ones.
+ *
+ * Histories are kept between runs. When the log is opened, segments whose records are all older than the retention
+ * period are deleted, segments with some expired records are compacted (rewritten without them), and the oldest
+ * segments are deleted if the log is still over its size limit.
+ *
+ * Settings (Java system properties):
+ * - chat.client.logSegmentBytes    maximum size of a segment (default 8MB)
+ * - chat.client.logRetentionDays   days to keep messages for, 0 to keep them forever (default 30)
+ * - chat.client.logMaxBytes    maximum size of the whole log (default 256MB)
+ * - chat.client.logOpenSegments    maximum number of segment files kept open (default 8)
+ */
+public class ConversationLog {
+    // Bytes before the record's body: its length
+    private static final int LENGTH_SIZE = 4;
+    // Bytes at the start of the body: timestamp and received flag
+    private static final int FIXED_BODY_SIZE = 9;
+    // Name of the file locked while the log is open, so two clients can't write to the same log
+    private static final String LOCK_FILE = "log.lock";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final long maxBytes;
+    private final int maxOpenSegments;
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    // Segments by base offset, the last one is the one being added to
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private LogSegment activeSegment;
+
+    // Segments with an open file, least recently used first, and segments written to since the last sync
+    private final LinkedHashMap<Long, LogSegment> openSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<LogSegment> unsyncedSegments = new LinkedHashSet<>();
+
+    // Log offsets of each conversation's records in the order they were added, by peer id
+    private final HashMap<Integer, OffsetIndex> index = new HashMap<>();
+
+    /**
+     * Constructor to open (or create) a ConversationLog. Expired messages are removed and the index is rebuilt
+     * @param directory directory to keep the log in
+     * @throws IOException  if the log can't be opened, or is already open in another client
+     */
+    public ConversationLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Long.getLong("chat.client.logSegmentBytes", 8L * 1024 * 1024);
+        this.retentionMillis = TimeUnit.DAYS.toMillis(Long.getLong("chat.client.logRetentionDays", 30));
+        this.maxBytes = Long.getLong("chat.client.logMaxBytes", 256L * 1024 * 1024);
+        this.maxOpenSegments = Math.max(1, Integer.getInteger("chat.client.logOpenSegments", 8));
+
+        Files.createDirectories(directory);
+
+        // Lock the log so another client on this computer can't use it at the same time
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null){
+            lockChannel.close();
+            throw new IOException("Conversation log " + directory + " is already in use");
+        }
+        lock = acquired;
+
+        // Open every segment in log order
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LogSegment.EXTENSION)) {
+            for (Path file: files){
+                String name = file.getFileName().toString();
+                try {
+                    long baseOffset = Long.parseLong(name.substring(0, name.length() - LogSegment.EXTENSION.length()));
+                    LogSegment segment = new LogSegment(directory, baseOffset);
+                    segment.close();
+                    segments.put(baseOffset, segment);
+                } catch (NumberFormatException e) {
+                    System.out.println("ERROR: Ignoring unknown file in conversation log " + file);
+                }
+            }
+        }
+
+        applyRetention();
+        if (segments.isEmpty()){
+            segments.put(0L, new LogSegment(directory, 0));
+        }
+        activeSegment = segments.lastEntry().getValue();
+        rebuildIndex();
+        use(activeSegment);
+    }
+
+    /**
+     * Returns the directory a user's conversation log is kept in
+     * @param username  name of the user
+     * @return  directory under Data/history named after the user
+     */
+    public static Path directoryFor(String username){
+        String safeName = username == null || username.isEmpty() ? "_" : username.replaceAll("[^A-Za-z0-9_-]", "_");
+        return Path.of(System.getProperty("user.dir"), "Data", "history", safeName);
+    }
+
+    /**
+     * Add a message to the end of the log
+     * @param record    message to add
+     * @throws IOException  if the message can't be written
+     */
+    public void append(ConversationRecord record) throws IOException {
+        append(List.of(record));
+    }
+
+    /**
+     * Add several messages to the end of the log in order, writing as many as fit in the current segment with a single
+     * write. The messages aren't written to the disk until sync() is called
+     * @param records   messages to add, oldest first
+     * @throws IOException  if the messages can't be written
+     */
+    public synchronized void append(List<ConversationRecord> records) throws IOException {
+        ByteBuffer[] encoded = new ByteBuffer[records.size()];
+        for (int i = 0; i < encoded.length; i++){
+            encoded[i] = encode(records.get(i));
+        }
+
+        int next = 0;
+        while (next < encoded.length){
+            // Take as many records as fit in the current segment (a segment always takes at least one record)
+            long segmentSize = activeSegment.getSize();
+            int first = next;
+            int batchBytes = 0;
+            while (next < encoded.length && (segmentSize + batchBytes == 0
+                    || segmentSize + batchBytes + encoded[next].remaining() <= segmentBytes)){
+                batchBytes += encoded[next].remaining();
+                next++;
+            }
+
+            // Start a new segment if the next record would take the current one over its maximum size
+            if (next == first){
+                long baseOffset = activeSegment.getBaseOffset() + activeSegment.getSize();
+                activeSegment = new LogSegment(directory, baseOffset);
+                segments.put(baseOffset, activeSegment);
+                use(activeSegment);
+                continue;
+            }
+
+            // Write the records with a single write, then index them
+            ByteBuffer batch = ByteBuffer.allocate(batchBytes);
+            for (int i = first; i < next; i++){
+                batch.put(encoded[i]);
+            }
+            batch.flip();
+            long position = activeSegment.getBaseOffset() + activeSegment.append(batch);
+            unsyncedSegments.add(activeSegment);
+
+            for (int i = first; i < next; i++){
+                index.computeIfAbsent(records.get(i).getPeerID(), peerID -> new OffsetIndex()).add(position);
+                position += encoded[i].limit();
+            }
+        }
+    }
+
+    /**
+     * Write every message added since the last sync to the disk
+     * @throws IOException  if the messages can't be written
+     */
+    public synchronized void sync() throws IOException {
+        for (LogSegment segment: unsyncedSegments){
+            segment.flush();
+        }
+        unsyncedSegments.clear();
+    }
+
+    /**
+     * Returns the number of messages in a conversation
+     * @param peerID    id of the user the conversation is with
+     * @return  number of messages
+     */
+    public synchronized int count(int peerID){
+        OffsetIndex offsets = index.get(peerID);
+        return offsets == null ? 0 : offsets.size;
+    }
+
+    /**
+     * Read a range of messages from a conversation, oldest first
+     * @param peerID    id of the user the conversation is with
+     * @param from  position in the conversation of the first message to read (0 is the oldest)
+     * @param maxCount  maximum number of messages to read
+     * @return  messages in the range, empty if there are none
+     * @throws IOException  if the messages can't be read
+     */
+    public synchronized List<ConversationRecord> read(int peerID, int from, int maxCount) throws IOException {
+        OffsetIndex offsets = index.get(peerID);
+        List<ConversationRecord> records = new ArrayList<>();
+        if (offsets == null || from >= offsets.size){
+            return records;
+        }
+
+        int to = (int) Math.min(offsets.size, (long) Math.max(from, 0) + maxCount);
+        LogSegment segment = null;
+        ByteBuffer view = null;
+        for (int i = Math.max(from, 0); i < to; i++){
+            long offset = offsets.offsets[i];
+
+            // Records of a conversation are usually close together, so only look up the segment when we leave it
+            if (segment == null || offset < segment.getBaseOffset()
+                    || offset >= segment.getBaseOffset() + segment.getSize()){
+                segment = segments.floorEntry(offset).getValue();
+                use(segment);
+                view = segment.view();
+            }
+            view.position((int) (offset - segment.getBaseOffset()));
+            records.add(decode(view));
+        }
+        return records;
+    }
+
+    /**
+     * Returns every message in a conversation, oldest first
+     * @param peerID    id of the user the conversation is with
+     * @return  every message in the conversation
+     * @throws IOException  if the messages can't be read
+     */
+    public List<ConversationRecord> readAll(int peerID) throws IOException {
+        return read(peerID, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write everything added to the log to the disk, then close it
+     */
+    public synchronized void close(){
+        try {
+            sync();
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to flush conversation log");
+        }
+        for (LogSegment segment: segments.values()){
+            segment.close();
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            // Released when the program exits anyway
+        }
+    }
+
+    /**
+     * Mark a segment as the most recently used, closing the least recently used segments if too many are open. The
+     * segment being added to is never closed
+     * @param segment   segment about to be used
+     */
+    private void use(LogSegment segment){
+        openSegments.put(segment.getBaseOffset(), segment);
+        Iterator<LogSegment> eldest = openSegments.values().iterator();
+        while (openSegments.size() > maxOpenSegments && eldest.hasNext()){
+            LogSegment candidate = eldest.next();
+            if (candidate != activeSegment){
+                // Written data must reach the disk before the file is closed, or sync() would miss it
+                if (unsyncedSegments.remove(candidate)){
+                    try {
+                        candidate.flush();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Failed to flush log segment " + candidate.getPath());
+                    }
+                }
+                candidate.close();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Delete and compact segments holding expired messages, then delete the oldest segments until the log is under its
+     * size limit. The newest segment is never compacted, as the client is about to add to it
+     * @throws IOException  if a segment can't be compacted or deleted
+     */
+    private void applyRetention() throws IOException {
+        if (retentionMillis > 0){
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            for (Long baseOffset: new ArrayList<>(segments.keySet())){
+                if (baseOffset.equals(segments.lastKey())){
+                    break;
+                }
+                compact(segments.get(baseOffset), cutoff);
+            }
+        }
+
+        long totalBytes = 0;
+        for (LogSegment segment: segments.values()){
+            totalBytes += segment.getSize();
+        }
+        while (totalBytes > maxBytes && segments.size() > 1){
+            LogSegment oldest = segments.pollFirstEntry().getValue();
+            totalBytes -= oldest.getSize();
+            delete(oldest);
+        }
+    }
+
+    /**
+     * Rewrite a segment without the messages older than the cutoff, deleting it if none are left. The segment keeps
+     * its base offset, so the segments stay in order
+     * @param segment   segment to compact
+     * @param cutoff    messages before this time (milliseconds since the epoch) are removed
+     * @throws IOException  if the segment can't be rewritten
+     */
+    private void compact(LogSegment segment, long cutoff) throws IOException {
+        ByteBuffer view = segment.view();
+        int validEnd = scanValidEnd(view);
+
+        // Work out which records are kept
+        List<int[]> kept = new ArrayList<>();
+        int keptBytes = 0;
+        int position = 0;
+        while (position < validEnd){
+            int length = LENGTH_SIZE + view.getInt(position);
+            if (view.getLong(position + LENGTH_SIZE) >= cutoff){
+                kept.add(new int[] {position, length});
+                keptBytes += length;
+            }
+            position += length;
+        }
+
+        if (kept.isEmpty()){
+            segments.remove(segment.getBaseOffset());
+            delete(segment);
+        }
+        else if (keptBytes < segment.getSize()){
+            // Write the kept records to a temporary file and swap it in, so a crash part way through loses nothing
+            ByteBuffer compacted = ByteBuffer.allocate(keptBytes);
+            for (int[] record: kept){
+                compacted.put(view.duplicate().position(record[0]).limit(record[0] + record[1]));
+            }
+            compacted.flip();
+
+            Path temporary = directory.resolve(segment.getPath().getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (compacted.hasRemaining()){
+                    out.write(compacted);
+                }
+                out.force(false);
+            }
+            segment.close();
+            Files.move(temporary, segment.getPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LogSegment compactedSegment = new LogSegment(directory, segment.getBaseOffset());
+            compactedSegment.close();
+            segments.put(segment.getBaseOffset(), compactedSegment);
+        }
+    }
+
+    /**
+     * Scan every segment to rebuild the index of each conversation's records. A record only partly written at the
+     * end of the newest segment (e.g. the client was killed while writing it) is removed
+     * @throws IOException  if a segment can't be read
+     */
+    private void rebuildIndex() throws IOException {
+        index.clear();
+        for (LogSegment segment: segments.values()){
+            ByteBuffer view = segment.view();
+            int validEnd = scanValidEnd(view);
+            int position = 0;
+            while (position < validEnd){
+                int peerID = BinaryMessageCodec.readVarint(view.position(position + LENGTH_SIZE + FIXED_BODY_SIZE));
+                index.computeIfAbsent(peerID, id -> new OffsetIndex()).add(segment.getBaseOffset() + position);
+                position += LENGTH_SIZE + view.getInt(position);
+            }
+
+            if (validEnd < segment.getSize()){
+                System.out.println("ERROR: Removing incomplete record at the end of " + segment.getPath());
+                segment.truncate(validEnd);
+            }
+            segment.close();
+        }
+    }
+
+    /**
+     * Returns where the last complete record in a segment ends
+     * @param view  contents of the segment
+     * @return  position after the last complete record
+     */
+    private static int scanValidEnd(ByteBuffer view){
+        int position = 0;
+        int limit = view.limit();
+        while (limit - position >= LENGTH_SIZE){
+            int length = view.getInt(position);
+            if (length < FIXED_BODY_SIZE || length > limit - position - LENGTH_SIZE){
+                break;
+            }
+            position += LENGTH_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Encode a message into a record
+     * @param record    message to encode
+     * @return  buffer containing the record, ready to be written
+     */
+    private static ByteBuffer encode(ConversationRecord record){
+        ByteArrayOutputStream body = new ByteArrayOutputStream(32 + record.getText().length());
+        BinaryMessageCodec.writeVarint(body, record.getPeerID());
+        BinaryMessageCodec.writeString(body, record.getPeerName());
+        BinaryMessageCodec.writeString(body, record.getText());
+
+        ByteBuffer encoded = ByteBuffer.allocate(LENGTH_SIZE + FIXED_BODY_SIZE + body.size());
+        encoded.putInt(FIXED_BODY_SIZE + body.size());
+        encoded.putLong(record.getTimestamp());
+        encoded.put((byte) (record.isReceived() ? 1 : 0));
+        encoded.put(body.toByteArray());
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Decode the record starting at the buffer's position
+     * @param view  contents of the segment, positioned at the start of a record
+     * @return  decoded message
+     * @throws IOException  if the record is corrupt
+     */
+    private static ConversationRecord decode(ByteBuffer view) throws IOException {
+        view.getInt();
+        long timestamp = view.getLong();
+        boolean received = view.get() != 0;
+        int peerID = BinaryMessageCodec.readVarint(view);
+        String peerName = BinaryMessageCodec.readString(view);
+        String text = BinaryMessageCodec.readString(view);
+        return new ConversationRecord(timestamp, received, peerID, peerName, text);
+    }
+
+    /**
+     * Close and delete a segment's file
+     * @param segment   segment to delete
+     * @throws IOException  if the file can't be deleted
+     */
+    private static void delete(LogSegment segment) throws IOException {
+        segment.close();
+        Files.deleteIfExists(segment.getPath());
+    }
+
+    /**
+     * Growable list of log offsets of one conversation's records
+     */
+    private static class OffsetIndex {
+        private long[] offsets = new long[16];
+        private int size = 0;
+
+        /**
+         * Add the offset of a record
+         * @param offset    log offset of the record
+         */
+        private void add(long offset){
+            if (size == offsets.length){
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+    }
+
+}
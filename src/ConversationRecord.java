@@ -0,0 +1,74 @@
+/**
+ * A single message stored in the client's ConversationLog
+ */
+public class ConversationRecord {
+    private final long timestamp;
+    private final boolean received;
+    private final int peerID;
+    private final String peerName;
+    private final String text;
+
+    /**
+     * Constructor to create a ConversationRecord
+     * @param timestamp time the message was sent or received (milliseconds since the epoch)
+     * @param received  true if the message was received from the peer, false if we sent it to them
+     * @param peerID    id of the user the conversation is with
+     * @param peerName  name of the user the conversation is with
+     * @param text  text of the message
+     */
+    public ConversationRecord(long timestamp, boolean received, int peerID, String peerName, String text){
+        this.timestamp = timestamp;
+        this.received = received;
+        this.peerID = peerID;
+        this.peerName = peerName;
+        this.text = text;
+    }
+
+    /**
+     * Returns the time the message was sent or received
+     * @return  timestamp in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns whether the message was received from the peer (rather than sent by us)
+     * @return  true if received
+     */
+    public boolean isReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the id of the user the conversation is with
+     * @return  peer id
+     */
+    public int getPeerID() {
+        return peerID;
+    }
+
+    /**
+     * Returns the name of the user the conversation is with
+     * @return  peer name
+     */
+    public String getPeerName() {
+        return peerName;
+    }
+
+    /**
+     * Returns the text of the message
+     * @return  message text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the message as it's shown in the chat window, e.g. "Bob: hello" or "You: hi"
+     * @return  display line
+     */
+    public String toDisplayLine(){
+        return (received ? peerName : "You") + ": " + text;
+    }
+}
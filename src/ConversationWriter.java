@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes messages to the client's ConversationLog on a single writer thread, rather than starting a thread per message.
+ * Messages are queued in a bounded queue and written in the order they were queued, so the messages of a conversation
+ * stay in order. Whenever the writer wakes up it takes every waiting message (up to the batch size) and adds them to
+ * the log with a single write (group commit), then asks the GUI to refresh each conversation that changed once.
+ *
+ * The log is written to the disk (fsync) at most once per sync interval rather than after every message. If the queue
+ * is full, whoever is queueing a message waits for the writer to catch up.
+ *
+ * Settings (Java system properties):
+ * - chat.client.writeQueueSize maximum number of messages waiting to be written (default 4096)
+ * - chat.client.writeBatchSize maximum number of messages added to the log with one write (default 256)
+ * - chat.client.syncIntervalMillis time between writing the log to the disk, 0 to write it after every batch or -1
+ *   to leave it to the operating system (default 1000)
+ */
+public class ConversationWriter implements Runnable {
+    // Queued by close() to stop the writer once everything before it has been written
+    private static final ConversationRecord CLOSE = new ConversationRecord(0, false, -1, null, null);
+
+    private final ConversationLog conversationLog;
+    private final ChatSessionView GUI;
+    private final ArrayBlockingQueue<ConversationRecord> queue;
+    private final int batchSize;
+    private final long syncIntervalMillis;
+
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor to create a ConversationWriter, the writer thread isn't started until start() is called
+     * @param conversationLog   log to write messages to
+     * @param GUI   GUI to refresh once messages have been written
+     */
+    public ConversationWriter(ConversationLog conversationLog, ChatSessionView GUI){
+        this.conversationLog = conversationLog;
+        this.GUI = GUI;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, Integer.getInteger("chat.client.writeQueueSize", 4096)));
+        this.batchSize = Math.max(1, Integer.getInteger("chat.client.writeBatchSize", 256));
+        this.syncIntervalMillis = Long.getLong("chat.client.syncIntervalMillis", 1000);
+
+        this.writerThread = new Thread(this, "conversation-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start(){
+        writerThread.start();
+    }
+
+    /**
+     * Queue a message to be written to the log, waiting if the queue is full. Once it's written the GUI is asked to
+     * refresh the message's conversation
+     * @param record    message to write
+     */
+    public void submit(ConversationRecord record){
+        if (closed){
+            return;
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write every queued message to the log and the disk, then stop the writer thread. Waits (for up to 5 seconds)
+     * for the writer to finish
+     */
+    public void close(){
+        closed = true;
+        try {
+            queue.put(CLOSE);
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread, repeatedly writes a batch of queued messages to the log until the writer is closed
+     */
+    @Override
+    public void run(){
+        List<ConversationRecord> batch = new ArrayList<>(batchSize);
+        List<ConversationRecord> records = new ArrayList<>(batchSize);
+        Set<Integer> changedConversations = new LinkedHashSet<>();
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        boolean closing = false;
+
+        while (!closing){
+            // Wait for a message, but not past the next sync if there are messages waiting to be synced
+            try {
+                ConversationRecord first;
+                if (unsynced && syncIntervalMillis > 0){
+                    long untilSync = lastSync + syncIntervalMillis - System.currentTimeMillis();
+                    first = queue.poll(Math.max(untilSync, 0), TimeUnit.MILLISECONDS);
+                }
+                else {
+                    first = queue.take();
+                }
+                if (first != null){
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+            } catch (InterruptedException e) {
+                closing = true;
+            }
+
+            for (ConversationRecord record: batch){
+                if (record == CLOSE){
+                    closing = true;
+                }
+                else {
+                    records.add(record);
+                    changedConversations.add(record.getPeerID());
+                }
+            }
+            batch.clear();
+
+            // Add the batch to the log with a single write
+            if (!records.isEmpty()){
+                try {
+                    conversationLog.append(records);
+                    unsynced = true;
+                } catch (IOException e) {
+                    GUI.showErrorDialog("Failed to write message to file. Please check file permissions");
+                }
+                records.clear();
+            }
+
+            // Ask the GUI to show the new messages, once per conversation (they can be read as soon as
+            // they are added to the log, before they reach the disk)
+            for (int peerID: changedConversations){
+                GUI.refreshText(peerID);
+            }
+            changedConversations.clear();
+
+            // Write the log to the disk if the sync interval has passed (or we're about to stop)
+            long now = System.currentTimeMillis();
+            if (unsynced && syncIntervalMillis >= 0 && (closing || now - lastSync >= syncIntervalMillis)){
+                try {
+                    conversationLog.sync();
+                } catch (IOException e) {
+                    System.out.println("ERROR: Failed to write conversation log to disk");
+                }
+                lastSync = now;
+                unsynced = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Spots direct messages that have been received before, so a message the sender sent again (because its
+ * acknowledgement was slow or lost) is only shown once. Messages are recognised by their sender and the sequence number
+ * the sender gave them.
+ *
+ * For each sender only the highest sequence number seen so far is kept, plus one bit for each of the WINDOW sequence
+ * numbers below it saying whether it has been seen (the same idea as the anti-replay window of IPsec), so the memory
+ * used per sender is fixed however many messages they send. A message older than the window is treated as a copy, which
+ * never drops a new message as long as senders never have more than WINDOW messages waiting to be acknowledged (see
+ * InFlightWindow).
+ */
+public class DuplicateFilter {
+    // Number of sequence numbers below the highest that are remembered, a power of two
+    public static final int WINDOW = 1024;
+
+    /**
+     * Sequence numbers seen from one sender. Bit (sequence % WINDOW) of seen is set if that sequence number has been
+     * seen, for the WINDOW sequence numbers up to and including highest
+     */
+    private static final class SenderWindow {
+        private long highest = 0;
+        private final long[] seen = new long[WINDOW / Long.SIZE];
+    }
+
+    private final HashMap<Integer, SenderWindow> senders = new HashMap<>();
+
+    /**
+     * Record a message as received, and say whether it's the first time it has been
+     * @param senderID  id of the user that sent the message
+     * @param sequence  sequence number the sender gave the message
+     * @return  true if the message is new, false if it's a copy of one already received
+     */
+    public synchronized boolean isNew(int senderID, long sequence){
+        SenderWindow window = senders.computeIfAbsent(senderID, id -> new SenderWindow());
+        if (sequence > window.highest){
+            // Moving the window forward, forget the sequence numbers that are now below it
+            if (sequence - window.highest >= WINDOW){
+                Arrays.fill(window.seen, 0);
+            }
+            else {
+                for (long skipped = window.highest + 1; skipped < sequence; skipped++){
+                    unset(window, skipped);
+                }
+            }
+            window.highest = sequence;
+            set(window, sequence);
+            return true;
+        }
+        if (window.highest - sequence >= WINDOW || isSet(window, sequence)){
+            return false;
+        }
+        set(window, sequence);
+        return true;
+    }
+
+    /**
+     * Forget everything received from a sender, called when they go offline so a user given the same id later starts
+     * afresh
+     * @param senderID  id of the user
+     */
+    public synchronized void forget(int senderID){
+        senders.remove(senderID);
+    }
+
+    /**
+     * Forget everything received from every sender
+     */
+    public synchronized void clear(){
+        senders.clear();
+    }
+
+    /**
+     * Returns whether a sequence number within a sender's window has been seen
+     * @param window    sender's window
+     * @param sequence  sequence number
+     * @return  true if seen
+     */
+    private static boolean isSet(SenderWindow window, long sequence){
+        int bit = (int) (sequence & (WINDOW - 1));
+        return (window.seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Mark a sequence number within a sender's window as seen
+     * @param window    sender's window
+     * @param sequence  sequence number
+     */
+    private static void set(SenderWindow window, long sequence){
+        int bit = (int) (sequence & (WINDOW - 1));
+        window.seen[bit >>> 6] |= 1L << bit;
+    }
+
+    /**
+     * Mark a sequence number within a sender's window as not seen
+     * @param window    sender's window
+     * @param sequence  sequence number
+     */
+    private static void unset(SenderWindow window, long sequence){
+        int bit = (int) (sequence & (WINDOW - 1));
+        window.seen[bit >>> 6] &= ~(1L << bit);
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that serves many client channels using a Selector. The thread waits until any of its channels are
+ * ready to read or write, then reads the available messages and responds to them using the client's ServerResponse.
+ * Other threads hand work to the event loop (such as registering a new client or writing to a channel) using
+ * execute(), as the selector and its keys must only be changed from the event loop thread.
+ */
+public class EventLoop implements Runnable {
+    // Set on each event loop's thread, so code shared with other threads can tell it mustn't wait
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    private final Server serverObject;
+    private final BufferPool bufferPool;
+    private final BufferPool tlsBufferPool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+
+    /**
+     * Constructor to create an EventLoop object
+     * @param serverObject  the server object/instantiation, so clients can access Server methods
+     * @param bufferPool    pool of read buffers shared by all event loops
+     * @param tlsBufferPool pool of buffers used to encrypt and decrypt connections, or null if the server doesn't use
+     *                      TLS
+     * @throws IOException  if the selector can't be opened
+     */
+    public EventLoop(Server serverObject, BufferPool bufferPool, BufferPool tlsBufferPool) throws IOException {
+        this.serverObject = serverObject;
+        this.bufferPool = bufferPool;
+        this.tlsBufferPool = tlsBufferPool;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Start the event loop on a new thread
+     * @param name  name of the thread
+     */
+    public void start(String name){
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hand a newly accepted client channel to this event loop
+     * @param channel   channel connected to the new client
+     */
+    public void register(SocketChannel channel){
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                ServerConfig config = serverObject.getConfig();
+                OutboundQueue outboundQueue = new OutboundQueue(config, serverObject.getStats());
+                TlsChannel tls = null;
+                if (tlsBufferPool != null){
+                    // Handshake messages and tickets are small packets that shouldn't wait for the client's acks
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    tls = new TlsChannel(channel, serverObject.getTls().newServerEngine(), tlsBufferPool);
+                }
+                NioClientConnection connection = new NioClientConnection(channel, tls, this, config.getCodec(),
+                        outboundQueue, new ConnectionStats(serverObject.getStats()), config.getWriteBatchSize());
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                ServerResponse serverResponse = new ServerResponse(connection, serverObject);
+                connection.attach(key, serverResponse);
+                serverObject.getReaper().watch(connection, serverResponse);
+                System.out.println("Server accepted connection from new client");
+            } catch (IOException | RuntimeException e) {
+                System.out.println("ERROR: Failed to register new client with event loop");
+                try {
+                    channel.close();
+                } catch (IOException closeFailed) {
+                    // Already closed
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the event loop thread, waking the selector so the task runs straight away
+     * @param task  task to run
+     */
+    public void execute(Runnable task){
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns whether the calling thread is this event loop's thread
+     * @return  true if called from the event loop
+     */
+    public boolean inEventLoop(){
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns whether the calling thread is any event loop's thread. An event loop serves many clients, so it must
+     * never wait for space in a connection's queue, even one belonging to another event loop
+     * @return  true if called from an event loop
+     */
+    public static boolean isEventLoopThread(){
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Repeatedly waits for channels to become ready, then reads or writes them
+     */
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        while (true){
+            try {
+                // Blocking call, waits until a channel is ready or we're woken up by execute()
+                selector.select();
+            } catch (IOException e) {
+                System.out.println("ERROR: Event loop selector failed");
+                return;
+            }
+
+            // Run any tasks handed to us by other threads. A task that fails mustn't stop the loop, or every client
+            // on it would be left without anyone reading or writing their channels
+            Runnable task;
+            while ((task = tasks.poll()) != null){
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("ERROR: Event loop task failed: " + e);
+                }
+            }
+
+            // Deal with each channel that is ready
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioClientConnection connection = (NioClientConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()){
+                        connection.handleWrite();
+                    }
+                    // TLS may have read data while writing (during the handshake) that the selector won't report
+                    if (key.isValid() && (key.isReadable() || connection.hasBufferedInput())){
+                        connection.handleRead(bufferPool);
+                    }
+                } catch (CancelledKeyException e) {
+                    // Channel was closed while we were using it, nothing more to do
+                } catch (RuntimeException e) {
+                    // Only the client whose message we failed to handle is disconnected, the others carry on
+                    System.out.println("ERROR: Failed to handle client, closing connection: " + e);
+                    connection.close();
+                }
+            }
+        }
+    }
+}
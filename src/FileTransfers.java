@@ -0,0 +1,623 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends files to other users and receives the files they send. Files go through the server on the same connection as
+ * chat messages:
+ * - The sender offers the file (code 50) with its name and size
+ * - The recipient is asked whether they want it. If they do, they accept it (code 51) with the number of bytes they
+ *   already have, which is 0 unless part of the file was left by an earlier attempt, and the sender starts from there
+ * - The sender streams the file in chunks (code 52), each with the offset its data starts at. The recipient writes
+ *   each chunk at its offset and acknowledges the bytes received so far (code 51 again)
+ * - Either end can cancel the transfer (code 53), and the server cancels transfers to users that aren't online
+ *
+ * Chunks are written through the same lock as chat messages, one at a time, so a message typed during a large transfer
+ * only waits for the chunk being written rather than the rest of the file. At most a window of chunks is waiting to be
+ * acknowledged, which bounds the memory a transfer takes up at every hop however big the file is. If the
+ * acknowledgements stop moving (a chunk was dropped because a connection dropped, or the server throttled it), the
+ * sender goes back to the last acknowledged offset and carries on from there. If the server throttles a chunk, the
+ * sender waits as long as it's told to, goes back to that chunk and halves its window, which then grows back by a chunk
+ * for every window of chunks acknowledged (so it settles at a rate the server's limit allows).
+ *
+ * File data is read and written with positional FileChannel reads and writes straight into and out of each chunk's
+ * array, without any stream buffers in between. A file being received is written to a .part file in the download
+ * directory, named after the file and its size, so when the same file is offered again after a failed transfer it
+ * carries on from where it stopped. Once a transfer finishes its throughput and memory use are reported.
+ *
+ * Settings (Java system properties):
+ * - chat.file.downloadDir directory received files are saved in (default Data/downloads)
+ * - chat.file.chunkBytes size of each chunk (default 64KB, at most 1MB)
+ * - chat.file.windowChunks largest number of chunks waiting to be acknowledged (default 16)
+ * - chat.file.ackTimeoutMillis time to wait for the acknowledgements to move before sending again from the last
+ *   acknowledged offset (default 2000)
+ * - chat.file.maxStalls number of times in a row the sender goes back before giving up on the transfer (default 5)
+ */
+public class FileTransfers {
+    // Largest chunk, well below the largest frame
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+
+    private final Consumer<Message> transport;
+    private final ChatSessionView GUI;
+    private final Path downloadDir;
+    private final int chunkBytes;
+    private final long windowBytes;
+    private final long ackTimeoutNanos;
+    private final int maxStalls;
+
+    // Transfers by id, the sender picks a random id for each transfer
+    private final ConcurrentHashMap<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+
+    /**
+     * A file being sent, streamed by a thread of its own
+     */
+    private final class Outgoing implements Runnable {
+        private final long transferID;
+        private final User toUser;
+        private final Path path;
+        private final String name;
+        private final long size;
+
+        // Bytes the recipient has acknowledged (-1 until they accept the file) and the offset of the next chunk to send
+        private long acknowledged = -1;
+        private long nextOffset = 0;
+        private boolean finished = false;
+
+        // Time the acknowledgements last moved, how many times in a row we've gone back since, and when the server
+        // will let us send again after throttling us
+        private long progressNanos = System.nanoTime();
+        private int stalls = 0;
+        private long resumeAtNanos = 0;
+
+        // Bytes allowed to wait for acknowledgement, smaller than the full window after the server throttled us
+        private long windowLimit = windowBytes;
+
+        // Where the transfer started and when, and the most bytes that were waiting to be acknowledged at once
+        private long startOffset = 0;
+        private long startNanos = 0;
+        private long largestInFlight = 0;
+
+        private Outgoing(long transferID, User toUser, Path path, long size){
+            this.transferID = transferID;
+            this.toUser = toUser;
+            this.path = path;
+            this.name = path.getFileName().toString();
+            this.size = size;
+        }
+
+        /**
+         * Read and send each chunk once there's room for it in the window
+         */
+        @Override
+        public void run(){
+            // Each chunk is encoded into its frame before the transport returns, so the same array is used every time
+            byte[] buffer = new byte[chunkBytes];
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long offset;
+                while ((offset = nextChunk()) >= 0){
+                    int length = (int) Math.min(buffer.length, size - offset);
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                    while (chunk.hasRemaining()){
+                        if (channel.read(chunk, offset + chunk.position()) < 0){
+                            throw new IOException("the file is shorter than when it was offered");
+                        }
+                    }
+                    byte[] data = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+                    transport.accept(new Message(52, null, toUser, transferID, offset, null, data));
+                }
+                finished();
+            } catch (IOException e) {
+                cancelOutgoing(this, "Couldn't read " + name + ": " + e.getMessage(), true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Wait until the next chunk can be sent: the file has been accepted, there's room in the window and the server
+         * isn't throttling us. If the acknowledgements stop moving, go back to the last acknowledged offset
+         * @return  offset of the next chunk, or -1 once the transfer has finished or been cancelled
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        private synchronized long nextChunk() throws InterruptedException {
+            while (!finished){
+                long now = System.nanoTime();
+                long waitNanos;
+                if (acknowledged < 0){
+                    // Waiting for the recipient to decide, which can take as long as they like
+                    waitNanos = TimeUnit.SECONDS.toNanos(1);
+                }
+                else if (acknowledged == size){
+                    finished = true;
+                    break;
+                }
+                else if (now < resumeAtNanos){
+                    waitNanos = resumeAtNanos - now;
+                }
+                else if (nextOffset < size && nextOffset - acknowledged < windowLimit){
+                    long offset = nextOffset;
+                    nextOffset = Math.min(size, offset + chunkBytes);
+                    largestInFlight = Math.max(largestInFlight, nextOffset - acknowledged);
+                    return offset;
+                }
+                else if (now - progressNanos >= ackTimeoutNanos){
+                    // Nothing acknowledged for a while, some chunks must have been lost so send them again
+                    if (++stalls > maxStalls){
+                        finished = true;
+                        break;
+                    }
+                    nextOffset = acknowledged;
+                    progressNanos = now;
+                    continue;
+                }
+                else {
+                    waitNanos = ackTimeoutNanos - (now - progressNanos);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+            return -1;
+        }
+
+        /**
+         * Report on the transfer once every chunk has been acknowledged, or give up on it if the recipient stopped
+         * acknowledging them
+         */
+        private void finished(){
+            long elapsedNanos;
+            boolean gaveUp;
+            synchronized (this){
+                elapsedNanos = System.nanoTime() - startNanos;
+                gaveUp = acknowledged != size && stalls > maxStalls;
+                if (acknowledged != size && !gaveUp){
+                    // Cancelled
+                    return;
+                }
+            }
+            if (gaveUp){
+                cancelOutgoing(this, toUser.getName() + " stopped receiving " + name, true);
+                return;
+            }
+            outgoing.remove(transferID, this);
+            GUI.showInfoDialog("Sent " + name + " to " + toUser.getName() + "\n"
+                    + report(size - startOffset, elapsedNanos, largestInFlight));
+        }
+
+        /**
+         * Record the recipient accepting the file, or acknowledging the bytes they've received
+         * @param offset    bytes the recipient has
+         */
+        private synchronized void acknowledged(long offset){
+            if (finished || offset < 0 || offset > size || offset <= acknowledged){
+                return;
+            }
+            long now = System.nanoTime();
+            if (acknowledged < 0){
+                startOffset = offset;
+                startNanos = now;
+                nextOffset = offset;
+                GUI.showStatus("Sending " + name + " to " + toUser.getName() + "...");
+            }
+            else {
+                // Grow the window back by a chunk for each window acknowledged
+                windowLimit = Math.min(windowBytes, windowLimit + Math.max(1, chunkBytes * (offset - acknowledged)
+                        / windowLimit));
+            }
+            acknowledged = offset;
+            progressNanos = now;
+            stalls = 0;
+            notifyAll();
+        }
+
+        /**
+         * Pause after the server throttled a chunk, then go back to that chunk (the chunks sent after it were probably
+         * throttled too) with a smaller window
+         * @param offset    offset of the throttled chunk
+         * @param retryAfterMillis  time the server said to wait
+         */
+        private synchronized void throttled(long offset, long retryAfterMillis){
+            if (acknowledged < 0 || offset < acknowledged || offset >= nextOffset){
+                // Not one of the chunks waiting to be acknowledged (it's from another transfer, or already sent again)
+                return;
+            }
+            long now = System.nanoTime();
+            if (now >= resumeAtNanos){
+                // Only shrink the window once for every pause, the chunks sent before it are throttled together
+                windowLimit = Math.max(chunkBytes, windowLimit / 2);
+            }
+            resumeAtNanos = Math.max(resumeAtNanos, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+            nextOffset = offset;
+            progressNanos = resumeAtNanos;
+            notifyAll();
+        }
+
+        /**
+         * Stop sending
+         * @return  true if the transfer was stopped by this call, false if it had already finished
+         */
+        private synchronized boolean finish(){
+            if (finished){
+                return false;
+            }
+            finished = true;
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * A file being received, written by the thread reading from the server
+     */
+    private static final class Incoming {
+        private final long transferID;
+        private final User fromUser;
+        private final String name;
+        private final long size;
+        private final Path part;
+
+        // Open once the file has been accepted
+        private FileChannel channel;
+        private long received = 0;
+
+        // Where the transfer started and when, and the largest chunk received
+        private long startOffset = 0;
+        private long startNanos = 0;
+        private int largestChunk = 0;
+
+        private Incoming(long transferID, User fromUser, String name, long size, Path part){
+            this.transferID = transferID;
+            this.fromUser = fromUser;
+            this.name = name;
+            this.size = size;
+            this.part = part;
+        }
+    }
+
+    /**
+     * Constructor to create FileTransfers with the settings from the system properties
+     * @param transport writes a message to the server
+     * @param GUI   GUI used to ask about offered files and report on transfers
+     */
+    public FileTransfers(Consumer<Message> transport, ChatSessionView GUI){
+        this.transport = transport;
+        this.GUI = GUI;
+        this.downloadDir = Path.of(System.getProperty("chat.file.downloadDir", "Data/downloads"));
+        this.chunkBytes = Math.max(1024, Math.min(MAX_CHUNK_BYTES, Integer.getInteger("chat.file.chunkBytes",
+                64 * 1024)));
+        this.windowBytes = (long) chunkBytes * Math.max(1, Integer.getInteger("chat.file.windowChunks", 16));
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Long.getLong("chat.file.ackTimeoutMillis",
+                2000)));
+        this.maxStalls = Math.max(0, Integer.getInteger("chat.file.maxStalls", 5));
+    }
+
+    /**
+     * Offer a file to another user, it's sent once they accept it
+     * @param path  file to send
+     * @param toUser    user to send it to
+     * @throws IOException  if the file can't be read
+     */
+    public void send(Path path, User toUser) throws IOException {
+        long size = Files.size(path);
+        long transferID = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        Outgoing transfer = new Outgoing(transferID, toUser, path, size);
+        outgoing.put(transferID, transfer);
+        transport.accept(new Message(50, null, toUser, transferID, size, transfer.name, null));
+        GUI.showStatus("Offered " + transfer.name + " to " + toUser.getName() + "...");
+
+        Thread sender = new Thread(transfer, "file-sender-" + transferID);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Respond to a file transfer frame from another user
+     * @param message   file transfer frame (code 50 to 53)
+     * @param fromUser  user that sent it, with their name
+     */
+    public void received(Message message, User fromUser){
+        switch (message.getSpecialCode()){
+            case 50:
+                offered(message, fromUser);
+                break;
+            case 51:
+                Outgoing accepted = outgoing.get(message.getTransferID());
+                if (accepted != null && accepted.toUser.getUniqueID() == fromUser.getUniqueID()){
+                    accepted.acknowledged(message.getOffset());
+                }
+                break;
+            case 52:
+                chunkReceived(message, fromUser);
+                break;
+            case 53:
+                cancelled(message, fromUser);
+                break;
+        }
+    }
+
+    /**
+     * Respond to the server throttling a chunk, the file it's from waits then sends it again. The reply only gives the
+     * chunk's offset, so each file being sent checks whether the chunk could be one of its own
+     * @param offset    offset of the throttled chunk
+     * @param retryAfterMillis  time the server said to wait before sending again
+     */
+    public void throttled(long offset, long retryAfterMillis){
+        for (Outgoing transfer: outgoing.values()){
+            transfer.throttled(offset, retryAfterMillis);
+        }
+    }
+
+    /**
+     * Stop every transfer with a user that has gone offline. Part of a file being received is kept, so the transfer
+     * can carry on if it's offered again
+     * @param uniqueID  id of the user
+     */
+    public void userLeft(int uniqueID){
+        for (Outgoing transfer: outgoing.values()){
+            if (transfer.toUser.getUniqueID() == uniqueID){
+                cancelOutgoing(transfer, transfer.toUser.getName() + " went offline before receiving "
+                        + transfer.name, false);
+            }
+        }
+        for (Incoming transfer: incoming.values()){
+            if (transfer.fromUser.getUniqueID() == uniqueID){
+                closeIncoming(transfer);
+                GUI.showStatus(transfer.fromUser.getName() + " went offline before sending " + transfer.name);
+            }
+        }
+    }
+
+    /**
+     * Stop every transfer, used when disconnecting
+     */
+    public void close(){
+        for (Outgoing transfer: outgoing.values()){
+            transfer.finish();
+        }
+        outgoing.clear();
+        for (Incoming transfer: incoming.values()){
+            closeIncoming(transfer);
+        }
+    }
+
+    /**
+     * Ask the user whether they want a file that has been offered to them
+     * @param offer offer from the sender
+     * @param fromUser  user offering the file
+     */
+    private void offered(Message offer, User fromUser){
+        String name = safeFileName(offer.getMessage());
+        long size = offer.getOffset();
+        if (name == null || size < 0){
+            transport.accept(new Message(53, null, fromUser, offer.getTransferID(), 0, "Invalid file name", null));
+            return;
+        }
+        Incoming transfer = new Incoming(offer.getTransferID(), fromUser, name, size,
+                downloadDir.resolve(name + "." + size + ".part"));
+        if (incoming.putIfAbsent(transfer.transferID, transfer) != null){
+            // The same offer again (e.g. sent again after the connection dropped)
+            return;
+        }
+        GUI.confirm(fromUser.getName() + " wants to send you " + name + " (" + formatBytes(size) + "). Accept it?",
+                () -> accept(transfer), () -> decline(transfer));
+    }
+
+    /**
+     * Accept a file, carrying on from any part of it already received by an earlier attempt
+     * @param transfer  offered file
+     */
+    private void accept(Incoming transfer){
+        synchronized (transfer){
+            if (incoming.get(transfer.transferID) != transfer || transfer.channel != null){
+                // Cancelled while the user was deciding
+                return;
+            }
+            try {
+                Files.createDirectories(downloadDir);
+                transfer.channel = FileChannel.open(transfer.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                long have = transfer.channel.size();
+                if (have > transfer.size){
+                    transfer.channel.truncate(0);
+                    have = 0;
+                }
+                transfer.received = have;
+                transfer.startOffset = have;
+                transfer.startNanos = System.nanoTime();
+            } catch (IOException e) {
+                closeIncoming(transfer);
+                transport.accept(new Message(53, null, transfer.fromUser, transfer.transferID, 0,
+                        "Couldn't save the file", null));
+                GUI.showErrorDialog("Couldn't save " + transfer.name + ": " + e.getMessage());
+                return;
+            }
+            transport.accept(new Message(51, null, transfer.fromUser, transfer.transferID, transfer.received, null,
+                    null));
+            GUI.showStatus("Receiving " + transfer.name + " from " + transfer.fromUser.getName() + "...");
+            if (transfer.received == transfer.size){
+                finishIncoming(transfer);
+            }
+        }
+    }
+
+    /**
+     * Turn down a file
+     * @param transfer  offered file
+     */
+    private void decline(Incoming transfer){
+        if (incoming.remove(transfer.transferID, transfer)){
+            transport.accept(new Message(53, null, transfer.fromUser, transfer.transferID, 0, "Declined", null));
+        }
+    }
+
+    /**
+     * Write a chunk of a file being received at its offset and acknowledge the bytes received so far. Chunks that
+     * don't carry on from the bytes already received (copies, or chunks after one that was lost) aren't written, the
+     * acknowledgement tells the sender where to carry on from
+     * @param chunk chunk from the sender
+     * @param fromUser  user that sent it
+     */
+    private void chunkReceived(Message chunk, User fromUser){
+        Incoming transfer = incoming.get(chunk.getTransferID());
+        if (transfer == null || transfer.fromUser.getUniqueID() != fromUser.getUniqueID() || chunk.getData() == null){
+            return;
+        }
+        synchronized (transfer){
+            if (transfer.channel == null){
+                return;
+            }
+            byte[] data = chunk.getData();
+            if (chunk.getOffset() == transfer.received && transfer.received + data.length <= transfer.size){
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()){
+                        transfer.channel.write(buffer, transfer.received + buffer.position());
+                    }
+                } catch (IOException e) {
+                    closeIncoming(transfer);
+                    transport.accept(new Message(53, null, fromUser, transfer.transferID, 0,
+                            "Couldn't save the file", null));
+                    GUI.showErrorDialog("Couldn't save " + transfer.name + ": " + e.getMessage());
+                    return;
+                }
+                transfer.received += data.length;
+                transfer.largestChunk = Math.max(transfer.largestChunk, data.length);
+            }
+            transport.accept(new Message(51, null, fromUser, transfer.transferID, transfer.received, null, null));
+            if (transfer.received == transfer.size){
+                finishIncoming(transfer);
+            }
+        }
+    }
+
+    /**
+     * Move a completely received file from its .part file to its name in the download directory, and report on it
+     * @param transfer  file received, must be called holding its lock
+     */
+    private void finishIncoming(Incoming transfer){
+        closeIncoming(transfer);
+        try {
+            Path saved = downloadDir.resolve(transfer.name);
+            for (int copy = 1; Files.exists(saved); copy++){
+                saved = downloadDir.resolve(copy + "-" + transfer.name);
+            }
+            Files.move(transfer.part, saved);
+            GUI.showInfoDialog("Received " + transfer.name + " from " + transfer.fromUser.getName() + ", saved to "
+                    + saved.toAbsolutePath() + "\n" + report(transfer.size - transfer.startOffset,
+                    System.nanoTime() - transfer.startNanos, transfer.largestChunk));
+        } catch (IOException e) {
+            GUI.showErrorDialog("Received " + transfer.name + " but couldn't move it from " + transfer.part);
+        }
+    }
+
+    /**
+     * Respond to the other end (or the server) cancelling a transfer
+     * @param cancel    cancel frame, containing the reason
+     * @param fromUser  user at the other end of the transfer
+     */
+    private void cancelled(Message cancel, User fromUser){
+        Outgoing sending = outgoing.get(cancel.getTransferID());
+        if (sending != null && sending.toUser.getUniqueID() == fromUser.getUniqueID()){
+            cancelOutgoing(sending, "Couldn't send " + sending.name + " to " + fromUser.getName() + ": "
+                    + cancel.getMessage(), false);
+            return;
+        }
+        Incoming receiving = incoming.get(cancel.getTransferID());
+        if (receiving != null && receiving.fromUser.getUniqueID() == fromUser.getUniqueID()){
+            closeIncoming(receiving);
+            GUI.showStatus(fromUser.getName() + " cancelled sending " + receiving.name);
+        }
+    }
+
+    /**
+     * Stop sending a file and tell the user why
+     * @param transfer  file being sent
+     * @param reason    reason shown to the user
+     * @param tellRecipient true if the recipient should be told the transfer has been cancelled
+     */
+    private void cancelOutgoing(Outgoing transfer, String reason, boolean tellRecipient){
+        outgoing.remove(transfer.transferID, transfer);
+        if (transfer.finish() || tellRecipient){
+            if (tellRecipient){
+                transport.accept(new Message(53, null, transfer.toUser, transfer.transferID, 0, "Cancelled by sender",
+                        null));
+            }
+            GUI.showErrorDialog(reason);
+        }
+    }
+
+    /**
+     * Forget a file being received and close its .part file, which is kept for when the file is offered again
+     * @param transfer  file being received
+     */
+    private void closeIncoming(Incoming transfer){
+        incoming.remove(transfer.transferID, transfer);
+        synchronized (transfer){
+            if (transfer.channel != null){
+                try {
+                    transfer.channel.close();
+                } catch (IOException e) {
+                    // Nothing more will be written to it
+                }
+            }
+        }
+    }
+
+    /**
+     * Describe how a finished transfer went: its size, time, throughput and memory use
+     * @param bytes bytes transferred (not counting any carried on from an earlier attempt)
+     * @param nanos time the transfer took
+     * @param bufferedBytes most bytes of the file held in memory at once by this end of the transfer
+     * @return  report shown to the user
+     */
+    private static String report(long bytes, long nanos, long bufferedBytes){
+        double seconds = Math.max(1, nanos) / 1e9;
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        return String.format("%s in %.1fs (%s/s), at most %s of the file held in memory, heap used %s",
+                formatBytes(bytes), seconds, formatBytes((long) (bytes / seconds)), formatBytes(bufferedBytes),
+                formatBytes(usedHeap));
+    }
+
+    /**
+     * Format a number of bytes for people to read, e.g. 1.5 MB
+     * @param bytes number of bytes
+     * @return  formatted size
+     */
+    private static String formatBytes(long bytes){
+        if (bytes < 1024){
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1){
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    /**
+     * Make an offered file's name safe to save in the download directory, so a sender can't write anywhere else
+     * @param name  name given by the sender
+     * @return  the last part of the name with unusual characters replaced, or null if nothing is left
+     */
+    private static String safeFileName(String name){
+        if (name == null){
+            return null;
+        }
+        String base = name.replace('\\', '/');
+        base = base.substring(base.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._ -]", "_");
+        if (base.isBlank() || base.equals(".") || base.equals("..") || base.endsWith(".part")){
+            return null;
+        }
+        return base;
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the payloads of large frames for a single connection, so pasted logs and stack traces
+ * take far fewer bytes over the SSH tunnel. Both ends say whether they support compression when logging in (codes 10
+ * and 11), and frames are only compressed when sent to an end that said it does.
+ *
+ * A compressed frame has the top bit of its length header set (lengths are never that big), and its payload is
+ * [uncompressed length: int][zlib data of the original payload]. Only payloads of at least the threshold are
+ * compressed, and only if that makes the frame smaller, so short chat messages are sent exactly as before.
+ *
+ * Each connection keeps one compressor per direction. The Deflater, Inflater and the buffers they write into are
+ * reused for every frame, so compressing a frame doesn't allocate anything (apart from the wrapper around the result)
+ * unless the frame is larger than any before it. A compressor must only be used by one thread at a time.
+ *
+ * Settings (Java system properties, shared by the client and server):
+ * - chat.compression deflate or none, whether this end compresses and offers compression (default deflate)
+ * - chat.compression.threshold smallest payload in bytes that is compressed (default 512)
+ * - chat.compression.level Deflater level from 1 (fastest) to 9 (smallest) (default 1)
+ */
+public class FrameCompressor {
+    // Name of the compression both ends agree on when logging in
+    public static final String DEFLATE = "deflate";
+
+    // Set in a frame's length header when its payload is compressed
+    public static final int COMPRESSED_FLAG = 0x80000000;
+
+    // Bytes used for the uncompressed length at the start of a compressed payload
+    private static final int UNCOMPRESSED_LENGTH_SIZE = 4;
+
+    // Buffers grown past this by an unusually large frame are dropped afterwards
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    private final int level;
+    private final int threshold;
+
+    // Created the first time they're needed, as most connections only ever compress or decompress
+    private Deflater deflater;
+    private Inflater inflater;
+
+    // Compressed frames are written one after another into output until resetOutput() is called
+    private byte[] output = new byte[0];
+    private int outputPosition = 0;
+    private byte[] inflated = new byte[0];
+
+    /**
+     * Constructor to create a FrameCompressor
+     * @param level Deflater compression level (1 to 9)
+     * @param threshold smallest payload in bytes that is compressed
+     */
+    public FrameCompressor(int level, int threshold){
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.threshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Create a compressor with the level and threshold set by the system properties
+     * @return  new compressor
+     */
+    public static FrameCompressor fromSystemProperties(){
+        return new FrameCompressor(Integer.getInteger("chat.compression.level", Deflater.BEST_SPEED),
+                Integer.getInteger("chat.compression.threshold", 512));
+    }
+
+    /**
+     * Returns whether compression is turned on by the system properties
+     * @return  true if this end compresses frames and offers to when logging in
+     */
+    public static boolean isEnabled(){
+        return System.getProperty("chat.compression", DEFLATE).equalsIgnoreCase(DEFLATE);
+    }
+
+    /**
+     * Pick the compression to use with the other end
+     * @param offered   compression the other end offered when logging in (a comma separated list), or null
+     * @param enabled   whether this end has compression turned on
+     * @return  the agreed compression, or null for none
+     */
+    public static String negotiate(String offered, boolean enabled){
+        if (!enabled || offered == null){
+            return null;
+        }
+        for (String name: offered.split(",")){
+            if (name.trim().equalsIgnoreCase(DEFLATE)){
+                return DEFLATE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start writing compressed frames at the start of the output buffer again. Call once every frame returned by
+     * compress() has been written
+     */
+    public void resetOutput(){
+        outputPosition = 0;
+        if (output.length > MAX_RETAINED_BUFFER_SIZE){
+            output = new byte[0];
+        }
+    }
+
+    /**
+     * Compress a frame if it's at least the threshold and compressing it makes it smaller. The compressed frame is
+     * written into the output buffer after any others since the last resetOutput(), so earlier results stay valid
+     * @param frame complete frame (length header and payload)
+     * @return  buffer containing the compressed frame, or null if the frame should be sent as it is
+     */
+    public ByteBuffer compress(byte[] frame){
+        int payloadLength = frame.length - MessageFraming.HEADER_SIZE;
+        if (payloadLength < threshold || payloadLength < UNCOMPRESSED_LENGTH_SIZE){
+            return null;
+        }
+        if (deflater == null){
+            deflater = new Deflater(level);
+        }
+
+        // Only give the deflater room for a frame smaller than the original, if it runs out it isn't worth it
+        int start = outputPosition;
+        int dataStart = start + MessageFraming.HEADER_SIZE + UNCOMPRESSED_LENGTH_SIZE;
+        int maxData = payloadLength - UNCOMPRESSED_LENGTH_SIZE - 1;
+        ensureOutputCapacity(dataStart + maxData);
+
+        deflater.reset();
+        deflater.setInput(frame, MessageFraming.HEADER_SIZE, payloadLength);
+        deflater.finish();
+        int dataLength = 0;
+        while (!deflater.finished() && dataLength < maxData){
+            dataLength += deflater.deflate(output, dataStart + dataLength, maxData - dataLength);
+        }
+        if (!deflater.finished()){
+            return null;
+        }
+
+        int compressedLength = UNCOMPRESSED_LENGTH_SIZE + dataLength;
+        writeInt(output, start, compressedLength | COMPRESSED_FLAG);
+        writeInt(output, start + MessageFraming.HEADER_SIZE, payloadLength);
+        outputPosition = dataStart + dataLength;
+        return ByteBuffer.wrap(output, start, MessageFraming.HEADER_SIZE + compressedLength);
+    }
+
+    /**
+     * Decompress the payload of a compressed frame. The result is only valid until the next call
+     * @param payload   array containing the compressed payload
+     * @param offset    start of the payload in the array
+     * @param length    length of the payload (without the flag)
+     * @return  buffer containing the original payload
+     * @throws IOException  if the payload isn't valid compressed data
+     */
+    public ByteBuffer decompress(byte[] payload, int offset, int length) throws IOException {
+        if (length < UNCOMPRESSED_LENGTH_SIZE){
+            throw new IOException("Compressed frame is too short");
+        }
+        int uncompressedLength = ByteBuffer.wrap(payload, offset, UNCOMPRESSED_LENGTH_SIZE).getInt();
+        MessageFraming.checkLength(uncompressedLength);
+        if (inflated.length < uncompressedLength || inflated.length > MAX_RETAINED_BUFFER_SIZE){
+            inflated = new byte[Math.max(uncompressedLength, 1024)];
+        }
+        if (inflater == null){
+            inflater = new Inflater();
+        }
+
+        inflater.reset();
+        inflater.setInput(payload, offset + UNCOMPRESSED_LENGTH_SIZE, length - UNCOMPRESSED_LENGTH_SIZE);
+        int inflatedLength = 0;
+        try {
+            while (inflatedLength < uncompressedLength && !inflater.finished()){
+                int read = inflater.inflate(inflated, inflatedLength, uncompressedLength - inflatedLength);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                inflatedLength += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame", e);
+        }
+        if (inflatedLength != uncompressedLength){
+            throw new IOException("Compressed frame is the wrong length");
+        }
+        return ByteBuffer.wrap(inflated, 0, inflatedLength);
+    }
+
+    /**
+     * Free the native memory used by the Deflater and Inflater, the compressor can't be used afterwards
+     */
+    public void close(){
+        if (deflater != null){
+            deflater.end();
+        }
+        if (inflater != null){
+            inflater.end();
+        }
+    }
+
+    /**
+     * Grow the output buffer, keeping what's already in it
+     * @param capacity  size needed
+     */
+    private void ensureOutputCapacity(int capacity){
+        if (output.length < capacity){
+            byte[] bigger = new byte[Math.max(capacity, Math.max(output.length * 2, 4096))];
+            System.arraycopy(output, 0, bigger, 0, outputPosition);
+            output = bigger;
+        }
+    }
+
+    /**
+     * Write a big-endian int into an array
+     * @param array array to write to
+     * @param offset    position to write at
+     * @param value value to write
+     */
+    private static void writeInt(byte[] array, int offset, int value){
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+}
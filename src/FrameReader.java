@@ -0,0 +1,83 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a blocking input stream and decodes them with a MessageCodec. The payload of each frame is read
+ * into a buffer that is reused for the next frame, so reading a message doesn't allocate anything other than the
+ * decoded message itself. If an unusually large frame arrives the buffer is dropped afterwards, keeping the memory used
+ * by each connection small. Compressed frames are decompressed into a buffer that is reused in the same way, but only
+ * once compression has been agreed (see allowCompressed()), before then a compressed frame is an error.
+ */
+public class FrameReader {
+    // Size the payload buffer starts at and is shrunk back to after a large frame
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream in;
+    private final MessageCodec codec;
+    private byte[] payload = new byte[DEFAULT_BUFFER_SIZE];
+
+    // Set once compression has been agreed, and created when the first compressed frame arrives
+    private volatile boolean compressionAgreed = false;
+    private FrameCompressor decompressor;
+
+    // Size of the last frame read, including its length header
+    private int lastFrameSize = 0;
+
+    /**
+     * Constructor to create a FrameReader
+     * @param in    stream to read frames from
+     * @param codec codec used to decode each payload
+     */
+    public FrameReader(InputStream in, MessageCodec codec){
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        this.codec = codec;
+    }
+
+    /**
+     * Read the next frame from the stream, this is a blocking call
+     * @return  the message contained in the frame
+     * @throws IOException  if the stream is closed or the frame is invalid
+     */
+    public Message read() throws IOException {
+        int header = in.readInt();
+        int length = MessageFraming.payloadLength(header, compressionAgreed);
+
+        if (length > payload.length){
+            payload = new byte[length];
+        }
+        in.readFully(payload, 0, length);
+        lastFrameSize = MessageFraming.HEADER_SIZE + length;
+        Message message;
+        if (MessageFraming.isCompressed(header)){
+            if (decompressor == null){
+                decompressor = FrameCompressor.fromSystemProperties();
+            }
+            message = codec.decode(decompressor.decompress(payload, 0, length));
+        } else {
+            message = codec.decode(ByteBuffer.wrap(payload, 0, length));
+        }
+
+        if (payload.length > MAX_RETAINED_BUFFER_SIZE){
+            payload = new byte[DEFAULT_BUFFER_SIZE];
+        }
+        return message;
+    }
+
+    /**
+     * Accept compressed frames from now on, called once the login (or resume) reply has agreed to compression
+     */
+    public void allowCompressed(){
+        compressionAgreed = true;
+    }
+
+    /**
+     * Returns the size of the last frame read
+     * @return  size in bytes, including the length header
+     */
+    public int getLastFrameSize(){
+        return lastFrameSize;
+    }
+}
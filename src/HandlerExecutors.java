@@ -0,0 +1,46 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs a ServerResponse for each client in blocking mode.
+ * Platform threads are ordinary operating system threads. Virtual threads are cheap threads managed by the JVM, so a
+ * client that is blocked waiting for a message doesn't hold onto a whole thread stack. Virtual threads need Java 21
+ * or later, on older JVMs the server falls back to platform threads.
+ */
+public final class HandlerExecutors {
+    private HandlerExecutors(){
+    }
+
+    /**
+     * Create an executor that runs each task on a new thread of the requested type
+     * @param threadType    type of thread to use
+     * @return  executor for client handlers
+     */
+    public static ExecutorService create(ServerConfig.ThreadType threadType){
+        if (threadType == ServerConfig.ThreadType.VIRTUAL){
+            ExecutorService virtualExecutor = createVirtual();
+            if (virtualExecutor != null){
+                return virtualExecutor;
+            }
+            System.out.println("ERROR: Virtual threads need Java 21 or later, using platform threads instead");
+        }
+
+        // A new platform thread per client, named so thread dumps show which client each thread serves
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> new Thread(task, "client-handler-" + threadNumber.getAndIncrement()));
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread per task. Looked up by reflection so the server still
+     * compiles and runs on Java 17
+     * @return  virtual thread executor, or null if this JVM doesn't support virtual threads
+     */
+    private static ExecutorService createVirtual(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
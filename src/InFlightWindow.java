@@ -0,0 +1,179 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Keeps track of the direct messages this client has sent that the server hasn't acknowledged yet (code 4). Messages
+ * are sent one after another without waiting for each acknowledgement to come back over the SSH tunnel (pipelining),
+ * but never more than the window size are waiting at once:
+ * - Each message is given the next sequence number, which the server and the recipient acknowledge it with
+ * - Messages sent while the window is full wait, in order, and are sent as acknowledgements make room for them
+ * - A message that isn't acknowledged within the ack timeout is sent again with the same sequence number (the
+ *   recipient drops copies it has already received, see DuplicateFilter), and given up on after the maximum number of
+ *   resends
+ * - A message the server throttled (code 6) is sent again once the server says it may be, which doesn't count as a
+ *   resend
+ *
+ * Settings (Java system properties):
+ * - chat.client.sendWindow largest number of messages waiting to be acknowledged (default 64, at most 1024)
+ * - chat.client.ackTimeoutMillis time to wait for an acknowledgement before sending a message again (default 5000)
+ * - chat.client.maxResends number of times a message is sent again before giving up on it (default 3)
+ */
+public class InFlightWindow {
+    /**
+     * A message waiting to be acknowledged
+     */
+    private static final class InFlight {
+        private final Message message;
+        private long sentNanos;
+        private int resends = 0;
+
+        private InFlight(Message message, long sentNanos){
+            this.message = message;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private final Consumer<Message> transport;
+    private final int windowSize;
+    private final long ackTimeoutMillis;
+    private final int maxResends;
+
+    // Messages sent but not acknowledged by sequence number, in the order they were sent, and those waiting for room
+    private final LinkedHashMap<Long, InFlight> inFlight = new LinkedHashMap<>();
+    private final ArrayDeque<Message> waiting = new ArrayDeque<>();
+    private long nextSequence = 1;
+
+    /**
+     * Constructor to create an InFlightWindow with the settings from the system properties
+     * @param transport writes a message to the server
+     */
+    public InFlightWindow(Consumer<Message> transport){
+        this.transport = transport;
+        this.windowSize = Math.max(1, Math.min(DuplicateFilter.WINDOW,
+                Integer.getInteger("chat.client.sendWindow", 64)));
+        this.ackTimeoutMillis = Math.max(1, Long.getLong("chat.client.ackTimeoutMillis", 5000));
+        this.maxResends = Math.max(0, Integer.getInteger("chat.client.maxResends", 3));
+    }
+
+    /**
+     * Give a new message the next sequence number and send it, or keep it until there's room in the window
+     * @param create    creates the message from its sequence number
+     * @return  the message
+     */
+    public synchronized Message send(LongFunction<Message> create){
+        Message message = create.apply(nextSequence++);
+        if (inFlight.size() < windowSize && waiting.isEmpty()){
+            transmit(message);
+        }
+        else {
+            waiting.add(message);
+        }
+        return message;
+    }
+
+    /**
+     * Record a message as acknowledged by the server, sending the messages waiting for the room it leaves
+     * @param sequence  sequence number of the message
+     * @return  the acknowledged message, or null if it isn't waiting (an acknowledgement of a copy sent again)
+     */
+    public synchronized Message acknowledged(long sequence){
+        InFlight acked = inFlight.remove(sequence);
+        if (acked == null){
+            return null;
+        }
+        fill();
+        return acked.message;
+    }
+
+    /**
+     * Record a message as throttled by the server, so it's sent again once the server says to try again rather than
+     * after the ack timeout. The server didn't handle it, so the send doesn't count towards the maximum resends
+     * @param sequence  sequence number of the message
+     * @param retryAfterMillis  time to wait before sending it again
+     * @return  true if the message is waiting to be acknowledged
+     */
+    public synchronized boolean throttled(long sequence, long retryAfterMillis){
+        InFlight entry = inFlight.get(sequence);
+        if (entry == null){
+            return false;
+        }
+        entry.sentNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis - ackTimeoutMillis);
+        entry.resends = Math.max(0, entry.resends - 1);
+        return true;
+    }
+
+    /**
+     * Send again every message that has waited longer than the ack timeout, giving up on those that have already been
+     * sent again the maximum number of times. Called regularly by a timer
+     * @return  messages given up on
+     */
+    public synchronized ArrayList<Message> resendExpired(){
+        ArrayList<Message> givenUp = new ArrayList<>();
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        Iterator<InFlight> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()){
+            InFlight entry = iterator.next();
+            if (now - entry.sentNanos < timeoutNanos){
+                continue;
+            }
+            if (entry.resends >= maxResends){
+                iterator.remove();
+                givenUp.add(entry.message);
+                continue;
+            }
+            entry.resends++;
+            entry.sentNanos = now;
+            transport.accept(entry.message);
+        }
+        fill();
+        return givenUp;
+    }
+
+    /**
+     * Returns the time waited for an acknowledgement before a message is sent again
+     * @return  ack timeout in milliseconds
+     */
+    public long getAckTimeoutMillis(){
+        return ackTimeoutMillis;
+    }
+
+    /**
+     * Returns the number of messages sent and waiting to be acknowledged
+     * @return  messages in flight
+     */
+    public synchronized int getInFlight(){
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the number of messages waiting for room in the window
+     * @return  messages not yet sent
+     */
+    public synchronized int getWaiting(){
+        return waiting.size();
+    }
+
+    /**
+     * Send waiting messages until the window is full. Must be called holding this object's lock
+     */
+    private void fill(){
+        while (inFlight.size() < windowSize && !waiting.isEmpty()){
+            transmit(waiting.poll());
+        }
+    }
+
+    /**
+     * Send a message for the first time. Must be called holding this object's lock
+     * @param message   message to send
+     */
+    private void transmit(Message message){
+        inFlight.put(message.getSequence(), new InFlight(message, System.nanoTime()));
+        transport.accept(message);
+    }
+}
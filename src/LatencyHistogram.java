@@ -0,0 +1,162 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds that can be recorded to from many threads without locking.
+ * Values are grouped into buckets by their highest set bit, with each power of two split into 8 smaller buckets, so
+ * percentiles are accurate to within about 12% whatever the size of the value.
+ *
+ * The buckets are striped: each thread records into one of several copies of the buckets (chosen by its thread id),
+ * so threads recording the same latency at the same time rarely update the same counter. Reading the histogram adds
+ * the stripes together.
+ */
+public class LatencyHistogram {
+    // Each power of two is split into 2^SUB_BUCKET_BITS buckets
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    // Number of copies of the buckets, the number of processors rounded up to a power of two (at most 16)
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Math.max(1, (Runtime.getRuntime().availableProcessors() - 1) << 1)));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record a single latency
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos){
+        nanos = Math.max(0, nanos);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(nanos));
+        sum.add(nanos);
+    }
+
+    /**
+     * Returns the total number of latencies recorded
+     * @return  count of recorded values
+     */
+    public long getCount(){
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++){
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total of every latency recorded
+     * @return  sum of recorded values in nanoseconds
+     */
+    public long getSum(){
+        return sum.sum();
+    }
+
+    /**
+     * Returns the number of latencies recorded at or below each of the given bounds, plus the total count, all
+     * read at the same time so they're consistent with each other. A value is counted against a bound if its bucket
+     * ends at or below the bound, so counts are accurate to the size of the buckets
+     * @param boundsNanos   bounds in nanoseconds, in increasing order
+     * @return  cumulative count for each bound, followed by the total count
+     */
+    public long[] getCumulativeCounts(long[] boundsNanos){
+        long[] merged = mergeStripes();
+        long[] cumulative = new long[boundsNanos.length + 1];
+        long seen = 0;
+        int bound = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            while (bound < boundsNanos.length && upperBoundOf(i) > boundsNanos[bound]){
+                cumulative[bound++] = seen;
+            }
+            seen += merged[i];
+        }
+        while (bound < boundsNanos.length){
+            cumulative[bound++] = seen;
+        }
+        cumulative[boundsNanos.length] = seen;
+        return cumulative;
+    }
+
+    /**
+     * Returns an estimate of the given percentile of all recorded latencies
+     * @param percentile    percentile to calculate, between 0 and 100
+     * @return  latency in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile){
+        long[] merged = mergeStripes();
+        long total = 0;
+        for (long count: merged){
+            total += count;
+        }
+        if (total == 0){
+            return 0;
+        }
+
+        // Walk through the buckets until we've passed the requested number of values
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            seen += merged[i];
+            if (seen >= Math.max(1, target)){
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * Clear all recorded latencies
+     */
+    public void reset(){
+        for (int i = 0; i < counts.length(); i++){
+            counts.set(i, 0);
+        }
+        sum.reset();
+    }
+
+    /**
+     * Add the stripes together
+     * @return  count of each bucket across every stripe
+     */
+    private long[] mergeStripes(){
+        long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++){
+            int offset = stripe * BUCKETS;
+            for (int i = 0; i < BUCKETS; i++){
+                merged[i] += counts.get(offset + i);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns which bucket a value is counted in
+     * @param value value to find the bucket of
+     * @return  index of bucket
+     */
+    private static int bucketOf(long value){
+        if (value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket
+     * @param bucket    index of bucket
+     * @return  upper bound of the bucket
+     */
+    private static long upperBoundOf(int bucket){
+        if (bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lowerBound = (1L << highestBit) + (subBucket << (highestBit - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (highestBit - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,563 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator that simulates many users talking through a Server running on the same machine. It speaks
+ * the same protocol as the Client (login with code 10, direct messages with code 0, disconnect with code 2) but has
+ * no GUI and no SSH tunnel, so it can open thousands of connections.
+ *
+ * Each simulated user logs in over its own connection. Direct messages are then sent between them at a fixed total
+ * rate, from random senders to recipients chosen by the traffic pattern:
+ * - uniform: any other user
+ * - pairs: each user only talks to one partner
+ * - hotspot: 90% of messages go to the first 1% of users
+ * Users can also be churned (disconnected and logged in again) at a fixed rate while messages are flowing.
+ *
+ * Every message carries the time it was due to be sent, and the receiving user records the time from then until it
+ * arrives. Using the due time rather than the time it was actually sent means a stalled sender still shows up in the
+ * latency. Messages sent during the warm up aren't included in the results. A line of progress is printed
+ * periodically, and at the end a report of the p50/p99/p999 latency, throughput and error counts.
+ *
+ * Only connects to the loopback address, so it can't be pointed at someone else's server.
+ *
+ * Settings (Java system properties):
+ * - chat.load.port port the server is listening on (default 34752)
+ * - chat.load.ports ports of several cluster nodes as a comma separated list, users are shared between them in turn so
+ *   messages are routed between the nodes (default only chat.load.port)
+ * - chat.load.users number of simulated users (default 1000)
+ * - chat.load.rate total direct messages sent per second (default 1000)
+ * - chat.load.pattern uniform, pairs or hotspot (default uniform)
+ * - chat.load.messageBytes length of each message's text (default 64)
+ * - chat.load.churnRate users disconnected and logged in again per second (default 0)
+ * - chat.load.senders number of threads sending messages (default 4)
+ * - chat.load.threads platform or virtual, the type of thread reading each user's connection (default platform)
+ * - chat.load.warmupSeconds seconds of sending before results are recorded (default 5)
+ * - chat.load.durationSeconds seconds results are recorded for (default 60)
+ * - chat.load.drainSeconds seconds to wait for messages still on their way at the end (default 5)
+ * - chat.load.reportInterval seconds between progress lines (default 10)
+ * - chat.load.transport plain or tls, whether users connect over plain TCP or TLS, which must match the server's
+ *   chat.server.transport (default plain). TLS uses the trust store from the chat.tls.* settings, see TlsTransport
+ * - chat.codec codec, which must match the server's (default binary)
+ * - chat.compression deflate or none, whether users offer compression when logging in, so the server compresses large
+ *   messages sent to them (default deflate)
+ */
+public class LoadGenerator {
+    /**
+     * How recipients are chosen for each message
+     */
+    public enum Pattern {
+        UNIFORM,
+        PAIRS,
+        HOTSPOT
+    }
+
+    // Settings
+    private final int[] ports;
+    private final int userCount;
+    private final int rate;
+    private final Pattern pattern;
+    private final int messageBytes;
+    private final String compression;
+    private final int churnRate;
+    private final int senders;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int drainSeconds;
+    private final int reportInterval;
+    private final MessageCodec codec;
+
+    // Encrypts each user's connection, null if they're plain TCP
+    private final TlsTransport tls;
+
+    private final VirtualUser[] users;
+    private final ExecutorService readerExecutor;
+    private volatile boolean running = true;
+
+    // Messages due to be sent before this time are part of the warm up and aren't included in the results
+    private volatile long measureStartNanos = Long.MAX_VALUE;
+
+    // Results, recorded by many threads at once
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sentMeasured = new LongAdder();
+    private final LongAdder receivedMeasured = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * Constructor to create a LoadGenerator, reading each setting from the system properties
+     * @throws IOException  if TLS is used and its trust store can't be read
+     */
+    public LoadGenerator() throws IOException {
+        this.ports = parsePorts(System.getProperty("chat.load.ports",
+                Integer.toString(Integer.getInteger("chat.load.port", 34752))));
+        this.userCount = Math.max(2, Integer.getInteger("chat.load.users", 1000));
+        this.rate = Math.max(1, Integer.getInteger("chat.load.rate", 1000));
+        this.pattern = Pattern.valueOf(System.getProperty("chat.load.pattern", "uniform").toUpperCase());
+        this.messageBytes = Math.max(24, Integer.getInteger("chat.load.messageBytes", 64));
+        this.compression = FrameCompressor.isEnabled() ? FrameCompressor.DEFLATE : null;
+        this.churnRate = Math.max(0, Integer.getInteger("chat.load.churnRate", 0));
+        this.senders = Math.max(1, Integer.getInteger("chat.load.senders", 4));
+        this.warmupSeconds = Math.max(0, Integer.getInteger("chat.load.warmupSeconds", 5));
+        this.durationSeconds = Math.max(1, Integer.getInteger("chat.load.durationSeconds", 60));
+        this.drainSeconds = Math.max(0, Integer.getInteger("chat.load.drainSeconds", 5));
+        this.reportInterval = Integer.getInteger("chat.load.reportInterval", 10);
+        this.codec = MessageCodec.fromSystemProperties();
+        this.tls = System.getProperty("chat.load.transport", "plain").equalsIgnoreCase("tls")
+                ? TlsTransport.forClient() : null;
+        this.readerExecutor = HandlerExecutors.create(ServerConfig.ThreadType.valueOf(
+                System.getProperty("chat.load.threads", "platform").toUpperCase()));
+
+        this.users = new VirtualUser[userCount];
+        for (int i = 0; i < userCount; i++){
+            users[i] = new VirtualUser("load-user-" + i, ports[i % ports.length]);
+        }
+    }
+
+    /**
+     * Read a comma separated list of ports
+     * @param list  list of ports
+     * @return  ports
+     */
+    private static int[] parsePorts(String list){
+        String[] parts = list.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++){
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the ports users connect to, for printing
+     * @return  comma separated list of ports
+     */
+    private String portList(){
+        StringBuilder list = new StringBuilder();
+        for (int port: ports){
+            list.append(list.length() == 0 ? "" : ",").append(port);
+        }
+        return list.toString();
+    }
+
+    /**
+     * Main method, runs the load generator with the settings given as system properties
+     * @param args  not used
+     * @throws InterruptedException if interrupted while running
+     * @throws IOException  if TLS is used and its trust store can't be read
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    /**
+     * Log every user in, send messages for the warm up and the measured duration, then print the report
+     * @throws InterruptedException if interrupted while running
+     */
+    public void run() throws InterruptedException {
+        System.out.println("Load generator connecting " + userCount + " users to localhost:" + portList()
+                + (tls != null ? " with TLS" : "") + " (pattern " + pattern.name().toLowerCase() + ", " + rate + " messages/s, churn " + churnRate + "/s)");
+
+        // Log every user in, then wait for the server to reply with their ids
+        long loginStart = System.nanoTime();
+        for (VirtualUser user: users){
+            user.connect();
+        }
+        long loginDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (logins.sum() + connectErrors.sum() < userCount && System.nanoTime() < loginDeadline){
+            Thread.sleep(10);
+        }
+        System.out.printf("Logged in %d users in %.1fs (%d failed)%n", logins.sum(),
+                (System.nanoTime() - loginStart) / 1e9, connectErrors.sum());
+
+        // Start sending, churning and reporting
+        Thread[] senderThreads = new Thread[senders];
+        for (int i = 0; i < senders; i++){
+            senderThreads[i] = new Thread(this::sendLoop, "load-sender-" + i);
+            senderThreads[i].start();
+        }
+        Thread churnThread = null;
+        if (churnRate > 0){
+            churnThread = new Thread(this::churnLoop, "load-churn");
+            churnThread.start();
+        }
+        Thread reporterThread = new Thread(this::reportLoop, "load-reporter");
+        reporterThread.setDaemon(true);
+        reporterThread.start();
+
+        // Warm up, then record results for the measured duration
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        measureStartNanos = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        long measureEndNanos = System.nanoTime();
+
+        // Stop sending and give the messages still on their way time to arrive
+        running = false;
+        for (Thread senderThread: senderThreads){
+            senderThread.join();
+        }
+        if (churnThread != null){
+            churnThread.join();
+        }
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (receivedMeasured.sum() < sentMeasured.sum() && System.nanoTime() < drainDeadline){
+            Thread.sleep(10);
+        }
+
+        reporterThread.interrupt();
+        System.out.println(report((measureEndNanos - measureStartNanos) / 1e9));
+        for (VirtualUser user: users){
+            user.disconnect();
+        }
+    }
+
+    /**
+     * Sender thread, sends this thread's share of the messages at a fixed rate until the load generator stops
+     */
+    private void sendLoop(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * senders / rate;
+        long nextSendNanos = System.nanoTime();
+        String padding = "x".repeat(messageBytes);
+
+        while (running){
+            long now = System.nanoTime();
+            if (now < nextSendNanos){
+                LockSupport.parkNanos(nextSendNanos - now);
+                continue;
+            }
+
+            // Pick a sender and a recipient that are both logged in
+            int senderIndex = random.nextInt(userCount);
+            VirtualUser sender = users[senderIndex];
+            VirtualUser recipient = users[pickRecipient(senderIndex, random)];
+            User senderDetails = sender.getDetails();
+            User recipientDetails = recipient.getDetails();
+            if (senderDetails == null || recipientDetails == null || sender == recipient){
+                skipped.increment();
+            }
+            else {
+                // The text starts with the time the message was due to be sent, padded to the message length
+                String text = nextSendNanos + " ";
+                text = text + padding.substring(Math.min(padding.length(), text.length()));
+                if (sender.send(new Message(null, recipientDetails, text))){
+                    sent.increment();
+                    if (nextSendNanos >= measureStartNanos){
+                        sentMeasured.increment();
+                    }
+                }
+            }
+            // Messages are due at fixed times, so a sender that fell behind catches up rather than lowering the rate
+            nextSendNanos += intervalNanos;
+        }
+    }
+
+    /**
+     * Choose who a message is sent to
+     * @param senderIndex   index of the sending user
+     * @param random    random number generator of the calling thread
+     * @return  index of the recipient
+     */
+    private int pickRecipient(int senderIndex, ThreadLocalRandom random){
+        switch (pattern){
+            case PAIRS:
+                int partner = senderIndex ^ 1;
+                return partner < userCount ? partner : senderIndex - 1;
+            case HOTSPOT:
+                if (random.nextInt(10) < 9){
+                    return random.nextInt(Math.max(1, userCount / 100));
+                }
+                return random.nextInt(userCount);
+            default:
+                return random.nextInt(userCount);
+        }
+    }
+
+    /**
+     * Churn thread, disconnects random users and logs them in again at a fixed rate until the load generator stops
+     */
+    private void churnLoop(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / churnRate;
+        long nextChurnNanos = System.nanoTime();
+        while (running){
+            long now = System.nanoTime();
+            if (now < nextChurnNanos){
+                LockSupport.parkNanos(nextChurnNanos - now);
+                continue;
+            }
+            VirtualUser user = users[random.nextInt(userCount)];
+            user.disconnect();
+            user.connect();
+            nextChurnNanos += intervalNanos;
+        }
+    }
+
+    /**
+     * Reporter thread, prints a line of progress every report interval
+     */
+    private void reportLoop(){
+        if (reportInterval <= 0){
+            return;
+        }
+        long start = System.nanoTime();
+        long lastReceived = 0;
+        while (running){
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(reportInterval));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long receivedNow = received.sum();
+            System.out.printf("LOAD t=%ds sent=%d received=%d rate=%.0f/s p50=%.1fus p99=%.1fus p999=%.1fus " +
+                            "errors=%d%s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), sent.sum(), receivedNow,
+                    (receivedNow - lastReceived) / (double) reportInterval,
+                    intervalLatency.getPercentile(50) / 1000.0, intervalLatency.getPercentile(99) / 1000.0,
+                    intervalLatency.getPercentile(99.9) / 1000.0, getErrors(),
+                    System.nanoTime() < measureStartNanos ? " (warm up)" : "");
+            intervalLatency.reset();
+            lastReceived = receivedNow;
+        }
+    }
+
+    /**
+     * Create the final report of the measured part of the run
+     * @param seconds   length of the measured part in seconds
+     * @return  report
+     */
+    private String report(double seconds){
+        long sentCount = sentMeasured.sum();
+        long receivedCount = receivedMeasured.sum();
+        return String.format("LOAD REPORT users=%d pattern=%s targetRate=%d/s churnRate=%d/s duration=%.1fs%n" +
+                        "  messages: sent=%d received=%d lost=%d skipped=%d throughput=%.1f/s%n" +
+                        "  latency: p50=%.1fus p99=%.1fus p999=%.1fus%n" +
+                        "  sessions: logins=%d disconnects=%d%n" +
+                        "  errors: connect=%d send=%d receive=%d throttled=%d",
+                userCount, pattern.name().toLowerCase(), rate, churnRate, seconds,
+                sentCount, receivedCount, Math.max(0, sentCount - receivedCount), skipped.sum(),
+                receivedCount / seconds,
+                latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0,
+                logins.sum(), disconnects.sum(),
+                connectErrors.sum(), sendErrors.sum(), receiveErrors.sum(), throttled.sum());
+    }
+
+    /**
+     * Returns the total number of errors so far
+     * @return  connect, send and receive errors
+     */
+    private long getErrors(){
+        return connectErrors.sum() + sendErrors.sum() + receiveErrors.sum();
+    }
+
+    /**
+     * Record a direct message arriving at a user
+     * @param message   message received
+     */
+    private void messageReceived(Message message){
+        String text = message.getMessage();
+        int end = text.indexOf(' ');
+        if (end <= 0){
+            return;
+        }
+        long dueNanos;
+        try {
+            dueNanos = Long.parseLong(text, 0, end, 10);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        received.increment();
+        long nanos = System.nanoTime() - dueNanos;
+        intervalLatency.record(nanos);
+        if (dueNanos >= measureStartNanos){
+            receivedMeasured.increment();
+            latency.record(nanos);
+        }
+    }
+
+    /**
+     * A simulated user with its own connection to the server. The connection is read by a thread of its own, and
+     * written to by whichever sender thread picked the user
+     */
+    private class VirtualUser {
+        private final String name;
+        private final int port;
+
+        // Details the user logged in with, null while logged out or waiting for the server to reply with an id
+        private volatile User details;
+
+        // Connection, replaced each time the user logs in again. Guarded by this object
+        private Socket socket;
+        private OutputStream out;
+        private FrameReader reader;
+        private boolean closing = true;
+
+        /**
+         * Constructor to create a VirtualUser that isn't connected yet
+         * @param name  username the user logs in with
+         * @param port  port of the server (or cluster node) the user connects to
+         */
+        VirtualUser(String name, int port){
+            this.name = name;
+            this.port = port;
+        }
+
+        /**
+         * Returns the details of the user while they're logged in
+         * @return  user details, or null if not logged in
+         */
+        User getDetails(){
+            return details;
+        }
+
+        /**
+         * Open a new connection and send a login request. The user counts as logged in once the server replies with
+         * their id (read on the user's reader thread)
+         */
+        synchronized void connect(){
+            try {
+                InetAddress loopback = InetAddress.getLoopbackAddress();
+                socket = tls == null ? new Socket(loopback, port) : tls.connect(loopback.getHostAddress(), port);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), codec);
+                closing = false;
+                MessageFraming.writeFrame(out, codec, new Message(10, name, compression));
+                out.flush();
+            } catch (IOException e) {
+                connectErrors.increment();
+                closing = true;
+                closeSocket();
+                return;
+            }
+            FrameReader connectionReader = reader;
+            readerExecutor.execute(() -> read(connectionReader));
+        }
+
+        /**
+         * Send a message to the server
+         * @param message   message to send
+         * @return  true if it was sent, false if the user isn't connected or the connection failed
+         */
+        synchronized boolean send(Message message){
+            if (closing){
+                return false;
+            }
+            try {
+                MessageFraming.writeFrame(out, codec, message);
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                sendErrors.increment();
+                details = null;
+                closing = true;
+                closeSocket();
+                return false;
+            }
+        }
+
+        /**
+         * Send a disconnect request and close the connection
+         */
+        synchronized void disconnect(){
+            if (closing){
+                return;
+            }
+            User current = details;
+            details = null;
+            closing = true;
+            try {
+                MessageFraming.writeFrame(out, codec,
+                        new Message(2, Integer.toString(current == null ? -1 : current.getUniqueID())));
+                out.flush();
+                disconnects.increment();
+            } catch (IOException e) {
+                sendErrors.increment();
+            }
+            closeSocket();
+        }
+
+        /**
+         * Close the socket, ignoring any errors. Must be called holding this object's lock
+         */
+        private void closeSocket(){
+            if (socket != null){
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+
+        /**
+         * Reader thread for one connection, records the login reply and every direct message until the connection
+         * is closed
+         * @param connectionReader  reader for the connection
+         */
+        private void read(FrameReader connectionReader){
+            try {
+                while (true){
+                    Message message = connectionReader.read();
+                    switch (message.getSpecialCode()){
+                        // Login reply with our id, or nothing if another user online has our name
+                        case 11:
+                            if (message.getMessage() == null){
+                                System.out.println("ERROR: Login rejected, " + name + " is already in use");
+                                break;
+                            }
+                            details = new User(Integer.parseInt(message.getMessage()), name);
+                            if (FrameCompressor.DEFLATE.equals(message.getCompression())){
+                                connectionReader.allowCompressed();
+                            }
+                            logins.increment();
+                            break;
+
+                        // Direct message from another simulated user
+                        case 0:
+                            messageReceived(message);
+                            break;
+
+                        // Heartbeat from the server, answered so quiet users aren't disconnected
+                        case 3:
+                            send(new Message(3, null));
+                            break;
+
+                        // Server's rate limit turned away one of our messages, it's counted as lost
+                        case 6:
+                            throttled.increment();
+                            break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Closed by disconnect() or churn is expected, anything else is an error
+                synchronized (this){
+                    if (reader == connectionReader && !closing){
+                        receiveErrors.increment();
+                        details = null;
+                        closing = true;
+                        closeSocket();
+                    }
+                }
+            }
+        }
+    }
+}
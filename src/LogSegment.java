@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file of a ConversationLog. Records are only ever added to the end of the file. Reads go through a read-only
+ * memory map of the file, which is mapped again only when the file has grown since it was last mapped.
+ * The file's name is its base offset (the log position of its first byte), so the segments sort in log order.
+ *
+ * The file is opened when it's first used and can be released (closed) again, so a log with many segments doesn't need
+ * to keep every file open.
+ */
+public class LogSegment {
+    // File name extension of segment files
+    public static final String EXTENSION = ".seg";
+
+    private final long baseOffset;
+    private final Path path;
+    private FileChannel channel;
+    private long size;
+    private MappedByteBuffer map;
+
+    /**
+     * Constructor to open (or create) a LogSegment
+     * @param directory directory holding the log
+     * @param baseOffset    log position of the segment's first byte
+     * @throws IOException  if the file can't be opened
+     */
+    public LogSegment(Path directory, long baseOffset) throws IOException {
+        this.baseOffset = baseOffset;
+        this.path = directory.resolve(fileName(baseOffset));
+        this.size = channel().size();
+    }
+
+    /**
+     * Returns the segment's open file, opening it if it has been released
+     * @return  file channel
+     * @throws IOException  if the file can't be opened
+     */
+    private FileChannel channel() throws IOException {
+        if (channel == null){
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    /**
+     * Returns whether the segment's file is currently open
+     * @return  true if open
+     */
+    public boolean isOpen(){
+        return channel != null;
+    }
+
+    /**
+     * Returns the name of the file for a segment
+     * @param baseOffset    log position of the segment's first byte
+     * @return  file name, the base offset padded with zeros so names sort in order
+     */
+    public static String fileName(long baseOffset){
+        return String.format("%020d%s", baseOffset, EXTENSION);
+    }
+
+    /**
+     * Add a record to the end of the segment
+     * @param record    bytes of the record, from position to limit
+     * @return  position of the record within the segment
+     * @throws IOException  if the record can't be written
+     */
+    public long append(ByteBuffer record) throws IOException {
+        long position = size;
+        while (record.hasRemaining()){
+            size += channel().write(record, size);
+        }
+        return position;
+    }
+
+    /**
+     * Returns a read-only view of the whole segment, mapping the file again if it has grown
+     * @return  buffer covering the segment from position 0 to its current size
+     * @throws IOException  if the file can't be mapped
+     */
+    public ByteBuffer view() throws IOException {
+        if (map == null || map.capacity() < size){
+            map = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return map.duplicate().limit((int) size);
+    }
+
+    /**
+     * Cut the segment short, used to remove a record that was only partly written before the program stopped
+     * @param newSize   size to cut the segment to
+     * @throws IOException  if the file can't be truncated
+     */
+    public void truncate(long newSize) throws IOException {
+        channel().truncate(newSize);
+        size = newSize;
+        map = null;
+    }
+
+    /**
+     * Write everything appended so far to the disk
+     * @throws IOException  if the data can't be written
+     */
+    public void flush() throws IOException {
+        if (channel != null){
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Close the segment's file. It's opened again if the segment is used afterwards
+     */
+    public void close(){
+        if (channel != null){
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to close log segment " + path);
+            }
+            channel = null;
+        }
+        map = null;
+    }
+
+    /**
+     * Returns the log position of the segment's first byte
+     * @return  base offset
+     */
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Returns the path of the segment's file
+     * @return  path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the number of bytes in the segment
+     * @return  size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+}
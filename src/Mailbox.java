@@ -0,0 +1,595 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores direct messages for users that aren't online and delivers them when the user next logs in (store and
+ * forward). Users are given a new id every time they log in, so mail is kept by the recipient's name.
+ *
+ * Known limitation: logins aren't authenticated, anyone can log in with any name that isn't online (a user whose
+ * session is waiting to be resumed still counts as online, see UserRegistry.claimName()). So whoever next
+ * logs in as a user is given the messages waiting for them, and the mailbox keeps messages private only from users
+ * that can't log in to the server at all. Turn it off (chat.server.mailbox=false) on servers open to people who
+ * shouldn't read each other's mail.
+ *
+ * Stored messages are added to a write-ahead log made of LogSegments in the chat.server.mailboxDir directory, and an
+ * index of each recipient's messages is kept in memory. A single mailbox-writer thread does all the work: it takes
+ * every waiting message from a bounded queue, adds them to the log with a single write and then writes the log to the
+ * disk (fsync) once for the whole batch (group commit).
+ *
+ * Each record is written as:
+ * [length of the rest: int][type: 1 byte][sequence: long][recipient name: string][message payload]
+ * - Message (0): the payload is the message encoded with the BinaryMessageCodec, as a stored message (code 7) so the
+ *   sender's name is kept
+ * - Delivered (1): no payload, every message to the recipient up to and including the sequence has been delivered
+ *
+ * When a user logs in their messages are delivered in bulk, as fast as their outbound queue takes them (the queue is
+ * never filled more than half way, so their other messages still get through). Whatever doesn't fit is delivered
+ * shortly afterwards. While a user still has mail waiting, new messages to them go through the mailbox too, so
+ * everything arrives in the order it was sent.
+ *
+ * Delivered messages are removed by deleting the oldest segments once nothing in them is waiting to be delivered (or
+ * emptying the whole log once every message has been delivered). An old segment that is mostly delivered is compacted
+ * by copying its remaining messages to the newest segment.
+ * After a restart, the index is rebuilt by scanning the log. Messages are delivered at least once: if the server stops
+ * before a delivery is written to the disk, the messages are delivered again after the restart.
+ *
+ * Throughput targets, measured by MailboxBenchmark with the default settings:
+ * - Storing messages: at least 100k messages per second, with one fsync per batch
+ * - Delivering a mailbox of 100k messages on login: read and queued in under 1 second (the client then receives them
+ *   as fast as its connection allows)
+ */
+public class Mailbox implements Runnable {
+    // Record types
+    private static final byte MESSAGE = 0;
+    private static final byte DELIVERED = 1;
+    // Bytes before the record's body: its length
+    private static final int LENGTH_SIZE = 4;
+    // Bytes at the start of the body: type and sequence
+    private static final int FIXED_BODY_SIZE = 9;
+    // Old segments with less than this fraction of their bytes waiting to be delivered are compacted
+    private static final double COMPACT_RATIO = 0.25;
+    // Time to wait before delivering the rest of a mailbox that didn't fit in the user's outbound queue, shorter while
+    // the queue is emptying and longer when nothing could be delivered
+    private static final long RETRY_MILLIS = 1;
+    private static final long STALLED_RETRY_MILLIS = 20;
+
+    private final UserRegistry registry;
+    private final ServerStats stats;
+    private final MessageCodec codec;
+    private final Path directory;
+    private final long segmentBytes;
+    private final long syncIntervalMillis;
+    private final long sendTimeoutMillis;
+
+    // Requests waiting for the writer thread
+    private final ArrayBlockingQueue<Operation> operations;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "mailbox-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Number of messages waiting for each recipient (including those not yet written), read by any thread
+    private final ConcurrentHashMap<String, Integer> waiting = new ConcurrentHashMap<>();
+
+    // Only used by the writer thread: the segments, bytes waiting to be delivered in each segment, each recipient's
+    // messages in the order they were sent, and the sequence of the next message
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private final HashMap<Long, Long> liveBytes = new HashMap<>();
+    private final HashMap<String, ArrayDeque<Entry>> index = new HashMap<>();
+    private LogSegment activeSegment;
+    private long nextSequence = 0;
+    // Base offset of the oldest segment that may have been written to since the last sync
+    private long lastSyncedBase = 0;
+
+    /**
+     * Constructor to open (or create) the mailbox, rebuilding the index of waiting messages from the log. The writer
+     * thread isn't started until start() is called
+     * @param config    server settings containing the mailbox directory, segment size and sync interval
+     * @param registry  registry of online users
+     * @param stats server stats to record stored and delivered messages in
+     * @throws IOException  if the log can't be opened
+     */
+    public Mailbox(ServerConfig config, UserRegistry registry, ServerStats stats) throws IOException {
+        this.registry = registry;
+        this.stats = stats;
+        this.codec = config.getCodec();
+        this.directory = Path.of(config.getMailboxDir());
+        this.segmentBytes = config.getMailboxSegmentBytes();
+        this.syncIntervalMillis = config.getMailboxSyncMillis();
+        this.sendTimeoutMillis = config.getSendTimeoutMillis();
+        this.operations = new ArrayBlockingQueue<>(config.getMailboxQueueSize());
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LogSegment.EXTENSION)) {
+            for (Path file: files){
+                String name = file.getFileName().toString();
+                try {
+                    long baseOffset = Long.parseLong(name.substring(0, name.length() - LogSegment.EXTENSION.length()));
+                    segments.put(baseOffset, new LogSegment(directory, baseOffset));
+                } catch (NumberFormatException e) {
+                    System.out.println("ERROR: Ignoring unknown file in mailbox " + file);
+                }
+            }
+        }
+        if (segments.isEmpty()){
+            segments.put(0L, new LogSegment(directory, 0));
+        }
+        activeSegment = segments.lastEntry().getValue();
+        recover();
+        compact();
+        lastSyncedBase = activeSegment.getBaseOffset();
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start(){
+        Thread writerThread = new Thread(this, "mailbox-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        int messages = 0;
+        for (int count: waiting.values()){
+            messages += count;
+        }
+        System.out.println("Mailbox holds " + messages + " messages for " + waiting.size() + " users");
+    }
+
+    /**
+     * Returns whether a user has messages waiting to be delivered
+     * @param recipient name of the user
+     * @return  true if there are messages waiting
+     */
+    public boolean hasMail(String recipient){
+        return recipient != null && waiting.containsKey(recipient);
+    }
+
+    /**
+     * Store a direct message until its recipient logs in. If the writer has fallen behind and its queue is full, the
+     * caller waits up to the send timeout for space (if it's allowed to wait), otherwise the message is dropped
+     * @param message   direct message to store, with the names of its sender and recipient
+     * @param mayBlock  false if the calling thread must never wait (e.g. an event loop)
+     * @return  true if the message was stored, false if the mailbox is too busy to take it
+     */
+    public boolean store(Message message, boolean mayBlock){
+        String recipient = message.getToUser().getName();
+        if (recipient == null){
+            return false;
+        }
+        waiting.merge(recipient, 1, Integer::sum);
+        Operation store = new Operation(recipient,
+                new Message(7, message.getFromUser(), message.getMessage(), message.getSequence()), null);
+        boolean queued = operations.offer(store);
+        if (!queued && mayBlock){
+            try {
+                queued = operations.offer(store, sendTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!queued){
+            removeWaiting(recipient, 1);
+        }
+        return queued;
+    }
+
+    /**
+     * Deliver any messages waiting for a user that has just logged in (or that were stored while they were online)
+     * @param socketInfo    details of the user and their socket
+     */
+    public void deliver(SocketInfo socketInfo){
+        if (!hasMail(socketInfo.getUser().getName())){
+            return;
+        }
+        if (!operations.offer(new Operation(socketInfo.getUser().getName(), null, socketInfo))){
+            // The writer is busy, try again shortly
+            retryScheduler.schedule(() -> deliver(socketInfo), STALLED_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writer thread, repeatedly takes the waiting requests, stores the messages with a single write and delivers
+     * mailboxes, writing the log to the disk at most once per sync interval
+     */
+    @Override
+    public void run(){
+        List<Operation> batch = new ArrayList<>();
+        List<Operation> stores = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+
+        while (true){
+            try {
+                Operation first;
+                if (unsynced && syncIntervalMillis > 0){
+                    long untilSync = lastSync + syncIntervalMillis - System.currentTimeMillis();
+                    first = operations.poll(Math.max(untilSync, 0), TimeUnit.MILLISECONDS);
+                }
+                else {
+                    first = operations.take();
+                }
+                if (first != null){
+                    batch.add(first);
+                    operations.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                // Store every message before a delivery with a single write, so the delivery includes them
+                for (Operation operation: batch){
+                    if (operation.message != null){
+                        stores.add(operation);
+                        continue;
+                    }
+                    unsynced |= storeAll(stores);
+                    unsynced |= deliverNow(operation.recipient, operation.socketInfo);
+                }
+                unsynced |= storeAll(stores);
+                if (unsynced){
+                    compact();
+                }
+
+                long now = System.currentTimeMillis();
+                if (unsynced && (syncIntervalMillis <= 0 || now - lastSync >= syncIntervalMillis)){
+                    for (LogSegment segment: segments.tailMap(lastSyncedBase, true).values()){
+                        segment.flush();
+                    }
+                    lastSyncedBase = activeSegment.getBaseOffset();
+                    lastSync = now;
+                    unsynced = false;
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to write to the mailbox");
+            }
+            batch.clear();
+            stores.clear();
+        }
+    }
+
+    /**
+     * Add messages to the log with a single write and index them
+     * @param stores    requests to store a message, cleared afterwards
+     * @return  true if anything was written
+     * @throws IOException  if the log can't be written
+     */
+    private boolean storeAll(List<Operation> stores) throws IOException {
+        if (stores.isEmpty()){
+            return false;
+        }
+        ByteBuffer[] records = new ByteBuffer[stores.size()];
+        long[] sequences = new long[records.length];
+        for (int i = 0; i < records.length; i++){
+            Operation store = stores.get(i);
+            sequences[i] = nextSequence++;
+            records[i] = encode(MESSAGE, sequences[i], store.recipient, store.message);
+        }
+
+        long[] offsets = append(records);
+        for (int i = 0; i < records.length; i++){
+            index.computeIfAbsent(stores.get(i).recipient, recipient -> new ArrayDeque<>())
+                    .add(new Entry(sequences[i], offsets[i], records[i].limit()));
+        }
+        stats.mailboxStored(records.length);
+        stores.clear();
+        return true;
+    }
+
+    /**
+     * Queue as many of a user's waiting messages as fit in their outbound queue, then record how far the delivery got.
+     * Anything left is delivered shortly afterwards
+     * @param recipient name of the user
+     * @param socketInfo    details of the user and their socket
+     * @return  true if anything was written to the log
+     * @throws IOException  if the log can't be read or written
+     */
+    private boolean deliverNow(String recipient, SocketInfo socketInfo) throws IOException {
+        ArrayDeque<Entry> entries = index.get(recipient);
+        if (entries == null){
+            return false;
+        }
+
+        // Only deliver to users still online using this socket, otherwise keep the messages for their next login. Users
+        // whose connection has dropped are delivered to once they resume their session
+        ClientConnection connection = socketInfo.getConnection();
+        if (registry.getSocket(socketInfo.getClientID()) != socketInfo || !connection.isOpen()){
+            return false;
+        }
+
+        // Leave half the outbound queue free for the user's other messages
+        int budget = connection.getOutboundQueue().getRemainingCapacity() / 2;
+        int delivered = 0;
+        long lastSequence = -1;
+        while (!entries.isEmpty() && delivered < budget){
+            Entry entry = entries.peekFirst();
+            Message stored = read(entry);
+            try {
+                connection.sendFrame(MessageFraming.encode(codec,
+                        new Message(7, stored.getFromUser(), stored.getMessage(), stored.getSequence())));
+            } catch (IOException e) {
+                // Queue full or connection closed, the message stays in the mailbox
+                break;
+            }
+            entries.pollFirst();
+            liveBytes.merge(segments.floorKey(entry.offset), (long) -entry.length, Long::sum);
+            lastSequence = entry.sequence;
+            delivered++;
+        }
+
+        if (entries.isEmpty()){
+            index.remove(recipient);
+        }
+        else if (registry.getSocket(socketInfo.getClientID()) == socketInfo){
+            retryScheduler.schedule(() -> deliver(socketInfo), delivered > 0 ? RETRY_MILLIS : STALLED_RETRY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (delivered == 0){
+            return false;
+        }
+
+        // Record the delivery so the messages aren't delivered again after a restart
+        append(new ByteBuffer[] {encode(DELIVERED, lastSequence, recipient, null)});
+        removeWaiting(recipient, delivered);
+        stats.mailboxDelivered(delivered);
+        return true;
+    }
+
+    /**
+     * Add records to the end of the log, writing as many as fit in the current segment with a single write
+     * @param records   encoded records
+     * @return  log offset of each record
+     * @throws IOException  if the log can't be written
+     */
+    private long[] append(ByteBuffer[] records) throws IOException {
+        long[] offsets = new long[records.length];
+        int next = 0;
+        while (next < records.length){
+            // Take as many records as fit in the current segment (a segment always takes at least one record)
+            long segmentSize = activeSegment.getSize();
+            int first = next;
+            int batchBytes = 0;
+            while (next < records.length && (segmentSize + batchBytes == 0
+                    || segmentSize + batchBytes + records[next].remaining() <= segmentBytes)){
+                batchBytes += records[next].remaining();
+                next++;
+            }
+
+            // Start a new segment if the next record would take the current one over its maximum size
+            if (next == first){
+                long baseOffset = activeSegment.getBaseOffset() + activeSegment.getSize();
+                activeSegment = new LogSegment(directory, baseOffset);
+                segments.put(baseOffset, activeSegment);
+                continue;
+            }
+
+            ByteBuffer batch = ByteBuffer.allocate(batchBytes);
+            long position = activeSegment.getBaseOffset() + segmentSize;
+            for (int i = first; i < next; i++){
+                offsets[i] = position;
+                position += records[i].remaining();
+                if (records[i].get(LENGTH_SIZE) == MESSAGE){
+                    liveBytes.merge(activeSegment.getBaseOffset(), (long) records[i].remaining(), Long::sum);
+                }
+                batch.put(records[i]);
+            }
+            batch.flip();
+            activeSegment.append(batch);
+        }
+        return offsets;
+    }
+
+    /**
+     * Delete the oldest segments once none of their messages are waiting to be delivered, and compact old segments
+     * that are mostly delivered by copying their waiting messages to the newest segment
+     * @throws IOException  if a segment can't be read, written or deleted
+     */
+    private void compact() throws IOException {
+        // Once every message has been delivered nothing in the log is needed any more, so empty it
+        if (index.isEmpty()){
+            while (segments.size() > 1){
+                LogSegment oldest = segments.pollFirstEntry().getValue();
+                oldest.close();
+                Files.deleteIfExists(oldest.getPath());
+            }
+            liveBytes.clear();
+            if (activeSegment.getSize() > 0){
+                activeSegment.truncate(0);
+            }
+            return;
+        }
+
+        while (segments.size() > 1){
+            LogSegment oldest = segments.firstEntry().getValue();
+            long live = liveBytes.getOrDefault(oldest.getBaseOffset(), 0L);
+            if (live > 0 && live >= oldest.getSize() * COMPACT_RATIO){
+                return;
+            }
+
+            if (live > 0){
+                // Copy the waiting messages to the end of the log, keeping their sequence so the order is unchanged
+                long start = oldest.getBaseOffset();
+                long end = start + oldest.getSize();
+                ByteBuffer view = oldest.view();
+                List<Entry> moved = new ArrayList<>();
+                for (ArrayDeque<Entry> entries: index.values()){
+                    for (Entry entry: entries){
+                        if (entry.offset >= start && entry.offset < end){
+                            moved.add(entry);
+                        }
+                    }
+                }
+                ByteBuffer[] records = new ByteBuffer[moved.size()];
+                for (int i = 0; i < records.length; i++){
+                    int position = (int) (moved.get(i).offset - start);
+                    records[i] = view.duplicate().position(position).limit(position + moved.get(i).length).slice();
+                }
+                long[] offsets = append(records);
+                for (int i = 0; i < records.length; i++){
+                    moved.get(i).offset = offsets[i];
+                }
+                activeSegment.flush();
+            }
+
+            segments.remove(oldest.getBaseOffset());
+            liveBytes.remove(oldest.getBaseOffset());
+            oldest.close();
+            Files.deleteIfExists(oldest.getPath());
+        }
+    }
+
+    /**
+     * Scan the log to rebuild each recipient's waiting messages. Messages covered by a later delivered record are
+     * skipped, and a record only partly written at the end of the log is removed
+     * @throws IOException  if the log can't be read
+     */
+    private void recover() throws IOException {
+        HashMap<String, List<Entry>> found = new HashMap<>();
+        HashMap<String, Long> deliveredUpTo = new HashMap<>();
+
+        for (LogSegment segment: segments.values()){
+            ByteBuffer view = segment.view();
+            int position = 0;
+            while (view.limit() - position >= LENGTH_SIZE + FIXED_BODY_SIZE){
+                int length = view.getInt(position);
+                if (length < FIXED_BODY_SIZE || length > view.limit() - position - LENGTH_SIZE){
+                    break;
+                }
+                byte type = view.get(position + LENGTH_SIZE);
+                long sequence = view.getLong(position + LENGTH_SIZE + 1);
+                String recipient = BinaryMessageCodec.readString(
+                        view.position(position + LENGTH_SIZE + FIXED_BODY_SIZE));
+                if (type == MESSAGE){
+                    found.computeIfAbsent(recipient, name -> new ArrayList<>())
+                            .add(new Entry(sequence, segment.getBaseOffset() + position, LENGTH_SIZE + length));
+                }
+                else {
+                    deliveredUpTo.merge(recipient, sequence, Math::max);
+                }
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                position += LENGTH_SIZE + length;
+            }
+
+            if (position < segment.getSize()){
+                System.out.println("ERROR: Removing incomplete record at the end of " + segment.getPath());
+                segment.truncate(position);
+            }
+        }
+
+        // Keep each recipient's undelivered messages in sequence order, skipping copies left by an interrupted compaction
+        for (Map.Entry<String, List<Entry>> recipient: found.entrySet()){
+            long delivered = deliveredUpTo.getOrDefault(recipient.getKey(), -1L);
+            List<Entry> entries = recipient.getValue();
+            entries.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+
+            ArrayDeque<Entry> waitingEntries = new ArrayDeque<>();
+            long lastSequence = delivered;
+            for (Entry entry: entries){
+                if (entry.sequence > lastSequence){
+                    waitingEntries.add(entry);
+                    liveBytes.merge(segments.floorKey(entry.offset), (long) entry.length, Long::sum);
+                    lastSequence = entry.sequence;
+                }
+            }
+            if (!waitingEntries.isEmpty()){
+                index.put(recipient.getKey(), waitingEntries);
+                waiting.put(recipient.getKey(), waitingEntries.size());
+            }
+        }
+    }
+
+    /**
+     * Read a stored message from the log
+     * @param entry index entry of the message
+     * @return  the stored message
+     * @throws IOException  if the message can't be read
+     */
+    private Message read(Entry entry) throws IOException {
+        LogSegment segment = segments.floorEntry(entry.offset).getValue();
+        ByteBuffer view = segment.view();
+        int position = (int) (entry.offset - segment.getBaseOffset());
+        view.position(position + LENGTH_SIZE + FIXED_BODY_SIZE).limit(position + entry.length);
+        BinaryMessageCodec.readString(view);
+        return BinaryMessageCodec.INSTANCE.decode(view);
+    }
+
+    /**
+     * Encode a record
+     * @param type  MESSAGE or DELIVERED
+     * @param sequence  sequence of the message, or of the last message delivered
+     * @param recipient name of the recipient
+     * @param message   message to store, or null for a delivered record
+     * @return  buffer containing the record, ready to be written
+     * @throws IOException  if the message can't be encoded
+     */
+    private static ByteBuffer encode(byte type, long sequence, String recipient, Message message) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        BinaryMessageCodec.writeString(body, recipient);
+        if (message != null){
+            BinaryMessageCodec.INSTANCE.encode(message, body);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + FIXED_BODY_SIZE + body.size());
+        record.putInt(FIXED_BODY_SIZE + body.size());
+        record.put(type);
+        record.putLong(sequence);
+        record.put(body.toByteArray());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Reduce the number of messages waiting for a user
+     * @param recipient name of the user
+     * @param count number of messages no longer waiting
+     */
+    private void removeWaiting(String recipient, int count){
+        waiting.computeIfPresent(recipient, (name, waitingCount) -> waitingCount > count ? waitingCount - count : null);
+    }
+
+    /**
+     * A request for the writer thread: store a message, or deliver a user's mailbox
+     */
+    private static class Operation {
+        private final String recipient;
+        private final Message message;
+        private final SocketInfo socketInfo;
+
+        private Operation(String recipient, Message message, SocketInfo socketInfo){
+            this.recipient = recipient;
+            this.message = message;
+            this.socketInfo = socketInfo;
+        }
+    }
+
+    /**
+     * Where one waiting message is in the log
+     */
+    private static class Entry {
+        private final long sequence;
+        private long offset;
+        private final int length;
+
+        private Entry(long sequence, long offset, int length){
+            this.sequence = sequence;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
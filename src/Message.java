@@ -9,16 +9,52 @@ import java.util.ArrayList;
  * - User that the message is intended for (optional)
  * - Special code that indicates the purpose of the message
  * - The Message itself
- * - A list of the currently online users (optional)
+ * - A list of the currently online users, or the users that joined and left (optional)
+ * - The presence version the list of users brings the client up to (optional)
+ * - The name of the room the message is for (optional)
+ * - The compression offered when logging in, or agreed in the reply (optional)
+ * - The sequence number the sender gave a direct message, used to acknowledge it (optional, 0 for none)
+ * - The token of the session given when logging in, used to resume it after reconnecting (optional)
+ * - The special code of a frame that was throttled, and when to try again (optional)
+ * - The id of a file transfer, a position in the file and a chunk of its data (optional)
  *
  * There are several special codes which indicates to client and/or server what the purpose of the message is
  * See below a list of current codes:
  * - 0: Normal message
  * - 1: Connection Request
  * - 2: Disconnection Request
+ * - 3: Heartbeat (sent by the server to a quiet client, which answers with a heartbeat of its own)
+ * - 4: Message acknowledged by the server (contains the sequence number, and the reason if it couldn't be routed)
+ * - 5: Message received (sent by the recipient of a direct message back to its sender, contains the sequence number)
+ * - 6: Throttled (the server didn't handle a frame as it was over a rate limit, contains the frame's special code and
+ *   sequence number (or a file chunk's offset), and the time in milliseconds to wait before trying again)
+ * - 7: Stored message (a direct message delivered from the mailbox, contains the sender with their name)
  * - 10: Login request
- * - 11: Login accepted/rejected
- * - 20: Refresh Users
+ * - 11: Login accepted/rejected (contains the user id, and the session token when the server lets sessions be resumed,
+ *   or nothing if another user online is using the name)
+ * - 12: Resume session (sent after reconnecting, contains the session token and the number of frames received)
+ * - 13: Session resumed/rejected (contains the user id if resumed, or nothing if the client must log in again)
+ * - 20: Refresh Users (full snapshot of online users)
+ * - 21: Users joined/left (change to the online users since the previous presence version)
+ * - 22: Request a full snapshot of online users
+ * - 30: Create a room (and join it)
+ * - 31: Join a room
+ * - 32: Leave a room
+ * - 33: Post to a room (from the client), or a post by another member (from the server)
+ * - 34: Joined a room (contains the room's members)
+ * - 35: Room request failed (contains the reason)
+ * - 40: Node hello (sent between cluster nodes when a link opens, contains the sending node's id)
+ * - 41: Node users joined/left (sent between cluster nodes, the users that logged in to or left the sending node)
+ * - 50: File offered (contains the transfer id, the file's name and its size)
+ * - 51: File accepted (contains the transfer id and the number of bytes received so far, sent when the transfer is
+ *   accepted and again after every chunk received)
+ * - 52: File chunk (contains the transfer id, where the chunk starts in the file and the chunk's data)
+ * - 53: File transfer cancelled or declined (contains the transfer id and the reason)
+ *
+ * The sender of a direct message (code 0), message received acknowledgement (code 5) or file transfer frame (codes 50
+ * to 53) is always filled in by the
+ * server from the session of the client that sent it, so clients can't send messages as somebody else. Clients leave it
+ * out, and only the users' ids are sent, clients find the names in their list of online users.
  *
  * This class must be serializable so objects of this type can be sent over a socket
  */
@@ -26,8 +62,20 @@ public class Message implements Serializable{
     private final int specialCode;
     private String message;
     private ArrayList<User> users;
+    private ArrayList<User> leftUsers;
+    private long basePresenceVersion;
+    private long presenceVersion;
     private User fromUser;
     private User toUser;
+    private String room;
+    private String compression;
+    private long sequence;
+    private String sessionToken;
+    private int throttledCode;
+    private long retryAfterMillis;
+    private long transferID;
+    private long offset;
+    private byte[] data;
 
     /**
      * Constructor for standard messages
@@ -42,6 +90,92 @@ public class Message implements Serializable{
         this.message = message;
     }
 
+    /**
+     * Overloaded constructor for direct messages the sender wants acknowledged
+     * @param fromUser user the message is sent from (null when sent by a client, the server fills it in)
+     * @param toUser  user the message is intended for
+     * @param message message to send
+     * @param sequence  sequence number given to the message by the sender (1 or more)
+     */
+    public Message(User fromUser, User toUser, String message, long sequence){
+        this(fromUser, toUser, message);
+        this.sequence = sequence;
+    }
+
+    /**
+     * Overloaded constructor for message received acknowledgements (code 5), sent by the recipient of a direct message
+     * @param fromUser  user that received the direct message (null when sent by a client, the server fills it in)
+     * @param toUser    user that sent the direct message
+     * @param sequence  sequence number of the direct message
+     */
+    public Message(User fromUser, User toUser, long sequence){
+        this.specialCode = 5;
+        this.fromUser = fromUser;
+        this.toUser = toUser;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Overloaded constructor for direct messages delivered from the mailbox (code 7)
+     * @param specialCode   specialCode that indicates purpose of message (7)
+     * @param fromUser  user the message was sent from, including their name
+     * @param message   message that was sent
+     * @param sequence  sequence number given to the message by the sender, or 0 if it didn't have one
+     */
+    public Message(int specialCode, User fromUser, String message, long sequence){
+        this.specialCode = specialCode;
+        this.fromUser = fromUser;
+        this.message = message;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Overloaded constructor for server acknowledgements (code 4)
+     * @param specialCode   specialCode that indicates purpose of message (4)
+     * @param sequence  sequence number of the direct message being acknowledged
+     * @param message   reason the direct message couldn't be routed, or null if it was
+     */
+    public Message(int specialCode, long sequence, String message){
+        this.specialCode = specialCode;
+        this.sequence = sequence;
+        this.message = message;
+    }
+
+    /**
+     * Overloaded constructor for file transfer frames (codes 50 to 53), sent between the two users through the server
+     * @param specialCode   specialCode that indicates purpose of message (50 to 53)
+     * @param fromUser  user the frame is sent from (null when sent by a client, the server fills it in)
+     * @param toUser    user at the other end of the transfer
+     * @param transferID    id the sender gave the transfer
+     * @param offset    the file's size in an offer, the bytes received so far when accepted, or where the chunk's data
+     *                  starts in the file
+     * @param message   file's name in an offer, or the reason a transfer was cancelled
+     * @param data  data of a chunk, null for the other codes
+     */
+    public Message(int specialCode, User fromUser, User toUser, long transferID, long offset, String message,
+                   byte[] data){
+        this.specialCode = specialCode;
+        this.fromUser = fromUser;
+        this.toUser = toUser;
+        this.transferID = transferID;
+        this.offset = offset;
+        this.message = message;
+        this.data = data;
+    }
+
+    /**
+     * Overloaded constructor for throttle replies (code 6)
+     * @param throttledCode special code of the frame that was throttled
+     * @param sequence  sequence number of the throttled direct message, offset of the throttled file chunk, or 0
+     * @param retryAfterMillis  time to wait before sending the frame again
+     */
+    public Message(int throttledCode, long sequence, long retryAfterMillis){
+        this.specialCode = 6;
+        this.throttledCode = throttledCode;
+        this.sequence = sequence;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
     /**
      * Overloaded constructor for special request messages (i.e. login requests)
      * @param specialCode  specialCode that indicates purpose of message
@@ -53,12 +187,102 @@ public class Message implements Serializable{
     }
 
     /**
-     * Overloaded Constructor for user refresh messages
+     * Overloaded constructor for login requests and replies, and resume replies
+     * @param specialCode   specialCode that indicates purpose of message (10, 11 or 13)
+     * @param message   username in a request, or result in a reply
+     * @param compression   compression offered in a request or agreed in a reply, or null for none
+     */
+    public Message(int specialCode, String message, String compression){
+        this.specialCode = specialCode;
+        this.message = message;
+        this.compression = compression;
+    }
+
+    /**
+     * Overloaded constructor for accepted login replies (code 11) that start a session the client can resume
+     * @param userID    unique id given to the user
+     * @param compression   compression agreed, or null for none
+     * @param sessionToken  token the client resumes the session with, or null if sessions can't be resumed
+     */
+    public Message(String userID, String compression, String sessionToken){
+        this(11, userID, compression);
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * Overloaded constructor for resume requests (code 12), sent after reconnecting
+     * @param sessionToken  token given in the login reply
+     * @param received  number of frames received from the server since logging in
+     * @param compression   compression offered, or null for none
+     */
+    public Message(String sessionToken, long received, String compression){
+        this.specialCode = 12;
+        this.sessionToken = sessionToken;
+        this.sequence = received;
+        this.compression = compression;
+    }
+
+    /**
+     * Overloaded Constructor for user refresh messages (full snapshot)
      * @param users list of users that are currently online
+     * @param presenceVersion   presence version of the snapshot
      */
-    public Message(ArrayList<User> users){
+    public Message(ArrayList<User> users, long presenceVersion){
         this.specialCode = 20;
         this.users = users;
+        this.presenceVersion = presenceVersion;
+    }
+
+    /**
+     * Overloaded Constructor for users joined/left messages (change since the previous presence version)
+     * @param joinedUsers   users that have come online
+     * @param leftUsers users that have gone offline
+     * @param basePresenceVersion   presence version the change must be applied on top of
+     * @param presenceVersion   presence version after applying the change
+     */
+    public Message(ArrayList<User> joinedUsers, ArrayList<User> leftUsers, long basePresenceVersion,
+                   long presenceVersion){
+        this.specialCode = 21;
+        this.users = joinedUsers;
+        this.leftUsers = leftUsers;
+        this.basePresenceVersion = basePresenceVersion;
+        this.presenceVersion = presenceVersion;
+    }
+
+    /**
+     * Overloaded Constructor for node users joined/left messages (sent between cluster nodes)
+     * @param joinedUsers   users that have logged in to the sending node
+     * @param leftUsers users that have left the sending node
+     */
+    public Message(ArrayList<User> joinedUsers, ArrayList<User> leftUsers){
+        this.specialCode = 41;
+        this.users = joinedUsers;
+        this.leftUsers = leftUsers;
+    }
+
+    /**
+     * Overloaded Constructor for room messages (create, join, leave, post and failed requests)
+     * @param specialCode   specialCode that indicates purpose of message (30-33 or 35)
+     * @param fromUser  user that posted the message (only for posts)
+     * @param room  name of the room
+     * @param message   text of the post, or reason a request failed
+     */
+    public Message(int specialCode, User fromUser, String room, String message){
+        this.specialCode = specialCode;
+        this.fromUser = fromUser;
+        this.room = room;
+        this.message = message;
+    }
+
+    /**
+     * Overloaded Constructor for joined room messages
+     * @param room  name of the room that was joined
+     * @param members   users that are members of the room
+     */
+    public Message(String room, ArrayList<User> members){
+        this.specialCode = 34;
+        this.room = room;
+        this.users = members;
     }
 
     /**
@@ -94,10 +318,107 @@ public class Message implements Serializable{
     }
 
     /**
-     * Returns arraylist of currently online users
+     * Returns arraylist of currently online users (for a snapshot) or users that have joined (for a change)
      * @return  arraylist of users
      */
     public ArrayList<User> getUsers() {
         return users;
     }
+
+    /**
+     * Returns arraylist of users that have gone offline (for a change)
+     * @return  arraylist of users
+     */
+    public ArrayList<User> getLeftUsers() {
+        return leftUsers;
+    }
+
+    /**
+     * Returns the presence version a change must be applied on top of
+     * @return  base presence version
+     */
+    public long getBasePresenceVersion() {
+        return basePresenceVersion;
+    }
+
+    /**
+     * Returns the presence version of a snapshot, or the version after applying a change
+     * @return  presence version
+     */
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    /**
+     * Returns the name of the room the message is for
+     * @return  room name
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the sequence number the sender gave a direct message, or of the message being acknowledged, or the
+     * number of frames received in a resume request
+     * @return  sequence number, 0 if the message doesn't need acknowledging
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the special code of the frame a throttle reply is about
+     * @return  throttled special code
+     */
+    public int getThrottledCode() {
+        return throttledCode;
+    }
+
+    /**
+     * Returns the time to wait before sending a throttled frame again
+     * @return  retry time in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * Returns the id of the file transfer a frame belongs to
+     * @return  transfer id
+     */
+    public long getTransferID() {
+        return transferID;
+    }
+
+    /**
+     * Returns the position in the file: its size in an offer, the bytes received when accepted, or the start of a chunk
+     * @return  offset in bytes
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the data of a file chunk
+     * @return  chunk data, or null if this isn't a chunk
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the token of the session given in a login reply, or being resumed
+     * @return  session token, or null for none
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Returns the compression offered in a login request or agreed in a login reply
+     * @return  compression name, or null for none
+     */
+    public String getCompression() {
+        return compression;
+    }
 }
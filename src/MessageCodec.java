@@ -0,0 +1,54 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts a Message to and from the bytes of a frame's payload. MessageFraming adds the length header around the
+ * payload, so a codec only needs to deal with the message itself.
+ * Codecs must not keep any state between messages, so one codec object can be shared by every connection.
+ *
+ * Available codecs (chosen with the chat.codec system property, which must match on the client and the server):
+ * - binary: compact versioned binary format, see BinaryMessageCodec (default)
+ * - serialized: Java serialization of the whole Message object, see SerializedMessageCodec
+ */
+public interface MessageCodec {
+    /**
+     * Write the payload for a message
+     * @param message   message to encode
+     * @param out   stream to write the payload to
+     * @throws IOException  if the message can't be encoded
+     */
+    void encode(Message message, ByteArrayOutputStream out) throws IOException;
+
+    /**
+     * Read a message from a payload. The buffer's position is at the start of the payload and its limit is at the end
+     * @param payload   buffer containing the payload
+     * @return  the decoded message
+     * @throws IOException  if the payload isn't a valid message
+     */
+    Message decode(ByteBuffer payload) throws IOException;
+
+    /**
+     * Returns the codec selected by the chat.codec system property
+     * @return  selected codec
+     */
+    static MessageCodec fromSystemProperties(){
+        return forName(System.getProperty("chat.codec", "binary"));
+    }
+
+    /**
+     * Returns the codec with the given name
+     * @param name  name of the codec ("binary" or "serialized")
+     * @return  codec with that name
+     */
+    static MessageCodec forName(String name){
+        switch (name.toLowerCase()){
+            case "binary":
+                return BinaryMessageCodec.INSTANCE;
+            case "serialized":
+                return SerializedMessageCodec.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown message codec " + name);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.*;
+
+/**
+ * Converts Message objects to and from frames that are sent over a socket. Each frame is a 4 byte length followed by
+ * that many bytes of payload. Splitting the stream into frames means a reader can tell when a whole message has
+ * arrived without blocking, which is needed by the non-blocking (nio) server.
+ *
+ * The payload is written and read by a MessageCodec, so no state is shared between frames. Large payloads may be
+ * compressed by a FrameCompressor, which is marked by the top bit of the length header.
+ */
+public final class MessageFraming {
+    // Number of bytes used for the length at the start of each frame
+    public static final int HEADER_SIZE = 4;
+
+    // Largest payload we accept, anything bigger is treated as a broken stream
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private MessageFraming(){
+    }
+
+    /**
+     * Encode a message into a complete frame (length header followed by the payload)
+     * @param codec codec used to write the payload
+     * @param message   message to encode
+     * @return  bytes of the frame
+     * @throws IOException  if the message can't be encoded
+     */
+    public static byte[] encode(MessageCodec codec, Message message) throws IOException {
+        // File chunks are large, so the buffer starts big enough to hold them rather than growing several times
+        byte[] data = message.getData();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data == null ? 128 : data.length + 128);
+
+        // Reserve space for the length, then fill it in once we know how big the payload is
+        bytes.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+        codec.encode(message, bytes);
+
+        byte[] encoded = bytes.toByteArray();
+        int length = encoded.length - HEADER_SIZE;
+        checkLength(length);
+        encoded[0] = (byte) (length >>> 24);
+        encoded[1] = (byte) (length >>> 16);
+        encoded[2] = (byte) (length >>> 8);
+        encoded[3] = (byte) length;
+        return encoded;
+    }
+
+    /**
+     * Write a message as a single frame to an output stream and flush it
+     * @param out   stream to write to
+     * @param codec codec used to write the payload
+     * @param message   message to write
+     * @throws IOException  if the stream is closed
+     */
+    public static void writeFrame(OutputStream out, MessageCodec codec, Message message) throws IOException {
+        out.write(encode(codec, message));
+        out.flush();
+    }
+
+    /**
+     * Returns whether a frame's payload is compressed
+     * @param header    length header read from the frame
+     * @return  true if the payload must be decompressed with a FrameCompressor
+     */
+    public static boolean isCompressed(int header){
+        return (header & FrameCompressor.COMPRESSED_FLAG) != 0;
+    }
+
+    /**
+     * Returns the length of a frame's payload, checking it's one we're willing to read. A compressed frame is only
+     * accepted once compression has been agreed in the login (or resume) reply, so a client that never offered it
+     * can't make the server inflate payloads
+     * @param header    length header read from the frame
+     * @param compressionAgreed true if compressed frames are expected on this connection
+     * @return  length of the payload in bytes (compressed if isCompressed() is true)
+     * @throws IOException  if the length is invalid, or the frame is compressed when compression wasn't agreed
+     */
+    public static int payloadLength(int header, boolean compressionAgreed) throws IOException {
+        if (isCompressed(header) && !compressionAgreed){
+            throw new IOException("Compressed frame received but compression wasn't agreed");
+        }
+        int length = header & ~FrameCompressor.COMPRESSED_FLAG;
+        checkLength(length);
+        return length;
+    }
+
+    /**
+     * Check the length read from a frame header is one we're willing to read
+     * @param length    length read from the header
+     * @throws IOException  if the length is invalid
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE){
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+}
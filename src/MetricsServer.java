@@ -0,0 +1,307 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the server's stats at http://127.0.0.1:34753/metrics in the Prometheus text format, using the HTTP server
+ * built into the JDK. Nothing is worked out until the page is requested, so the endpoint costs nothing while nobody is
+ * reading it, and reading it never holds up the threads recording the stats.
+ *
+ * Served metrics:
+ * - Counters of accepted connections, logins, disconnects, messages routed, frames and bytes in and out, dropped
+ *   frames, compression, slow consumers, presence coalescing, mailbox and room traffic, and connections closed by
+ *   the ConnectionReaper for each reason
+ * - Gauges of active connections, queued frames, the deepest outbound queue and used heap
+ * - Cluster counters of messages forwarded to and from other nodes, and gauges of the users on other nodes and the
+ *   nodes connected to
+ * - Histograms of accept handoff time, routing latency and broadcast time (presence and room)
+ * - For each online user (unless chat.server.metricsPerConnection is false), their frames and bytes in and out and the
+ *   depth of their outbound queue
+ */
+public class MetricsServer {
+    // Histogram bucket bounds in nanoseconds, from 1us to 10s
+    private static final long[] BUCKET_BOUNDS = {
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000, 250_000_000, 500_000_000,
+            1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+    private static final String[] BUCKET_LABELS = new String[BUCKET_BOUNDS.length];
+
+    // Name and description of each metric given for every online user, the queue depth first and then the counters
+    private static final String[][] PER_CONNECTION_METRICS = {
+            {"chat_connection_outbound_queue_depth", "Frames waiting to be written to the client"},
+            {"chat_connection_frames_received_total", "Frames read from the client"},
+            {"chat_connection_bytes_received_total", "Bytes read from the client"},
+            {"chat_connection_frames_sent_total", "Frames written to the client"},
+            {"chat_connection_bytes_sent_total", "Bytes written to the client"}
+    };
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++){
+            BUCKET_LABELS[i] = seconds(BUCKET_BOUNDS[i]);
+        }
+    }
+
+    private final ServerConfig config;
+    private final ServerStats stats;
+    private final Cluster cluster;
+    private HttpServer httpServer;
+
+    /**
+     * Constructor to create a MetricsServer, the endpoint isn't opened until start() is called
+     * @param config    server settings containing the metrics address and port
+     * @param stats server stats to serve
+     * @param cluster   links to the other nodes of the cluster, or null if the server runs on its own
+     */
+    public MetricsServer(ServerConfig config, ServerStats stats, Cluster cluster){
+        this.config = config;
+        this.stats = stats;
+        this.cluster = cluster;
+    }
+
+    /**
+     * Open the endpoint and start serving requests on a background thread
+     * @throws IOException  if the port can't be opened
+     */
+    public void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(config.getMetricsAddress(), config.getMetricsPort()), 0);
+        httpServer.createContext("/metrics", this::handle);
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+        System.out.println("Serving metrics at http://" + config.getMetricsAddress() + ":" + config.getMetricsPort()
+                + "/metrics");
+    }
+
+    /**
+     * Respond to a request for the metrics page
+     * @param exchange  request and response
+     * @throws IOException  if the response can't be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")){
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (exchange.getRequestMethod().equals("HEAD")){
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()){
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Create the metrics page from the current stats
+     * @return  metrics in the Prometheus text format
+     */
+    public String render(){
+        StringBuilder out = new StringBuilder(4096);
+
+        // Connections and sessions
+        gauge(out, "chat_connections_active", "Clients currently connected", stats.getActiveConnections());
+        counter(out, "chat_connections_accepted_total", "Client connections accepted", stats.getConnectionsAccepted());
+        counter(out, "chat_logins_total", "Clients that logged in", stats.getLogins());
+        counter(out, "chat_disconnects_total", "Client connections closed", stats.getDisconnects());
+        out.append("# HELP chat_connections_reaped_total Connections closed because the client stopped responding "
+                + "(idle) or never logged in (login)\n");
+        out.append("# TYPE chat_connections_reaped_total counter\n");
+        out.append("chat_connections_reaped_total{reason=\"idle\"} ").append(stats.getReapedIdle()).append('\n');
+        out.append("chat_connections_reaped_total{reason=\"login\"} ").append(stats.getReapedLogin()).append('\n');
+        counter(out, "chat_sessions_suspended_total", "Sessions kept for the client to resume after its connection "
+                + "dropped", stats.getSessionsSuspended());
+        counter(out, "chat_sessions_resumed_total", "Sessions resumed on a new connection", stats.getSessionsResumed());
+        counter(out, "chat_session_resumes_rejected_total", "Resume requests turned down, the client logged in again",
+                stats.getResumesRejected());
+        counter(out, "chat_sessions_expired_total", "Suspended sessions ended because they weren't resumed in time",
+                stats.getSessionsExpired());
+        counter(out, "chat_frames_replayed_total", "Frames sent again to clients that resumed their session",
+                stats.getFramesReplayed());
+        counter(out, "chat_file_frames_relayed_total", "File transfer frames passed on between users",
+                stats.getFileFramesRelayed());
+        counter(out, "chat_file_bytes_relayed_total", "Bytes of file data passed on between users",
+                stats.getFileBytesRelayed());
+
+        // Frames over a rate limit, only the codes that have been throttled are listed
+        out.append("# HELP chat_frames_throttled_total Frames from clients not handled because they were over the "
+                + "user's own (user) or the server's (global) rate limit, by special code\n");
+        out.append("# TYPE chat_frames_throttled_total counter\n");
+        for (int code = 0; code <= 64; code++){
+            for (boolean global: new boolean[]{false, true}){
+                long throttled = stats.getFramesThrottled(code, global);
+                if (throttled > 0){
+                    out.append("chat_frames_throttled_total{code=\"")
+                            .append(code < 64 ? Integer.toString(code) : "other").append("\",limit=\"").append(global ? "global" : "user").append("\"} ")
+                            .append(throttled).append('\n');
+                }
+            }
+        }
+
+        // Traffic
+        counter(out, "chat_messages_routed_total", "Direct messages routed straight to their recipient",
+                stats.getMessagesRouted());
+        counter(out, "chat_frames_received_total", "Frames read from clients", stats.getFramesReceived());
+        counter(out, "chat_bytes_received_total", "Bytes read from clients", stats.getBytesReceived());
+        counter(out, "chat_frames_sent_total", "Frames written to clients", stats.getFramesSent());
+        counter(out, "chat_bytes_sent_total", "Bytes written to clients", stats.getBytesSent());
+        counter(out, "chat_frames_compressed_total", "Frames compressed before being written to clients",
+                stats.getFramesCompressed());
+        counter(out, "chat_compression_bytes_saved_total", "Bytes saved by compressing frames",
+                stats.getCompressionBytesSaved());
+        counter(out, "chat_frames_dropped_total", "Frames dropped because an outbound queue was full",
+                stats.getFramesDropped());
+        counter(out, "chat_slow_consumers_disconnected_total",
+                "Clients disconnected because their outbound queue was full", stats.getSlowConsumersDisconnected());
+        counter(out, "chat_presence_changes_coalesced_total", "Presence changes merged into another broadcast",
+                stats.getPresenceChangesCoalesced());
+        counter(out, "chat_presence_bytes_saved_total", "Bytes saved by coalescing presence changes",
+                stats.getPresenceBytesSaved());
+        counter(out, "chat_presence_snapshots_reused_total", "Times the encoded list of online users was reused",
+                stats.getPresenceSnapshotsReused());
+        counter(out, "chat_mailbox_stored_total", "Messages stored for offline users", stats.getMailboxStored());
+        counter(out, "chat_mailbox_delivered_total", "Messages delivered from the mailbox", stats.getMailboxDelivered());
+        counter(out, "chat_room_posts_total", "Posts to rooms", stats.getRoomPosts());
+        counter(out, "chat_room_frames_sent_total", "Frames room posts were fanned out to", stats.getRoomFramesSent());
+
+        // Outbound queues, and each connection's counts (each metric's lines must be kept together, so they're
+        // collected separately then added one metric after another)
+        long queuedFrames = 0;
+        int maxQueueDepth = 0;
+        StringBuilder[] perConnection = new StringBuilder[PER_CONNECTION_METRICS.length];
+        for (int i = 0; i < perConnection.length; i++){
+            perConnection[i] = new StringBuilder();
+        }
+        for (SocketInfo socketInfo: stats.getRegistry().getSockets()){
+            ClientConnection connection = socketInfo.getConnection();
+            int depth = connection.getOutboundQueue().getDepth();
+            queuedFrames += depth;
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+            if (config.isMetricsPerConnection()){
+                ConnectionStats connectionStats = connection.getStats();
+                long[] values = {depth, connectionStats.getFramesReceived(), connectionStats.getBytesReceived(),
+                        connectionStats.getFramesSent(), connectionStats.getBytesSent()};
+                for (int i = 0; i < values.length; i++){
+                    perConnection[i].append(PER_CONNECTION_METRICS[i][0]).append("{user=\"")
+                            .append(socketInfo.getClientID()).append("\"} ").append(values[i]).append('\n');
+                }
+            }
+        }
+        gauge(out, "chat_outbound_queued_frames", "Frames waiting to be written across every client", queuedFrames);
+        gauge(out, "chat_outbound_queue_depth_max", "Frames waiting in the deepest outbound queue", maxQueueDepth);
+        if (config.isMetricsPerConnection()){
+            for (int i = 0; i < perConnection.length; i++){
+                out.append("# HELP ").append(PER_CONNECTION_METRICS[i][0]).append(' ')
+                        .append(PER_CONNECTION_METRICS[i][1]).append('\n');
+                out.append("# TYPE ").append(PER_CONNECTION_METRICS[i][0]).append(' ')
+                        .append(i == 0 ? "gauge" : "counter").append('\n');
+                out.append(perConnection[i]);
+            }
+        }
+
+        // Cluster
+        if (cluster != null){
+            gauge(out, "chat_cluster_links_connected", "Other nodes of the cluster this node is connected to",
+                    cluster.getConnectedLinks());
+            gauge(out, "chat_cluster_remote_users", "Users logged in to other nodes of the cluster",
+                    stats.getRegistry().remoteSize());
+            counter(out, "chat_cluster_messages_forwarded_total", "Direct messages forwarded to other nodes",
+                    stats.getClusterForwarded());
+            counter(out, "chat_cluster_messages_received_total", "Direct messages forwarded to us by other nodes",
+                    stats.getClusterReceived());
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        gauge(out, "chat_heap_used_bytes", "Heap in use", runtime.totalMemory() - runtime.freeMemory());
+
+        // Latencies
+        histogram(out, "chat_accept_latency_seconds", "Time from accepting a client to its handler taking it", null,
+                stats.getAcceptLatency(), true);
+        histogram(out, "chat_routing_latency_seconds", "Time taken to route a direct message", null,
+                stats.getRoutingLatency(), true);
+        histogram(out, "chat_broadcast_seconds", "Time taken to queue a broadcast to every recipient",
+                "type=\"presence\"", stats.getPresenceBroadcastTime(), true);
+        histogram(out, "chat_broadcast_seconds", null, "type=\"room\"", stats.getRoomBroadcastTime(), false);
+        return out.toString();
+    }
+
+    /**
+     * Add a counter to the page
+     * @param out   page being created
+     * @param name  metric name
+     * @param help  description of the metric
+     * @param value current value
+     */
+    private static void counter(StringBuilder out, String name, String help, long value){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Add a gauge to the page
+     * @param out   page being created
+     * @param name  metric name
+     * @param help  description of the metric
+     * @param value current value
+     */
+    private static void gauge(StringBuilder out, String name, String help, long value){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Add a histogram to the page, in seconds
+     * @param out   page being created
+     * @param name  metric name
+     * @param help  description of the metric
+     * @param labels    labels separating this histogram from others with the same name, or null if there are none
+     * @param histogram histogram of nanosecond values
+     * @param header    true to add the HELP and TYPE lines (only for the first histogram with this name)
+     */
+    private static void histogram(StringBuilder out, String name, String help, String labels,
+                                  LatencyHistogram histogram, boolean header){
+        if (header){
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+        }
+        String prefix = labels == null ? "" : labels + ",";
+        String suffix = labels == null ? "" : "{" + labels + "}";
+
+        long[] cumulative = histogram.getCumulativeCounts(BUCKET_BOUNDS);
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++){
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(BUCKET_LABELS[i]).append("\"} ")
+                    .append(cumulative[i]).append('\n');
+        }
+        long count = cumulative[BUCKET_BOUNDS.length];
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(count).append('\n');
+    }
+
+    /**
+     * Convert nanoseconds to seconds, written without an exponent
+     * @param nanos value in nanoseconds
+     * @return  value in seconds
+     */
+    private static String seconds(long nanos){
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+}
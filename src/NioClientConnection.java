@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection to a client served by an EventLoop using a non-blocking channel.
+ * Reads are gathered until a whole frame has arrived, then the message is handed to the ServerResponse for this
+ * client. Writes are queued on the connection's OutboundQueue and written by the event loop (the single writer) in
+ * batches, using one gathering write per batch, whenever the channel is ready to accept more data.
+ *
+ * When the server uses TLS, every read and write goes through the connection's TlsChannel, which decrypts and encrypts
+ * the frames and carries out the handshake.
+ */
+public class NioClientConnection implements ClientConnection {
+    // Size the inbound buffer starts at, and is shrunk back to once a large frame has been read
+    private static final int INBOUND_BUFFER_SIZE = 1024;
+
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private final EventLoop eventLoop;
+    private final MessageCodec codec;
+    private SelectionKey key;
+    private ServerResponse response;
+
+    // Bytes read from the client that don't yet make up a whole frame. Compressed frames are only accepted once
+    // compression has been agreed, and the decompressor is created when the first one arrives
+    private ByteBuffer inbound = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+    private volatile boolean compressionAgreed = false;
+    private FrameCompressor decompressor;
+
+    // Frames waiting to be written to the client, and the batch of frames currently being written
+    private final OutboundQueue outboundQueue;
+    private final ConnectionStats stats;
+    private final int writeBatchSize;
+    private final ArrayList<byte[]> batch = new ArrayList<>();
+    private ByteBuffer[] pendingWrite = null;
+
+    // Compresses large frames once the client has agreed to it, set by the ServerResponse when the client logs in
+    private volatile FrameCompressor compressor;
+
+    // Adds the frames written to the session's replay buffer once the client has a session. Frames are only taken off
+    // the queue and recorded while holding recordLock, so they're recorded in the order they were queued even when
+    // close() is called from another thread while the event loop is writing. closed is guarded by recordLock too
+    private volatile ReplayBuffer.Recorder recorder;
+    private final Object recordLock = new Object();
+    private boolean closed = false;
+
+    // Set while a write task is waiting to run on the event loop, so many sends only wake the event loop once
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    /**
+     * Constructor to create a NioClientConnection
+     * @param channel   channel connected to the client
+     * @param tls   encrypts the channel, or null if the server doesn't use TLS
+     * @param eventLoop event loop the channel is registered with
+     * @param codec codec used to encode and decode messages
+     * @param outboundQueue queue of frames waiting to be written to the client
+     * @param stats counts of frames and bytes sent and received on this connection
+     * @param writeBatchSize    largest number of frames written in one gathering write
+     */
+    public NioClientConnection(SocketChannel channel, TlsChannel tls, EventLoop eventLoop, MessageCodec codec,
+                               OutboundQueue outboundQueue, ConnectionStats stats, int writeBatchSize){
+        this.channel = channel;
+        this.tls = tls;
+        this.eventLoop = eventLoop;
+        this.codec = codec;
+        this.outboundQueue = outboundQueue;
+        this.stats = stats;
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Set the selection key and ServerResponse used by this connection, called once the channel is registered
+     * @param key   key of the channel in the event loop's selector
+     * @param response  object that responds to messages from this client
+     */
+    public void attach(SelectionKey key, ServerResponse response){
+        this.key = key;
+        this.response = response;
+    }
+
+    /**
+     * Read whatever data is available and pass each complete message onto the ServerResponse.
+     * Must only be called from the event loop thread
+     * @param bufferPool    pool to borrow a read buffer from
+     */
+    public void handleRead(BufferPool bufferPool){
+        ArrayList<Message> messages = new ArrayList<>();
+        ByteBuffer readBuffer = bufferPool.acquire();
+        try {
+            long total = 0;
+            while (true){
+                // Read until the channel has no more data available or the buffer is full
+                int read = tls == null ? channel.read(readBuffer) : tls.read(readBuffer);
+                if (read < 0){
+                    close();
+                    return;
+                }
+                total += read;
+
+                readBuffer.flip();
+                appendInbound(readBuffer);
+                readBuffer.clear();
+
+                // Data TLS has already taken off the channel won't wake the selector again, so read it now
+                if (read == 0 || tls == null || !tls.hasBufferedInput()){
+                    break;
+                }
+            }
+            readFrames(messages);
+            stats.received(messages.size(), total);
+
+            // Reading may have finished the handshake (so frames held back can be written) or left handshake messages
+            // waiting to be written
+            if (tls != null && (pendingWrite != null || tls.hasPendingOutput())){
+                handleWrite();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        } finally {
+            bufferPool.release(readBuffer);
+        }
+
+        // Respond to each message in the order they were received
+        for (Message message: messages){
+            if (!response.handleMessage(message)){
+                close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write as many queued frames as the channel will accept. Must only be called from the event loop thread
+     */
+    public void handleWrite(){
+        if (!key.isValid()){
+            // Connection has already been closed
+            return;
+        }
+        try {
+            while (true){
+                // Take the next batch of waiting frames, if there's no batch already part written
+                if (pendingWrite == null){
+                    int taken = takeBatch();
+                    if (taken < 0){
+                        // Closed by another thread while writing
+                        return;
+                    }
+                    if (taken == 0){
+                        if (tls != null && !tls.flush()){
+                            // Encrypted bytes are still waiting, carry on once the channel has room
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        // Nothing left to write so stop listening for write readiness
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingWrite = new ByteBuffer[batch.size()];
+                    FrameCompressor batchCompressor = compressor;
+                    if (batchCompressor != null){
+                        // The previous batch has been written so its compressed frames are no longer needed
+                        batchCompressor.resetOutput();
+                    }
+                    int compressedFrames = 0;
+                    long bytesSaved = 0;
+                    for (int i = 0; i < pendingWrite.length; i++){
+                        byte[] frame = batch.get(i);
+                        ByteBuffer compressed = batchCompressor == null ? null : batchCompressor.compress(frame);
+                        if (compressed != null){
+                            pendingWrite[i] = compressed;
+                            compressedFrames++;
+                            bytesSaved += frame.length - compressed.remaining();
+                        } else {
+                            pendingWrite[i] = ByteBuffer.wrap(frame);
+                        }
+                    }
+                    if (compressedFrames > 0){
+                        stats.compressed(compressedFrames, bytesSaved);
+                    }
+                }
+
+                // Write the whole batch with a single call
+                long written = tls == null ? channel.write(pendingWrite) : tls.write(pendingWrite);
+                boolean finished = !pendingWrite[pendingWrite.length - 1].hasRemaining();
+                stats.sent(finished ? pendingWrite.length : 0, written);
+                if (!finished){
+                    if (tls == null || tls.hasPendingOutput()){
+                        // Channel is full, wait until the selector tells us we can write again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    // Otherwise the TLS handshake is waiting for the client, handleRead() writes once it has finished
+                    return;
+                }
+                pendingWrite = null;
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Returns whether TLS has already read data from the channel that hasn't been handled, which the selector won't
+     * report as ready to read
+     * @return  true if handleRead() should be called
+     */
+    public boolean hasBufferedInput(){
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        sendFrame(MessageFraming.encode(codec, message));
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) throws IOException {
+        // No event loop may wait (a message handled on one event loop is often sent to a client on another), so only
+        // other threads may block on a full queue
+        queueFrame(frame, !EventLoop.isEventLoopThread());
+    }
+
+    @Override
+    public boolean trySendFrame(byte[] frame) {
+        try {
+            queueFrame(frame, false);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Add a frame to the outbound queue, applying the slow consumer policy if it's full
+     * @param frame complete frame (length header and payload)
+     * @param mayBlock  false if the calling thread must never wait for space
+     * @throws IOException  if the connection is closed or the outbound queue is full
+     */
+    private void queueFrame(byte[] frame, boolean mayBlock) throws IOException {
+        if (!channel.isOpen()){
+            throw new IOException("Connection is closed");
+        }
+        if (!outboundQueue.offer(frame, mayBlock)){
+            if (outboundQueue.getPolicy() == OutboundQueue.SlowConsumerPolicy.DISCONNECT){
+                close();
+                throw new IOException("Outbound queue is full, disconnecting slow client");
+            }
+            throw new IOException("Outbound queue is full, frame dropped");
+        }
+
+        // If the connection closed while the frame was being added, close() may have already taken the unsent frames,
+        // so nobody would write or record this one. Take it back so the sender knows it wasn't sent
+        if (!channel.isOpen() && outboundQueue.remove(frame)){
+            throw new IOException("Connection is closed");
+        }
+
+        // Writes must happen on the event loop thread, so ask the event loop to write for us. Only one write task is
+        // scheduled at a time, so frames sent while it waits to run are written in the same batch
+        if (writeScheduled.compareAndSet(false, true)){
+            eventLoop.execute(() -> {
+                writeScheduled.set(false);
+                handleWrite();
+            });
+        }
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor) {
+        this.compressor = compressor;
+        this.compressionAgreed = true;
+    }
+
+    @Override
+    public void recordSent(ReplayBuffer.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Close the connection. Frames that were never written are added to the session's replay buffer before this
+     * returns (if the client has a session), so they can be sent again if it resumes
+     */
+    @Override
+    public void close() {
+        synchronized (recordLock){
+            if (closed){
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to close client channel");
+            }
+            ArrayList<byte[]> unsent = new ArrayList<>();
+            outboundQueue.drainTo(unsent, Integer.MAX_VALUE);
+            record(unsent);
+        }
+
+        // Closing the channel cancels its key so the event loop won't see the client leave, tell the ServerResponse
+        // on the event loop thread instead (does nothing if the client already sent a disconnect request). The
+        // compressor is only used on the event loop thread so it's closed there too
+        eventLoop.execute(() -> {
+            FrameCompressor closingCompressor = compressor;
+            if (closingCompressor != null){
+                compressor = null;
+                closingCompressor.close();
+            }
+            response.connectionClosed();
+        });
+    }
+
+    /**
+     * Take the next batch of waiting frames to write, adding them to the session's replay buffer. Must only be called
+     * from the event loop thread
+     * @return  number of frames taken, or -1 if the connection has closed (close() takes the frames that are left)
+     */
+    private int takeBatch(){
+        batch.clear();
+        synchronized (recordLock){
+            if (closed){
+                return -1;
+            }
+            int taken = outboundQueue.drainTo(batch, writeBatchSize);
+            record(batch);
+            return taken;
+        }
+    }
+
+    /**
+     * Add frames taken off the outbound queue to the session's replay buffer, if the client has a session. Must only be
+     * called while holding recordLock
+     * @param frames    frames in the order they were taken
+     */
+    private void record(ArrayList<byte[]> frames){
+        ReplayBuffer.Recorder batchRecorder = recorder;
+        if (batchRecorder == null){
+            return;
+        }
+        for (byte[] frame: frames){
+            batchRecorder.taken(frame);
+        }
+    }
+
+    /**
+     * Add newly read bytes to the end of the inbound buffer, growing it if needed
+     * @param data  bytes that have just been read
+     */
+    private void appendInbound(ByteBuffer data) throws IOException {
+        if (inbound.remaining() < data.remaining()){
+            int needed = inbound.position() + data.remaining();
+            if (needed > MessageFraming.MAX_FRAME_SIZE + MessageFraming.HEADER_SIZE){
+                throw new IOException("Frame too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, inbound.capacity() * 2));
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        }
+        inbound.put(data);
+    }
+
+    /**
+     * Decode every complete frame in the inbound buffer, leaving any partial frame behind
+     * @param messages  list to add the decoded messages to
+     */
+    private void readFrames(ArrayList<Message> messages) throws IOException {
+        inbound.flip();
+        while (inbound.remaining() >= MessageFraming.HEADER_SIZE){
+            int header = inbound.getInt(inbound.position());
+            int length = MessageFraming.payloadLength(header, compressionAgreed);
+            if (inbound.remaining() < MessageFraming.HEADER_SIZE + length){
+                // Rest of the frame hasn't arrived yet
+                break;
+            }
+
+            int start = inbound.position() + MessageFraming.HEADER_SIZE;
+            if (MessageFraming.isCompressed(header)){
+                if (decompressor == null){
+                    decompressor = FrameCompressor.fromSystemProperties();
+                }
+                messages.add(codec.decode(decompressor.decompress(inbound.array(), inbound.arrayOffset() + start,
+                        length)));
+            } else {
+                messages.add(codec.decode(ByteBuffer.wrap(inbound.array(), inbound.arrayOffset() + start, length)));
+            }
+            inbound.position(start + length);
+        }
+        inbound.compact();
+
+        // Drop a buffer grown to fit a large frame once it's empty, so an idle connection only keeps a small one
+        if (inbound.position() == 0 && inbound.capacity() > INBOUND_BUFFER_SIZE){
+            inbound = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the server using non-blocking channels. A fixed number of EventLoop threads (by default one per core) share
+ * every client, so idle clients don't each need their own thread. Clients accepted by the ConnectionListener are
+ * handed to the event loops in turn.
+ */
+public class NioServer {
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * Constructor to create a NioServer, creating (but not starting) its event loops
+     * @param serverObject  the server object/instantiation, so clients can access Server methods
+     * @param config    settings of the server
+     * @throws IOException  if the event loops can't be created
+     */
+    public NioServer(Server serverObject, ServerConfig config) throws IOException {
+        BufferPool bufferPool = new BufferPool(config.getReadBufferSize());
+        TlsTransport tls = serverObject.getTls();
+        BufferPool tlsBufferPool = tls == null ? null : new BufferPool(tls.getBufferSize());
+        this.eventLoops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < eventLoops.length; i++){
+            eventLoops[i] = new EventLoop(serverObject, bufferPool, tlsBufferPool);
+        }
+    }
+
+    /**
+     * Start the event loops
+     */
+    public void start(){
+        for (int i = 0; i < eventLoops.length; i++){
+            eventLoops[i].start("event-loop-" + i);
+        }
+        System.out.println("Serving clients with " + eventLoops.length + " event loops");
+    }
+
+    /**
+     * Hand a newly accepted client to the next event loop, spreading clients evenly across the event loops.
+     * Safe to call from several acceptor threads at once
+     * @param clientChannel channel connected to the new client
+     */
+    public void register(SocketChannel clientChannel){
+        int index = Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length);
+        eventLoops[index].register(clientChannel);
+    }
+}
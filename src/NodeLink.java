@@ -0,0 +1,244 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A persistent connection from this node to another node of the cluster, used to send it every forwarded message and
+ * every change to this node's users. Messages for all of the other node's users share the one connection, each frame
+ * says which user it's for.
+ *
+ * Frames are queued and written by the link's own thread in batches, flushing once per batch, so a slow node never
+ * holds up the thread sending to it. Each time the connection opens the link first sends a hello (code 40) and the
+ * full list of this node's users (code 41), so the other node is back up to date after a reconnect. If the connection
+ * is lost, direct messages still waiting to be written (which their senders have already been told were routed) are
+ * kept in this node's mailbox, other frames waiting are dropped, and the link keeps trying to reconnect, waiting a
+ * little longer after each failure. Nothing is queued while the link is down, so messages for the other node's users
+ * are kept in this node's mailbox instead. Frames already written to the connection when it's lost can still be lost
+ * if the other node stops before reading them.
+ */
+public class NodeLink {
+    // Largest number of frames written before each flush
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    // Put on the queue to wake the writer when the link is disconnected
+    private static final Outgoing DISCONNECT = new Outgoing(new byte[0], null);
+
+    // Time waited before reconnecting, doubled after each failure up to the maximum
+    private static final long MIN_RECONNECT_MILLIS = 100;
+    private static final long MAX_RECONNECT_MILLIS = 5000;
+
+    private final int nodeID;
+    private final InetSocketAddress address;
+    private final Cluster cluster;
+    private final LinkedBlockingQueue<Outgoing> queue;
+
+    // True while the connection is open, frames are only queued while it is. Only changed holding the link's lock, so
+    // no frame is queued after the waiting direct messages have been moved to the mailbox
+    private volatile boolean connected = false;
+    private volatile Socket socket;
+
+    // Frames taken off the queue that are being written, only used on the link's thread
+    private final ArrayList<Outgoing> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+
+    /**
+     * Constructor to create a NodeLink, the link doesn't connect until start() is called
+     * @param nodeID    id of the other node
+     * @param address   address of the other node's cluster port
+     * @param cluster   cluster the link belongs to, used to create the frames sent when the link opens
+     * @param queueSize number of frames that can wait to be sent
+     */
+    public NodeLink(int nodeID, InetSocketAddress address, Cluster cluster, int queueSize){
+        this.nodeID = nodeID;
+        this.address = address;
+        this.cluster = cluster;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Start connecting to the other node on the link's own thread
+     */
+    public void start(){
+        Thread thread = new Thread(this::run, "node-link-" + nodeID);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a frame to be sent to the other node, it's dropped if the link is lost before it's written
+     * @param frame complete frame (length header and payload)
+     * @return  true if the frame was queued, false if the link is down or its queue is full
+     */
+    public boolean send(byte[] frame){
+        return send(frame, null);
+    }
+
+    /**
+     * Queue a frame to be sent to the other node
+     * @param frame complete frame (length header and payload)
+     * @param directMessage direct message the frame holds (with the names of its sender and recipient), kept in the
+     *                      mailbox if the link is lost before the frame is written, or null to drop the frame
+     * @return  true if the frame was queued, false if the link is down or its queue is full
+     */
+    public synchronized boolean send(byte[] frame, Message directMessage){
+        return connected && queue.offer(new Outgoing(frame, directMessage));
+    }
+
+    /**
+     * Close the connection to the other node, which is noticed straight away rather than when a write next fails.
+     * Called when the other node's link to us is lost, as it has probably stopped. The link then tries to reconnect
+     */
+    public void disconnect(){
+        queue.offer(DISCONNECT);
+        Socket current = socket;
+        if (current != null){
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Returns whether the link is currently connected to the other node
+     * @return  true if connected
+     */
+    public boolean isConnected(){
+        return connected;
+    }
+
+    /**
+     * Returns the id of the other node
+     * @return  node id
+     */
+    public int getNodeID(){
+        return nodeID;
+    }
+
+    /**
+     * Connects to the other node and writes queued frames to it, reconnecting whenever the connection is lost.
+     * Runs on the link's own thread for as long as the server is running
+     */
+    private void run(){
+        long reconnectMillis = MIN_RECONNECT_MILLIS;
+        boolean wasConnected = false;
+        while (true){
+            try (Socket opened = new Socket(address.getHostString(), address.getPort())){
+                opened.setTcpNoDelay(true);
+                socket = opened;
+                OutputStream out = new BufferedOutputStream(opened.getOutputStream());
+
+                // Any change from here on is queued, and the list of users sent below includes every change before.
+                // Only a disconnect can be waiting, as nothing else is queued while the link is down
+                synchronized (this){
+                    queue.clear();
+                    connected = true;
+                }
+                for (byte[] frame: cluster.createHelloFrames()){
+                    out.write(frame);
+                }
+                out.flush();
+                System.out.println("Connected to cluster node " + nodeID + " at " + address.getHostString() + ":"
+                        + address.getPort());
+                wasConnected = true;
+                reconnectMillis = MIN_RECONNECT_MILLIS;
+
+                writeFrames(out);
+            } catch (IOException e) {
+                if (wasConnected){
+                    System.out.println("ERROR: Lost connection to cluster node " + nodeID + ", reconnecting");
+                    wasConnected = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                socket = null;
+                keepUnsent();
+            }
+
+            try {
+                Thread.sleep(reconnectMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            reconnectMillis = Math.min(MAX_RECONNECT_MILLIS, reconnectMillis * 2);
+        }
+    }
+
+    /**
+     * Repeatedly waits for frames to be queued then writes every waiting frame, flushing once per batch
+     * @param out   stream to the other node
+     * @throws IOException  if the connection is lost
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void writeFrames(OutputStream out) throws IOException, InterruptedException {
+        while (true){
+            // Blocking call, waits until there's at least one frame then takes any others that are waiting
+            batch.add(queue.take());
+            queue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+            for (Outgoing outgoing: batch){
+                if (outgoing == DISCONNECT){
+                    throw new IOException("Link disconnected");
+                }
+                out.write(outgoing.frame);
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stop queueing frames now the connection is lost, and keep the direct messages that weren't written in the
+     * mailbox (in the order they were sent, before any newer message goes there), dropping the other frames. The batch
+     * being written when the connection failed is kept too, as it may not have reached the other node, so its messages
+     * may be delivered twice
+     */
+    private void keepUnsent(){
+        ArrayList<Message> unsent = new ArrayList<>();
+        int dropped = 0;
+        synchronized (this){
+            connected = false;
+            queue.drainTo(batch);
+            for (Outgoing outgoing: batch){
+                if (outgoing.directMessage != null){
+                    unsent.add(outgoing.directMessage);
+                }
+                else if (outgoing != DISCONNECT){
+                    dropped++;
+                }
+            }
+            batch.clear();
+            dropped += cluster.keepInMailbox(unsent);
+        }
+        if (dropped > 0){
+            System.out.println("ERROR: Dropped " + dropped + " frames waiting for cluster node " + nodeID);
+        }
+        if (!unsent.isEmpty()){
+            System.out.println("Kept " + unsent.size() + " messages for cluster node " + nodeID + " in the mailbox");
+        }
+    }
+
+    /**
+     * A frame waiting to be written to the other node
+     */
+    private static class Outgoing {
+        private final byte[] frame;
+        private final Message directMessage;
+
+        /**
+         * Constructor to create an Outgoing frame
+         * @param frame complete frame (length header and payload)
+         * @param directMessage direct message the frame holds, kept if it isn't written, or null
+         */
+        Outgoing(byte[] frame, Message directMessage){
+            this.frame = frame;
+            this.directMessage = directMessage;
+        }
+    }
+}
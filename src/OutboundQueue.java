@@ -0,0 +1,151 @@
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of encoded frames waiting to be written to one client. Any thread can add frames, but only the
+ * connection's single writer removes them, so frames are never interleaved on the socket.
+ * When the queue is full (the client isn't reading fast enough) the slow consumer policy decides what happens:
+ * - DROP: the new frame is thrown away
+ * - BLOCK: the sender waits up to the send timeout for space, then the frame is thrown away
+ * - DISCONNECT: the client is disconnected
+ */
+public class OutboundQueue {
+    /**
+     * What to do when a client's outbound queue is full
+     */
+    public enum SlowConsumerPolicy {
+        DROP,
+        BLOCK,
+        DISCONNECT
+    }
+
+    private final ArrayBlockingQueue<byte[]> frames;
+    private final SlowConsumerPolicy policy;
+    private final long sendTimeoutMillis;
+    private final ServerStats stats;
+
+    // Largest number of frames that have been waiting in this queue at once
+    private volatile int highWaterMark = 0;
+
+    /**
+     * Constructor to create an empty OutboundQueue
+     * @param config    server settings containing the queue size, policy and send timeout
+     * @param stats server stats to record dropped frames in
+     */
+    public OutboundQueue(ServerConfig config, ServerStats stats){
+        this.frames = new ArrayBlockingQueue<>(config.getOutboundQueueSize());
+        this.policy = config.getSlowConsumerPolicy();
+        this.sendTimeoutMillis = config.getSendTimeoutMillis();
+        this.stats = stats;
+    }
+
+    /**
+     * Add a frame to the end of the queue, applying the slow consumer policy if the queue is full
+     * @param frame encoded frame to send
+     * @param mayBlock  false if the calling thread must never wait (e.g. an event loop), then BLOCK acts like DROP
+     * @return  true if the frame was queued, false if it was dropped or the client should be disconnected
+     */
+    public boolean offer(byte[] frame, boolean mayBlock){
+        boolean queued = frames.offer(frame);
+        if (!queued && policy == SlowConsumerPolicy.BLOCK && mayBlock){
+            try {
+                queued = frames.offer(frame, sendTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (queued){
+            int depth = frames.size();
+            if (depth > highWaterMark){
+                highWaterMark = depth;
+            }
+        }
+        else if (policy == SlowConsumerPolicy.DISCONNECT){
+            stats.slowConsumerDisconnected();
+        }
+        else {
+            stats.frameDropped();
+        }
+        return queued;
+    }
+
+    /**
+     * Add a frame used to wake a writer waiting for the next frame, to tell it the connection is closing. If the queue
+     * is full the writer isn't waiting, so nothing is added and no waiting frame is thrown away (they're kept for the
+     * client's session when the connection closes). Never blocks and isn't counted as a dropped frame
+     * @param frame marker frame
+     */
+    public void offerClose(byte[] frame){
+        frames.offer(frame);
+    }
+
+    /**
+     * Take back a frame that was just added, if it's still waiting. Used by a sender that finds the connection closed
+     * after adding it, so the frame can be sent another way rather than left on a queue nobody will write
+     * @param frame frame that was added
+     * @return  true if the frame was removed, false if it has already been taken off the queue
+     */
+    public boolean remove(byte[] frame){
+        return frames.remove(frame);
+    }
+
+    /**
+     * Wait until a frame is available and remove it, used by blocking writers
+     * @return  next frame to write
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] take() throws InterruptedException {
+        return frames.take();
+    }
+
+    /**
+     * Remove up to maxFrames frames that are already waiting, without blocking
+     * @param batch collection to add the frames to, in the order they were queued
+     * @param maxFrames largest number of frames to remove
+     * @return  number of frames removed
+     */
+    public int drainTo(Collection<byte[]> batch, int maxFrames){
+        return frames.drainTo(batch, maxFrames);
+    }
+
+    /**
+     * Throw away every waiting frame, used once the connection is closed
+     */
+    public void clear(){
+        frames.clear();
+    }
+
+    /**
+     * Returns the slow consumer policy of this queue
+     * @return  policy
+     */
+    public SlowConsumerPolicy getPolicy(){
+        return policy;
+    }
+
+    /**
+     * Returns the number of frames that can be added before the queue is full
+     * @return  remaining capacity
+     */
+    public int getRemainingCapacity(){
+        return frames.remainingCapacity();
+    }
+
+    /**
+     * Returns the number of frames waiting to be written
+     * @return  queue depth
+     */
+    public int getDepth(){
+        return frames.size();
+    }
+
+    /**
+     * Returns the largest number of frames that have been waiting at once
+     * @return  highest queue depth seen
+     */
+    public int getHighWaterMark(){
+        return highWaterMark;
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps every client's list of online users up to date using a versioned presence stream.
+ * When users join or leave, the presence version goes up by one and only the change is sent to the other clients
+ * (code 21), rather than the whole list of users. A client is sent the full list (code 20) once when it logs in, and
+ * again whenever it asks for one (code 22) because it noticed it missed a change.
+ *
+ * Changes are collected over a short window (chat.server.presenceWindowMillis) and sent as a single change, so a burst
+ * of logins causes one broadcast rather than one per login. Each broadcast is encoded once and the same bytes are
+ * queued to every client. The encoded full list is cached and reused until the online users next change.
+ *
+ * Users are added to and removed from the registry here, holding a lock while the version changes and the recipients
+ * of the change are collected. The frames are queued to the clients after that lock is released (so a slow client
+ * never holds up logins and logouts), without waiting for space, in version order. A client whose queue is full misses
+ * the change, notices the gap in versions and asks for the full list again. Users logged in to other nodes of the
+ * cluster are added and removed in the same way, so clients see every user in the cluster in a single list.
+ */
+public class PresenceBroadcaster {
+    private final UserRegistry registry;
+    private final MessageCodec codec;
+    private final ServerStats stats;
+    private final long windowMillis;
+
+    // Size of a change with nobody in it, used to estimate what each change would have cost if sent on its own
+    private final int emptyChangeBytes;
+
+    // Held while changing the online users so versions and changes are sent in the same order to everyone. A lock is
+    // used rather than synchronized blocks so virtual threads waiting on it don't pin their carrier thread
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private long presenceVersion = 0;
+
+    // Held while queueing frames to the clients once the presence lock has been released. It's taken before the
+    // presence lock is let go, so frames are still queued in the order their versions were given out
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    // Frames and their recipients collected while holding the presence lock, waiting for it to be released
+    private final ArrayList<Delivery> deliveries = new ArrayList<>();
+
+    // Changes waiting for the end of the current window, and the new users waiting for their first full list
+    private final LinkedHashMap<Integer, User> pendingJoins = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, User> pendingLeaves = new LinkedHashMap<>();
+    private final Set<SocketInfo> pendingSnapshots = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int pendingChanges = 0;
+    private long pendingUncoalescedBytes = 0;
+    private boolean flushScheduled = false;
+
+    // Encoded full list at the current presence version, null when it needs to be encoded again
+    private byte[] cachedSnapshot = null;
+
+    // Runs the broadcast at the end of each window
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "presence-broadcaster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor to create a PresenceBroadcaster
+     * @param registry  registry of online users
+     * @param config    server settings containing the codec and the length of the window
+     * @param stats server stats to record coalesced broadcasts in
+     */
+    public PresenceBroadcaster(UserRegistry registry, ServerConfig config, ServerStats stats){
+        this.registry = registry;
+        this.codec = config.getCodec();
+        this.stats = stats;
+        this.windowMillis = config.getPresenceWindowMillis();
+        byte[] emptyChange = encode(new Message(new ArrayList<>(), new ArrayList<>(), 0, 0));
+        this.emptyChangeBytes = emptyChange == null ? 0 : emptyChange.length;
+    }
+
+    /**
+     * Add a user that has just logged in. At the end of the window they're sent the full list of online users and
+     * everyone else is told they have joined
+     * @param socketInfo    details of the new user and their socket
+     */
+    public void join(SocketInfo socketInfo){
+        presenceLock.lock();
+        try {
+            registry.add(socketInfo);
+            User user = socketInfo.getUser();
+            pendingJoins.put(user.getUniqueID(), user);
+            pendingSnapshots.add(socketInfo);
+            changed(user, true);
+        } finally {
+            unlockAndSend();
+        }
+    }
+
+    /**
+     * Remove a user that has disconnected. At the end of the window everyone else is told they have left. Nothing is
+     * sent if the user wasn't online using the given socket
+     * @param uniqueID  id of the user to remove
+     * @param clientSocket  socket of the user we're removing
+     * @return  details of the removed user, or null if they weren't online
+     */
+    public SocketInfo leave(int uniqueID, Socket clientSocket){
+        presenceLock.lock();
+        try {
+            SocketInfo removed = registry.remove(uniqueID, clientSocket);
+            if (removed != null){
+                User user = removed.getUser();
+                if (pendingJoins.remove(uniqueID) != null){
+                    // Joined and left in the same window, so nobody needs to hear about them at all
+                    pendingSnapshots.remove(removed);
+                }
+                else {
+                    pendingLeaves.put(uniqueID, user);
+                }
+                changed(user, false);
+            }
+            return removed;
+        } finally {
+            unlockAndSend();
+        }
+    }
+
+    /**
+     * Add and remove users logged in to another node of the cluster. Users that are already known to have joined or
+     * left are ignored, so the same change can safely be applied twice
+     * @param joinedUsers   users that have logged in to the other node
+     * @param leftUsers users that have left the other node (only their ids are used)
+     */
+    public void remoteChanged(ArrayList<User> joinedUsers, ArrayList<User> leftUsers){
+        presenceLock.lock();
+        try {
+            for (User user: joinedUsers){
+                if (registry.addRemote(user)){
+                    pendingJoins.put(user.getUniqueID(), user);
+                    changed(user, true);
+                }
+            }
+            for (User user: leftUsers){
+                remoteLeft(user.getUniqueID());
+            }
+        } finally {
+            unlockAndSend();
+        }
+    }
+
+    /**
+     * Replace every user logged in to another node of the cluster with the node's current list, used when the node
+     * first connects (or reconnects) and when its link is lost. Only the differences are sent to clients
+     * @param nodeID    id of the other node
+     * @param users users currently logged in to the node, or an empty list if the node can't be reached
+     */
+    public void replaceRemoteUsers(int nodeID, ArrayList<User> users){
+        presenceLock.lock();
+        try {
+            HashSet<Integer> current = new HashSet<>();
+            for (User user: users){
+                current.add(user.getUniqueID());
+            }
+            for (User user: registry.getRemoteUsers(nodeID)){
+                if (!current.contains(user.getUniqueID())){
+                    remoteLeft(user.getUniqueID());
+                }
+            }
+            remoteChanged(users, new ArrayList<>());
+        } finally {
+            unlockAndSend();
+        }
+    }
+
+    /**
+     * Remove a user that has left another node of the cluster. Must be called holding the presence lock
+     * @param uniqueID  id of the user
+     */
+    private void remoteLeft(int uniqueID){
+        User removed = registry.removeRemote(uniqueID);
+        if (removed != null){
+            if (pendingJoins.remove(uniqueID) == null){
+                pendingLeaves.put(uniqueID, removed);
+            }
+            changed(removed, false);
+        }
+    }
+
+    /**
+     * Send the full list of online users to a client that asked for it. Any waiting changes are sent first, so the
+     * list matches the current presence version
+     * @param socketInfo    socket of the client
+     */
+    public void sendSnapshot(SocketInfo socketInfo){
+        presenceLock.lock();
+        try {
+            flush();
+            byte[] snapshot = getSnapshot();
+            if (snapshot != null){
+                ArrayList<SocketInfo> recipient = new ArrayList<>(1);
+                recipient.add(socketInfo);
+                deliveries.add(new Delivery(snapshot, recipient));
+            }
+        } finally {
+            unlockAndSend();
+        }
+    }
+
+    /**
+     * Record a change to the online users and make sure a broadcast happens at the end of the window.
+     * Must be called holding the presence lock
+     * @param user  user that joined or left
+     * @param joined    true if the user joined, false if they left
+     */
+    private void changed(User user, boolean joined){
+        cachedSnapshot = null;
+        pendingChanges++;
+
+        // Estimate how big this change would have been if it was sent on its own, to report the bytes saved, without
+        // encoding it: an empty change plus the user's id and, if they joined, their name (with its length)
+        pendingUncoalescedBytes += emptyChangeBytes + varintSize(user.getUniqueID());
+        if (joined && user.getName() != null){
+            pendingUncoalescedBytes += 1 + user.getName().length();
+        }
+
+        if (windowMillis <= 0){
+            flush();
+        }
+        else if (!flushScheduled){
+            flushScheduled = true;
+            scheduler.schedule(this::scheduledFlush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Broadcast the changes collected during the window, run on the scheduler thread
+     */
+    private void scheduledFlush(){
+        presenceLock.lock();
+        try {
+            flush();
+        } finally {
+            unlockAndSend();
+        }
+    }
+
+    /**
+     * Send every waiting change as a single change. New users are sent the full list instead, everyone else is sent
+     * the change. Must be called holding the presence lock
+     */
+    private void flush(){
+        flushScheduled = false;
+        if (pendingChanges == 0){
+            return;
+        }
+
+        // A user can join and leave in the same window, so there may be no change left to send
+        if (!pendingJoins.isEmpty() || !pendingLeaves.isEmpty()){
+            long start = System.nanoTime();
+            long baseVersion = presenceVersion;
+            presenceVersion++;
+            cachedSnapshot = null;
+
+            byte[] change = encode(new Message(new ArrayList<>(pendingJoins.values()),
+                    new ArrayList<>(pendingLeaves.values()), baseVersion, presenceVersion));
+            byte[] snapshot = pendingSnapshots.isEmpty() ? null : getSnapshot();
+
+            // Only the recipients are collected here, the frames are queued once the presence lock is released
+            ArrayList<SocketInfo> changeRecipients = new ArrayList<>();
+            ArrayList<SocketInfo> snapshotRecipients = new ArrayList<>(pendingSnapshots.size());
+            for (SocketInfo socket: registry.getSockets()){
+                if (pendingSnapshots.contains(socket)){
+                    snapshotRecipients.add(socket);
+                }
+                else {
+                    changeRecipients.add(socket);
+                }
+            }
+            if (snapshot != null && !snapshotRecipients.isEmpty()){
+                deliveries.add(new Delivery(snapshot, snapshotRecipients));
+            }
+            int recipients = 0;
+            if (change != null){
+                deliveries.add(new Delivery(change, changeRecipients));
+                recipients = changeRecipients.size();
+            }
+
+            long sentBytes = change == null ? 0 : (long) change.length * recipients;
+            stats.presenceBroadcast(pendingChanges, pendingUncoalescedBytes * recipients - sentBytes);
+            stats.recordPresenceBroadcast(System.nanoTime() - start);
+        }
+        else {
+            stats.presenceBroadcast(pendingChanges, 0);
+        }
+
+        pendingJoins.clear();
+        pendingLeaves.clear();
+        pendingSnapshots.clear();
+        pendingChanges = 0;
+        pendingUncoalescedBytes = 0;
+    }
+
+    /**
+     * Returns the encoded full list of online users at the current presence version, encoding it only if the users
+     * have changed since it was last encoded. Must be called holding the presence lock
+     * @return  encoded full list, or null if it couldn't be encoded
+     */
+    private byte[] getSnapshot(){
+        if (cachedSnapshot == null){
+            cachedSnapshot = encode(new Message(registry.getUsers(), presenceVersion));
+        }
+        else {
+            stats.presenceSnapshotReused();
+        }
+        return cachedSnapshot;
+    }
+
+    /**
+     * Encode a presence message into a frame
+     * @param message   message to encode
+     * @return  encoded frame, or null if it couldn't be encoded
+     */
+    private byte[] encode(Message message){
+        try {
+            return MessageFraming.encode(codec, message);
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to encode online users");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes a number takes up written as a varint
+     * @param value number to write
+     * @return  size in bytes
+     */
+    private static int varintSize(int value){
+        return Math.max(1, (32 - Integer.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    /**
+     * Release the presence lock, then queue the frames collected while it was held. Frames are only queued once the
+     * outermost hold of the lock is released. Must be called holding the presence lock
+     */
+    private void unlockAndSend(){
+        if (presenceLock.getHoldCount() > 1 || deliveries.isEmpty()){
+            presenceLock.unlock();
+            return;
+        }
+        ArrayList<Delivery> sending = new ArrayList<>(deliveries);
+        deliveries.clear();
+
+        // Taken before the presence lock is let go, so a later change can't be queued ahead of this one
+        sendLock.lock();
+        presenceLock.unlock();
+        try {
+            for (Delivery delivery: sending){
+                for (SocketInfo socketInfo: delivery.recipients){
+                    // Never waits for a slow client, it asks for the full list again when it sees it missed a change
+                    if (!socketInfo.getConnection().trySendFrame(delivery.frame)){
+                        System.out.println("ERROR: Failed to send online users to user " + socketInfo.getClientID());
+                    }
+                }
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * An encoded frame and the clients it's sent to
+     */
+    private static class Delivery {
+        private final byte[] frame;
+        private final ArrayList<SocketInfo> recipients;
+
+        /**
+         * Constructor to create a Delivery
+         * @param frame encoded frame
+         * @param recipients    sockets to send the frame to
+         */
+        Delivery(byte[] frame, ArrayList<SocketInfo> recipients){
+            this.frame = frame;
+            this.recipients = recipients;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast frames are accepted from clients, so one misbehaving script or client can't flood the server and
+ * starve everyone else's handler threads and recipients. Every frame has to get a token from two TokenBuckets:
+ * - The sender's own bucket, so each user is limited on their own. A user's buckets belong to their session, so a
+ *   client that resumes its session on a new connection carries on with the buckets it had rather than full ones
+ * - A global bucket shared by every user, limiting the whole server
+ *
+ * Logins (code 10) and resumes (code 12) come before the client has a user, and a client could open a new connection
+ * for each attempt, so they're limited for the address the client connects from instead of its own buckets. The
+ * buckets of an address are forgotten once they have been full (unused) for a while.
+ *
+ * Limits are set for each special code, so logins can be limited more tightly than direct messages. Codes without a
+ * limit of their own share one bucket using the default limit. Disconnect requests (code 2) are never limited.
+ * A frame over either limit isn't handled, and the sender is told so with a throttle reply (code 6) saying when to try
+ * again. ServerStats counts the throttled frames of each code.
+ *
+ * A frame refused by the global bucket gives its token back to the sender's bucket, so while the server is busy a
+ * user's retries don't use up their own limit as well.
+ *
+ * Neither check takes a lock: every bucket is updated with a compare and set, as the old and new connections of a
+ * resumed session (and connections from the same address) can use the same buckets at once.
+ */
+public class RateLimiter {
+    // Codes below this can have limits of their own
+    private static final int MAX_CODE = 64;
+
+    // Key of the default limit in the maps of limits read from the settings
+    public static final int DEFAULT = -1;
+
+    /**
+     * A rate and burst size, read from the settings as rate/burst
+     */
+    public static final class Limit {
+        private final double perSecond;
+        private final int burst;
+
+        /**
+         * Constructor to create a Limit
+         * @param perSecond frames allowed each second
+         * @param burst frames allowed at once after a quiet spell
+         */
+        public Limit(double perSecond, int burst){
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        /**
+         * Create a bucket enforcing this limit
+         * @return  new full bucket
+         */
+        private TokenBucket newBucket(){
+            return new TokenBucket(perSecond, burst);
+        }
+    }
+
+    /**
+     * The buckets of a single user or address, all created up front so they can be shared between threads
+     */
+    public static final class Buckets {
+        // Bucket of each code, codes without a limit of their own share the default bucket (null if there's no limit)
+        private final TokenBucket[] buckets = new TokenBucket[MAX_CODE];
+        private final TokenBucket defaultBucket;
+
+        /**
+         * Constructor to create a set of full Buckets
+         * @param limits    limit of each code, or null for codes using the default limit
+         * @param defaultLimit  limit of every other code, or null if they aren't limited
+         */
+        private Buckets(Limit[] limits, Limit defaultLimit){
+            this.defaultBucket = defaultLimit == null ? null : defaultLimit.newBucket();
+            for (int code = 0; code < MAX_CODE; code++){
+                buckets[code] = limits[code] != null ? limits[code].newBucket() : defaultBucket;
+            }
+        }
+
+        /**
+         * Returns the bucket for a special code
+         * @param specialCode   special code of the frame
+         * @return  bucket, or null if frames with that code aren't limited
+         */
+        private TokenBucket get(int specialCode){
+            return specialCode >= 0 && specialCode < MAX_CODE ? buckets[specialCode] : defaultBucket;
+        }
+
+        /**
+         * Returns whether every bucket is full, so forgetting them and later starting again with full buckets makes
+         * no difference
+         * @return  true if no bucket has been used recently
+         */
+        private boolean isFull(){
+            if (defaultBucket != null && !defaultBucket.isFull()){
+                return false;
+            }
+            for (TokenBucket bucket: buckets){
+                if (bucket != null && !bucket.isFull()){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Number of addresses with buckets before the buckets that are full are forgotten
+    private static final int ADDRESSES_BEFORE_SWEEP = 4096;
+
+    private final ServerStats stats;
+
+    // Limits of each user's buckets by code, and for every other code
+    private final Limit[] userLimits = new Limit[MAX_CODE];
+    private final Limit userDefault;
+
+    // Limits of each address's buckets by code, and for every other code
+    private final Limit[] addressLimits = new Limit[MAX_CODE];
+    private final Limit addressDefault;
+
+    // Buckets of each address clients have logged in or resumed from, and the number of addresses at which the full
+    // ones are next forgotten
+    private final ConcurrentHashMap<InetAddress, Buckets> addressBuckets = new ConcurrentHashMap<>();
+    private volatile int sweepAt = ADDRESSES_BEFORE_SWEEP;
+
+    // Global buckets by code, codes without a limit of their own share the default bucket (null if there's no limit)
+    private final TokenBucket[] globalBuckets = new TokenBucket[MAX_CODE];
+    private final TokenBucket globalDefault;
+
+    /**
+     * Constructor to create a RateLimiter with the limits from the server settings
+     * @param config    server settings containing the per user and global limits
+     * @param stats server stats to record throttled frames in
+     */
+    public RateLimiter(ServerConfig config, ServerStats stats){
+        this.stats = stats;
+        Map<Integer, Limit> user = config.getUserRateLimits();
+        Map<Integer, Limit> global = config.getGlobalRateLimits();
+        Map<Integer, Limit> address = config.getAddressRateLimits();
+        this.userDefault = user.get(DEFAULT);
+        this.addressDefault = address.get(DEFAULT);
+        Limit globalLimit = global.get(DEFAULT);
+        this.globalDefault = globalLimit == null ? null : globalLimit.newBucket();
+        for (int code = 0; code < MAX_CODE; code++){
+            userLimits[code] = user.get(code);
+            addressLimits[code] = address.get(code);
+            Limit limit = global.get(code);
+            globalBuckets[code] = limit != null ? limit.newBucket() : globalDefault;
+        }
+    }
+
+    /**
+     * Create the buckets for a new connection, which become the buckets of the user that logs in on it
+     * @return  full buckets using the per user limits
+     */
+    public Buckets newUserBuckets(){
+        return new Buckets(userLimits, userDefault);
+    }
+
+    /**
+     * Returns the buckets of the address a client is connected from, used for its logins and resumes
+     * @param socket    socket connected to the client, or null if it isn't known
+     * @return  buckets shared by every client from the address (the connection's own buckets if the address isn't
+     *          known)
+     */
+    public Buckets addressBuckets(Socket socket){
+        InetAddress address = socket == null ? null : socket.getInetAddress();
+        if (address == null){
+            return new Buckets(addressLimits, addressDefault);
+        }
+        if (addressBuckets.size() >= sweepAt){
+            // Forget the addresses that haven't been used lately, so the map doesn't grow forever. Checked again only
+            // once the map has doubled, so a server with many busy addresses doesn't sweep on every login
+            addressBuckets.values().removeIf(Buckets::isFull);
+            sweepAt = Math.max(ADDRESSES_BEFORE_SWEEP, addressBuckets.size() * 2);
+        }
+        return addressBuckets.computeIfAbsent(address, key -> new Buckets(addressLimits, addressDefault));
+    }
+
+    /**
+     * Take a token for a frame received from a client, from the user's bucket then the global bucket. The user's bucket
+     * is checked first so a user over their own limit can't use up the global bucket, and their token is given back if
+     * the global bucket refuses the frame
+     * @param specialCode   special code of the frame
+     * @param user  buckets of the user (or address) that sent it
+     * @return  0 if the frame can be handled, otherwise the time in milliseconds until the sender may try again
+     */
+    public long acquire(int specialCode, Buckets user){
+        if (specialCode == 2){
+            // Disconnecting is always allowed
+            return 0;
+        }
+        TokenBucket userBucket = user.get(specialCode);
+        if (userBucket != null){
+            long waitNanos = userBucket.tryAcquire();
+            if (waitNanos > 0){
+                stats.frameThrottled(specialCode, false);
+                return toRetryMillis(waitNanos);
+            }
+        }
+        TokenBucket globalBucket = specialCode >= 0 && specialCode < MAX_CODE ? globalBuckets[specialCode]
+                : globalDefault;
+        if (globalBucket != null){
+            long waitNanos = globalBucket.tryAcquire();
+            if (waitNanos > 0){
+                if (userBucket != null){
+                    userBucket.release();
+                }
+                stats.frameThrottled(specialCode, true);
+                return toRetryMillis(waitNanos);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Convert the wait for a token into whole milliseconds, rounding up so the sender never tries again too early
+     * @param waitNanos time until a token is available
+     * @return  retry time in milliseconds, at least 1
+     */
+    private static long toRetryMillis(long waitNanos){
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+}
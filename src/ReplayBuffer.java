@@ -0,0 +1,119 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Keeps the most recent frames sent to a client's ResumableSession, numbered in the order they were sent, so the frames a client
+ * missed when its connection dropped can be sent again when it resumes the session.
+ *
+ * Frames are numbered by the connection's writer as it takes them off the outbound queue (so in exactly the order the
+ * client receives them), or straight away when they're sent while the client is disconnected. The client counts the
+ * frames it receives after logging in in the same way, so when it resumes, every frame numbered above its count was
+ * missed. Only the last maxFrames frames (and at most maxBytes of them) are kept, if the client missed more than that
+ * the session can't be resumed.
+ *
+ * Each connection adds frames through the Recorder it was given when the session started using it (see attach()).
+ * Before the session is resumed on a new connection it closes the old one, which records every frame still waiting on
+ * it, so every frame the client missed is numbered before its count is checked. Any frame from the old connection after
+ * that is ignored, so it can't get mixed in with the frames sent again on the new one.
+ */
+public class ReplayBuffer {
+    private final int maxFrames;
+    private final long maxBytes;
+
+    // Kept frames in order, the first has number firstNumber. The next frame added gets nextNumber
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private long firstNumber = 1;
+    private long nextNumber = 1;
+    private long bytes = 0;
+
+    // Only frames added by this recorder (or with no recorder) are kept
+    private Recorder attachment = null;
+
+    /**
+     * Adds the frames a single connection takes off its outbound queue, only used by that connection's writer
+     */
+    public final class Recorder {
+        // Frame that starts the numbering (the login or resume reply), frames taken before it aren't added
+        private final byte[] firstFrame;
+        private boolean started = false;
+
+        private Recorder(byte[] firstFrame){
+            this.firstFrame = firstFrame;
+        }
+
+        /**
+         * Add a frame the connection has taken off its outbound queue to be written (or that was left on the queue
+         * when the connection closed)
+         * @param frame complete frame (length header and payload)
+         */
+        public void taken(byte[] frame){
+            if (started){
+                add(frame, this);
+            }
+            else if (frame == firstFrame){
+                started = true;
+            }
+        }
+    }
+
+    /**
+     * Constructor to create an empty ReplayBuffer
+     * @param maxFrames largest number of frames kept
+     * @param maxBytes  largest total size of the frames kept (the latest frame is always kept, however big it is)
+     */
+    public ReplayBuffer(int maxFrames, long maxBytes){
+        this.maxFrames = Math.max(1, maxFrames);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * Start keeping the frames taken by a new connection, ignoring any still being added by the previous one
+     * @param firstFrame    frame the new connection sends first, frames are numbered from the one after it
+     * @return  recorder the connection adds its frames with
+     */
+    public synchronized Recorder attach(byte[] firstFrame){
+        attachment = new Recorder(firstFrame);
+        return attachment;
+    }
+
+    /**
+     * Add a frame sent to the client, giving it the next number
+     * @param frame complete frame (length header and payload)
+     * @param from  recorder of the connection adding it, or null when the client is disconnected
+     * @return  true if the frame was added, false if it was from a connection the session has moved on from
+     */
+    public synchronized boolean add(byte[] frame, Recorder from){
+        if (from != null && from != attachment){
+            return false;
+        }
+        frames.addLast(frame);
+        bytes += frame.length;
+        nextNumber++;
+        while (frames.size() > maxFrames || (bytes > maxBytes && frames.size() > 1)){
+            bytes -= frames.pollFirst().length;
+            firstNumber++;
+        }
+        return true;
+    }
+
+    /**
+     * Get the frames a resuming client missed and number them again from just after its count, as they're about to be
+     * sent again (and numbered again as they're written). Frames the client has already received are dropped
+     * @param received  number of frames the client received
+     * @return  frames the client missed in order, or null if some of them are no longer kept (or the count is wrong)
+     */
+    public synchronized ArrayList<byte[]> rewind(long received){
+        if (received < firstNumber - 1 || received >= nextNumber){
+            return null;
+        }
+        while (firstNumber <= received){
+            frames.pollFirst();
+            firstNumber++;
+        }
+        ArrayList<byte[]> missed = new ArrayList<>(frames);
+        frames.clear();
+        bytes = 0;
+        nextNumber = firstNumber;
+        return missed;
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * A logged in client's session, which outlives the connection it was started on. Everything sent to the client goes
+ * through the session (it's the connection in the client's SocketInfo), which passes it on to whichever connection the
+ * client is currently using.
+ *
+ * When the connection drops the session is suspended rather than ended: the user stays online, and frames sent to them
+ * are kept in the session's ReplayBuffer along with the most recent frames that were written before it dropped. If the
+ * client reconnects and resumes the session (code 12) it's sent every frame it missed, in order, on the new connection
+ * and carries on as the same user. SessionRegistry ends sessions that aren't resumed in time.
+ */
+public class ResumableSession implements ClientConnection {
+    private final String token;
+    private final MessageCodec codec;
+    private final ReplayBuffer replay;
+    private final SocketInfo socketInfo;
+
+    // Rate limits of the user, kept with the session so a resumed client can't start again with full buckets
+    private final RateLimiter.Buckets rateBuckets;
+
+    // Connection the client is using (or last used, while suspended), guarded by this session's lock
+    private ClientConnection connection;
+    private boolean suspended = false;
+    private boolean ended = false;
+
+    // Increased every time the session is resumed, so an old expiry timer can tell it has been resumed since
+    private long resumes = 0;
+
+    /**
+     * Constructor to create a session for a client that has just logged in
+     * @param token random token the client resumes the session with
+     * @param user  details of the user that logged in
+     * @param connection    connection the client logged in on
+     * @param codec codec used to encode messages
+     * @param replayFrames  most recent frames kept to send again when the session resumes
+     * @param replayBytes   most bytes of frames kept to send again
+     * @param rateBuckets   rate limits of the user
+     */
+    public ResumableSession(String token, User user, ClientConnection connection, MessageCodec codec,
+                            int replayFrames, long replayBytes, RateLimiter.Buckets rateBuckets){
+        this.token = token;
+        this.codec = codec;
+        this.replay = new ReplayBuffer(replayFrames, replayBytes);
+        this.connection = connection;
+        this.socketInfo = new SocketInfo(user, this);
+        this.rateBuckets = rateBuckets;
+    }
+
+    /**
+     * Send the login reply that starts the session, every frame sent after it is kept for replaying
+     * @param loginReply    encoded login reply (code 11) containing the session token
+     * @throws IOException  if the connection is closed or the outbound queue is full
+     */
+    public synchronized void start(byte[] loginReply) throws IOException {
+        connection.recordSent(replay.attach(loginReply));
+        connection.sendFrame(loginReply);
+    }
+
+    /**
+     * Move the session onto the client's new connection, sending the resume reply then every frame the client missed.
+     * The old connection is closed first if the server hasn't noticed it has gone yet, which adds the frames still
+     * waiting on it to the replay buffer, so they're sent again too
+     * @param newConnection connection the client has reconnected on
+     * @param received  number of frames the client received since logging in
+     * @param resumeReply   encoded resume reply (code 13) containing the user's id
+     * @return  number of frames sent again, or -1 if the session can't be resumed (it has ended, or some of the frames
+     *          the client missed are no longer kept)
+     */
+    public synchronized int resume(ClientConnection newConnection, long received, byte[] resumeReply){
+        if (ended){
+            return -1;
+        }
+        // Closing returns once every frame the old connection didn't write has been recorded, so none of them can be
+        // recorded after the count is checked (they'd be ignored, as the old connection is no longer attached)
+        if (connection != newConnection){
+            connection.close();
+        }
+        ArrayList<byte[]> missed = replay.rewind(received);
+        if (missed == null){
+            return -1;
+        }
+        connection = newConnection;
+        suspended = false;
+        resumes++;
+
+        // Queued while holding the lock, so nothing sent to the session meanwhile can get ahead of them. The replay
+        // buffer is never larger than the outbound queue, so this never waits
+        newConnection.recordSent(replay.attach(resumeReply));
+        try {
+            newConnection.sendFrame(resumeReply);
+            for (byte[] frame: missed){
+                newConnection.sendFrame(frame);
+            }
+        } catch (IOException e) {
+            // The new connection has gone too, its ServerResponse suspends the session again
+        }
+        return missed.size();
+    }
+
+    /**
+     * Suspend the session because its connection has closed, frames sent from now on are kept until it's resumed
+     * @param closed    connection that has closed
+     * @return  true if the session was using that connection (it was suspended), false if the session has already
+     *          moved on to another connection or ended
+     */
+    public synchronized boolean suspend(ClientConnection closed){
+        if (ended || closed != connection){
+            return false;
+        }
+        // The server may notice the client has gone before the connection's writer does. Closing it here records the
+        // frames it didn't write, before any frame kept while suspended
+        closed.close();
+        suspended = true;
+        return true;
+    }
+
+    /**
+     * End the session if it's still suspended and hasn't been resumed since a point in time
+     * @param resumeCount   value of getResumeCount() when the session was suspended
+     * @return  true if the session was ended
+     */
+    public synchronized boolean endIfSuspended(long resumeCount){
+        if (ended || !suspended || resumes != resumeCount){
+            return false;
+        }
+        ended = true;
+        return true;
+    }
+
+    /**
+     * End the session for good (the client disconnected, or the session can't be resumed), closing its connection
+     * @return  true if the session was ended by this call, false if it had already ended
+     */
+    public boolean end(){
+        ClientConnection last;
+        synchronized (this){
+            if (ended){
+                return false;
+            }
+            ended = true;
+            last = connection;
+        }
+        last.close();
+        return true;
+    }
+
+    /**
+     * Returns the token the client resumes the session with
+     * @return  session token
+     */
+    public String getToken(){
+        return token;
+    }
+
+    /**
+     * Returns the details of the client's user and the connection used to send to them (this session)
+     * @return  socket info
+     */
+    public SocketInfo getSocketInfo(){
+        return socketInfo;
+    }
+
+    /**
+     * Returns the rate limits of the session's user, used by every connection the session is resumed on
+     * @return  user's buckets
+     */
+    public RateLimiter.Buckets getRateBuckets(){
+        return rateBuckets;
+    }
+
+    /**
+     * Returns the number of times the session has been resumed
+     * @return  resume count
+     */
+    public synchronized long getResumeCount(){
+        return resumes;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        sendFrame(MessageFraming.encode(codec, message));
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) throws IOException {
+        queueFrame(frame, true);
+    }
+
+    @Override
+    public boolean trySendFrame(byte[] frame) {
+        try {
+            queueFrame(frame, false);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Pass a frame on to the client's connection, or keep it for when the session is resumed if it's suspended
+     * @param frame complete frame (length header and payload)
+     * @param mayBlock  false if the calling thread must never wait for space
+     * @throws IOException  if the session has ended or the connection's outbound queue is full
+     */
+    private void queueFrame(byte[] frame, boolean mayBlock) throws IOException {
+        while (true){
+            ClientConnection current;
+            synchronized (this){
+                if (ended){
+                    throw new IOException("Session has ended");
+                }
+                if (suspended){
+                    replay.add(frame, null);
+                    return;
+                }
+                current = connection;
+            }
+
+            // Sent outside the lock, as the block policy can wait for space in the queue
+            if (mayBlock){
+                try {
+                    current.sendFrame(frame);
+                    return;
+                } catch (IOException e) {
+                    if (current.isOpen()){
+                        throw e;
+                    }
+                }
+            }
+            else if (current.trySendFrame(frame)){
+                return;
+            }
+            else if (current.isOpen()){
+                throw new IOException("Outbound queue is full, frame dropped");
+            }
+
+            // The connection has closed (the frame wasn't queued on it), either the session has been resumed on another
+            // connection meanwhile, or its ServerResponse hasn't suspended the session yet. Suspend it now if needed so
+            // the frame is kept, then try again
+            suspend(current);
+        }
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor) {
+        currentConnection().enableCompression(compressor);
+    }
+
+    @Override
+    public void recordSent(ReplayBuffer.Recorder recorder) {
+        // The session records the frames of each connection it uses itself
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return currentConnection().getOutboundQueue();
+    }
+
+    @Override
+    public ConnectionStats getStats() {
+        return currentConnection().getStats();
+    }
+
+    @Override
+    public Socket getSocket() {
+        return currentConnection().getSocket();
+    }
+
+    /**
+     * Returns whether the client is connected, false while the session is suspended (frames can still be sent, they're
+     * kept until it's resumed) and once it has ended
+     * @return  true if the session is using an open connection
+     */
+    @Override
+    public synchronized boolean isOpen() {
+        return !suspended && !ended;
+    }
+
+    /**
+     * Close the client's current connection, which suspends the session like any other lost connection
+     */
+    @Override
+    public void close() {
+        currentConnection().close();
+    }
+
+    /**
+     * Returns the connection the client is using, or last used while the session is suspended
+     * @return  connection
+     */
+    private synchronized ClientConnection currentConnection(){
+        return connection;
+    }
+}
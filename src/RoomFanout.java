@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sends room posts to every member of the room. Each post is encoded once and the same frame is queued to every
+ * member's connection (other than the member that posted it).
+ *
+ * Small rooms are sent to on the thread that received the post. Rooms with more members than the fan-out chunk size
+ * are split across a fixed set of fan-out worker threads. Members are always given to the same worker (chosen by their
+ * user id), so each member still receives a room's posts in the order they were posted. Once a room has been split
+ * across the workers its posts always are, even if it shrinks again, so a post sent straight away can never overtake
+ * earlier posts still waiting for a worker.
+ */
+public class RoomFanout {
+    private final MessageCodec codec;
+    private final ServerStats stats;
+    private final int chunkSize;
+
+    // Single thread executors, so the posts given to each worker are sent in order
+    private final ExecutorService[] workers;
+
+    /**
+     * Constructor to create a RoomFanout and its worker threads
+     * @param config    server settings containing the codec, fan-out chunk size and number of fan-out threads
+     * @param stats server stats to record posts in
+     */
+    public RoomFanout(ServerConfig config, ServerStats stats){
+        this.codec = config.getCodec();
+        this.stats = stats;
+        this.chunkSize = config.getFanoutChunkSize();
+        this.workers = new ExecutorService[config.getFanoutThreads()];
+        for (int i = 0; i < workers.length; i++){
+            String name = "room-fanout-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Send a post to every member of a room except the member that posted it
+     * @param room  room the post is for
+     * @param post  post to send, with the poster set as the from user
+     */
+    public void post(RoomRegistry.Room room, Message post){
+        long start = System.nanoTime();
+        byte[] frame;
+        try {
+            frame = MessageFraming.encode(codec, post);
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to encode post to room " + room.getName());
+            return;
+        }
+        int posterID = post.getFromUser().getUniqueID();
+
+        if (workers.length == 1 || !room.isFannedOut() && room.getMembers().size() <= chunkSize){
+            int recipients = send(frame, room.getMembers(), posterID);
+            stats.roomPost(recipients);
+            stats.recordRoomBroadcast(System.nanoTime() - start);
+            return;
+        }
+
+        // Large room, give each worker the members it looks after. Marked before the first post is handed over, so
+        // later posts to the room can't be sent straight away ahead of it
+        room.setFannedOut();
+        List<List<SocketInfo>> chunks = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++){
+            chunks.add(new ArrayList<>());
+        }
+        for (SocketInfo member: room.getMembers()){
+            chunks.get(Math.floorMod(member.getClientID(), workers.length)).add(member);
+        }
+        for (int i = 0; i < workers.length; i++){
+            List<SocketInfo> chunk = chunks.get(i);
+            if (!chunk.isEmpty()){
+                workers[i].execute(() -> send(frame, chunk, posterID));
+            }
+        }
+        stats.roomPost(room.getMembers().size() - 1);
+        stats.recordRoomBroadcast(System.nanoTime() - start);
+    }
+
+    /**
+     * Queue a frame to each of the given members
+     * @param frame encoded post
+     * @param members   members to send the post to
+     * @param posterID  id of the member that posted, who isn't sent their own post
+     * @return  number of members the post was sent to
+     */
+    private int send(byte[] frame, Iterable<SocketInfo> members, int posterID){
+        int recipients = 0;
+        for (SocketInfo member: members){
+            if (member.getClientID() == posterID){
+                continue;
+            }
+            try {
+                member.getConnection().sendFrame(frame);
+                recipients++;
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to send room post to user " + member.getClientID());
+            }
+        }
+        return recipients;
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the chat rooms and their members. Two indexes are kept:
+ * - Each room's members by user id, so a post only has to go to the room's members rather than every online user
+ * - The rooms each user is a member of, so a user that disconnects can be removed from their rooms without looking
+ *   at every room
+ *
+ * Rooms are created by their first member and removed once their last member leaves. Each change to a room's members
+ * is made atomically with the room's creation or removal, so a user can't join a room as it's being removed.
+ */
+public class RoomRegistry {
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> roomsByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new room with the given user as its only member
+     * @param name  name of the room
+     * @param creator   user creating the room
+     * @return  the new room, or null if a room with that name already exists
+     */
+    public Room create(String name, SocketInfo creator){
+        Room room = new Room(name);
+        room.members.put(creator.getClientID(), creator);
+        if (rooms.putIfAbsent(name, room) != null){
+            return null;
+        }
+        roomsOf(creator.getClientID()).add(name);
+        return room;
+    }
+
+    /**
+     * Add a user to an existing room
+     * @param name  name of the room
+     * @param member    user joining the room
+     * @return  the room, or null if there is no room with that name
+     */
+    public Room join(String name, SocketInfo member){
+        Room joined = rooms.computeIfPresent(name, (roomName, room) -> {
+            room.members.put(member.getClientID(), member);
+            return room;
+        });
+        if (joined != null){
+            roomsOf(member.getClientID()).add(name);
+        }
+        return joined;
+    }
+
+    /**
+     * Remove a user from a room, removing the room if they were its last member
+     * @param name  name of the room
+     * @param userID    id of the user leaving
+     * @return  true if the user was a member of the room
+     */
+    public boolean leave(String name, int userID){
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(name, (roomName, room) -> {
+            removed[0] = room.members.remove(userID) != null;
+            return room.members.isEmpty() ? null : room;
+        });
+        Set<String> userRooms = roomsByUser.get(userID);
+        if (userRooms != null){
+            userRooms.remove(name);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Remove a user from every room they're a member of, used when the user disconnects
+     * @param userID    id of the user
+     */
+    public void leaveAll(int userID){
+        Set<String> userRooms = roomsByUser.remove(userID);
+        if (userRooms != null){
+            for (String name: userRooms){
+                leave(name, userID);
+            }
+        }
+    }
+
+    /**
+     * Returns a room
+     * @param name  name of the room
+     * @return  the room, or null if there is no room with that name
+     */
+    public Room getRoom(String name){
+        return rooms.get(name);
+    }
+
+    /**
+     * Returns the number of rooms
+     * @return  number of rooms
+     */
+    public int size(){
+        return rooms.size();
+    }
+
+    /**
+     * Returns the set of rooms a user is a member of, creating it if needed
+     * @param userID    id of the user
+     * @return  names of the user's rooms
+     */
+    private Set<String> roomsOf(int userID){
+        return roomsByUser.computeIfAbsent(userID, id -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * A chat room and its members
+     */
+    public static class Room {
+        private final String name;
+        private final ConcurrentHashMap<Integer, SocketInfo> members = new ConcurrentHashMap<>();
+
+        // Set once the room's posts have been split across the fan-out workers, see RoomFanout
+        private volatile boolean fannedOut = false;
+
+        /**
+         * Constructor to create an empty Room
+         * @param name  name of the room
+         */
+        private Room(String name){
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of the room
+         * @return  room name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns whether a user is a member of the room
+         * @param userID    id of the user
+         * @return  true if a member
+         */
+        public boolean isMember(int userID){
+            return members.containsKey(userID);
+        }
+
+        /**
+         * Returns whether the room's posts have ever been split across the fan-out workers
+         * @return  true if posts to the room go through the workers
+         */
+        public boolean isFannedOut(){
+            return fannedOut;
+        }
+
+        /**
+         * Send every post to the room from now on through the fan-out workers
+         */
+        public void setFannedOut(){
+            fannedOut = true;
+        }
+
+        /**
+         * Returns the sockets of the room's members (a live view)
+         * @return  members' sockets
+         */
+        public Collection<SocketInfo> getMembers(){
+            return members.values();
+        }
+
+        /**
+         * Returns the details of each member of the room
+         * @return  new list of the members
+         */
+        public ArrayList<User> getMemberUsers(){
+            ArrayList<User> users = new ArrayList<>(members.size());
+            for (SocketInfo member: members.values()){
+                users.add(member.getUser());
+            }
+            return users;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes each message using Java serialization. Simple but large, as every payload includes the class descriptions of
+ * Message and User as well as the messages contents. Kept so the binary codec can be compared against it.
+ */
+public class SerializedMessageCodec implements MessageCodec {
+    public static final SerializedMessageCodec INSTANCE = new SerializedMessageCodec();
+
+    @Override
+    public void encode(Message message, ByteArrayOutputStream out) throws IOException {
+        // Use a new object stream for each message so no state is shared between frames
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.writeObject(message);
+        objectOut.flush();
+    }
+
+    @Override
+    public Message decode(ByteBuffer payload) throws IOException {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Message) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Frame does not contain a message", e);
+        }
+    }
+}
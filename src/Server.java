@@ -1,125 +1,485 @@
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This class is the entry point of the Server's side of the program.
  * This class handles:
  *  - Starting the server and listening for new clients
  *  - Starting a ServerResponse thread for each new client to respond to any messages received from that client
- *  - Maintain a list of currently open sockets
- *  - Maintain a list of currently online users
+ *    (or handing the client to an event loop when running in nio mode, see ServerConfig)
+ *  - Maintain a registry of currently online users and their open sockets
+ *  - Keeping messages for offline users in a mailbox until they next log in
+ *  - Keeping track of chat rooms and their members
+ *  - Connecting to the other nodes of a cluster, when there are any (see Cluster)
+ *  - Closing connections to clients that have stopped responding (see ConnectionReaper)
+ *  - Limiting how fast each client (and all clients together) can send, see RateLimiter
+ *  - Keeping the sessions of clients whose connection drops for a while, so they can reconnect and resume them (see
+ *    SessionRegistry)
+ *  - Encrypting client connections with TLS when chat.server.transport=tls, see TlsTransport
  */
 public class Server {
-    // Server details and list of client sockets
-    private final int port = 34752;
-    private ArrayList<SocketInfo> clientSockets = new ArrayList<>();
+    // Server details
+    private final ServerConfig config;
 
-    // List of users and their ids and a tracker for id so no user is given the same id
-    private ArrayList<User> onlineUsers = new ArrayList<>();
-    private int currentUserID = -1;
+    // Online users, their sockets and a tracker for id so no user is given the same id
+    private final UserRegistry registry;
+    private final PresenceBroadcaster presence;
+
+    // Links to the other nodes of the cluster, null if the server runs on its own
+    private Cluster cluster;
+
+    // Chat rooms and their members, and the workers sending posts to large rooms
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final RoomFanout roomFanout;
+
+    // Messages waiting for offline users, null if the mailbox couldn't be opened
+    private Mailbox mailbox;
+
+    // Length of each tick of the timer wheel, timers fire up to this late
+    private static final long TIMER_TICK_MILLIS = 250;
+
+    // Buckets in the timer wheel, one turn of the wheel covers TIMER_TICK_MILLIS * TIMER_BUCKETS (just over 2 minutes)
+    private static final int TIMER_BUCKETS = 512;
+
+    // Timers shared by every connection and session, the reaper sending heartbeats to quiet clients and closing the
+    // connections of those that stop responding, and the sessions waiting for clients to resume them
+    private final TimingWheel timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_BUCKETS);
+    private final ConnectionReaper reaper;
+    private final SessionRegistry sessions;
+
+    // Limits how fast frames are accepted from clients
+    private final RateLimiter rateLimiter;
+
+    // Encrypts client connections, null if they're plain TCP
+    private TlsTransport tls;
+
+    // Executor that runs each ServerResponse (blocking mode) and the server's performance stats
+    private final ExecutorService handlerExecutor;
+    private final ServerStats stats;
 
     /**
-     * Repeatedly checks for new clients and creates a ClientListener thread to deal with that client
+     * Constructor to create Server object
+     * @param config    settings used to run the server
+     */
+    public Server(ServerConfig config){
+        this.config = config;
+        this.registry = new UserRegistry(config.getClusterNodeID());
+        this.stats = new ServerStats(registry);
+        this.handlerExecutor = HandlerExecutors.create(config.getThreadType());
+        this.presence = new PresenceBroadcaster(registry, config, stats);
+        this.roomFanout = new RoomFanout(config, stats);
+        this.reaper = new ConnectionReaper(config, stats, timers);
+        this.rateLimiter = new RateLimiter(config, stats);
+        this.sessions = new SessionRegistry(this, config, stats, timers);
+    }
+
+    /**
+     * Starts listening for new clients and hands each one to a ServerResponse thread (blocking mode) or an event loop
+     * (nio mode) to deal with that client. This method never returns unless the server fails to start
      */
     public void go() {
         // Throughout we keep a log in the standard input (i.e. terminal)
         System.out.println("Server is listening...");
-        boolean firstMessage = true;
-
-        // Repeatedly looks for new clients
-        while(true){
-            // Open with-resources a new serverSocket on the port, this starts the server
-            try(ServerSocket mySocket = new ServerSocket(port)) {
-                if (firstMessage){
-                    System.out.println("Server is running on port, "+ mySocket.getLocalPort());
-                    firstMessage = false;
-                }
 
-                // Accept a connection from a client, returning the clientSocket
-                // This is a blocking call. This will wait here until a client connects
-                Socket clientSocket = mySocket.accept();
-                System.out.println("Receiving new connection request");
+        // Open the mailbox, delivering messages kept from before the server was restarted as users log in
+        if (config.isMailboxEnabled()){
+            try {
+                mailbox = new Mailbox(config, registry, stats);
+                mailbox.start();
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to open mailbox, messages to offline users will be dropped");
+            }
+        }
+
+        // Join the cluster, if there are other nodes
+        if (!config.getClusterPeers().isEmpty()){
+            try {
+                Cluster starting = new Cluster(this, config);
+                starting.start();
+                cluster = starting;
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to open cluster port " + config.getClusterPort()
+                        + ", running without the other nodes");
+            }
+        }
 
-                // Create a new serverResponse object and create a thread for it to deal with client
-                ServerResponse serverResponse = new ServerResponse(clientSocket, this);
-                Thread respond = new Thread(serverResponse);
+        // Watch for clients that stop responding, and for sessions that aren't resumed in time
+        if (reaper.isEnabled() || sessions.isEnabled()){
+            timers.start("server-timers");
+        }
+
+        // Serve the stats over HTTP for monitoring
+        if (config.getMetricsPort() > 0){
+            try {
+                new MetricsServer(config, stats, cluster).start();
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to open metrics endpoint on port " + config.getMetricsPort());
+            }
+        }
 
-                // Start thread (no need for join as we're in a while(true) loop)
-                respond.start();
+        // Set up TLS before any client is accepted, if it fails the server doesn't start rather than accept clients
+        // unencrypted
+        if (config.getTransport() == ServerConfig.Transport.TLS){
+            try {
+                tls = TlsTransport.forServer();
+                System.out.println("Encrypting client connections with TLS");
             } catch (IOException e) {
-                // Failed to open socket
-                System.out.println("ERROR: Failed to start server, failure opening new server socket");
+                System.out.println("ERROR: Failed to set up TLS, " + e.getMessage());
+                return;
             }
         }
 
+        try {
+            ConnectionListener listener;
+            if (config.getMode() == ServerConfig.Mode.NIO){
+                // In nio mode the clients are served by event loops rather than a thread each
+                stats.startReporting(config.getStatsInterval(), "nio");
+                NioServer nioServer = new NioServer(this, config);
+                nioServer.start();
+                listener = new ConnectionListener(config, stats, nioServer::register);
+            }
+            else {
+                stats.startReporting(config.getStatsInterval(),
+                        "blocking-" + config.getThreadType().name().toLowerCase());
+
+                // Create a new serverResponse object for each client and run it on a new (platform or virtual) thread
+                // to deal with the client
+                listener = new ConnectionListener(config, stats, this::startHandler);
+            }
+
+            // Accept clients until the server is stopped
+            listener.run();
+        } catch (IOException e) {
+            // Failed to open socket
+            System.out.println("ERROR: Failed to start server, failure opening server socket");
+        }
+    }
+
+    /**
+     * Start a ServerResponse for a client accepted in blocking mode, starting TLS on its connection first if the server
+     * uses it (the handshake itself happens on the ServerResponse's thread)
+     * @param clientChannel channel connected to the new client
+     */
+    private void startHandler(SocketChannel clientChannel){
+        Socket socket = clientChannel.socket();
+        if (tls != null){
+            try {
+                socket = tls.wrapAccepted(socket);
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to start TLS with new client");
+                try {
+                    clientChannel.close();
+                } catch (IOException closeFailed) {
+                    // Already closed
+                }
+                return;
+            }
+        }
+        handlerExecutor.execute(new ServerResponse(socket, this));
+    }
+
+    /**
+     * Returns the settings the server was started with
+     * @return  server config
+     */
+    public ServerConfig getConfig(){
+        return config;
+    }
+
+    /**
+     * Returns the TLS used to encrypt client connections
+     * @return  server side TLS, or null if connections are plain TCP
+     */
+    public TlsTransport getTls(){
+        return tls;
+    }
+
+    /**
+     * Returns the executor used to run client handlers and writers in blocking mode
+     * @return  handler executor
+     */
+    public ExecutorService getHandlerExecutor(){
+        return handlerExecutor;
+    }
+
+    /**
+     * Returns the stats tracking the server's performance
+     * @return  server stats
+     */
+    public ServerStats getStats(){
+        return stats;
+    }
+
+    /**
+     * Returns the reaper watching every connection for clients that stop responding
+     * @return  connection reaper
+     */
+    public ConnectionReaper getReaper(){
+        return reaper;
+    }
+
+    /**
+     * Returns the rate limiter checking every frame received from clients
+     * @return  rate limiter
+     */
+    public RateLimiter getRateLimiter(){
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the sessions of logged in clients, which can be resumed after reconnecting
+     * @return  session registry
+     */
+    public SessionRegistry getSessions(){
+        return sessions;
     }
 
     /**
-     * Get a new unique user id for the new user (for now just increments a counter)
+     * Get a new unique user id for the new user
      * @return  an unique user ID
      */
     public int getUserID(){
-        currentUserID++;
-        return currentUserID;
+        return registry.allocateUserID();
     }
 
     /**
-     * Add a new user to online users and store socket info
-     * @param user  user details
-     * @param clientSocketInfo  socket information for client
+     * Add a new user to online users and store socket info, then update every client's list of online users
+     * @param clientSocketInfo  socket information for client (including their user details)
      */
-    public void addUser(User user, SocketInfo clientSocketInfo){
-        onlineUsers.add(user);
-        clientSockets.add(clientSocketInfo);
+    public void addUser(SocketInfo clientSocketInfo){
+        presence.join(clientSocketInfo);
+        if (cluster != null){
+            cluster.userJoined(clientSocketInfo.getUser());
+        }
     }
 
     /**
-     * Returns list of currently online users (along with their details)
-     * @return arrayList of online users
+     * Send a direct message to its recipient. Recipients logged in to another node are reached through the cluster,
+     * otherwise the message is sent straight to the recipient's socket, or kept in the mailbox if they're offline (or
+     * older messages to them are still waiting in the mailbox, so the messages arrive in order)
+     * @param directMessage message to send
+     * @param mayBlock  false if the calling thread must never wait for space in the recipient's queue or the mailbox
+     *                  (e.g. a cluster link, which carries messages for many users). A message that doesn't fit in the
+     *                  recipient's queue is then kept in the mailbox instead
+     * @return  true if the message was sent, forwarded or kept in the mailbox, false if it was dropped
      */
-    public ArrayList<User> getUsers(){
-        return onlineUsers;
+    public boolean routeDirectMessage(Message directMessage, boolean mayBlock){
+        long start = System.nanoTime();
+        User sendToUser = directMessage.getToUser();
+
+        // Users on another node are found from their id alone, if the node can't be reached the mailbox is used
+        if (cluster != null && !registry.isLocal(sendToUser.getUniqueID())
+                && cluster.forward(withNames(directMessage))){
+            stats.recordRouting(System.nanoTime() - start);
+            return true;
+        }
+
+        // Find socket of the user we want to send the message to (a single lookup in the registry). If the user's
+        // connection has dropped and they may resume their session, the message is kept in the mailbox so it isn't
+        // lost if they never do
+        SocketInfo sendToSocket = registry.getSocket(sendToUser.getUniqueID());
+        boolean connected = sendToSocket != null && (mailbox == null || sendToSocket.getConnection().isOpen());
+        if (connected && (mailbox == null || !mailbox.hasMail(sendToSocket.getUser().getName()))){
+            try {
+                send(sendToSocket.getConnection(), directMessage, mayBlock);
+                stats.recordRouting(System.nanoTime() - start);
+                return true;
+            } catch (IOException e) {
+                if (mayBlock || mailbox == null){
+                    // Socket Closed
+                    System.out.println("ERROR: Failed to send message to user " + sendToSocket.getClientID());
+                    return false;
+                }
+                // The recipient's queue is full and we can't wait for it, keep the message in the mailbox instead.
+                // Their next messages go through the mailbox too until it's delivered, so they stay in order
+            }
+        }
+        if (mailbox != null && mailbox.store(withNames(directMessage),
+                mayBlock && config.getMode() == ServerConfig.Mode.BLOCKING)){
+            // Keep the message until the user logs in or resumes their session (or deliver it now if they're online)
+            if (connected){
+                mailbox.deliver(sendToSocket);
+            }
+            stats.recordRouting(System.nanoTime() - start);
+            return true;
+        }
+        else {
+            // Couldn't find user
+            System.out.println("ERROR: Couldn't find user " + sendToUser.getUniqueID() + " so failed to send message");
+            return false;
+        }
     }
 
     /**
-     * Returns list of each client socket (and the userids of the clients)
-     * @return arrayList of each user's id and socket
+     * Fill in the names of a direct message's sender and recipient, which are only sent by id. The mailbox keeps
+     * messages by the recipient's name, and stores the sender's name for when they may no longer be online
+     * @param directMessage message with users that may only have ids
+     * @return  copy of the message with every user the registry knows of named
      */
-    public ArrayList<SocketInfo> getClientSockets() {
-        return clientSockets;
+    private Message withNames(Message directMessage){
+        return new Message(withName(directMessage.getFromUser()), withName(directMessage.getToUser()),
+                directMessage.getMessage(), directMessage.getSequence());
     }
 
     /**
-     * Remove user from online users and their socket, the user has disconnected
-     * @param uniqueID userID of the user to remove
-     * @param clientSocket socket of the user we're removing
+     * Keep a direct message in the mailbox without trying to send it, used for messages forwarded to another node of
+     * the cluster whose link was lost before they were written. Never waits for the mailbox
+     * @param directMessage message to keep, with the names of its sender and recipient
+     * @return  true if the message was kept, false if there's no mailbox or it's too busy
      */
-    public void removeUser(int uniqueID, Socket clientSocket){
-        // Remove user (based off unique ID) from online users list
-        String name = "Unknown User";
-        for (User user: this.onlineUsers){
-            if (user.getUniqueID() == uniqueID){
-                name = user.getName();
-                this.onlineUsers.remove(user);
-                break;
+    public boolean keepInMailbox(Message directMessage){
+        return mailbox != null && mailbox.store(withNames(directMessage), false);
+    }
+
+    /**
+     * Fill in the name of a user that was only sent by id
+     * @param user  user that may only have an id, can be null
+     * @return  the user with their name, or the user as given if they already have a name or aren't known
+     */
+    private User withName(User user){
+        if (user == null || user.getName() != null){
+            return user;
+        }
+        User named = registry.find(user.getUniqueID());
+        return named != null ? named : user;
+    }
+
+    /**
+     * Pass a message received acknowledgement (code 5) back to the sender of the direct message. Unlike direct
+     * messages these aren't kept in the mailbox, if the sender has gone offline the acknowledgement is dropped
+     * @param receipt   acknowledgement from the recipient
+     * @param mayBlock  false if the calling thread must never wait for space in the sender's queue, the acknowledgement
+     *                  is dropped instead
+     */
+    public void routeReceipt(Message receipt, boolean mayBlock){
+        int senderID = receipt.getToUser().getUniqueID();
+        if (cluster != null && !registry.isLocal(senderID)){
+            cluster.forward(receipt);
+            return;
+        }
+        SocketInfo senderSocket = registry.getSocket(senderID);
+        if (senderSocket != null){
+            try {
+                send(senderSocket.getConnection(), receipt, mayBlock);
+            } catch (IOException e) {
+                // Sender has gone, they'll send the message again if it matters to them
+            }
+        }
+    }
+
+    /**
+     * Pass a file transfer frame (codes 50 to 53) on to the user at the other end of the transfer. Transfers are only
+     * between online users, nothing is kept in the mailbox. If the user isn't online the sender is told the transfer is
+     * cancelled. Chunks for a user whose connection has dropped are dropped rather than kept for them to resume, the
+     * sender goes back to the last acknowledged offset and sends them again
+     * @param transfer  file transfer frame, with the sender filled in
+     * @param mayBlock  false if the calling thread must never wait for space in the other user's queue, the frame is
+     *                  dropped instead (and sent again by the sender if it's a chunk)
+     */
+    public void routeTransfer(Message transfer, boolean mayBlock){
+        int toID = transfer.getToUser().getUniqueID();
+        boolean reachable;
+        if (cluster != null && !registry.isLocal(toID)){
+            reachable = cluster.forward(transfer);
+        }
+        else {
+            SocketInfo toSocket = registry.getSocket(toID);
+            reachable = toSocket != null;
+            if (reachable && (transfer.getSpecialCode() != 52 || toSocket.getConnection().isOpen())){
+                try {
+                    send(toSocket.getConnection(), transfer, mayBlock);
+                    stats.fileFrameRelayed(transfer.getData() == null ? 0 : transfer.getData().length);
+                } catch (IOException e) {
+                    // Queue full or connection closed, the sender sends any chunks again if they aren't acknowledged
+                }
             }
         }
+        if (!reachable && transfer.getSpecialCode() != 53 && transfer.getFromUser() != null){
+            routeTransfer(new Message(53, transfer.getToUser(), transfer.getFromUser(), transfer.getTransferID(), 0,
+                    "User isn't online", null), mayBlock);
+        }
+    }
 
-        // Remove client socket from list
-        for (SocketInfo socket: this.clientSockets){
-            if (socket.getClientSocket() == clientSocket){
-                this.clientSockets.remove(socket);
-                break;
+    /**
+     * Send a message to a local user's connection, either waiting for space in their queue or dropping it if full
+     * @param connection    connection of the user
+     * @param message   message to send
+     * @param mayBlock  false if the calling thread must never wait for space
+     * @throws IOException  if the connection is closed or the message was dropped
+     */
+    private void send(ClientConnection connection, Message message, boolean mayBlock) throws IOException {
+        if (mayBlock){
+            connection.send(message);
+        }
+        else if (!connection.trySendFrame(MessageFraming.encode(config.getCodec(), message))){
+            throw new IOException("Outbound queue is full, frame dropped");
+        }
+    }
+
+    /**
+     * Returns the registry of currently online users and their sockets
+     * @return  user registry
+     */
+    public UserRegistry getRegistry(){
+        return registry;
+    }
+
+    /**
+     * Returns the broadcaster that keeps every client's list of online users up to date
+     * @return  presence broadcaster
+     */
+    public PresenceBroadcaster getPresence(){
+        return presence;
+    }
+
+    /**
+     * Returns the registry of chat rooms and their members
+     * @return  room registry
+     */
+    public RoomRegistry getRooms(){
+        return rooms;
+    }
+
+    /**
+     * Returns the fan-out sending posts to the members of rooms
+     * @return  room fan-out
+     */
+    public RoomFanout getRoomFanout(){
+        return roomFanout;
+    }
+
+    /**
+     * Returns the mailbox holding messages for offline users
+     * @return  mailbox, or null if it couldn't be opened
+     */
+    public Mailbox getMailbox(){
+        return mailbox;
+    }
+
+    /**
+     * Remove user from online users, their socket and their rooms, the user has disconnected. Every other client is
+     * told the user has left
+     * @param uniqueID userID of the user to remove
+     * @param clientSocket socket of the user we're removing
+     */
+    public void removeUser(int uniqueID, Socket clientSocket){
+        // Remove user (based off unique ID and socket) from the registry
+        SocketInfo removed = presence.leave(uniqueID, clientSocket);
+        if (removed != null){
+            rooms.leaveAll(uniqueID);
+            if (cluster != null){
+                cluster.userLeft(removed.getUser());
             }
         }
+        String name = removed != null ? removed.getUser().getName() : "Unknown User";
 
         System.out.println("User ID "+ uniqueID + " (" + name + ") has disconnected");
     }
 
     public static void main(String[] args) {
-        Server myServer = new Server();
+        Server myServer = new Server(new ServerConfig());
         myServer.go();
     }
 
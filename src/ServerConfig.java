@@ -0,0 +1,610 @@
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the start-up settings of the server. Every setting can be overridden with a system property when launching the
+ * server (e.g. java -Dchat.server.mode=nio Server), otherwise the default shown below is used.
+ *
+ * Current settings:
+ * - chat.server.port: port the server listens on (default 34752)
+ * - chat.server.backlog: connections the operating system queues before they are accepted (default 1024)
+ * - chat.server.acceptors: number of threads accepting new clients (default 1)
+ * - chat.server.reusePort: with more than one acceptor, give each acceptor its own listening socket using
+ *   SO_REUSEPORT where the platform supports it (default true)
+ * - chat.server.mode: "blocking" for a thread per client or "nio" for selector based event loops (default blocking)
+ * - chat.server.eventLoops: number of event loop threads used in nio mode (default one per core)
+ * - chat.server.readBufferSize: size in bytes of each pooled read buffer used in nio mode (default 16KB)
+ * - chat.server.threads: "platform" or "virtual" threads to run each ServerResponse in blocking mode (default platform)
+ * - chat.server.transport: "plain" for unencrypted TCP (clients using an SSH tunnel connect this way) or "tls" to
+ *   encrypt connections with TLS, set up with the chat.tls.* settings (see TlsTransport) (default plain)
+ * - chat.server.statsInterval: seconds between each stats summary in the log, 0 turns it off (default 60)
+ * - chat.codec: "binary" or "serialized" format of messages, must match the clients (default binary)
+ * - chat.server.outboundQueueSize: frames that can wait to be written to each client (default 1024)
+ * - chat.server.slowConsumerPolicy: "drop", "block" or "disconnect" when a client's queue is full (default block)
+ * - chat.server.sendTimeoutMillis: how long the block policy waits for space before dropping (default 1000)
+ * - chat.server.writeBatchSize: largest number of frames written to a client before each flush (default 64)
+ * - chat.server.presenceWindowMillis: how long joins and leaves are collected before being broadcast together, 0 sends
+ *   each one straight away (default 50)
+ * - chat.server.mailbox: keep direct messages for offline users until they log in (default true). Logins aren't
+ *   authenticated, so whoever next logs in with a user's name is given their messages (see Mailbox)
+ * - chat.server.mailboxDir: directory of the mailbox log holding messages for offline users (default Data/mailbox)
+ * - chat.server.mailboxSegmentBytes: maximum size of each mailbox log segment (default 64MB)
+ * - chat.server.mailboxSyncMillis: time between writing the mailbox log to the disk, 0 writes it after every batch
+ *   (default 0)
+ * - chat.server.mailboxQueueSize: messages that can wait to be written to the mailbox before new ones are dropped
+ *   (default 65536)
+ * - chat.server.fanoutThreads: number of threads sending posts to the members of large rooms (default one per core)
+ * - chat.server.fanoutChunkSize: rooms with more members than this are split across the fan-out threads (default 512)
+ * - chat.server.metricsPort: port of the HTTP endpoint serving metrics in Prometheus format, 0 turns it off
+ *   (default 34753)
+ * - chat.server.metricsAddress: address the metrics endpoint listens on (default 127.0.0.1, so only reachable from
+ *   the server's own machine)
+ * - chat.server.metricsPerConnection: include each connection's frame, byte and queue counts in the metrics, which
+ *   adds several lines per online user (default true)
+ * - chat.server.heartbeatSeconds: how long a client can be quiet before it's sent a heartbeat to answer, 0 turns
+ *   heartbeats off (default 15)
+ * - chat.server.idleTimeoutSeconds: how long a client can be quiet (not even answering heartbeats) before its
+ *   connection is closed, 0 turns it off (default 45)
+ * - chat.server.loginTimeoutSeconds: how long a client has to log in before its connection is closed, 0 turns it off
+ *   (default 300)
+ * - chat.server.resumeWindowSeconds: how long a client whose connection drops can take to reconnect and resume its
+ *   session (keeping its user id, and being sent the messages it missed) before it's treated as having left, 0 turns
+ *   resuming off (default 30)
+ * - chat.server.replayBufferFrames: most recent frames kept for each session to send again when it resumes, at most
+ *   one less than the outbound queue size (default 512)
+ * - chat.server.replayBufferBytes: most bytes of frames kept for each session, so a user receiving a large file doesn't
+ *   hold hundreds of its chunks (default 4MB)
+ * - chat.server.rateLimits: how fast each user can send frames of each special code, as a comma separated list of
+ *   code=rate/burst (frames per second, and frames allowed at once after a quiet spell), where "default" applies to
+ *   every code not listed and a rate of 0 means no limit. File chunks (52) and their acknowledgements (51) have high
+ *   limits so large files aren't slowed down. A user's limits carry on across a resumed session (default
+ *   default=200/400,0=100/200,33=20/40,51=2000/4000,52=2000/4000)
+ * - chat.server.addressRateLimits: how fast clients connecting from one address can send logins (10) and resumes (12),
+ *   which come before the client has a user, in the same form. The burst allows a lab behind one address, or the
+ *   LoadGenerator, to log in many users at once (default 10=50/1000,12=50/1000)
+ * - chat.server.globalRateLimits: how fast all users together can send frames of each special code, in the same form
+ *   (default 0=50000/100000,33=10000/20000)
+ * - chat.compression: "deflate" or "none", whether large frames are compressed for clients that offer it when logging
+ *   in (default deflate)
+ * - chat.compression.threshold: smallest payload in bytes that is compressed, smaller frames are sent as they are
+ *   (default 512)
+ * - chat.compression.level: Deflater level from 1 (fastest) to 9 (smallest) (default 1)
+ * - chat.cluster.nodeId: id of this node in the cluster from 0 to 127, every node needs a different id (default 0)
+ * - chat.cluster.peers: the other nodes of the cluster as a comma separated list of id@host:port, where the port is
+ *   their cluster port (default none, the server runs on its own)
+ * - chat.cluster.port: port other nodes connect to (default 34754)
+ * - chat.cluster.address: address the cluster port listens on (default 127.0.0.1, set it to the machine's address
+ *   when the nodes run on different machines)
+ * - chat.cluster.linkQueueSize: frames that can wait to be sent to each other node (default 65536)
+ */
+public class ServerConfig {
+    /**
+     * The ways the server can handle its client connections
+     */
+    public enum Mode {
+        // A ServerResponse thread is started per client and blocks waiting for messages
+        BLOCKING,
+        // A small number of event loop threads share all clients using non-blocking channels
+        NIO
+    }
+
+    /**
+     * How clients' connections are carried
+     */
+    public enum Transport {
+        // Unencrypted TCP, used directly on a trusted network or at the end of clients' SSH tunnels
+        PLAIN,
+        // Encrypted with TLS by the server itself
+        TLS
+    }
+
+    /**
+     * The type of thread used to run each client's ServerResponse in blocking mode
+     */
+    public enum ThreadType {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private final int port;
+    private final int backlog;
+    private final int acceptors;
+    private final boolean reusePort;
+    private final Mode mode;
+    private final int eventLoops;
+    private final int readBufferSize;
+    private final ThreadType threadType;
+    private final Transport transport;
+    private final int statsInterval;
+    private final MessageCodec codec;
+    private final int outboundQueueSize;
+    private final OutboundQueue.SlowConsumerPolicy slowConsumerPolicy;
+    private final long sendTimeoutMillis;
+    private final int writeBatchSize;
+    private final long presenceWindowMillis;
+    private final boolean mailboxEnabled;
+    private final String mailboxDir;
+    private final long mailboxSegmentBytes;
+    private final long mailboxSyncMillis;
+    private final int mailboxQueueSize;
+    private final int fanoutThreads;
+    private final int fanoutChunkSize;
+    private final int metricsPort;
+    private final String metricsAddress;
+    private final boolean metricsPerConnection;
+    private final int heartbeatSeconds;
+    private final int idleTimeoutSeconds;
+    private final int loginTimeoutSeconds;
+    private final int resumeWindowSeconds;
+    private final int replayBufferFrames;
+    private final int replayBufferBytes;
+    private final Map<Integer, RateLimiter.Limit> userRateLimits;
+    private final Map<Integer, RateLimiter.Limit> addressRateLimits;
+    private final Map<Integer, RateLimiter.Limit> globalRateLimits;
+    private final boolean compressionEnabled;
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final int clusterNodeID;
+    private final Map<Integer, InetSocketAddress> clusterPeers;
+    private final int clusterPort;
+    private final String clusterAddress;
+    private final int clusterLinkQueueSize;
+
+    /**
+     * Constructor to create a ServerConfig object, reading each setting from the system properties
+     */
+    public ServerConfig(){
+        this.port = Integer.getInteger("chat.server.port", 34752);
+        this.backlog = Integer.getInteger("chat.server.backlog", 1024);
+        this.acceptors = Integer.getInteger("chat.server.acceptors", 1);
+        this.reusePort = Boolean.parseBoolean(System.getProperty("chat.server.reusePort", "true"));
+        this.mode = Mode.valueOf(System.getProperty("chat.server.mode", "blocking").toUpperCase());
+        this.eventLoops = Integer.getInteger("chat.server.eventLoops", Runtime.getRuntime().availableProcessors());
+        this.readBufferSize = Integer.getInteger("chat.server.readBufferSize", 16 * 1024);
+        this.threadType = ThreadType.valueOf(System.getProperty("chat.server.threads", "platform").toUpperCase());
+        this.transport = Transport.valueOf(System.getProperty("chat.server.transport", "plain").toUpperCase());
+        this.statsInterval = Integer.getInteger("chat.server.statsInterval", 60);
+        this.codec = MessageCodec.fromSystemProperties();
+        this.outboundQueueSize = Integer.getInteger("chat.server.outboundQueueSize", 1024);
+        this.slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(
+                System.getProperty("chat.server.slowConsumerPolicy", "block").toUpperCase());
+        this.sendTimeoutMillis = Long.getLong("chat.server.sendTimeoutMillis", 1000);
+        this.writeBatchSize = Integer.getInteger("chat.server.writeBatchSize", 64);
+        this.presenceWindowMillis = Long.getLong("chat.server.presenceWindowMillis", 50);
+        this.mailboxEnabled = Boolean.parseBoolean(System.getProperty("chat.server.mailbox", "true"));
+        this.mailboxDir = System.getProperty("chat.server.mailboxDir", "Data/mailbox");
+        this.mailboxSegmentBytes = Long.getLong("chat.server.mailboxSegmentBytes", 64L * 1024 * 1024);
+        this.mailboxSyncMillis = Long.getLong("chat.server.mailboxSyncMillis", 0);
+        this.mailboxQueueSize = Integer.getInteger("chat.server.mailboxQueueSize", 65536);
+        this.fanoutThreads = Integer.getInteger("chat.server.fanoutThreads", Runtime.getRuntime().availableProcessors());
+        this.fanoutChunkSize = Integer.getInteger("chat.server.fanoutChunkSize", 512);
+        this.metricsPort = Integer.getInteger("chat.server.metricsPort", 34753);
+        this.metricsAddress = System.getProperty("chat.server.metricsAddress", "127.0.0.1");
+        this.metricsPerConnection = Boolean.parseBoolean(System.getProperty("chat.server.metricsPerConnection", "true"));
+        this.heartbeatSeconds = Integer.getInteger("chat.server.heartbeatSeconds", 15);
+        this.idleTimeoutSeconds = Integer.getInteger("chat.server.idleTimeoutSeconds", 45);
+        this.loginTimeoutSeconds = Integer.getInteger("chat.server.loginTimeoutSeconds", 300);
+        this.resumeWindowSeconds = Integer.getInteger("chat.server.resumeWindowSeconds", 30);
+        this.replayBufferFrames = Integer.getInteger("chat.server.replayBufferFrames", 512);
+        this.replayBufferBytes = Integer.getInteger("chat.server.replayBufferBytes", 4 * 1024 * 1024);
+        this.userRateLimits = parseRateLimits(System.getProperty("chat.server.rateLimits",
+                "default=200/400,0=100/200,33=20/40,51=2000/4000,52=2000/4000"));
+        this.addressRateLimits = parseRateLimits(System.getProperty("chat.server.addressRateLimits",
+                "10=50/1000,12=50/1000"));
+        this.globalRateLimits = parseRateLimits(System.getProperty("chat.server.globalRateLimits",
+                "0=50000/100000,33=10000/20000"));
+        this.compressionEnabled = FrameCompressor.isEnabled();
+        this.compressionThreshold = Integer.getInteger("chat.compression.threshold", 512);
+        this.compressionLevel = Integer.getInteger("chat.compression.level", 1);
+        this.clusterNodeID = Integer.getInteger("chat.cluster.nodeId", 0);
+        this.clusterPeers = parsePeers(System.getProperty("chat.cluster.peers", ""));
+        this.clusterPort = Integer.getInteger("chat.cluster.port", 34754);
+        this.clusterAddress = System.getProperty("chat.cluster.address", "127.0.0.1");
+        this.clusterLinkQueueSize = Integer.getInteger("chat.cluster.linkQueueSize", 65536);
+    }
+
+    /**
+     * Read the list of other nodes in the cluster
+     * @param peers comma separated list of id@host:port
+     * @return  address of each node's cluster port by node id
+     */
+    private static Map<Integer, InetSocketAddress> parsePeers(String peers){
+        LinkedHashMap<Integer, InetSocketAddress> parsed = new LinkedHashMap<>();
+        for (String peer: peers.split(",")){
+            peer = peer.trim();
+            if (peer.isEmpty()){
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at){
+                throw new IllegalArgumentException("Cluster peer must be written as id@host:port: " + peer);
+            }
+            int nodeID = Integer.parseInt(peer.substring(0, at));
+            String host = peer.substring(at + 1, colon);
+            int port = Integer.parseInt(peer.substring(colon + 1));
+            parsed.put(nodeID, InetSocketAddress.createUnresolved(host, port));
+        }
+        return parsed;
+    }
+
+    /**
+     * Read a list of rate limits
+     * @param limits    comma separated list of code=rate/burst, where the code may be "default"
+     * @return  limit of each code, with the default limit under RateLimiter.DEFAULT. Codes with a rate of 0 are left
+     *          out as they aren't limited
+     */
+    private static Map<Integer, RateLimiter.Limit> parseRateLimits(String limits){
+        LinkedHashMap<Integer, RateLimiter.Limit> parsed = new LinkedHashMap<>();
+        for (String limit: limits.split(",")){
+            limit = limit.trim();
+            if (limit.isEmpty()){
+                continue;
+            }
+            int equals = limit.indexOf('=');
+            if (equals <= 0){
+                throw new IllegalArgumentException("Rate limit must be written as code=rate/burst: " + limit);
+            }
+            String code = limit.substring(0, equals).trim();
+            String[] rateAndBurst = limit.substring(equals + 1).split("/");
+            double rate = Double.parseDouble(rateAndBurst[0].trim());
+            int burst = rateAndBurst.length > 1 ? Integer.parseInt(rateAndBurst[1].trim()) : (int) Math.ceil(rate);
+            if (rate <= 0){
+                continue;
+            }
+            parsed.put(code.equalsIgnoreCase("default") ? RateLimiter.DEFAULT : Integer.parseInt(code),
+                    new RateLimiter.Limit(rate, burst));
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the port the server listens on
+     * @return  port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the number of connections the operating system queues before they are accepted
+     * @return  listen backlog
+     */
+    public int getBacklog() {
+        return Math.max(1, backlog);
+    }
+
+    /**
+     * Returns the number of threads accepting new clients
+     * @return  number of acceptors
+     */
+    public int getAcceptors() {
+        return Math.max(1, acceptors);
+    }
+
+    /**
+     * Returns whether each acceptor should have its own listening socket using SO_REUSEPORT
+     * @return  true to use SO_REUSEPORT
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Returns how the server should handle client connections
+     * @return  server mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the number of event loop threads to use in nio mode
+     * @return  number of event loops
+     */
+    public int getEventLoops() {
+        return Math.max(1, eventLoops);
+    }
+
+    /**
+     * Returns the size of each pooled read buffer used in nio mode
+     * @return  read buffer size in bytes
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Returns the type of thread used to run each client in blocking mode
+     * @return  thread type
+     */
+    public ThreadType getThreadType() {
+        return threadType;
+    }
+
+    /**
+     * Returns how clients' connections are carried
+     * @return  transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Returns the number of seconds between each stats summary
+     * @return  stats interval in seconds
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Returns the codec used to encode and decode messages
+     * @return  message codec
+     */
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns the number of frames that can wait to be written to each client
+     * @return  outbound queue size
+     */
+    public int getOutboundQueueSize() {
+        return Math.max(1, outboundQueueSize);
+    }
+
+    /**
+     * Returns what to do when a client's outbound queue is full
+     * @return  slow consumer policy
+     */
+    public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Returns how long the block policy waits for space in a full outbound queue
+     * @return  send timeout in milliseconds
+     */
+    public long getSendTimeoutMillis() {
+        return sendTimeoutMillis;
+    }
+
+    /**
+     * Returns the largest number of frames written to a client before each flush
+     * @return  write batch size
+     */
+    public int getWriteBatchSize() {
+        return Math.max(1, writeBatchSize);
+    }
+
+    /**
+     * Returns how long joins and leaves are collected before being broadcast together
+     * @return  presence window in milliseconds
+     */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * Returns whether direct messages for offline users are kept in the mailbox
+     * @return  true if the mailbox is used
+     */
+    public boolean isMailboxEnabled() {
+        return mailboxEnabled;
+    }
+
+    /**
+     * Returns the directory of the mailbox log
+     * @return  mailbox directory
+     */
+    public String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    /**
+     * Returns the maximum size of each mailbox log segment
+     * @return  segment size in bytes
+     */
+    public long getMailboxSegmentBytes() {
+        return Math.max(1024, mailboxSegmentBytes);
+    }
+
+    /**
+     * Returns the time between writing the mailbox log to the disk
+     * @return  sync interval in milliseconds
+     */
+    public long getMailboxSyncMillis() {
+        return mailboxSyncMillis;
+    }
+
+    /**
+     * Returns the number of messages that can wait to be written to the mailbox
+     * @return  mailbox queue size
+     */
+    public int getMailboxQueueSize() {
+        return Math.max(1, mailboxQueueSize);
+    }
+
+    /**
+     * Returns the number of threads sending posts to the members of large rooms
+     * @return  number of fan-out threads
+     */
+    public int getFanoutThreads() {
+        return Math.max(1, fanoutThreads);
+    }
+
+    /**
+     * Returns the number of members above which a room's posts are split across the fan-out threads
+     * @return  fan-out chunk size
+     */
+    public int getFanoutChunkSize() {
+        return Math.max(1, fanoutChunkSize);
+    }
+
+    /**
+     * Returns the port of the metrics endpoint
+     * @return  metrics port, 0 or less if the endpoint is turned off
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Returns the address the metrics endpoint listens on
+     * @return  metrics address
+     */
+    public String getMetricsAddress() {
+        return metricsAddress;
+    }
+
+    /**
+     * Returns whether each connection's counts are included in the metrics
+     * @return  true if per-connection metrics are included
+     */
+    public boolean isMetricsPerConnection() {
+        return metricsPerConnection;
+    }
+
+    /**
+     * Returns how long a client can be quiet before it's sent a heartbeat
+     * @return  heartbeat interval in seconds, 0 if heartbeats are off
+     */
+    public int getHeartbeatSeconds() {
+        return Math.max(0, heartbeatSeconds);
+    }
+
+    /**
+     * Returns how long a client can be quiet before its connection is closed
+     * @return  idle timeout in seconds, 0 if it's off
+     */
+    public int getIdleTimeoutSeconds() {
+        return Math.max(0, idleTimeoutSeconds);
+    }
+
+    /**
+     * Returns how long a client has to log in before its connection is closed
+     * @return  login timeout in seconds, 0 if it's off
+     */
+    public int getLoginTimeoutSeconds() {
+        return Math.max(0, loginTimeoutSeconds);
+    }
+
+    /**
+     * Returns how long a client whose connection drops can take to resume its session
+     * @return  resume window in seconds, 0 if resuming is off
+     */
+    public int getResumeWindowSeconds() {
+        return Math.max(0, resumeWindowSeconds);
+    }
+
+    /**
+     * Returns the number of recent frames kept for each session to send again when it resumes. Every kept frame must
+     * fit in the new connection's outbound queue along with the resume reply
+     * @return  replay buffer size in frames
+     */
+    public int getReplayBufferFrames() {
+        return Math.max(1, Math.min(replayBufferFrames, getOutboundQueueSize() - 1));
+    }
+
+    /**
+     * Returns the most bytes of frames kept for each session to send again when it resumes, the oldest frames are
+     * dropped once either this or the frame limit is reached
+     * @return  replay buffer size in bytes
+     */
+    public int getReplayBufferBytes() {
+        return Math.max(1, replayBufferBytes);
+    }
+
+    /**
+     * Returns the limits on how fast each user can send frames of each special code
+     * @return  limit by code, RateLimiter.DEFAULT holds the limit for every other code (codes without a limit are
+     *          left out)
+     */
+    public Map<Integer, RateLimiter.Limit> getUserRateLimits() {
+        return userRateLimits;
+    }
+
+    /**
+     * Returns the limits on how fast clients from one address can log in and resume their sessions
+     * @return  limit by code, RateLimiter.DEFAULT holds the limit for every other code (codes without a limit are
+     *          left out)
+     */
+    public Map<Integer, RateLimiter.Limit> getAddressRateLimits() {
+        return addressRateLimits;
+    }
+
+    /**
+     * Returns the limits on how fast all users together can send frames of each special code
+     * @return  limit by code, RateLimiter.DEFAULT holds the limit for every other code (codes without a limit are
+     *          left out)
+     */
+    public Map<Integer, RateLimiter.Limit> getGlobalRateLimits() {
+        return globalRateLimits;
+    }
+
+    /**
+     * Returns whether large frames are compressed for clients that offer it
+     * @return  true if compression is enabled
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Returns the smallest payload that is compressed
+     * @return  compression threshold in bytes
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Returns the Deflater level used to compress frames
+     * @return  compression level (1 to 9)
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Returns the id of this node in the cluster
+     * @return  node id
+     */
+    public int getClusterNodeID() {
+        return clusterNodeID;
+    }
+
+    /**
+     * Returns the other nodes of the cluster
+     * @return  address of each node's cluster port by node id, empty if the server runs on its own
+     */
+    public Map<Integer, InetSocketAddress> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * Returns the port other nodes connect to
+     * @return  cluster port
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * Returns the address the cluster port listens on
+     * @return  cluster address
+     */
+    public String getClusterAddress() {
+        return clusterAddress;
+    }
+
+    /**
+     * Returns the number of frames that can wait to be sent to each other node
+     * @return  link queue size
+     */
+    public int getClusterLinkQueueSize() {
+        return Math.max(1, clusterLinkQueueSize);
+    }
+}
@@ -1,12 +1,10 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
 
 /**
- * Deals with any messages sent from the client and provides the relevant response. This is run as a thread for each
- * client to allow multiple client to interact with the server at once.
+ * Deals with any messages sent from the client and provides the relevant response. In blocking mode this is run as a
+ * thread for each client to allow multiple client to interact with the server at once. In nio mode an EventLoop
+ * passes each message it reads to handleMessage() instead.
  */
 public class ServerResponse implements Runnable{
     // Socket attributes
@@ -14,20 +12,45 @@ public class ServerResponse implements Runnable{
     private final Server serverObject;
     private Boolean socketActive = true;
 
-    // Object streams to and from client
-    private ObjectInputStream clientIn;
-    private ObjectOutputStream clientOut;
+    // Connection used to receive and send messages to the client
+    private ClientConnection clientConnection;
 
     private int userID;
 
+    // Set once the client logs in, volatile as the ConnectionReaper checks it from its own thread
+    private volatile SocketInfo socketInfo;
+
+    // Rate limits of this client's user (the session's once it has one, so they carry on across a resume), and of the
+    // address it connected from, used for logins and resumes. Only changed by the thread handling the client
+    private RateLimiter.Buckets rateBuckets;
+    private RateLimiter.Buckets addressBuckets;
+
+    // Session the client can resume after reconnecting, null if resuming is off or the client hasn't logged in
+    private ResumableSession session;
+
     /**
-     * Constructor to create ServerResponse Object
+     * Constructor to create ServerResponse Object that is run as a thread (blocking mode)
      * @param clientSocket  the socket connected to the client
      * @param serverObject  the server object/instantiation, so we can access Server methods
      */
     public ServerResponse(Socket clientSocket, Server serverObject){
         this.clientSocket = clientSocket; // Get the server connected to the client
         this.serverObject = serverObject; // Get the object of server
+        this.rateBuckets = serverObject.getRateLimiter().newUserBuckets();
+        serverObject.getStats().connectionOpened();
+    }
+
+    /**
+     * Constructor to create ServerResponse Object for a connection that's already open (nio mode)
+     * @param clientConnection  the connection to the client
+     * @param serverObject  the server object/instantiation, so we can access Server methods
+     */
+    public ServerResponse(ClientConnection clientConnection, Server serverObject){
+        this.clientSocket = clientConnection.getSocket();
+        this.clientConnection = clientConnection;
+        this.serverObject = serverObject;
+        this.rateBuckets = serverObject.getRateLimiter().newUserBuckets();
+        serverObject.getStats().connectionOpened();
     }
 
     /**
@@ -38,64 +61,172 @@ public class ServerResponse implements Runnable{
         // Accept a connection from a client
         System.out.println("Server accepted connection from new client");
         // Set up the ability to receive and send messages to the client
+        BlockingClientConnection connection = null;
         try {
-            clientIn = new ObjectInputStream(clientSocket.getInputStream());
-            clientOut = new ObjectOutputStream(clientSocket.getOutputStream());
+            ServerConfig config = serverObject.getConfig();
+            OutboundQueue outboundQueue = new OutboundQueue(config, serverObject.getStats());
+            connection = new BlockingClientConnection(clientSocket, config.getCodec(), outboundQueue,
+                    new ConnectionStats(serverObject.getStats()), config.getWriteBatchSize(),
+                    serverObject.getHandlerExecutor());
+            clientConnection = connection;
+            serverObject.getReaper().watch(connection, this);
         } catch (IOException e) {
            System.out.println("ERROR: Failed to create input and output streams to new client");
            this.socketActive = false;
+           serverObject.getStats().connectionClosed();
         }
 
         // While socket is active, wait for messages from client, respond then repeat
         while (socketActive) {
             try {
                 // Receive message from client, this is a blocking call
-                Message message = (Message) clientIn.readObject();
-
-                if (message != null) {
-                    // Decide how to respond to message based off the special code
-                    int specialCode = message.getSpecialCode();
-                    switch (specialCode) {
-                        // Normal message received
-                        case 0:
-                            // Pass message onto correct user
-                            directMessageResponse(message);
-                            break;
-
-                        // Disconnect Request Received
-                        case 2:
-                            // Remove client from server list
-                            this.socketActive = false;
-                            serverObject.removeUser(this.userID, this.clientSocket);
-
-                            // Update Users to all other clients
-                            sendUsers();
-                            break;
-
-                        // Login Request Received
-                        case 10:
-                            loginResponse(message);
-                            break;
-                    }
-                }
+                Message message = connection.receive();
+                handleMessage(message);
             } catch (IOException e){
                 // The socket is closed, remove user
-                this.socketActive = false;
-                serverObject.removeUser(this.userID, this.clientSocket);
-                // Update online users
-                sendUsers();
-            } catch (ClassNotFoundException e1) {
-                System.out.println("ERROR: Message class is missing");
+                connectionClosed();
             }
+        }
 
+        // Close connection to client
+        if (connection != null){
+            connection.close();
         }
-        // Close input and output stream
-        try {
-            clientIn.close();
-            clientOut.close();
-        } catch (IOException e) {
-            System.out.println("ERROR: Failed to close input and output streams of client");
+    }
+
+    /**
+     * Decide how to respond to a message received from the client
+     * @param message   message received from the client
+     * @return  true if the client is still connected, false if the client asked to disconnect
+     */
+    public boolean handleMessage(Message message){
+        if (message != null && socketActive) {
+            // Decide how to respond to message based off the special code
+            int specialCode = message.getSpecialCode();
+
+            // Frames over the client's or the server's rate limit aren't handled, the client is told to slow down.
+            // Logins and resumes come before the client has a user, so they're limited for its address instead (each
+            // attempt could otherwise use a new connection with full buckets)
+            RateLimiter rateLimiter = serverObject.getRateLimiter();
+            RateLimiter.Buckets buckets = rateBuckets;
+            if (socketInfo == null && (specialCode == 10 || specialCode == 12)){
+                if (addressBuckets == null){
+                    addressBuckets = rateLimiter.addressBuckets(clientSocket);
+                }
+                buckets = addressBuckets;
+            }
+            long retryAfterMillis = rateLimiter.acquire(specialCode, buckets);
+            if (retryAfterMillis > 0){
+                throttleResponse(message, retryAfterMillis);
+                return socketActive;
+            }
+
+            switch (specialCode) {
+                // Normal message received
+                case 0:
+                    // Pass message onto correct user, only once the user has logged in (so the sender is known)
+                    if (socketInfo != null && message.getToUser() != null){
+                        directMessageResponse(message);
+                    }
+                    break;
+
+                // Disconnect Request Received
+                case 2:
+                    // Remove client from server list
+                    this.socketActive = false;
+                    serverObject.getStats().connectionClosed();
+                    // (this also tells all other clients the user has left)
+                    if (session != null){
+                        // The session won't be resumed, so it ends now rather than waiting for the resume window
+                        serverObject.getSessions().end(session);
+                    }
+                    else {
+                        serverObject.removeUser(this.userID, this.clientSocket);
+                    }
+                    break;
+
+                // Recipient acknowledging a direct message, pass it back to the sender
+                case 5:
+                    if (socketInfo != null && message.getToUser() != null){
+                        // The recipient is always the user logged in on this connection, whoever the client says it is
+                        serverObject.routeReceipt(new Message(socketInfo.getUser(), message.getToUser(),
+                                message.getSequence()), true);
+                    }
+                    break;
+
+                // File transfer frames, passed on to the other user as coming from the user logged in here
+                case 50:
+                case 51:
+                case 52:
+                case 53:
+                    if (socketInfo != null && message.getToUser() != null){
+                        serverObject.routeTransfer(new Message(specialCode, socketInfo.getUser(), message.getToUser(),
+                                message.getTransferID(), message.getOffset(), message.getMessage(), message.getData()), true);
+                    }
+                    break;
+
+                // Heartbeat reply, receiving it is all that matters (see ConnectionReaper)
+                case 3:
+                    break;
+
+                // Login Request Received
+                case 10:
+                    if (socketInfo == null){
+                        loginResponse(message);
+                    }
+                    break;
+
+                // Resume Request Received, from a client that has reconnected
+                case 12:
+                    if (socketInfo == null){
+                        resumeResponse(message);
+                    }
+                    break;
+
+                // Full list of online users requested
+                case 22:
+                    if (socketInfo != null){
+                        serverObject.getPresence().sendSnapshot(socketInfo);
+                    }
+                    break;
+
+                // Room requests, only once the user has logged in
+                case 30:
+                case 31:
+                case 32:
+                case 33:
+                    if (socketInfo != null){
+                        roomResponse(message);
+                    }
+                    break;
+            }
         }
+        return socketActive;
+    }
+
+    /**
+     * Called when the connection to the client is lost without a disconnect request
+     */
+    public void connectionClosed(){
+        if (socketActive){
+            this.socketActive = false;
+            serverObject.getStats().connectionClosed();
+            if (session != null){
+                // Keep the user online for a while, in case the client reconnects and resumes its session
+                serverObject.getSessions().suspend(session, clientConnection);
+                return;
+            }
+            // The socket is closed, remove user (and update online users of all other clients)
+            serverObject.removeUser(this.userID, this.clientSocket);
+        }
+    }
+
+    /**
+     * Returns whether the client has logged in
+     * @return  true once the client has logged in
+     */
+    public boolean isLoggedIn(){
+        return socketInfo != null;
     }
 
     /**
@@ -105,12 +236,8 @@ public class ServerResponse implements Runnable{
      */
     private void sendMessage(Message requestReply, SocketInfo sendSocket){
         try{
-            // Get output stream of client we're sending to from socket info
-            ObjectOutputStream sendOut = sendSocket.getOutputStream();
-
-            // Send message to the client using the output stream
-            sendOut.writeObject(requestReply);
-            sendOut.flush();
+            // Send message to the client using the connection from socket info
+            sendSocket.getConnection().send(requestReply);
         } catch (IOException e) {
            // Socket Closed
             System.out.println("ERROR: Failed to send message to user " + sendSocket.getClientID());
@@ -118,89 +245,214 @@ public class ServerResponse implements Runnable{
     }
 
     /**
-     * Process request for a direct message and forward the message onto the relevant user
+     * Tell the client a frame wasn't handled because it was over a rate limit. The reply never waits for space in the
+     * client's queue, if the client is flooding the server and not reading, replies are dropped too
+     * @param message   frame that was throttled
+     * @param retryAfterMillis  time the client should wait before sending it again
+     */
+    private void throttleResponse(Message message, long retryAfterMillis){
+        try {
+            // A direct message is identified by its sequence number, and a file chunk by its offset
+            long sequence = message.getSpecialCode() == 0 ? message.getSequence()
+                    : message.getSpecialCode() == 52 ? message.getOffset() : 0;
+            clientConnection.trySendFrame(MessageFraming.encode(serverObject.getConfig().getCodec(),
+                    new Message(message.getSpecialCode(), sequence, retryAfterMillis)));
+        } catch (IOException e) {
+            System.out.println("ERROR: Failed to encode throttle reply");
+        }
+    }
+
+    /**
+     * Process request for a direct message and forward the message onto the relevant user. The message is sent as the
+     * user logged in on this connection, so a client can't send messages as another user. If the sender gave the
+     * message a sequence number, they're told once it has been routed (or why it couldn't be), so they can stop
+     * resending it
      * @param directMessage message to pass onto user
      */
     private void directMessageResponse(Message directMessage){
-        // Get list of online client's sockets and the userID to send the message to
-        ArrayList<SocketInfo> users = this.serverObject.getClientSockets();
-        User sendToUser = directMessage.getToUser();
-        SocketInfo sendToSocket = null;
-
-        // Find socket of the user we want to send the message to
-        for (SocketInfo user: users){
-            if (sendToUser.getUniqueID() == user.getClientID()){
-                sendToSocket = user;
-                break;
-            }
+        boolean routed = serverObject.routeDirectMessage(new Message(socketInfo.getUser(), directMessage.getToUser(),
+                directMessage.getMessage(), directMessage.getSequence()), true);
+        if (directMessage.getSequence() != 0){
+            sendMessage(new Message(4, directMessage.getSequence(), routed ? null : "User can't be reached"),
+                    socketInfo);
         }
+    }
 
-        // Send message to the socket if user has been found
-        if (sendToSocket != null){
-            sendMessage(directMessage, sendToSocket);
+    /**
+     * Process a request to create, join, leave or post to a room. The user is sent the room's members when they
+     * create or join it, or the reason if the request fails
+     * @param message   room request from the client
+     */
+    private void roomResponse(Message message){
+        String roomName = message.getRoom();
+        if (roomName == null || roomName.isEmpty()){
+            sendMessage(new Message(35, null, roomName, "Room name can't be empty"), socketInfo);
+            return;
         }
-        else{
-            // Couldn't find user
-            System.out.println("ERROR: Couldn't find user " + sendToUser.getUniqueID() + " so failed to send message");
+        RoomRegistry rooms = serverObject.getRooms();
+
+        switch (message.getSpecialCode()){
+            // Create room, the creator is its first member
+            case 30:
+                RoomRegistry.Room created = rooms.create(roomName, socketInfo);
+                if (created == null){
+                    sendMessage(new Message(35, null, roomName, "Room " + roomName + " already exists"), socketInfo);
+                }
+                else {
+                    sendMessage(new Message(roomName, created.getMemberUsers()), socketInfo);
+                    System.out.println("User ID " + userID + " created room " + roomName);
+                }
+                break;
+
+            // Join room
+            case 31:
+                RoomRegistry.Room joined = rooms.join(roomName, socketInfo);
+                if (joined == null){
+                    sendMessage(new Message(35, null, roomName, "Room " + roomName + " doesn't exist"), socketInfo);
+                }
+                else {
+                    sendMessage(new Message(roomName, joined.getMemberUsers()), socketInfo);
+                }
+                break;
+
+            // Leave room
+            case 32:
+                rooms.leave(roomName, userID);
+                break;
+
+            // Post to room, the poster is taken from the session rather than trusting the client
+            case 33:
+                RoomRegistry.Room room = rooms.getRoom(roomName);
+                if (room == null || !room.isMember(userID)){
+                    sendMessage(new Message(35, null, roomName, "You aren't a member of room " + roomName),
+                            socketInfo);
+                }
+                else {
+                    serverObject.getRoomFanout().post(room,
+                            new Message(33, socketInfo.getUser(), roomName, message.getMessage()));
+                }
+                break;
         }
     }
 
     /**
-     * Registers the login attempt and sends back to the client a unique user id
+     * Registers the login attempt and sends back to the client a unique user id, or rejects it if another user online
+     * is using the name (the client can then try another)
      * @param message   message from client containing login attempt info
      */
     private void loginResponse(Message message){
-        // Create user object to hold the clients details
+        // Messages in the mailbox are kept by name, so a name stays taken while its user is online or their session is
+        // waiting to be resumed. Otherwise anyone could log in with it and be given the user's messages
         String name = message.getMessage();
-        this.userID = serverObject.getUserID();
-        User userDetails = new User(userID, name);
-
-        // Create socket info object
-        SocketInfo socketInfo = new SocketInfo(userDetails.getUniqueID(), this.clientSocket, this.clientOut);
-
-        // Add current user to users
-        // Lock on server object to ensure that the list isn't sent by other threads before the user is added
-        synchronized (serverObject){
-            serverObject.addUser(userDetails, socketInfo);
-            serverObject.notify();
+        int newUserID = serverObject.getUserID();
+        if (!serverObject.getRegistry().claimName(name, newUserID)){
+            try {
+                clientConnection.send(new Message(11, null, null));
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to send login reply");
+            }
+            System.out.println("Rejected login as " + name + ", the name is already in use");
+            return;
         }
 
+        // Create user object to hold the clients details
+        this.userID = newUserID;
+        User userDetails = new User(userID, name);
+
         // Create and send response message to user
+        // This is sent before the user is added so the client knows its id before it receives any list of users
+        // The reply also says whether large frames will be compressed, which only happens if the client offered it
+        ServerConfig config = serverObject.getConfig();
+        String compression = FrameCompressor.negotiate(message.getCompression(), config.isCompressionEnabled());
         String messageContents = Integer.toString(userID);
-        Message requestReply = new Message(11, messageContents);
-        sendMessage(requestReply, socketInfo);
+        SessionRegistry sessions = serverObject.getSessions();
+        if (sessions.isEnabled()){
+            // Start a session the client can resume if its connection drops, everything is sent to the client through
+            // the session from now on. The reply gives the client the session's token
+            ResumableSession started = sessions.create(userDetails, this.clientConnection, rateBuckets);
+            this.socketInfo = started.getSocketInfo();
+            this.session = started;
+            try {
+                started.start(MessageFraming.encode(config.getCodec(),
+                        new Message(messageContents, compression, started.getToken())));
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to send message to user " + userID);
+            }
+        }
+        else {
+            // Create socket info object
+            this.socketInfo = new SocketInfo(userDetails, this.clientConnection);
+            Message requestReply = new Message(11, messageContents, compression);
+            sendMessage(requestReply, socketInfo);
+        }
+        if (compression != null){
+            clientConnection.enableCompression(new FrameCompressor(config.getCompressionLevel(),
+                    config.getCompressionThreshold()));
+        }
+
+        // Add current user to users, this sends the new user the list of connected users and tells all current
+        // clients about the new addition
+        serverObject.addUser(socketInfo);
+        serverObject.getStats().userLoggedIn();
+
+        // Deliver any messages sent to this user while they were offline
+        if (serverObject.getMailbox() != null){
+            serverObject.getMailbox().deliver(socketInfo);
+        }
 
         // Add to log
         System.out.println("New User (ID: "+ this.userID  + ", Name:" + name + ")");
-
-        // Send list of connected users to all current clients (to keep their list up to date with the new addition)
-        sendUsers();
     }
 
     /**
-     * Send list of currently online users to all clients
+     * Resumes the session of a client that has reconnected after its connection dropped. The client carries on as the
+     * same user and is sent every frame it missed, or if the session can't be resumed it's told to log in again
+     * @param message   message from client containing the session token and the number of frames it received
      */
-    private void sendUsers(){
-        // Get array list of users and send to every user
-        // Lock on server object to ensure that the list isn't sent by other threads before the user is added
-        ArrayList<User> users;
-        ArrayList<SocketInfo> sockets;
-        synchronized (serverObject){
-            users = serverObject.getUsers();
-            sockets = serverObject.getClientSockets();
-            serverObject.notify();
-        }
-
-        // Create shallow copy of users to fix bug where clients will keep their old version of this array rather than
-        // update with the new version
-        ArrayList<User> newUsers = new ArrayList<User>(users);
-
-        // Send list of users to each online user
-        Message requestReply = new Message(newUsers);
-        for (SocketInfo socket: sockets){
-            if (socket != null){
-                sendMessage(requestReply, socket);
+    private void resumeResponse(Message message){
+        SessionRegistry sessions = serverObject.getSessions();
+        ResumableSession resumed = sessions.get(message.getSessionToken());
+        ServerConfig config = serverObject.getConfig();
+        String compression = FrameCompressor.negotiate(message.getCompression(), config.isCompressionEnabled());
+
+        int replayed = -1;
+        if (resumed != null){
+            try {
+                String resumedID = Integer.toString(resumed.getSocketInfo().getClientID());
+                replayed = resumed.resume(this.clientConnection, message.getSequence(),
+                        MessageFraming.encode(config.getCodec(), new Message(13, resumedID, compression)));
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to encode resume reply");
+            }
+        }
+        if (replayed < 0){
+            // The session has ended or the client missed too much, it has to log in again as a new user
+            if (resumed != null){
+                sessions.end(resumed);
             }
+            serverObject.getStats().resumeRejected();
+            try {
+                clientConnection.send(new Message(13, null, null));
+            } catch (IOException e) {
+                System.out.println("ERROR: Failed to send resume reply");
+            }
+            return;
+        }
+
+        this.session = resumed;
+        this.rateBuckets = resumed.getRateBuckets();
+        this.socketInfo = resumed.getSocketInfo();
+        this.userID = socketInfo.getClientID();
+        if (compression != null){
+            clientConnection.enableCompression(new FrameCompressor(config.getCompressionLevel(),
+                    config.getCompressionThreshold()));
+        }
+        serverObject.getStats().sessionResumed(replayed);
+
+        // Deliver any messages kept in the mailbox while the client was away
+        if (serverObject.getMailbox() != null){
+            serverObject.getMailbox().deliver(socketInfo);
         }
+        System.out.println("User ID " + userID + " resumed their session (" + replayed + " frames sent again)");
     }
 }
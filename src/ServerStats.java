@@ -0,0 +1,693 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how the server is performing so the different server modes and thread types can be compared.
+ * Tracks:
+ * - The number of open client connections
+ * - How many clients are accepted per second, and how long each accepted client takes to be handed to its handler
+ * - How long each direct message takes to be routed to its recipient
+ * - Frames dropped and clients disconnected because their outbound queue was full
+ * - The depth of each client's outbound queue
+ * - How many presence changes were coalesced into fewer broadcasts, and the bytes this saved
+ * - Messages stored in and delivered from the mailbox for offline users
+ * - Room posts and the number of frames they were fanned out to
+ * - Logins and disconnects, and the frames and bytes received from and sent to every client
+ * - How long each presence broadcast and room post takes to be queued to every recipient
+ * - Connections closed by the ConnectionReaper, for each reason
+ *
+ * Counters are LongAdders and histograms are striped, so the threads recording them don't wait for each other and
+ * everything can be left on in production. A summary, including connections per GB of heap and the p99 routing
+ * latency, is printed to the log periodically, and MetricsServer serves every value over HTTP.
+ */
+public class ServerStats {
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LatencyHistogram routingLatency = new LatencyHistogram();
+    private final LatencyHistogram acceptLatency = new LatencyHistogram();
+    private final LatencyHistogram presenceBroadcastTime = new LatencyHistogram();
+    private final LatencyHistogram roomBroadcastTime = new LatencyHistogram();
+    private final LongAdder messagesRouted = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder slowConsumersDisconnected = new LongAdder();
+    private final LongAdder presenceChanges = new LongAdder();
+    private final LongAdder presenceBroadcasts = new LongAdder();
+    private final LongAdder presenceBytesSaved = new LongAdder();
+    private final LongAdder presenceSnapshotsReused = new LongAdder();
+    private final LongAdder mailboxStored = new LongAdder();
+    private final LongAdder mailboxDelivered = new LongAdder();
+    private final LongAdder roomPosts = new LongAdder();
+    private final LongAdder roomFramesSent = new LongAdder();
+    private final LongAdder framesCompressed = new LongAdder();
+    private final LongAdder compressionBytesSaved = new LongAdder();
+    private final LongAdder clusterForwarded = new LongAdder();
+    private final LongAdder clusterReceived = new LongAdder();
+    private final LongAdder reapedIdle = new LongAdder();
+    private final LongAdder reapedLogin = new LongAdder();
+    private final LongAdder sessionsSuspended = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder resumesRejected = new LongAdder();
+    private final LongAdder sessionsExpired = new LongAdder();
+    private final LongAdder framesReplayed = new LongAdder();
+    private final LongAdder fileFramesRelayed = new LongAdder();
+    private final LongAdder fileBytesRelayed = new LongAdder();
+
+    // Frames throttled by the RateLimiter for each special code (the last entry counts every larger code), over the
+    // user's own limit or the global limit
+    private static final int THROTTLED_CODES = 64;
+    private final LongAdder[] throttledUser = newAdders(THROTTLED_CODES + 1);
+    private final LongAdder[] throttledGlobal = newAdders(THROTTLED_CODES + 1);
+    private final UserRegistry registry;
+
+    // Number of accepts and the time at the previous summary, used to work out the accept rate
+    private long lastAccepted = 0;
+    private long lastSummaryNanos = System.nanoTime();
+
+    /**
+     * Constructor to create a ServerStats object
+     * @param registry  registry of online users, used to find the depth of each user's outbound queue
+     */
+    public ServerStats(UserRegistry registry){
+        this.registry = registry;
+    }
+
+    /**
+     * Record that a new client has connected
+     */
+    public void connectionOpened(){
+        activeConnections.incrementAndGet();
+    }
+
+    /**
+     * Record that a client has been accepted and handed to its handler
+     * @param handoffNanos  time in nanoseconds from accept() returning to the handler taking the client
+     */
+    public void connectionAccepted(long handoffNanos){
+        connectionsAccepted.increment();
+        acceptLatency.record(handoffNanos);
+    }
+
+    /**
+     * Record that a client has disconnected
+     */
+    public void connectionClosed(){
+        activeConnections.decrementAndGet();
+        disconnects.increment();
+    }
+
+    /**
+     * Record that a client has logged in
+     */
+    public void userLoggedIn(){
+        logins.increment();
+    }
+
+    /**
+     * Record how long it took to route a direct message
+     * @param nanos time taken in nanoseconds
+     */
+    public void recordRouting(long nanos){
+        messagesRouted.increment();
+        routingLatency.record(nanos);
+    }
+
+    /**
+     * Record frames read from a client
+     * @param frames    number of frames
+     * @param bytes number of bytes
+     */
+    public void received(int frames, long bytes){
+        framesReceived.add(frames);
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Record frames written to a client
+     * @param frames    number of frames
+     * @param bytes number of bytes
+     */
+    public void sent(int frames, long bytes){
+        framesSent.add(frames);
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Record frames compressed before being written to a client
+     * @param frames    number of frames
+     * @param bytesSaved    bytes saved by compressing them
+     */
+    public void compressed(int frames, long bytesSaved){
+        framesCompressed.add(frames);
+        compressionBytesSaved.add(bytesSaved);
+    }
+
+    /**
+     * Record how long a presence broadcast took to queue to every online user
+     * @param nanos time taken in nanoseconds
+     */
+    public void recordPresenceBroadcast(long nanos){
+        presenceBroadcastTime.record(nanos);
+    }
+
+    /**
+     * Record how long a room post took to queue to the room's members (or hand to the fan-out workers)
+     * @param nanos time taken in nanoseconds
+     */
+    public void recordRoomBroadcast(long nanos){
+        roomBroadcastTime.record(nanos);
+    }
+
+    /**
+     * Record that a frame was thrown away because the recipient's outbound queue was full
+     */
+    public void frameDropped(){
+        framesDropped.increment();
+    }
+
+    /**
+     * Record that a client was disconnected because their outbound queue was full
+     */
+    public void slowConsumerDisconnected(){
+        slowConsumersDisconnected.increment();
+    }
+
+    /**
+     * Record a presence broadcast
+     * @param changes   number of joins and leaves included in the broadcast
+     * @param bytesSaved    bytes saved compared to broadcasting each change on its own
+     */
+    public void presenceBroadcast(int changes, long bytesSaved){
+        presenceChanges.add(changes);
+        presenceBroadcasts.increment();
+        presenceBytesSaved.add(bytesSaved);
+    }
+
+    /**
+     * Record that the cached encoded list of online users was sent rather than encoding it again
+     */
+    public void presenceSnapshotReused(){
+        presenceSnapshotsReused.increment();
+    }
+
+    /**
+     * Record messages stored in the mailbox because their recipient was offline
+     * @param count number of messages stored
+     */
+    public void mailboxStored(int count){
+        mailboxStored.add(count);
+    }
+
+    /**
+     * Record messages delivered from the mailbox
+     * @param count number of messages delivered
+     */
+    public void mailboxDelivered(int count){
+        mailboxDelivered.add(count);
+    }
+
+    /**
+     * Record a post to a room
+     * @param recipients    number of members the post was sent to
+     */
+    public void roomPost(int recipients){
+        roomPosts.increment();
+        roomFramesSent.add(recipients);
+    }
+
+    /**
+     * Returns the number of direct messages routed straight to their recipient
+     * @return  messages routed
+     */
+    public long getMessagesRouted(){
+        return messagesRouted.sum();
+    }
+
+    /**
+     * Returns the number of logins
+     * @return  logins
+     */
+    public long getLogins(){
+        return logins.sum();
+    }
+
+    /**
+     * Returns the number of client connections closed
+     * @return  disconnects
+     */
+    public long getDisconnects(){
+        return disconnects.sum();
+    }
+
+    /**
+     * Returns the number of frames read from clients
+     * @return  frames received
+     */
+    public long getFramesReceived(){
+        return framesReceived.sum();
+    }
+
+    /**
+     * Returns the number of bytes read from clients
+     * @return  bytes received
+     */
+    public long getBytesReceived(){
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Returns the number of frames written to clients
+     * @return  frames sent
+     */
+    public long getFramesSent(){
+        return framesSent.sum();
+    }
+
+    /**
+     * Returns the number of bytes written to clients
+     * @return  bytes sent
+     */
+    public long getBytesSent(){
+        return bytesSent.sum();
+    }
+
+    /**
+     * Record a direct message forwarded to the node its recipient is logged in to
+     */
+    public void clusterForwarded(){
+        clusterForwarded.increment();
+    }
+
+    /**
+     * Record a direct message forwarded to us by another node
+     */
+    public void clusterReceived(){
+        clusterReceived.increment();
+    }
+
+    /**
+     * Returns the number of direct messages forwarded to other nodes
+     * @return  messages forwarded
+     */
+    public long getClusterForwarded(){
+        return clusterForwarded.sum();
+    }
+
+    /**
+     * Returns the number of direct messages forwarded to us by other nodes
+     * @return  messages received from other nodes
+     */
+    public long getClusterReceived(){
+        return clusterReceived.sum();
+    }
+
+    /**
+     * Record a connection closed by the ConnectionReaper
+     * @param reason    why it was closed, "idle" if the client stopped responding or "login" if it never logged in
+     */
+    public void connectionReaped(String reason){
+        if (reason.equals("login")){
+            reapedLogin.increment();
+        }
+        else {
+            reapedIdle.increment();
+        }
+    }
+
+    /**
+     * Returns the number of connections closed because the client stopped responding
+     * @return  idle connections reaped
+     */
+    public long getReapedIdle(){
+        return reapedIdle.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because the client never logged in
+     * @return  connections reaped before logging in
+     */
+    public long getReapedLogin(){
+        return reapedLogin.sum();
+    }
+
+    /**
+     * Record a session suspended because its connection dropped, to wait for the client to resume it
+     */
+    public void sessionSuspended(){
+        sessionsSuspended.increment();
+    }
+
+    /**
+     * Record a session resumed on a new connection
+     * @param replayed  number of frames the client missed that were sent again
+     */
+    public void sessionResumed(int replayed){
+        sessionsResumed.increment();
+        framesReplayed.add(replayed);
+    }
+
+    /**
+     * Record a resume request that was turned down, so the client had to log in again
+     */
+    public void resumeRejected(){
+        resumesRejected.increment();
+    }
+
+    /**
+     * Record a suspended session ended because the client didn't resume it in time
+     */
+    public void sessionExpired(){
+        sessionsExpired.increment();
+    }
+
+    /**
+     * Returns the number of sessions suspended because their connection dropped
+     * @return  sessions suspended
+     */
+    public long getSessionsSuspended(){
+        return sessionsSuspended.sum();
+    }
+
+    /**
+     * Returns the number of sessions resumed on a new connection
+     * @return  sessions resumed
+     */
+    public long getSessionsResumed(){
+        return sessionsResumed.sum();
+    }
+
+    /**
+     * Returns the number of resume requests turned down
+     * @return  resumes rejected
+     */
+    public long getResumesRejected(){
+        return resumesRejected.sum();
+    }
+
+    /**
+     * Returns the number of suspended sessions ended because they weren't resumed in time
+     * @return  sessions expired
+     */
+    public long getSessionsExpired(){
+        return sessionsExpired.sum();
+    }
+
+    /**
+     * Returns the number of frames sent again to clients that resumed their session
+     * @return  frames replayed
+     */
+    public long getFramesReplayed(){
+        return framesReplayed.sum();
+    }
+
+    /**
+     * Record a file transfer frame passed on to the user at the other end of the transfer
+     * @param dataBytes bytes of file data in the frame (0 unless it's a chunk)
+     */
+    public void fileFrameRelayed(int dataBytes){
+        fileFramesRelayed.increment();
+        fileBytesRelayed.add(dataBytes);
+    }
+
+    /**
+     * Returns the number of file transfer frames passed on to users
+     * @return  file frames relayed
+     */
+    public long getFileFramesRelayed(){
+        return fileFramesRelayed.sum();
+    }
+
+    /**
+     * Returns the number of bytes of file data passed on to users
+     * @return  file bytes relayed
+     */
+    public long getFileBytesRelayed(){
+        return fileBytesRelayed.sum();
+    }
+
+    /**
+     * Record a frame from a client that wasn't handled because it was over a rate limit
+     * @param specialCode   special code of the frame
+     * @param global    true if it was over the global limit, false if it was over the user's own limit
+     */
+    public void frameThrottled(int specialCode, boolean global){
+        int index = specialCode >= 0 && specialCode < THROTTLED_CODES ? specialCode : THROTTLED_CODES;
+        (global ? throttledGlobal : throttledUser)[index].increment();
+    }
+
+    /**
+     * Returns the number of frames of a special code throttled by a rate limit
+     * @param specialCode   special code, or any code from 64 up for all of the larger codes together
+     * @param global    true for the global limit, false for users' own limits
+     * @return  frames throttled
+     */
+    public long getFramesThrottled(int specialCode, boolean global){
+        int index = specialCode >= 0 && specialCode < THROTTLED_CODES ? specialCode : THROTTLED_CODES;
+        return (global ? throttledGlobal : throttledUser)[index].sum();
+    }
+
+    /**
+     * Returns the number of frames throttled by any rate limit
+     * @return  frames throttled
+     */
+    public long getFramesThrottled(){
+        long total = 0;
+        for (int i = 0; i <= THROTTLED_CODES; i++){
+            total += throttledUser[i].sum() + throttledGlobal[i].sum();
+        }
+        return total;
+    }
+
+    /**
+     * Create an array of counters
+     * @param size  number of counters
+     * @return  new counters
+     */
+    private static LongAdder[] newAdders(int size){
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++){
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Returns the number of frames compressed before being written to clients
+     * @return  frames compressed
+     */
+    public long getFramesCompressed(){
+        return framesCompressed.sum();
+    }
+
+    /**
+     * Returns the number of bytes saved by compressing frames
+     * @return  bytes saved
+     */
+    public long getCompressionBytesSaved(){
+        return compressionBytesSaved.sum();
+    }
+
+    /**
+     * Returns the number of posts to rooms
+     * @return  room posts
+     */
+    public long getRoomPosts(){
+        return roomPosts.sum();
+    }
+
+    /**
+     * Returns the number of frames room posts were fanned out to
+     * @return  room frames sent
+     */
+    public long getRoomFramesSent(){
+        return roomFramesSent.sum();
+    }
+
+    /**
+     * Returns the number of messages stored in the mailbox
+     * @return  messages stored
+     */
+    public long getMailboxStored(){
+        return mailboxStored.sum();
+    }
+
+    /**
+     * Returns the number of messages delivered from the mailbox
+     * @return  messages delivered
+     */
+    public long getMailboxDelivered(){
+        return mailboxDelivered.sum();
+    }
+
+    /**
+     * Returns the number of presence changes that were merged into another change's broadcast
+     * @return  coalesced presence changes
+     */
+    public long getPresenceChangesCoalesced(){
+        return presenceChanges.sum() - presenceBroadcasts.sum();
+    }
+
+    /**
+     * Returns the bytes saved by coalescing presence changes
+     * @return  bytes saved
+     */
+    public long getPresenceBytesSaved(){
+        return presenceBytesSaved.sum();
+    }
+
+    /**
+     * Returns the number of times the cached encoded list of online users was reused
+     * @return  snapshots reused
+     */
+    public long getPresenceSnapshotsReused(){
+        return presenceSnapshotsReused.sum();
+    }
+
+    /**
+     * Returns the number of frames dropped because of full outbound queues
+     * @return  dropped frames
+     */
+    public long getFramesDropped(){
+        return framesDropped.sum();
+    }
+
+    /**
+     * Returns the number of clients disconnected because of full outbound queues
+     * @return  slow consumers disconnected
+     */
+    public long getSlowConsumersDisconnected(){
+        return slowConsumersDisconnected.sum();
+    }
+
+    /**
+     * Returns the number of clients currently connected
+     * @return  active connections
+     */
+    public int getActiveConnections(){
+        return activeConnections.get();
+    }
+
+    /**
+     * Returns the total number of clients accepted
+     * @return  connections accepted
+     */
+    public long getConnectionsAccepted(){
+        return connectionsAccepted.sum();
+    }
+
+    /**
+     * Returns the histogram of times taken to hand each accepted client to its handler
+     * @return  accept latency histogram
+     */
+    public LatencyHistogram getAcceptLatency(){
+        return acceptLatency;
+    }
+
+    /**
+     * Returns the histogram of direct message routing times
+     * @return  routing latency histogram
+     */
+    public LatencyHistogram getRoutingLatency(){
+        return routingLatency;
+    }
+
+    /**
+     * Returns the histogram of presence broadcast times
+     * @return  presence broadcast histogram
+     */
+    public LatencyHistogram getPresenceBroadcastTime(){
+        return presenceBroadcastTime;
+    }
+
+    /**
+     * Returns the histogram of room post fan-out times
+     * @return  room broadcast histogram
+     */
+    public LatencyHistogram getRoomBroadcastTime(){
+        return roomBroadcastTime;
+    }
+
+    /**
+     * Returns the registry of online users, used to read each connection's stats and queue depth
+     * @return  user registry
+     */
+    public UserRegistry getRegistry(){
+        return registry;
+    }
+
+    /**
+     * Print a summary to the log at a fixed interval on a background thread
+     * @param intervalSeconds   seconds between each summary, 0 or less turns the summary off
+     * @param label description of the server setup included in each summary (e.g. the thread type)
+     */
+    public void startReporting(int intervalSeconds, String label){
+        if (intervalSeconds <= 0){
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(summary(label)), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a one line summary of the current stats
+     * @param label description of the server setup
+     * @return  summary line
+     */
+    public synchronized String summary(String label){
+        // Accept rate since the previous summary
+        long now = System.nanoTime();
+        long accepted = getConnectionsAccepted();
+        double seconds = Math.max(1e-9, (now - lastSummaryNanos) / 1e9);
+        double acceptRate = (accepted - lastAccepted) / seconds;
+        lastAccepted = accepted;
+        lastSummaryNanos = now;
+
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        double usedHeapGB = usedHeap / (1024.0 * 1024.0 * 1024.0);
+        int connections = getActiveConnections();
+        double connectionsPerGB = usedHeapGB > 0 ? connections / usedHeapGB : 0;
+
+        // Find the total and largest outbound queue depth across every online user
+        long queuedFrames = 0;
+        int maxQueueDepth = 0;
+        for (SocketInfo socketInfo: registry.getSockets()){
+            int depth = socketInfo.getConnection().getOutboundQueue().getDepth();
+            queuedFrames += depth;
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+        }
+
+        return String.format("STATS [%s] connections=%d accepted=%d acceptRate=%.1f/s acceptP99=%.1fus heapUsedMB=%.1f connectionsPerGB=%.0f messagesRouted=%d " +
+                        "routingP50=%.1fus routingP99=%.1fus queuedFrames=%d maxQueueDepth=%d framesDropped=%d " +
+                        "slowConsumersDisconnected=%d presenceCoalesced=%d presenceBytesSaved=%d " +
+                        "presenceSnapshotsReused=%d mailboxStored=%d mailboxDelivered=%d roomPosts=%d " +
+                        "roomFramesSent=%d logins=%d disconnects=%d bytesIn=%d bytesOut=%d " +
+                        "presenceBroadcastP99=%.1fus roomBroadcastP99=%.1fus framesCompressed=%d " +
+                        "compressionBytesSaved=%d remoteUsers=%d clusterForwarded=%d clusterReceived=%d " +
+                        "reapedIdle=%d reapedLogin=%d sessionsResumed=%d resumesRejected=%d sessionsExpired=%d " +
+                        "framesReplayed=%d framesThrottled=%d fileFramesRelayed=%d fileBytesRelayed=%d",
+                label, connections, accepted, acceptRate, acceptLatency.getPercentile(99) / 1000.0, usedHeap / (1024.0 * 1024.0), connectionsPerGB, getMessagesRouted(),
+                routingLatency.getPercentile(50) / 1000.0, routingLatency.getPercentile(99) / 1000.0, queuedFrames,
+                maxQueueDepth, getFramesDropped(), getSlowConsumersDisconnected(), getPresenceChangesCoalesced(),
+                getPresenceBytesSaved(), getPresenceSnapshotsReused(), getMailboxStored(), getMailboxDelivered(),
+                getRoomPosts(), getRoomFramesSent(), getLogins(), getDisconnects(), getBytesReceived(),
+                getBytesSent(), presenceBroadcastTime.getPercentile(99) / 1000.0,
+                roomBroadcastTime.getPercentile(99) / 1000.0, getFramesCompressed(), getCompressionBytesSaved(),
+                registry.remoteSize(), getClusterForwarded(), getClusterReceived(),
+                getReapedIdle(), getReapedLogin(), getSessionsResumed(), getResumesRejected(), getSessionsExpired(),
+                getFramesReplayed(), getFramesThrottled(), getFileFramesRelayed(), getFileBytesRelayed());
+    }
+}
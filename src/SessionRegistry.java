@@ -0,0 +1,134 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the session of every logged in client by its token, so a client whose connection drops can reconnect and
+ * resume its session (see ResumableSession) instead of logging in again as a new user.
+ *
+ * A client that loses its connection has the resume window to come back. Until then the user stays online to everyone
+ * else and anything sent to them is kept, and once it passes without the client resuming, the session ends and the
+ * user leaves as if they had disconnected. Tokens are 128 random bits, so they can't be guessed to take over somebody
+ * else's session.
+ */
+public class SessionRegistry {
+    // Random bytes in each session token
+    private static final int TOKEN_BYTES = 16;
+
+    private final Server server;
+    private final ServerConfig config;
+    private final ServerStats stats;
+    private final TimingWheel timers;
+    private final long resumeWindowMillis;
+
+    private final ConcurrentHashMap<String, ResumableSession> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructor to create an empty SessionRegistry
+     * @param server    server the sessions' users are removed from when their sessions end
+     * @param config    server settings containing the resume window and replay buffer size
+     * @param stats server stats to record resumed and expired sessions in
+     * @param timers    wheel used to end sessions that aren't resumed in time
+     */
+    public SessionRegistry(Server server, ServerConfig config, ServerStats stats, TimingWheel timers){
+        this.server = server;
+        this.config = config;
+        this.stats = stats;
+        this.timers = timers;
+        this.resumeWindowMillis = TimeUnit.SECONDS.toMillis(config.getResumeWindowSeconds());
+    }
+
+    /**
+     * Returns whether clients can resume their sessions, if not a client that loses its connection leaves straight away
+     * @return  true if the resume window is on
+     */
+    public boolean isEnabled(){
+        return resumeWindowMillis > 0;
+    }
+
+    /**
+     * Start a session for a client that has just logged in, with a new random token
+     * @param user  details of the user that logged in
+     * @param connection    connection the client logged in on
+     * @param rateBuckets   rate limits of the user, kept for every connection the session is resumed on
+     * @return  the new session
+     */
+    public ResumableSession create(User user, ClientConnection connection, RateLimiter.Buckets rateBuckets){
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        ResumableSession session = new ResumableSession(token, user, connection, config.getCodec(),
+                config.getReplayBufferFrames(), config.getReplayBufferBytes(), rateBuckets);
+        sessions.put(token, session);
+        return session;
+    }
+
+    /**
+     * Find the session a client wants to resume
+     * @param token token given to the client when it logged in
+     * @return  the session, or null if there's no session with that token (it has ended)
+     */
+    public ResumableSession get(String token){
+        return token == null ? null : sessions.get(token);
+    }
+
+    /**
+     * Suspend a session whose connection has closed, ending it once the resume window passes unless the client has
+     * resumed it by then
+     * @param session   session of the client
+     * @param closed    connection that has closed
+     */
+    public void suspend(ResumableSession session, ClientConnection closed){
+        if (!session.suspend(closed)){
+            // The client has already resumed on another connection, or the session has ended
+            return;
+        }
+        long resumeCount = session.getResumeCount();
+        stats.sessionSuspended();
+        // Timer tasks must not block, removing the user tells every other client so it's done on another thread
+        timers.schedule(() -> server.getHandlerExecutor().execute(() -> expire(session, resumeCount)),
+                resumeWindowMillis);
+    }
+
+    /**
+     * End a session for good and remove its user, because the client disconnected or the session can't be resumed
+     * @param session   session to end
+     */
+    public void end(ResumableSession session){
+        if (session.end()){
+            remove(session);
+        }
+    }
+
+    /**
+     * Returns the number of sessions, including those waiting to be resumed
+     * @return  number of sessions
+     */
+    public int getSessionCount(){
+        return sessions.size();
+    }
+
+    /**
+     * End a session if it's still waiting to be resumed after the resume window
+     * @param session   suspended session
+     * @param resumeCount   number of times the session had been resumed when it was suspended
+     */
+    private void expire(ResumableSession session, long resumeCount){
+        if (session.endIfSuspended(resumeCount)){
+            stats.sessionExpired();
+            remove(session);
+        }
+    }
+
+    /**
+     * Forget an ended session and remove its user (this also tells all other clients the user has left)
+     * @param session   ended session
+     */
+    private void remove(ResumableSession session){
+        sessions.remove(session.getToken(), session);
+        SocketInfo socketInfo = session.getSocketInfo();
+        server.removeUser(socketInfo.getClientID(), socketInfo.getClientSocket());
+    }
+}
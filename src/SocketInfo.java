@@ -1,24 +1,24 @@
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 /**
- * Encapsulates details of each client's socket, their ID and the relevant output stream to send messages on
+ * Encapsulates details of each client's socket, their user details and the relevant connection to send messages on
  */
 public class SocketInfo {
     private final int clientID;
+    private final User user;
     private final Socket clientSocket;
-    private final ObjectOutputStream outputStream;
+    private final ClientConnection connection;
 
     /**
      * Constructor for SocketInfo objects to hold details of each client's socket
-     * @param clientID  id of client associated with the socket
-     * @param clientSocket  the socket itself
-     * @param outputStream  an open object output stream used to send messages to the client
+     * @param user  details (id and name) of the client associated with the socket
+     * @param connection  an open connection used to send messages to the client
      */
-    public SocketInfo(int clientID, Socket clientSocket, ObjectOutputStream outputStream){
-        this.clientID = clientID;
-        this.clientSocket = clientSocket;
-        this.outputStream = outputStream;
+    public SocketInfo(User user, ClientConnection connection){
+        this.clientID = user.getUniqueID();
+        this.user = user;
+        this.clientSocket = connection.getSocket();
+        this.connection = connection;
     }
 
     /**
@@ -29,6 +29,14 @@ public class SocketInfo {
         return clientID;
     }
 
+    /**
+     * Returns details of the user associated with socket
+     * @return  user
+     */
+    public User getUser() {
+        return user;
+    }
+
     /**
      * Returns active client socket
      * @return  clientSocket
@@ -38,10 +46,10 @@ public class SocketInfo {
     }
 
     /**
-     * Returns object output stream used to send messages to client
-     * @return  outputStream
+     * Returns connection used to send messages to client
+     * @return  connection
      */
-    public ObjectOutputStream getOutputStream() {
-        return outputStream;
+    public ClientConnection getConnection() {
+        return connection;
     }
 }
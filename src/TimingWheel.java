@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks after a delay on a single background thread, cheaply enough to keep a timer for every connection to the
+ * server. Time is split into ticks, and the wheel is a ring of buckets with one bucket per tick. A task due at a tick
+ * goes into that tick's bucket (wrapping round the ring), so scheduling a task and finding the tasks that are due are
+ * both a constant amount of work however many tasks are waiting, unlike a priority queue which costs more as it grows.
+ * Tasks due more than one turn of the wheel away share the bucket and are skipped until their turn comes round.
+ *
+ * Any thread can schedule a task, it's added to a queue that the wheel thread empties into the buckets each tick, so
+ * the buckets are only ever touched by the wheel thread and need no locking. Tasks run on the wheel thread up to one
+ * tick late, so they must be quick and must never block.
+ */
+public class TimingWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayList<ArrayList<Timer>> buckets;
+
+    // Tasks scheduled since the last tick, waiting to be put into their buckets
+    private final ConcurrentLinkedQueue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+
+    // Time the wheel started, and the last tick it has run (only used by the wheel thread)
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0;
+
+    /**
+     * A task waiting to run at a tick
+     */
+    private static final class Timer {
+        private final Runnable task;
+        private final long dueTick;
+
+        private Timer(Runnable task, long dueTick){
+            this.task = task;
+            this.dueTick = dueTick;
+        }
+    }
+
+    /**
+     * Constructor to create a TimingWheel, the wheel doesn't turn until start() is called
+     * @param tickMillis    length of each tick, tasks run up to this late
+     * @param buckets   number of buckets in the ring, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int buckets){
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++){
+            this.buckets.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Start turning the wheel on its own thread
+     * @param name  name of the thread
+     */
+    public void start(String name){
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task once a delay has passed. Safe to call from any thread, including from a task on the wheel thread
+     * @param task  task to run on the wheel thread
+     * @param delayMillis   time to wait before running the task
+     */
+    public void schedule(Runnable task, long delayMillis){
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) - startNanos;
+        scheduled.offer(new Timer(task, (due + tickNanos - 1) / tickNanos));
+    }
+
+    /**
+     * Waits for each tick then runs the tasks that are due, catching up if a tick was missed.
+     * Runs on the wheel's own thread for as long as the server is running
+     */
+    private void run(){
+        while (true){
+            long waitNanos = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+            if (waitNanos > 0){
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            currentTick++;
+
+            // Put newly scheduled tasks into their buckets, any that are already due run this tick
+            Timer timer;
+            while ((timer = scheduled.poll()) != null){
+                buckets.get((int) (Math.max(timer.dueTick, currentTick) & mask)).add(timer);
+            }
+            expire(buckets.get((int) (currentTick & mask)));
+        }
+    }
+
+    /**
+     * Run every task in a bucket that is due, leaving the tasks due on a later turn of the wheel
+     * @param bucket    bucket of the current tick
+     */
+    private void expire(ArrayList<Timer> bucket){
+        int kept = 0;
+        int size = bucket.size();
+        for (int i = 0; i < size; i++){
+            Timer timer = bucket.get(i);
+            if (timer.dueTick > currentTick){
+                bucket.set(kept++, timer);
+                continue;
+            }
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                System.out.println("ERROR: Timer task failed: " + e);
+            }
+        }
+        // Tasks scheduled by the tasks above went into the queue rather than this bucket, so it's safe to trim it
+        bucket.subList(kept, size).clear();
+    }
+}
@@ -0,0 +1,313 @@
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Encrypts a client's non-blocking channel with TLS for a NioClientConnection, using an SSLEngine from TlsTransport.
+ * The connection reads and writes its frames through this rather than the channel, and the handshake is carried out
+ * as part of those reads and writes. Only used on the connection's event loop thread.
+ *
+ * Encrypted and decrypted bytes are held in buffers borrowed from a BufferPool (each large enough for a whole TLS
+ * record), which are handed back as soon as they're empty. So like the read buffers, the number of buffers only grows
+ * with the number of connections busy at once, and idle clients don't hold any.
+ *
+ * Handshake tasks (checking keys and signatures) run straight away on the event loop, they take well under a
+ * millisecond with the EC keys TlsTransport generates, and far less when a client resumes its session.
+ */
+public class TlsChannel {
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool bufferPool;
+
+    // Encrypted bytes read that don't yet make up a whole record (ready to be written to), null when there are none
+    private ByteBuffer netIn;
+
+    // Decrypted bytes not yet handed to the connection (ready to be read from), null when there are none
+    private ByteBuffer appIn;
+
+    // Encrypted bytes waiting to be written to the channel (ready to be written to), null when there are none
+    private ByteBuffer netOut;
+
+    /**
+     * Constructor to create a TlsChannel, the handshake starts when the client's first bytes are read
+     * @param channel   non-blocking channel connected to the client
+     * @param engine    server side engine encrypting the connection
+     * @param bufferPool    pool of buffers at least TlsTransport.getBufferSize() bytes each
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool bufferPool){
+        this.channel = channel;
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Read and decrypt whatever data is available, carrying on with the handshake if it hasn't finished
+     * @param dst   buffer to put the decrypted data in
+     * @return  number of bytes put in the buffer (0 if no whole record has arrived yet), or -1 if the client has closed
+     *          the connection
+     * @throws IOException  if the channel fails or the client breaks the TLS protocol
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (true){
+            // Hand over data decrypted earlier first
+            if (appIn != null){
+                total += transfer(appIn, dst);
+                if (appIn.hasRemaining()){
+                    return total;
+                }
+                appIn = release(appIn);
+            }
+            if (!dst.hasRemaining() || !handshake()){
+                // Full, or waiting to write handshake data before the client will send any more
+                return total;
+            }
+
+            // Decrypt the next record if it has all arrived, otherwise read more of it
+            SSLEngineResult.Status status = unwrap();
+            if (status == SSLEngineResult.Status.CLOSED){
+                return total > 0 ? total : -1;
+            }
+            if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW){
+                if (netIn == null){
+                    netIn = bufferPool.acquire();
+                }
+                int read = channel.read(netIn);
+                if (netIn.position() == 0){
+                    netIn = release(netIn);
+                }
+                if (read < 0){
+                    return total > 0 ? total : -1;
+                }
+                if (read == 0){
+                    return total;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypt and write as much data as the channel will accept. Nothing is written until the handshake has finished
+     * @param srcs  buffers holding the data to write, their positions are moved past the data written
+     * @return  number of bytes taken from the buffers
+     * @throws IOException  if the channel fails or the connection has been closed
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        if (!flush() || !handshake() || isHandshaking()){
+            return 0;
+        }
+        long consumed = 0;
+        while (remaining(srcs)){
+            // Records are collected until the buffer is full, so small frames are written together
+            SSLEngineResult result = wrap(srcs);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                if (!flush()){
+                    // The channel is full
+                    return consumed;
+                }
+            }
+            else if (result.bytesConsumed() == 0){
+                // The engine needs to hear from the client before sending more
+                break;
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    /**
+     * Write any encrypted bytes still waiting to go out
+     * @return  true if everything has been written, false if the channel is full
+     * @throws IOException  if the channel fails
+     */
+    public boolean flush() throws IOException {
+        if (netOut == null){
+            return true;
+        }
+        netOut.flip();
+        channel.write(netOut);
+        netOut.compact();
+        if (netOut.position() > 0){
+            return false;
+        }
+        netOut = release(netOut);
+        return true;
+    }
+
+    /**
+     * Returns whether encrypted bytes are waiting for the channel to accept them, if so the connection should wait
+     * until it can write again and then call flush() or write()
+     * @return  true if there are bytes waiting to be written
+     */
+    public boolean hasPendingOutput(){
+        return netOut != null;
+    }
+
+    /**
+     * Returns whether data has already been read from the channel that hasn't been handed to the connection yet. The
+     * selector won't say the channel is ready to read for it, so the connection should read again
+     * @return  true if decrypted data, or a whole encrypted record, is waiting
+     */
+    public boolean hasBufferedInput(){
+        return appIn != null || netIn != null && netIn.position() >= 5 && netIn.position() >= recordLength();
+    }
+
+    /**
+     * Carry on with the handshake as far as possible without reading from the client, running its tasks and writing
+     * the handshake messages the engine has ready
+     * @return  true if the handshake can carry on (or has finished), false if handshake messages are waiting for the
+     *          channel to accept them
+     * @throws IOException  if the channel fails or the handshake can't be carried on
+     */
+    private boolean handshake() throws IOException {
+        while (true){
+            switch (engine.getHandshakeStatus()){
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null){
+                        task.run();
+                    }
+                    break;
+
+                case NEED_WRAP:
+                    // The engine wraps each handshake message on its own, they're collected and written together so
+                    // the flight goes out in one packet rather than waiting on the client's delayed acks
+                    SSLEngineResult result = wrap(NO_DATA);
+                    boolean wrapMore = result.getStatus() == SSLEngineResult.Status.OK
+                            && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+                    if (!wrapMore && !flush()){
+                        return false;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED){
+                        return true;
+                    }
+                    break;
+
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the handshake is waiting to hear from the client
+     * @return  true if the engine needs more handshake data before it can send
+     */
+    private boolean isHandshaking(){
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN;
+    }
+
+    /**
+     * Decrypt the next record held in the read buffer into the decrypted buffer
+     * @return  OK if a record was decrypted, BUFFER_UNDERFLOW if a whole record hasn't arrived, or CLOSED if the
+     *          client has ended TLS
+     * @throws IOException  if the record can't be decrypted
+     */
+    private SSLEngineResult.Status unwrap() throws IOException {
+        boolean unwrapAgain = engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN;
+        if (netIn == null && !unwrapAgain){
+            return SSLEngineResult.Status.BUFFER_UNDERFLOW;
+        }
+        ByteBuffer src = netIn == null ? NO_DATA[0] : netIn.flip();
+        appIn = bufferPool.acquire();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(src, appIn);
+        } finally {
+            if (netIn != null){
+                netIn.compact();
+                if (netIn.position() == 0){
+                    netIn = release(netIn);
+                }
+            }
+            appIn.flip();
+            if (!appIn.hasRemaining()){
+                appIn = release(appIn);
+            }
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+            throw new IOException("TLS record too large for buffer");
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && netIn != null && !netIn.hasRemaining()){
+            throw new IOException("TLS record too large for buffer");
+        }
+        return result.getStatus();
+    }
+
+    /**
+     * Encrypt data into the buffer of bytes waiting to be written
+     * @param srcs  data to encrypt
+     * @return  result of the engine's wrap
+     * @throws IOException  if the connection has been closed or the data can't be encrypted
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs) throws IOException {
+        if (netOut == null){
+            netOut = bufferPool.acquire();
+        }
+        SSLEngineResult result = engine.wrap(srcs, netOut);
+        if (netOut.position() == 0){
+            netOut = release(netOut);
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut == null){
+            throw new IOException("TLS record too large for buffer");
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && srcs != NO_DATA){
+            throw new IOException("TLS connection is closed");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the length of the record at the start of the read buffer, from its header
+     * @return  length of the record including its 5 byte header
+     */
+    private int recordLength(){
+        return 5 + ((netIn.get(3) & 0xff) << 8 | (netIn.get(4) & 0xff));
+    }
+
+    /**
+     * Copy as many bytes as will fit from one buffer to another
+     * @param src   buffer to copy from
+     * @param dst   buffer to copy to
+     * @return  number of bytes copied
+     */
+    private static int transfer(ByteBuffer src, ByteBuffer dst){
+        int count = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        dst.put(src);
+        src.limit(limit);
+        return count;
+    }
+
+    /**
+     * Returns whether any of the buffers still have data in them
+     * @param srcs  buffers to check
+     * @return  true if there's data left
+     */
+    private static boolean remaining(ByteBuffer[] srcs){
+        for (ByteBuffer src: srcs){
+            if (src.hasRemaining()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand a buffer back to the pool
+     * @param buffer    buffer that's no longer needed
+     * @return  null, to clear the field that held it
+     */
+    private ByteBuffer release(ByteBuffer buffer){
+        bufferPool.release(buffer);
+        return null;
+    }
+}
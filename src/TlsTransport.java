@@ -0,0 +1,286 @@
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+
+/**
+ * Encrypts connections between clients and the server with TLS (using JSSE), as an alternative to tunnelling them
+ * through SSH. The server uses it when started with chat.server.transport=tls and the Client when started with
+ * chat.client.transport=tls (see ClientTransport).
+ *
+ * Reconnecting is quick: each side keeps the sessions it has negotiated (and the server hands out session tickets), so
+ * a client reconnecting after its connection drops resumes its TLS session rather than doing a full handshake again.
+ * The client keeps the same TlsTransport for as long as it runs so its sessions are kept between connections.
+ *
+ * The server's key store is created the first time the server is started if there isn't one, holding a new self-signed
+ * certificate, along with a trust store holding only that certificate. Clients on the same machine use the trust store
+ * straight away, clients on other machines need a copy of it.
+ *
+ * Settings (Java system properties, used by the client and the server):
+ * - chat.tls.keyStore: PKCS12 key store holding the server's key and certificate (default Data/tls/server.p12)
+ * - chat.tls.keyStorePassword: password of the key store (default changeit)
+ * - chat.tls.trustStore: PKCS12 trust store holding the certificates clients trust (default Data/tls/trust.p12)
+ * - chat.tls.trustStorePassword: password of the trust store (default changeit)
+ * - chat.tls.generate: create a self-signed key store and matching trust store if the server has no key store
+ *   (default true)
+ * - chat.tls.subjectAltNames: names the generated certificate is valid for, clients check the server's address is
+ *   one of them (default dns:localhost,ip:127.0.0.1)
+ * - chat.tls.protocols: TLS versions that can be used (default TLSv1.3,TLSv1.2)
+ * - chat.tls.sessionCacheSize: most sessions each side keeps to resume (default 20480)
+ * - chat.tls.sessionTimeoutSeconds: how long a session can be resumed for after it was negotiated (default 86400)
+ */
+public class TlsTransport {
+    // Name of the server's key and certificate in the key store
+    private static final String ALIAS = "chat-server";
+
+    static {
+        // Session tickets let the server resume sessions without keeping them itself, these are already on by default
+        // but are set in case they were turned off for the whole JVM
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null){
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        if (System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null){
+            System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+        }
+    }
+
+    private final SSLContext context;
+    private final String[] protocols;
+
+    /**
+     * Constructor to create a TlsTransport
+     * @param context   context holding the keys or trusted certificates, and the sessions that can be resumed
+     * @param protocols TLS versions that can be used
+     */
+    private TlsTransport(SSLContext context, String[] protocols){
+        this.context = context;
+        this.protocols = protocols;
+    }
+
+    /**
+     * Create the server's TlsTransport using the key store from the settings, generating a self-signed key store (and
+     * a trust store for clients) if there isn't one
+     * @return  server side TLS
+     * @throws IOException  if the key store can't be read or generated
+     */
+    public static TlsTransport forServer() throws IOException {
+        Path keyStore = Path.of(System.getProperty("chat.tls.keyStore", "Data/tls/server.p12"));
+        char[] password = System.getProperty("chat.tls.keyStorePassword", "changeit").toCharArray();
+        if (!Files.exists(keyStore)){
+            if (!Boolean.parseBoolean(System.getProperty("chat.tls.generate", "true"))){
+                throw new IOException("No TLS key store at " + keyStore);
+            }
+            generate(keyStore, password);
+        }
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(load(keyStore, password), password);
+            return create(keyManagers.getKeyManagers(), null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to read TLS key store " + keyStore, e);
+        }
+    }
+
+    /**
+     * Create a client's TlsTransport, trusting the certificates in the trust store from the settings
+     * @return  client side TLS
+     * @throws IOException  if the trust store can't be read
+     */
+    public static TlsTransport forClient() throws IOException {
+        Path trustStore = trustStorePath();
+        if (!Files.exists(trustStore)){
+            throw new IOException("No TLS trust store at " + trustStore + ", start the server with TLS to generate one"
+                    + " or copy it from the server");
+        }
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(load(trustStore, trustStorePassword()));
+            return create(null, trustManagers.getTrustManagers());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to read TLS trust store " + trustStore, e);
+        }
+    }
+
+    /**
+     * Start TLS on a connection the server has accepted. The handshake happens the first time the connection is read
+     * from, on the thread handling the client rather than the acceptor. Small packets are sent straight away, as each
+     * record is written as soon as it's made and holding them back only adds the client's delayed acks
+     * @param socket    connection accepted from a client
+     * @return  socket encrypting the connection
+     * @throws IOException  if TLS can't be started on the connection
+     */
+    public Socket wrapAccepted(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        SSLSocket tlsSocket = (SSLSocket) context.getSocketFactory().createSocket(socket, null, true);
+        tlsSocket.setUseClientMode(false);
+        tlsSocket.setEnabledProtocols(protocols);
+        return tlsSocket;
+    }
+
+    /**
+     * Create the engine encrypting a connection the server has accepted in nio mode (see TlsChannel)
+     * @return  server side engine
+     */
+    public SSLEngine newServerEngine(){
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        return engine;
+    }
+
+    /**
+     * Returns the size of the buffers TlsChannel needs, large enough for a whole encrypted record or the data in one
+     * @return  buffer size in bytes
+     */
+    public int getBufferSize(){
+        SSLSession session = newServerEngine().getSession();
+        return Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+    }
+
+    /**
+     * Connect to the server and complete the TLS handshake, resuming a session from an earlier connection to the same
+     * host and port if there is one. The server's certificate must be trusted and valid for the host
+     * @param host  server's address
+     * @param port  server's port
+     * @return  connected socket
+     * @throws IOException  if the server can't be reached or the handshake fails
+     */
+    public SSLSocket connect(String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        try {
+            // Each record is written as soon as it's made, so holding small packets back only delays them
+            socket.setTcpNoDelay(true);
+            socket.setEnabledProtocols(protocols);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Create the context, setting how many sessions are kept to resume and for how long
+     * @param keyManagers   server's keys, or null for a client
+     * @param trustManagers certificates a client trusts, or null for the server
+     * @return  new TlsTransport
+     * @throws GeneralSecurityException if TLS isn't available
+     */
+    private static TlsTransport create(KeyManager[] keyManagers, TrustManager[] trustManagers)
+            throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, trustManagers, null);
+        int cacheSize = Integer.getInteger("chat.tls.sessionCacheSize", 20480);
+        int timeoutSeconds = Integer.getInteger("chat.tls.sessionTimeoutSeconds", 86400);
+        for (SSLSessionContext sessions: new SSLSessionContext[]{context.getServerSessionContext(),
+                context.getClientSessionContext()}){
+            sessions.setSessionCacheSize(Math.max(0, cacheSize));
+            sessions.setSessionTimeout(Math.max(0, timeoutSeconds));
+        }
+        String[] protocols = System.getProperty("chat.tls.protocols", "TLSv1.3,TLSv1.2").split("\\s*,\\s*");
+        return new TlsTransport(context, protocols);
+    }
+
+    /**
+     * Generate a key store holding a new key and self-signed certificate using the JDK's keytool, and a trust store
+     * holding only the certificate for clients to use
+     * @param keyStore  path to create the key store at
+     * @param password  password of the key store
+     * @throws IOException  if keytool fails or either store can't be written
+     */
+    private static void generate(Path keyStore, char[] password) throws IOException {
+        Path parent = keyStore.toAbsolutePath().getParent();
+        if (parent != null){
+            Files.createDirectories(parent);
+        }
+
+        // An EC key keeps the handshake cheap for the server
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", ALIAS,
+                "-keyalg", "EC", "-keysize", "256", "-validity", "825", "-dname", "CN=Simple Chat System",
+                "-ext", "SAN=" + System.getProperty("chat.tls.subjectAltNames", "dns:localhost,ip:127.0.0.1"),
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", new String(password))
+                .redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            if (process.waitFor() != 0){
+                throw new IOException("keytool failed to generate a TLS key store: " + output.trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating a TLS key store", e);
+        }
+
+        // Clients trust the new certificate through the trust store
+        Path trustStore = trustStorePath();
+        try {
+            Certificate certificate = load(keyStore, password).getCertificate(ALIAS);
+            KeyStore trusted = KeyStore.getInstance("PKCS12");
+            trusted.load(null, null);
+            trusted.setCertificateEntry(ALIAS, certificate);
+            Path trustParent = trustStore.toAbsolutePath().getParent();
+            if (trustParent != null){
+                Files.createDirectories(trustParent);
+            }
+            try (OutputStream out = Files.newOutputStream(trustStore)) {
+                trusted.store(out, trustStorePassword());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to write TLS trust store " + trustStore, e);
+        }
+        System.out.println("Generated a self-signed TLS key store at " + keyStore + " and trust store at "
+                + trustStore);
+    }
+
+    /**
+     * Read a PKCS12 key store
+     * @param path  path of the key store
+     * @param password  password of the key store
+     * @return  loaded key store
+     * @throws IOException  if it can't be read or the password is wrong
+     * @throws GeneralSecurityException if its contents can't be read
+     */
+    private static KeyStore load(Path path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    /**
+     * Returns the path of the trust store from the settings
+     * @return  trust store path
+     */
+    private static Path trustStorePath(){
+        return Path.of(System.getProperty("chat.tls.trustStore", "Data/tls/trust.p12"));
+    }
+
+    /**
+     * Returns the password of the trust store from the settings
+     * @return  trust store password
+     */
+    private static char[] trustStorePassword(){
+        return System.getProperty("chat.tls.trustStorePassword", "changeit").toCharArray();
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that lets through a steady rate of frames with short bursts, checked without any locks so it can be
+ * shared by every thread handling clients.
+ *
+ * The bucket fills at the rate and holds at most the burst size. Rather than storing a token count and the time it was
+ * last filled (two values that would need a lock to update together), the bucket stores the single time at which it
+ * will next be full, worked out as if every frame let through pushed it later by one token's worth of time. A frame is
+ * let through if doing that wouldn't leave the bucket more than the burst size short of full. This is the same bucket
+ * written another way (the generic cell rate algorithm), and is updated with a single compare and set.
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    // Time (System.nanoTime) at which the bucket will be full again, in the past if it's already full
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor to create a full TokenBucket
+     * @param perSecond tokens added each second
+     * @param burst largest number of tokens the bucket holds, frames let through at once when it's full
+     */
+    public TokenBucket(double perSecond, int burst){
+        this.nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    /**
+     * Take a token if there is one
+     * @return  0 if a token was taken, otherwise the time in nanoseconds until one will be available
+     */
+    public long tryAcquire(){
+        while (true){
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + nanosPerToken;
+            long shortOfFull = next - now;
+            if (shortOfFull > burstNanos){
+                return shortOfFull - burstNanos;
+            }
+            if (fullAt.compareAndSet(current, next)){
+                return 0;
+            }
+            // Another thread took a token at the same time, try again with the time it left
+        }
+    }
+
+    /**
+     * Put back a token taken by tryAcquire() for a frame that was refused anyway (e.g. by another bucket), so the
+     * frame doesn't count against this bucket
+     */
+    public void release(){
+        // Taking a token pushed the time the bucket is full by one token's worth, adding it back undoes that. Other
+        // threads' tokens are unaffected as the order they're taken in makes no difference to the total
+        fullAt.addAndGet(-nanosPerToken);
+    }
+
+    /**
+     * Returns whether the bucket is full, as it is when it hasn't been used for long enough
+     * @return  true if the bucket holds the burst size
+     */
+    public boolean isFull(){
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
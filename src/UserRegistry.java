@@ -0,0 +1,289 @@
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of every online user and the socket used to reach them, indexed by user id. When running as part of a
+ * cluster (see Cluster), users logged in to other nodes are kept here too, without a socket.
+ * All methods are safe to call from many threads at once without any outside locking:
+ * - Looking up a user's socket is a single hash map lookup, however many users are online
+ * - User ids are handed out with an atomic counter so no two users get the same id. The top bits of every id are the
+ *   id of the node that handed it out, so ids are unique across the cluster and any node can tell which node a user
+ *   is logged in to from their id alone. Each node has 16M ids, once they've all been handed out the counter starts
+ *   again from 0, skipping ids whose user is still online (or resuming their session) or whose name is still kept
+ * - Broadcasts iterate over the sockets without locking, seeing every user that was online when the iteration started
+ *   (users joining or leaving during the iteration may or may not be included)
+ *
+ * No two users online on this node share a name (see claimName()), as the mailbox keeps messages by name: otherwise
+ * someone logging in with the name of a user whose session is waiting to be resumed would be given their messages.
+ *
+ * Direct messages only give users by id, so the names of users that have recently left are kept too, to store
+ * messages sent to (or by) them in the mailbox by name. An id is only handed out again once its user has left and their
+ * name has been forgotten (after at least 16M more logins), so while an id's name is known it never changes.
+ */
+public class UserRegistry {
+    // Online users and their sockets, keyed by user id. ConcurrentHashMap locks each bin separately so threads adding
+    // and removing different users don't block each other, and lookups never lock at all
+    private final ConcurrentHashMap<Integer, SocketInfo> sockets = new ConcurrentHashMap<>();
+
+    // Id of the user online on this node with each name, including users whose session is waiting to be resumed
+    private final ConcurrentHashMap<String, Integer> names = new ConcurrentHashMap<>();
+
+    // Users logged in to other nodes in the cluster, keyed by user id
+    private final ConcurrentHashMap<Integer, User> remoteUsers = new ConcurrentHashMap<>();
+
+    // Most users that have left whose names are kept, the oldest are forgotten first
+    private static final int MAX_DEPARTED = 65536;
+
+    // Users that have recently left (locally or on another node), keyed by user id. Only used when a direct message is
+    // for or from a user that isn't online, so a lock is fine
+    private final Map<Integer, User> departedUsers = new LinkedHashMap<>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, User> eldest){
+            return size() > MAX_DEPARTED;
+        }
+    };
+
+    // Number of bits of each user id that are the node's own counter, the bits above are the node id (up to 127, so
+    // ids are never negative). Each node hands out 16M ids before the counter starts again at 0, then skips ids that
+    // are still in use
+    public static final int NODE_SHIFT = 24;
+    public static final int MAX_NODE_ID = 127;
+    private static final int LOCAL_ID_MASK = (1 << NODE_SHIFT) - 1;
+
+    // Id of this node, and tracker for id so no user is given the same id
+    private final int nodeID;
+    private final AtomicLong currentUserID = new AtomicLong(-1);
+
+    /**
+     * Constructor to create a UserRegistry for a server that isn't part of a cluster (node 0)
+     */
+    public UserRegistry(){
+        this(0);
+    }
+
+    /**
+     * Constructor to create a UserRegistry for a node of a cluster
+     * @param nodeID    id of this node (0 to 127)
+     */
+    public UserRegistry(int nodeID){
+        if (nodeID < 0 || nodeID > MAX_NODE_ID){
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID);
+        }
+        this.nodeID = nodeID;
+    }
+
+    /**
+     * Get a new unique user id for a new user. Until this node's 16M ids have all been handed out every id is new,
+     * after that ids still online or whose name is still kept are skipped
+     * @return  an unique user ID
+     * @throws IllegalStateException    if every one of this node's ids is in use
+     */
+    public int allocateUserID(){
+        for (int attempt = 0; attempt <= LOCAL_ID_MASK; attempt++){
+            long counter = currentUserID.incrementAndGet();
+            int uniqueID = (nodeID << NODE_SHIFT) | (int) (counter & LOCAL_ID_MASK);
+            if (counter <= LOCAL_ID_MASK || !isInUse(uniqueID)){
+                return uniqueID;
+            }
+        }
+        throw new IllegalStateException("Every user id of node " + nodeID + " is in use");
+    }
+
+    /**
+     * Returns whether an id of this node is still in use, by a user that's online or has left so recently their name
+     * is still kept
+     * @param uniqueID  id of the user
+     * @return  true if the id can't be handed out again yet
+     */
+    private boolean isInUse(int uniqueID){
+        if (sockets.containsKey(uniqueID)){
+            return true;
+        }
+        synchronized (departedUsers){
+            return departedUsers.containsKey(uniqueID);
+        }
+    }
+
+    /**
+     * Returns the id of the node that handed out a user id, which is the node the user is logged in to
+     * @param uniqueID  id of the user
+     * @return  node id
+     */
+    public static int nodeOf(int uniqueID){
+        return uniqueID >>> NODE_SHIFT;
+    }
+
+    /**
+     * Returns the id of this node
+     * @return  node id
+     */
+    public int getNodeID(){
+        return nodeID;
+    }
+
+    /**
+     * Returns whether a user id was handed out by this node
+     * @param uniqueID  id of the user
+     * @return  true if the user is (or was) logged in to this node
+     */
+    public boolean isLocal(int uniqueID){
+        return nodeOf(uniqueID) == nodeID;
+    }
+
+    /**
+     * Take a name for a user that is logging in, so no other user on this node can log in with it until they leave
+     * @param name  name the user logged in with
+     * @param uniqueID  id the user has been given
+     * @return  true if the name was free (or the user has no name), false if another user online here is using it
+     */
+    public boolean claimName(String name, int uniqueID){
+        return name == null || names.putIfAbsent(name, uniqueID) == null;
+    }
+
+    /**
+     * Add a user that has just logged in
+     * @param socketInfo    details of the user and their socket
+     */
+    public void add(SocketInfo socketInfo){
+        sockets.put(socketInfo.getClientID(), socketInfo);
+    }
+
+    /**
+     * Remove a user that has disconnected, freeing their name. The user is only removed if they're still using the given
+     * socket
+     * @param uniqueID  id of the user to remove
+     * @param clientSocket  socket of the user we're removing
+     * @return  details of the removed user, or null if they weren't online
+     */
+    public SocketInfo remove(int uniqueID, Socket clientSocket){
+        SocketInfo socketInfo = sockets.get(uniqueID);
+        if (socketInfo != null && socketInfo.getClientSocket() == clientSocket && sockets.remove(uniqueID, socketInfo)){
+            String name = socketInfo.getUser().getName();
+            if (name != null){
+                names.remove(name, uniqueID);
+            }
+            departed(socketInfo.getUser());
+            return socketInfo;
+        }
+        return null;
+    }
+
+    /**
+     * Find a user by id, whether they're online here, online on another node or have recently left
+     * @param uniqueID  id of the user
+     * @return  details of the user, or null if they aren't known
+     */
+    public User find(int uniqueID){
+        SocketInfo socketInfo = sockets.get(uniqueID);
+        if (socketInfo != null){
+            return socketInfo.getUser();
+        }
+        User remote = remoteUsers.get(uniqueID);
+        if (remote != null){
+            return remote;
+        }
+        synchronized (departedUsers){
+            return departedUsers.get(uniqueID);
+        }
+    }
+
+    /**
+     * Find the socket of an online user
+     * @param uniqueID  id of the user
+     * @return  socket details of the user, or null if they aren't online
+     */
+    public SocketInfo getSocket(int uniqueID){
+        return sockets.get(uniqueID);
+    }
+
+    /**
+     * Returns a live view of every online user's socket, used to broadcast to every user without locking
+     * @return  sockets of all online users
+     */
+    public Collection<SocketInfo> getSockets(){
+        return sockets.values();
+    }
+
+    /**
+     * Add a user that has logged in to another node
+     * @param user  details of the user
+     * @return  true if the user wasn't already known
+     */
+    public boolean addRemote(User user){
+        return remoteUsers.put(user.getUniqueID(), user) == null;
+    }
+
+    /**
+     * Remove a user that has disconnected from another node
+     * @param uniqueID  id of the user
+     * @return  details of the removed user, or null if they weren't known
+     */
+    public User removeRemote(int uniqueID){
+        User removed = remoteUsers.remove(uniqueID);
+        if (removed != null){
+            departed(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns every user logged in to another node
+     * @param nodeID    id of the node
+     * @return  list of the node's users
+     */
+    public ArrayList<User> getRemoteUsers(int nodeID){
+        ArrayList<User> users = new ArrayList<>();
+        for (User user: remoteUsers.values()){
+            if (nodeOf(user.getUniqueID()) == nodeID){
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Returns the number of users logged in to other nodes
+     * @return  remote user count
+     */
+    public int remoteSize(){
+        return remoteUsers.size();
+    }
+
+    /**
+     * Returns a new list of every online user across the cluster, sorted by id (so in the order they logged in to
+     * each node)
+     * @return  arrayList of online users
+     */
+    public ArrayList<User> getUsers(){
+        ArrayList<User> users = new ArrayList<>(sockets.size() + remoteUsers.size());
+        for (SocketInfo socketInfo: sockets.values()){
+            users.add(socketInfo.getUser());
+        }
+        users.addAll(remoteUsers.values());
+        users.sort((first, second) -> Integer.compare(first.getUniqueID(), second.getUniqueID()));
+        return users;
+    }
+
+    /**
+     * Keep the name of a user that has left
+     * @param user  details of the user
+     */
+    private void departed(User user){
+        synchronized (departedUsers){
+            departedUsers.put(user.getUniqueID(), user);
+        }
+    }
+
+    /**
+     * Returns the number of users online on this node
+     * @return  online user count
+     */
+    public int size(){
+        return sockets.size();
+    }
+}